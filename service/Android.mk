@@ -110,7 +110,9 @@ LOCAL_STATIC_LIBRARIES += $(LIB_WIFI_HAL)
 LOCAL_SRC_FILES := \
 	jni/com_android_server_wifi_WifiNative.cpp \
 	jni/com_android_server_wifi_Gbk2Utf.cpp \
-	jni/jni_helper.cpp
+	jni/gbk_ssid_table.cpp \
+	jni/jni_helper.cpp \
+	jni/wifi_event_queue.cpp
 
 ifdef INCLUDE_NAN_FEATURE
 LOCAL_SRC_FILES += \
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiScanner;
+
+import java.util.Arrays;
+
+/**
+ * Cached gscan results as copied out of the HAL: one array per field instead of one ScanResult
+ * per access point, so that a flush costs a fixed number of JNI allocations however many results
+ * the HAL had buffered. WifiNative#getScanResults builds the ScanResult and ScanData objects
+ * from the arrays after releasing the HAL lock.
+ *
+ * The arrays are filled in by getScanResultsNative and must not be modified afterwards.
+ * Results are stored scan after scan, each scan's results sorted by timestamp.
+ */
+public class HalScanResults {
+    /* Per scan */
+    int numScans;
+    int[] scanIds;
+    int[] scanFlags;
+    int[] bucketsScanned;
+    /** Index of the first result of each scan, followed by the total number of results. */
+    int[] firstResults;
+
+    /* Per result */
+    /** BSSIDs, the first octet in the most significant of the low six bytes. */
+    long[] bssids;
+    int[] rssis;
+    int[] frequencies;
+    long[] timestamps;
+    /** Raw SSIDs of all the results, back to back. */
+    byte[] ssids;
+    /** Offset of each raw SSID in |ssids|, followed by the length of |ssids|. */
+    int[] ssidOffsets;
+
+    public HalScanResults() {
+        numScans = 0;
+        firstResults = new int[] { 0 };
+        ssidOffsets = new int[] { 0 };
+    }
+
+    public int getNumScans() {
+        return numScans;
+    }
+
+    public int getNumResults() {
+        return firstResults[numScans];
+    }
+
+    /**
+     * Builds the ScanResult at |index|, counting across all scans.
+     */
+    public ScanResult getScanResult(int index) {
+        byte[] ssid = Arrays.copyOfRange(ssids, ssidOffsets[index], ssidOffsets[index + 1]);
+        return createScanResult(ssid, bssids[index], rssis[index], frequencies[index],
+                timestamps[index]);
+    }
+
+    /**
+     * Builds the results grouped into ScanData.
+     */
+    public WifiScanner.ScanData[] getScanData() {
+        WifiScanner.ScanData[] scanData = new WifiScanner.ScanData[numScans];
+        for (int i = 0; i < numScans; i++) {
+            ScanResult[] results = new ScanResult[firstResults[i + 1] - firstResults[i]];
+            for (int j = 0; j < results.length; j++) {
+                results[j] = getScanResult(firstResults[i] + j);
+            }
+            scanData[i] = new WifiScanner.ScanData(scanIds[i], scanFlags[i],
+                    bucketsScanned[i], false, results);
+        }
+        return scanData;
+    }
+
+    /**
+     * Builds a ScanResult from the fields reported by the HAL. An empty |rawSsid| leaves the
+     * SSID unset.
+     */
+    static ScanResult createScanResult(byte[] rawSsid, long bssid, int rssi, int frequency,
+            long timestamp) {
+        ScanResult result = new ScanResult();
+        if (rawSsid != null && rawSsid.length > 0) {
+            WifiNative.setSsid(rawSsid, result);
+        }
+        result.BSSID = formatBssid(bssid);
+        result.level = rssi;
+        result.frequency = frequency;
+        result.timestamp = timestamp;
+        return result;
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Formats a BSSID packed into a long as six colon separated lower case hex octets.
+     */
+    static String formatBssid(long bssid) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (bssid >>> (8 * (5 - i))) & 0xff;
+            if (i > 0) {
+                chars[3 * i - 1] = ':';
+            }
+            chars[3 * i] = HEX_DIGITS[octet >>> 4];
+            chars[3 * i + 1] = HEX_DIGITS[octet & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiLinkLayerStats;
+
+import java.io.PrintWriter;
+
+/**
+ * Takes {@link LinkSample}s of the current connection and decides how long to wait before the
+ * next one. Also keeps the packet counters and rates of the connection's WifiInfo.
+ *
+ * Polls come every MIN_POLL_INTERVAL_MS while the signal is weak or changing, or while there is
+ * traffic. On a strong, steady and idle link the interval doubles after every poll, up to
+ * MAX_POLL_INTERVAL_MS.
+ *
+ * Not thread safe; used from the WifiStateMachine thread only.
+ */
+class LinkMonitor {
+    static final int MIN_POLL_INTERVAL_MS = 3000;
+    static final int MAX_POLL_INTERVAL_MS = 12000;
+
+    /** Below this RSSI, polls are not slowed down, so that the score reacts quickly. */
+    static final int WEAK_RSSI = -70;
+    /** Variance of the RSSI, in dB squared, up to which the signal counts as steady. */
+    static final double STEADY_RSSI_VARIANCE = 9.0;
+    /**
+     * Packets per MIN_POLL_INTERVAL_MS, sent and received, below which the link counts as idle.
+     */
+    static final double IDLE_PACKET_RATE = 2.0;
+    /** RSSI readings needed since the last reset before polls are slowed down. */
+    static final int MIN_RSSI_SAMPLES = 3;
+
+    /** Weight of a new RSSI reading in the running mean and variance. */
+    private static final double RSSI_ALPHA = 0.25;
+
+    private final WifiNative mWifiNative;
+    private final Clock mClock;
+
+    private LinkSample mLastSample;
+    private int mNumRssiSamples;
+    private double mRssiMean;
+    private double mRssiVariance;
+    private int mPollIntervalMs = MIN_POLL_INTERVAL_MS;
+    private int mNumPolls;
+    /** When the packet rates were last updated, in elapsed realtime; 0 if not since reset(). */
+    private long mLastPacketRateUpdateMs;
+
+    LinkMonitor(WifiNative wifiNative, Clock clock) {
+        mWifiNative = wifiNative;
+        mClock = clock;
+    }
+
+    /**
+     * Forgets the history of the link, and returns to the shortest poll interval. Called when a
+     * connection starts or ends, or polling is re-enabled.
+     */
+    void reset() {
+        mLastSample = null;
+        mLastPacketRateUpdateMs = 0;
+        mNumRssiSamples = 0;
+        mRssiMean = 0;
+        mRssiVariance = 0;
+        mPollIntervalMs = MIN_POLL_INTERVAL_MS;
+    }
+
+    /**
+     * Reads a new sample from the supplicant.
+     * @param includePacketCounts also read the TXGOOD and TXBAD counters
+     */
+    LinkSample poll(boolean includePacketCounts) {
+        LinkSample sample = mWifiNative.pollLink(includePacketCounts);
+        if (sample == null) {
+            sample = LinkSample.parse(null, null, mClock.elapsedRealtime());
+        }
+        mNumPolls++;
+        mLastSample = sample;
+        if (sample.rssi > WifiInfo.INVALID_RSSI && sample.rssi < WifiInfo.MAX_RSSI) {
+            updateRssiStatistics(sample.rssi);
+        }
+        return sample;
+    }
+
+    /**
+     * Updates and returns the delay until the next poll, given the packet rates computed from
+     * the latest counters.
+     */
+    int updatePollInterval(double txPacketRate, double rxPacketRate) {
+        boolean steady = mNumRssiSamples >= MIN_RSSI_SAMPLES
+                && mRssiMean >= WEAK_RSSI
+                && mRssiVariance <= STEADY_RSSI_VARIANCE;
+        boolean idle = txPacketRate + rxPacketRate < IDLE_PACKET_RATE;
+        if (steady && idle) {
+            mPollIntervalMs = Math.min(mPollIntervalMs * 2, MAX_POLL_INTERVAL_MS);
+        } else {
+            mPollIntervalMs = MIN_POLL_INTERVAL_MS;
+        }
+        return mPollIntervalMs;
+    }
+
+    /**
+     * Updates the packet counters and rates of |info| from link layer stats, in place of
+     * WifiInfo.updatePacketRates(WifiLinkLayerStats).
+     */
+    void updatePacketRates(WifiInfo info, WifiLinkLayerStats stats) {
+        long txGood = stats.txmpdu_be + stats.txmpdu_bk + stats.txmpdu_vi + stats.txmpdu_vo;
+        long txRetries = stats.retries_be + stats.retries_bk + stats.retries_vi
+                + stats.retries_vo;
+        long rxGood = stats.rxmpdu_be + stats.rxmpdu_bk + stats.rxmpdu_vi + stats.rxmpdu_vo;
+        long txBad = stats.lostmpdu_be + stats.lostmpdu_bk + stats.lostmpdu_vi
+                + stats.lostmpdu_vo;
+        long elapsedMs = takePacketRateInterval();
+        if (info.txBad <= txBad && info.txSuccess <= txGood && info.rxSuccess <= rxGood
+                && info.txRetries <= txRetries) {
+            info.txBadRate = averagePacketRate(info.txBadRate, txBad - info.txBad, elapsedMs);
+            info.txSuccessRate =
+                    averagePacketRate(info.txSuccessRate, txGood - info.txSuccess, elapsedMs);
+            info.rxSuccessRate =
+                    averagePacketRate(info.rxSuccessRate, rxGood - info.rxSuccess, elapsedMs);
+            info.txRetriesRate =
+                    averagePacketRate(info.txRetriesRate, txRetries - info.txRetries, elapsedMs);
+        } else {
+            // The counters went backwards
+            info.txBadRate = 0;
+            info.txSuccessRate = 0;
+            info.rxSuccessRate = 0;
+            info.txRetriesRate = 0;
+        }
+        info.txBad = txBad;
+        info.txSuccess = txGood;
+        info.rxSuccess = rxGood;
+        info.txRetries = txRetries;
+    }
+
+    /**
+     * Updates the packet counters and rates of |info| from the interface packet counts, in place
+     * of WifiInfo.updatePacketRates(long, long). These counts have no failures or retries.
+     */
+    void updatePacketRates(WifiInfo info, long txPackets, long rxPackets) {
+        long elapsedMs = takePacketRateInterval();
+        info.txBad = 0;
+        info.txRetries = 0;
+        info.txBadRate = 0;
+        info.txRetriesRate = 0;
+        if (info.txSuccess <= txPackets && info.rxSuccess <= rxPackets) {
+            info.txSuccessRate = averagePacketRate(info.txSuccessRate,
+                    txPackets - info.txSuccess, elapsedMs);
+            info.rxSuccessRate = averagePacketRate(info.rxSuccessRate,
+                    rxPackets - info.rxSuccess, elapsedMs);
+        } else {
+            info.txSuccessRate = 0;
+            info.rxSuccessRate = 0;
+        }
+        info.txSuccess = txPackets;
+        info.rxSuccess = rxPackets;
+    }
+
+    /**
+     * Averages |newPackets|, counted over |elapsedMs|, into |rate| the way WifiInfo does, but
+     * with the packets counted per MIN_POLL_INTERVAL_MS so that the rate does not depend on the
+     * poll interval. Without an interval to scale by, the packets are taken as they are.
+     */
+    static double averagePacketRate(double rate, long newPackets, long elapsedMs) {
+        double packets = newPackets;
+        if (elapsedMs > 0) {
+            packets = packets * MIN_POLL_INTERVAL_MS / elapsedMs;
+        }
+        return rate * 0.5 + packets * 0.5;
+    }
+
+    private long takePacketRateInterval() {
+        long now = mClock.elapsedRealtime();
+        long elapsedMs = mLastPacketRateUpdateMs != 0 ? now - mLastPacketRateUpdateMs : 0;
+        mLastPacketRateUpdateMs = now;
+        return elapsedMs;
+    }
+
+    int getPollIntervalMs() {
+        return mPollIntervalMs;
+    }
+
+    LinkSample getLastSample() {
+        return mLastSample;
+    }
+
+    private void updateRssiStatistics(int rssi) {
+        // SIGNAL_POLL may report the RSSI plus 256
+        if (rssi > 0) {
+            rssi -= 256;
+        }
+        if (mNumRssiSamples++ == 0) {
+            mRssiMean = rssi;
+            mRssiVariance = 0;
+            return;
+        }
+        double delta = rssi - mRssiMean;
+        mRssiMean += RSSI_ALPHA * delta;
+        mRssiVariance = (1 - RSSI_ALPHA) * (mRssiVariance + RSSI_ALPHA * delta * delta);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("LinkMonitor: interval=" + mPollIntervalMs + " polls=" + mNumPolls
+                + String.format(" rssiMean=%.1f rssiVariance=%.1f", mRssiMean, mRssiVariance));
+        pw.println("  last " + mLastSample);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import com.android.internal.annotations.Immutable;
+
+/**
+ * One reading of the quality of the current link, as reported by the supplicant SIGNAL_POLL
+ * and PKTCNT_POLL commands. Values the supplicant did not report are {@link #INVALID}.
+ */
+@Immutable
+public class LinkSample {
+    /** Value of any field that was not reported. */
+    public static final int INVALID = Integer.MIN_VALUE;
+
+    private static final String[] SIGNAL_POLL_KEYS = { "RSSI", "LINKSPEED", "FREQUENCY" };
+    private static final String[] PKTCNT_POLL_KEYS = { "TXGOOD", "TXBAD" };
+
+    /** Time of the reading, in milliseconds since boot. */
+    public final long timeMs;
+    public final int rssi;
+    public final int linkSpeed;
+    public final int frequency;
+    public final int txGood;
+    public final int txBad;
+
+    public LinkSample(long timeMs, int rssi, int linkSpeed, int frequency, int txGood,
+            int txBad) {
+        this.timeMs = timeMs;
+        this.rssi = rssi;
+        this.linkSpeed = linkSpeed;
+        this.frequency = frequency;
+        this.txGood = txGood;
+        this.txBad = txBad;
+    }
+
+    /**
+     * Builds a sample from the replies to SIGNAL_POLL and PKTCNT_POLL, either of which may be
+     * null.
+     * Example replies:
+     * RSSI=-65
+     * LINKSPEED=48
+     * NOISE=9999
+     * FREQUENCY=0
+     * and
+     * TXGOOD=396
+     * TXBAD=1
+     */
+    public static LinkSample parse(String signalPoll, String pktcntPoll, long timeMs) {
+        int[] signal = parseKeyValues(signalPoll, SIGNAL_POLL_KEYS);
+        int[] pktcnt = parseKeyValues(pktcntPoll, PKTCNT_POLL_KEYS);
+        return new LinkSample(timeMs, signal[0], signal[1], signal[2], pktcnt[0], pktcnt[1]);
+    }
+
+    /**
+     * Finds the integer values of |keys| in a reply made of KEY=VALUE lines, in one pass and
+     * without creating substrings. Keys that are missing or whose value is not a number are
+     * INVALID. If a key appears more than once, the last value is used.
+     */
+    private static int[] parseKeyValues(String reply, String[] keys) {
+        int[] values = new int[keys.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = INVALID;
+        }
+        if (reply == null) {
+            return values;
+        }
+        int length = reply.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = reply.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            int equals = reply.indexOf('=', lineStart);
+            if (equals > lineStart && equals < lineEnd) {
+                int keyLength = equals - lineStart;
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i].length() == keyLength
+                            && reply.regionMatches(lineStart, keys[i], 0, keyLength)) {
+                        values[i] = parseInt(reply, equals + 1, lineEnd);
+                        break;
+                    }
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return values;
+    }
+
+    /**
+     * Parses the decimal integer in |s| from |start| up to |end| or to the next '=', whichever
+     * comes first. Returns INVALID if it is not a number or does not fit in an int.
+     */
+    private static int parseInt(String s, int start, int end) {
+        boolean negative = start < end && s.charAt(start) == '-';
+        int pos = negative ? start + 1 : start;
+        if (pos >= end) {
+            return INVALID;
+        }
+        long value = 0;
+        for (; pos < end; pos++) {
+            char c = s.charAt(pos);
+            if (c == '=') {
+                break;
+            }
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE) {
+                return INVALID;
+            }
+        }
+        if (pos == (negative ? start + 1 : start)) {
+            return INVALID;
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    @Override
+    public String toString() {
+        return "LinkSample[t=" + timeMs + " rssi=" + rssi + " linkspeed=" + linkSpeed
+                + " freq=" + frequency + " txgood=" + txGood + " txbad=" + txBad + "]";
+    }
+}
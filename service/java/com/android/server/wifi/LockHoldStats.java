@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Histograms of how long a lock was held, per command run under it.
+ *
+ * Callers call {@link #acquire} once they hold the lock and pass what it returns to
+ * {@link #release} just before releasing it. The lock may be taken again while it is held, as
+ * when a command is sent as part of a longer sequence; only the outermost hold is recorded, under
+ * the command it was released with. acquire() and release() must only be called with the lock
+ * held, which also guards the nesting depth. {@link TimedLock} does this for a lock of its own.
+ * Thread safe.
+ */
+public class LockHoldStats {
+    /** Upper bounds of the histogram buckets, in milliseconds; the last bucket is unbounded. */
+    private static final int[] BUCKET_LIMITS_MS = { 1, 5, 20, 100, 500, 2000 };
+    /** Commands beyond this many distinct names are counted together. */
+    private static final int MAX_COMMANDS = 100;
+    private static final String OTHER_COMMANDS = "(other)";
+
+    private static class Histogram {
+        final int[] counts = new int[BUCKET_LIMITS_MS.length + 1];
+        long totalNanos;
+        long maxNanos;
+    }
+
+    private final String mName;
+    private final Map<String, Histogram> mHistograms = new TreeMap<>();
+    /** How many times the lock is held by its current owner; guarded by the lock itself. */
+    private int mDepth;
+
+    public LockHoldStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Called once the lock is held.
+     * @return the time to pass to {@link #release}.
+     */
+    public long acquire() {
+        mDepth++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Called just before the lock is released; records the hold for |command| if this is the
+     * outermost one.
+     */
+    public void release(String command, long acquiredAtNanos) {
+        if (--mDepth == 0) {
+            recordHold(command, acquiredAtNanos);
+        }
+    }
+
+    /**
+     * Records that the lock was held for |command| from |lockedAtNanos| until now.
+     */
+    public void recordHold(String command, long lockedAtNanos) {
+        long holdNanos = System.nanoTime() - lockedAtNanos;
+        synchronized (mHistograms) {
+            Histogram histogram = mHistograms.get(command);
+            if (histogram == null) {
+                if (mHistograms.size() >= MAX_COMMANDS) {
+                    command = OTHER_COMMANDS;
+                    histogram = mHistograms.get(command);
+                }
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    mHistograms.put(command, histogram);
+                }
+            }
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MS.length
+                    && holdNanos >= BUCKET_LIMITS_MS[bucket] * 1000000L) {
+                bucket++;
+            }
+            histogram.counts[bucket]++;
+            histogram.totalNanos += holdNanos;
+            histogram.maxNanos = Math.max(histogram.maxNanos, holdNanos);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        StringBuilder header = new StringBuilder();
+        for (int limit : BUCKET_LIMITS_MS) {
+            header.append(" <").append(limit);
+        }
+        header.append(" >=").append(BUCKET_LIMITS_MS[BUCKET_LIMITS_MS.length - 1]);
+        pw.println(mName + " lock hold times (ms):" + header + " total max");
+        synchronized (mHistograms) {
+            for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                StringBuilder sb = new StringBuilder("  ").append(entry.getKey()).append(':');
+                for (int count : histogram.counts) {
+                    sb.append(' ').append(count);
+                }
+                sb.append(' ').append(histogram.totalNanos / 1000000)
+                        .append(' ').append(histogram.maxNanos / 1000000);
+                pw.println(sb);
+            }
+        }
+    }
+}
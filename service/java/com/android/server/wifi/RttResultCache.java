@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.RttManager;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Recent successful ranging results, keyed by peer MAC address and the ranging parameters that
+ * affect the measurement. Used to answer ranging requests that accept results up to a given age
+ * without ranging the peer again.
+ *
+ * Not thread safe; used from the RttService state machine thread only.
+ */
+class RttResultCache {
+    /** Results older than this are never returned, whatever age the client accepts. */
+    static final long MAX_RESULT_AGE_MS = 5000;
+    private static final int MAX_ENTRIES = 64;
+
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * Returns a successful result for |params| measured no more than |maxAgeMs| before |nowMs|,
+     * or null.
+     */
+    RttManager.RttResult get(RttManager.RttParams params, long maxAgeMs, long nowMs) {
+        Key key = new Key(params);
+        Entry entry = mEntries.get(key);
+        if (entry != null && nowMs - entry.timeMs > MAX_RESULT_AGE_MS) {
+            mEntries.remove(key);
+            entry = null;
+        }
+        if (entry == null || nowMs - entry.timeMs > Math.min(maxAgeMs, MAX_RESULT_AGE_MS)) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.result;
+    }
+
+    /**
+     * Records |result|, measured at |nowMs| with |params|. Only successful results are kept.
+     */
+    void put(RttManager.RttParams params, RttManager.RttResult result, long nowMs) {
+        if (result.status != RttManager.RTT_STATUS_SUCCESS) {
+            return;
+        }
+        mEntries.put(new Key(params), new Entry(result, nowMs));
+    }
+
+    void clear() {
+        mEntries.clear();
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "RttResultCache[entries=" + mEntries.size() + " hits=" + mHits + " misses="
+                + mMisses + "]";
+    }
+
+    private static class Entry {
+        final RttManager.RttResult result;
+        final long timeMs;
+
+        Entry(RttManager.RttResult result, long timeMs) {
+            this.result = result;
+            this.timeMs = timeMs;
+        }
+    }
+
+    /**
+     * The peer and the parameters passed to the HAL for it.
+     */
+    private static class Key {
+        private final String mBssid;
+        private final int[] mValues;
+
+        Key(RttManager.RttParams params) {
+            mBssid = params.bssid == null ? "" : params.bssid.toLowerCase(Locale.US);
+            mValues = new int[] {
+                    params.deviceType,
+                    params.requestType,
+                    params.secure ? 1 : 0,
+                    params.frequency,
+                    params.channelWidth,
+                    params.centerFreq0,
+                    params.centerFreq1,
+                    params.numberBurst,
+                    params.interval,
+                    params.numSamplesPerBurst,
+                    params.numRetriesPerMeasurementFrame,
+                    params.numRetriesPerFTMR,
+                    params.LCIRequest ? 1 : 0,
+                    params.LCRRequest ? 1 : 0,
+                    params.burstTimeout,
+                    params.preamble,
+                    params.bandwidth
+            };
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return mBssid.equals(that.mBssid) && Arrays.equals(mValues, that.mValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return mBssid.hashCode() * 31 + Arrays.hashCode(mValues);
+        }
+    }
+}
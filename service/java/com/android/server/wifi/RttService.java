@@ -5,10 +5,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.net.wifi.IRttManager;
 import android.net.wifi.RttManager;
 import android.net.wifi.RttManager.ResponderConfig;
 import android.net.wifi.WifiManager;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -16,6 +18,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Slog;
 
@@ -25,11 +28,15 @@ import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 import com.android.server.SystemService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Locale;
 import java.util.Set;
 
 public final class RttService extends SystemService {
@@ -156,6 +163,13 @@ public final class RttService extends SystemService {
             Integer key;
             ClientInfo ci;
             RttManager.RttParams[] params;
+            long enqueueTimeMs;
+            // Age of cached results the client accepts; 0 if it wants fresh measurements only.
+            long maxResultAgeMs;
+            // Results served from the cache, for peers removed from params.
+            ArrayList<RttManager.RttResult> cachedResults;
+            // Value of mResultCacheGeneration when the cache was last checked for this request.
+            int cacheGeneration = -1;
 
             @Override
             public String toString() {
@@ -175,6 +189,13 @@ public final class RttService extends SystemService {
                     RttRequest>();
             // Client keys of all outstanding responders.
             Set<Integer> mResponderRequests = new HashSet<>();
+            // Ranging requests not yet issued to the HAL, in the order they were made.
+            final LinkedList<RttRequest> mPendingRequests = new LinkedList<>();
+
+            // Scheduler metrics, reported by dump().
+            int mRequestsIssued;
+            long mTotalQueueLatencyMs;
+            long mMaxQueueLatencyMs;
 
             ClientInfo(AsyncChannel c, Messenger m) {
                 mChannel = c;
@@ -189,7 +210,8 @@ public final class RttService extends SystemService {
                 mResponderRequests.remove(key);
             }
 
-            boolean addRttRequest(int key, RttManager.ParcelableRttParams parcelableParams) {
+            boolean addRttRequest(int key, RttManager.ParcelableRttParams parcelableParams,
+                    int maxResultAgeMs) {
                 if (parcelableParams == null) {
                     return false;
                 }
@@ -200,8 +222,23 @@ public final class RttService extends SystemService {
                 request.key = key;
                 request.ci = this;
                 request.params = params;
+                request.enqueueTimeMs = SystemClock.elapsedRealtime();
+                // RttManager leaves arg1 at 0, so its requests take any result the cache still
+                // holds. A positive age narrows that window and a negative one asks for a fresh
+                // measurement.
+                if (maxResultAgeMs == 0) {
+                    request.maxResultAgeMs = RttResultCache.MAX_RESULT_AGE_MS;
+                } else {
+                    request.maxResultAgeMs = Math.max(maxResultAgeMs, 0);
+                }
                 mRequests.put(key, request);
-                mRequestQueue.add(request);
+                if (serveFromCache(request)) {
+                    return true;
+                }
+                mPendingRequests.add(request);
+                if (!mReadyClients.contains(this)) {
+                    mReadyClients.add(this);
+                }
                 return true;
             }
 
@@ -219,6 +256,14 @@ public final class RttService extends SystemService {
             }
 
             void reportResult(RttRequest request, RttManager.RttResult[] results) {
+                if (request.cachedResults != null) {
+                    ArrayList<RttManager.RttResult> allResults =
+                            new ArrayList<>(request.cachedResults);
+                    if (results != null) {
+                        allResults.addAll(Arrays.asList(results));
+                    }
+                    results = allResults.toArray(new RttManager.RttResult[allResults.size()]);
+                }
                 RttManager.ParcelableRttResults parcelableResults =
                         new RttManager.ParcelableRttResults(results);
 
@@ -246,16 +291,208 @@ public final class RttService extends SystemService {
 
             void cleanup() {
                 mRequests.clear();
-                mRequestQueue.clear();
+                mPendingRequests.clear();
+                mReadyClients.remove(this);
                 // When client is lost, clean up responder requests and send disable responder
                 // message to RttStateMachine.
                 mResponderRequests.clear();
                 mStateMachine.sendMessage(RttManager.CMD_OP_DISABLE_RESPONDER);
             }
+
+            @Override
+            public String toString() {
+                return "ClientInfo[" + mMessenger + "] pending=" + mPendingRequests.size()
+                        + " issued=" + mRequestsIssued
+                        + " queueLatencyMs(avg/max)="
+                        + (mRequestsIssued == 0 ? 0 : mTotalQueueLatencyMs / mRequestsIssued)
+                        + "/" + mMaxQueueLatencyMs;
+            }
+        }
+
+        /**
+         * Ranging requests, possibly from several clients, issued to the HAL as a single request.
+         * No two requests in a batch range the same peer, so that the results can be returned to
+         * their owners by peer MAC address.
+         */
+        private class RttBatch {
+            final ArrayList<RttRequest> requests = new ArrayList<>();
+            final Set<String> peers = new HashSet<>();
+            int numParams;
+
+            boolean canAdd(RttRequest request, int maxRequests) {
+                if (requests.isEmpty()) {
+                    // Even a request that is too large for the HAL is issued, and failed, alone.
+                    return true;
+                }
+                if (requests.size() >= maxRequests
+                        || numParams + request.params.length
+                                > WifiNative.MAX_RTT_PEERS_PER_REQUEST) {
+                    return false;
+                }
+                for (RttManager.RttParams params : request.params) {
+                    if (peers.contains(peerKey(params.bssid))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            void add(RttRequest request) {
+                requests.add(request);
+                for (RttManager.RttParams params : request.params) {
+                    peers.add(peerKey(params.bssid));
+                }
+                numParams += request.params.length;
+            }
+
+            RttManager.RttParams[] getParams() {
+                RttManager.RttParams[] params = new RttManager.RttParams[numParams];
+                int index = 0;
+                for (RttRequest request : requests) {
+                    System.arraycopy(request.params, 0, params, index, request.params.length);
+                    index += request.params.length;
+                }
+                return params;
+            }
+
+            RttRequest find(ClientInfo ci, int key) {
+                for (RttRequest request : requests) {
+                    if (request.ci == ci && request.key == key) {
+                        return request;
+                    }
+                }
+                return null;
+            }
+
+            void onIssued() {
+                long now = SystemClock.elapsedRealtime();
+                for (RttRequest request : requests) {
+                    long latencyMs = now - request.enqueueTimeMs;
+                    request.ci.mRequestsIssued++;
+                    request.ci.mTotalQueueLatencyMs += latencyMs;
+                    request.ci.mMaxQueueLatencyMs =
+                            Math.max(request.ci.mMaxQueueLatencyMs, latencyMs);
+                }
+                mBatchesIssued++;
+                mBatchedRequests += requests.size();
+                mBatchSizeHistogram[Math.min(numParams, mBatchSizeHistogram.length - 1)]++;
+            }
+
+            /**
+             * Returns each result to the request that asked for its peer.
+             */
+            void reportResults(RttManager.RttResult[] results) {
+                cacheResults(results);
+                if (requests.size() == 1) {
+                    RttRequest request = requests.get(0);
+                    request.ci.reportResult(request, results);
+                    return;
+                }
+
+                HashMap<String, ArrayList<RttManager.RttResult>> resultsByPeer = new HashMap<>();
+                if (results != null) {
+                    for (RttManager.RttResult result : results) {
+                        String peer = peerKey(result.bssid);
+                        ArrayList<RttManager.RttResult> peerResults = resultsByPeer.get(peer);
+                        if (peerResults == null) {
+                            peerResults = new ArrayList<>();
+                            resultsByPeer.put(peer, peerResults);
+                        }
+                        peerResults.add(result);
+                    }
+                }
+
+                for (RttRequest request : requests) {
+                    ArrayList<RttManager.RttResult> requestResults = new ArrayList<>();
+                    for (RttManager.RttParams params : request.params) {
+                        ArrayList<RttManager.RttResult> peerResults =
+                                resultsByPeer.remove(peerKey(params.bssid));
+                        if (peerResults != null) {
+                            requestResults.addAll(peerResults);
+                        }
+                    }
+                    request.ci.reportResult(request, requestResults.toArray(
+                            new RttManager.RttResult[requestResults.size()]));
+                }
+
+                if (!resultsByPeer.isEmpty()) {
+                    Log.w(TAG, "Dropping RTT results of unrequested peers "
+                            + resultsByPeer.keySet());
+                }
+            }
+
+            private void cacheResults(RttManager.RttResult[] results) {
+                if (results == null) {
+                    return;
+                }
+                HashMap<String, RttManager.RttParams> paramsByPeer = new HashMap<>();
+                for (RttRequest request : requests) {
+                    for (RttManager.RttParams params : request.params) {
+                        paramsByPeer.put(peerKey(params.bssid), params);
+                    }
+                }
+                long now = SystemClock.elapsedRealtime();
+                for (RttManager.RttResult result : results) {
+                    RttManager.RttParams params = paramsByPeer.get(peerKey(result.bssid));
+                    if (params != null) {
+                        mResultCache.put(params, result, now);
+                    }
+                }
+                mResultCacheGeneration++;
+            }
+
+            void abort() {
+                for (RttRequest request : requests) {
+                    request.ci.reportAborted(request.key);
+                }
+            }
+
+            /**
+             * Puts the requests back at the head of their clients' queues, except for those of
+             * |except|.
+             */
+            void requeue(ClientInfo except) {
+                for (int i = requests.size() - 1; i >= 0; i--) {
+                    RttRequest request = requests.get(i);
+                    if (request.ci == except) {
+                        continue;
+                    }
+                    request.ci.mPendingRequests.addFirst(request);
+                    if (!mReadyClients.contains(request.ci)) {
+                        mReadyClients.addFirst(request.ci);
+                    }
+                }
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder("RttBatch[");
+                for (RttRequest request : requests) {
+                    sb.append(' ').append(request.key);
+                }
+                return sb.append(" ] peers=").append(numParams).toString();
+            }
+        }
+
+        private static String peerKey(String bssid) {
+            return bssid == null ? "" : bssid.toLowerCase(Locale.US);
         }
 
-        private Queue<RttRequest> mRequestQueue = new LinkedList<RttRequest>();
         private HashMap<Messenger, ClientInfo> mClients = new HashMap<Messenger, ClientInfo>(4);
+        // Clients with pending ranging requests, in the order the scheduler serves them.
+        private final LinkedList<ClientInfo> mReadyClients = new LinkedList<>();
+
+        // Recent results, for requests that accept them; see serveFromCache().
+        private final RttResultCache mResultCache = new RttResultCache();
+        // Incremented whenever results are added to mResultCache.
+        private int mResultCacheGeneration;
+
+        // Scheduler metrics, reported by dump().
+        private int mBatchesIssued;
+        private int mBatchesFailed;
+        private long mBatchedRequests;
+        // Number of batches issued, indexed by the number of peers in the batch.
+        private final int[] mBatchSizeHistogram = new int[WifiNative.MAX_RTT_PEERS_PER_REQUEST + 1];
 
         private static final int BASE = Protocol.BASE_WIFI_RTT_SERVICE;
 
@@ -331,6 +568,7 @@ public final class RttService extends SystemService {
 
                     switch (msg.what) {
                         case CMD_DRIVER_UNLOADED:
+                            mResultCache.clear();
                             transitionTo(mDefaultState);
                             break;
                         case CMD_ISSUE_NEXT_REQUEST:
@@ -344,7 +582,7 @@ public final class RttService extends SystemService {
                                     || params.mParams.length == 0) {
                                 replyFailed(msg,
                                         RttManager.REASON_INVALID_REQUEST, "No params");
-                            } else if (ci.addRttRequest(msg.arg2, params) == false) {
+                            } else if (ci.addRttRequest(msg.arg2, params, msg.arg1) == false) {
                                 replyFailed(msg,
                                         RttManager.REASON_INVALID_REQUEST, "Unspecified");
                             } else {
@@ -353,12 +591,15 @@ public final class RttService extends SystemService {
                         }
                             break;
                         case RttManager.CMD_OP_STOP_RANGING:
-                            for (Iterator<RttRequest> it = mRequestQueue.iterator();
+                            if (ci == null) {
+                                break;
+                            }
+                            for (Iterator<RttRequest> it = ci.mPendingRequests.iterator();
                                     it.hasNext(); ) {
                                 RttRequest request = it.next();
                                 if (request.key == msg.arg2) {
                                     if (DBG) Log.d(TAG, "Cancelling not-yet-scheduled RTT");
-                                    mRequestQueue.remove(request);
+                                    it.remove();
                                     request.ci.reportAborted(request.key);
                                     break;
                                 }
@@ -391,60 +632,68 @@ public final class RttService extends SystemService {
             }
 
             class InitiatorEnabledState extends State {
-                RttRequest mOutstandingRequest;
+                RttBatch mOutstandingBatch;
                 @Override
                 public boolean processMessage(Message msg) {
                     if (DBG) Log.d(TAG, "RequestPendingState got" + msg);
                     switch (msg.what) {
                         case CMD_DRIVER_UNLOADED:
-                            if (mOutstandingRequest != null) {
-                                mWifiNative.cancelRtt(mOutstandingRequest.params);
-                                if (DBG) Log.d(TAG, "abort key: " + mOutstandingRequest.key);
-                                mOutstandingRequest.ci.reportAborted(mOutstandingRequest.key);
-                                mOutstandingRequest = null;
+                            if (mOutstandingBatch != null) {
+                                mWifiNative.cancelRtt(mOutstandingBatch.getParams());
+                                if (DBG) Log.d(TAG, "abort " + mOutstandingBatch);
+                                mOutstandingBatch.abort();
+                                mOutstandingBatch = null;
                             }
+                            mResultCache.clear();
                             transitionTo(mDefaultState);
                             break;
                         case CMD_ISSUE_NEXT_REQUEST:
-                            if (mOutstandingRequest == null) {
-                                mOutstandingRequest = issueNextRequest();
-                                if (mOutstandingRequest == null) {
+                            if (mOutstandingBatch == null) {
+                                mOutstandingBatch = issueNextBatch();
+                                if (mOutstandingBatch == null) {
                                     transitionTo(mEnabledState);
                                 }
-                                if(mOutstandingRequest != null) {
-                                    if (DBG) Log.d(TAG, "new mOutstandingRequest.key is: " +
-                                            mOutstandingRequest.key);
+                                if (mOutstandingBatch != null) {
+                                    if (DBG) Log.d(TAG, "new mOutstandingBatch is: " +
+                                            mOutstandingBatch);
                                 } else {
                                     if (DBG) Log.d(TAG,
-                                            "CMD_ISSUE_NEXT_REQUEST: mOutstandingRequest =null ");
+                                            "CMD_ISSUE_NEXT_REQUEST: mOutstandingBatch =null ");
                                 }
                             } else {
-                                /* just wait; we'll issue next request after
+                                /* just wait; we'll issue the next batch after
                                  * current one is finished */
-                                 if (DBG) Log.d(TAG, "Current mOutstandingRequest.key is: " +
-                                         mOutstandingRequest.key);
+                                 if (DBG) Log.d(TAG, "Current mOutstandingBatch is: " +
+                                         mOutstandingBatch);
                                  if (DBG) Log.d(TAG, "Ignoring CMD_ISSUE_NEXT_REQUEST");
                             }
                             break;
                         case CMD_RTT_RESPONSE:
                             if (DBG) Log.d(TAG, "Received an RTT response from: " + msg.arg2);
-                            mOutstandingRequest.ci.reportResult(
-                                    mOutstandingRequest, (RttManager.RttResult[])msg.obj);
-                            mOutstandingRequest = null;
+                            if (mOutstandingBatch == null) {
+                                Log.e(TAG, "RTT response without an outstanding request");
+                                break;
+                            }
+                            mOutstandingBatch.reportResults((RttManager.RttResult[]) msg.obj);
+                            mOutstandingBatch = null;
                             sendMessage(CMD_ISSUE_NEXT_REQUEST);
                             break;
-                        case RttManager.CMD_OP_STOP_RANGING:
-                            if (mOutstandingRequest != null
-                                    && msg.arg2 == mOutstandingRequest.key) {
+                        case RttManager.CMD_OP_STOP_RANGING: {
+                            RttRequest request = mOutstandingBatch == null ? null
+                                    : mOutstandingBatch.find(mClients.get(msg.replyTo), msg.arg2);
+                            if (request != null) {
                                 if (DBG) Log.d(TAG, "Cancelling ongoing RTT of: " + msg.arg2);
-                                mWifiNative.cancelRtt(mOutstandingRequest.params);
-                                mOutstandingRequest.ci.reportAborted(mOutstandingRequest.key);
-                                mOutstandingRequest = null;
+                                mWifiNative.cancelRtt(mOutstandingBatch.getParams());
+                                // The other requests of the batch were cancelled with it.
+                                mOutstandingBatch.requeue(request.ci);
+                                request.ci.reportAborted(request.key);
+                                mOutstandingBatch = null;
                                 sendMessage(CMD_ISSUE_NEXT_REQUEST);
                             } else {
                                 /* Let EnabledState handle this */
                                 return NOT_HANDLED;
                             }
+                        }
                             break;
                         default:
                             return NOT_HANDLED;
@@ -558,26 +807,143 @@ public final class RttService extends SystemService {
             }
         };
 
-        RttRequest issueNextRequest() {
-            RttRequest request = null;
-            while (mRequestQueue.isEmpty() == false) {
-                request = mRequestQueue.remove();
-                if(request !=  null) {
-                    if (mWifiNative.requestRtt(request.params, mEventHandler)) {
-                        if (DBG) Log.d(TAG, "Issued next RTT request with key: " + request.key);
-                        return request;
-                    } else {
-                        Log.e(TAG, "Fail to issue key at native layer");
-                        request.ci.reportFailed(request,
-                                RttManager.REASON_UNSPECIFIED, "Failed to start");
+        /**
+         * Builds the next batch from the pending requests. Clients are visited round robin, taking
+         * one request from each per round, until no client's next request fits. The client
+         * visited first changes with every batch, so that large requests are not starved by
+         * streams of small ones.
+         * @param maxRequests the maximum number of requests in the batch
+         */
+        private RttBatch buildBatch(int maxRequests) {
+            RttBatch batch = new RttBatch();
+            boolean added = true;
+            while (added) {
+                added = false;
+                for (ClientInfo ci : mReadyClients) {
+                    RttRequest request = ci.mPendingRequests.peek();
+                    while (request != null && serveFromCache(request)) {
+                        ci.mPendingRequests.remove();
+                        request = ci.mPendingRequests.peek();
+                    }
+                    if (request != null && batch.canAdd(request, maxRequests)) {
+                        batch.add(ci.mPendingRequests.remove());
+                        added = true;
                     }
                 }
             }
 
+            if (!mReadyClients.isEmpty()) {
+                mReadyClients.add(mReadyClients.remove());
+            }
+            for (Iterator<ClientInfo> it = mReadyClients.iterator(); it.hasNext(); ) {
+                if (it.next().mPendingRequests.isEmpty()) {
+                    it.remove();
+                }
+            }
+            return batch;
+        }
+
+        /**
+         * Answers the peers of |request| that have acceptable results in the cache, and removes
+         * them from its params. Since requests for a peer being ranged wait for the next batch,
+         * a request that accepts cached results also shares the measurement of an identical
+         * request issued before it.
+         * @return true if no peer is left to range, in which case the results were reported
+         */
+        private boolean serveFromCache(RttRequest request) {
+            if (request.maxResultAgeMs == 0 || request.cacheGeneration == mResultCacheGeneration) {
+                return false;
+            }
+            request.cacheGeneration = mResultCacheGeneration;
+
+            long now = SystemClock.elapsedRealtime();
+            ArrayList<RttManager.RttParams> remaining = new ArrayList<>();
+            for (RttManager.RttParams params : request.params) {
+                RttManager.RttResult result =
+                        mResultCache.get(params, request.maxResultAgeMs, now);
+                if (result == null) {
+                    remaining.add(params);
+                    continue;
+                }
+                if (request.cachedResults == null) {
+                    request.cachedResults = new ArrayList<>();
+                }
+                request.cachedResults.add(result);
+            }
+
+            if (remaining.isEmpty()) {
+                if (DBG) Log.d(TAG, "Served RTT request " + request.key + " from cache");
+                request.ci.reportResult(request, null);
+                return true;
+            }
+            if (remaining.size() != request.params.length) {
+                request.params = remaining.toArray(new RttManager.RttParams[remaining.size()]);
+            }
+            return false;
+        }
+
+        RttBatch issueNextBatch() {
+            int maxRequests = Integer.MAX_VALUE;
+            while (!mReadyClients.isEmpty()) {
+                RttBatch batch = buildBatch(maxRequests);
+                if (batch.requests.isEmpty()) {
+                    break;
+                }
+                if (mWifiNative.requestRtt(batch.getParams(), mEventHandler)) {
+                    if (DBG) Log.d(TAG, "Issued next " + batch);
+                    batch.onIssued();
+                    return batch;
+                }
+
+                mBatchesFailed++;
+                if (batch.requests.size() > 1) {
+                    // A single bad request fails the whole batch; retry the requests one at a
+                    // time so that only the bad one is reported as failed.
+                    Log.e(TAG, "Fail to issue batch at native layer, retrying singly");
+                    batch.requeue(null);
+                    maxRequests = 1;
+                } else {
+                    Log.e(TAG, "Fail to issue key at native layer");
+                    RttRequest request = batch.requests.get(0);
+                    request.ci.reportFailed(request,
+                            RttManager.REASON_UNSPECIFIED, "Failed to start");
+                }
+            }
+
             /* all requests exhausted */
             if (DBG) Log.d(TAG, "No more requests left");
             return null;
         }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            if (mContext.checkCallingOrSelfPermission(Manifest.permission.DUMP)
+                    != PackageManager.PERMISSION_GRANTED) {
+                pw.println("Permission Denial: can't dump RttService from pid="
+                        + Binder.getCallingPid() + ", uid=" + Binder.getCallingUid());
+                return;
+            }
+            pw.println("RTT scheduler:");
+            pw.println("  batches issued: " + mBatchesIssued + ", failed: " + mBatchesFailed);
+            pw.println("  requests per batch: "
+                    + (mBatchesIssued == 0 ? 0 : (float) mBatchedRequests / mBatchesIssued));
+            pw.print("  batches by peer count:");
+            for (int i = 0; i < mBatchSizeHistogram.length; i++) {
+                if (mBatchSizeHistogram[i] != 0) {
+                    pw.print(" " + i + ":" + mBatchSizeHistogram[i]);
+                }
+            }
+            pw.println();
+            pw.println("  " + mResultCache);
+            pw.println("clients:");
+            for (ClientInfo client : mClients.values()) {
+                pw.println("  " + client);
+            }
+            if (mStateMachine != null) {
+                mStateMachine.dump(fd, pw, args);
+            }
+        }
+
         @Override
         public RttManager.RttCapabilities getRttCapabilities() {
             return mWifiNative.getRttCapabilities();
@@ -28,6 +28,7 @@ import com.android.server.wifi.anqp.VenueNameElement;
 import com.android.server.wifi.hotspot2.NetworkDetail;
 import com.android.server.wifi.hotspot2.PasspointMatch;
 import com.android.server.wifi.hotspot2.Utils;
+import com.android.server.wifi.util.InformationElementUtil;
 import com.android.server.wifi.hotspot2.pps.HomeSP;
 
 import java.util.List;
@@ -41,10 +42,24 @@ public class ScanDetail {
     private volatile NetworkDetail mNetworkDetail;
     private final Map<HomeSP, PasspointMatch> mMatches;
     private long mSeen = 0;
+    // Elements the ScanResult's informationElements are built from on request
+    private InformationElementUtil.ElementView mElements;
 
     public ScanDetail(NetworkDetail networkDetail, WifiSsid wifiSsid, String bssid,
             String caps, int level, int frequency, long tsf,
             ScanResult.InformationElement[] informationElements, List<String> anqpLines) {
+        this(networkDetail, wifiSsid, bssid, caps, level, frequency, tsf,
+                (InformationElementUtil.ElementView) null, anqpLines);
+        mScanResult.informationElements = informationElements;
+    }
+
+    /**
+     * Build a ScanDetail whose ScanResult gets its informationElements from |elements| only
+     * when {@link #getScanResultWithElements} is called.
+     */
+    public ScanDetail(NetworkDetail networkDetail, WifiSsid wifiSsid, String bssid,
+            String caps, int level, int frequency, long tsf,
+            InformationElementUtil.ElementView elements, List<String> anqpLines) {
         mNetworkDetail = networkDetail;
         mScanResult = new ScanResult(wifiSsid, bssid, networkDetail.getHESSID(),
                 networkDetail.getAnqpDomainID(), networkDetail.getOsuProviders(),
@@ -54,7 +69,7 @@ public class ScanDetail {
         mScanResult.channelWidth = networkDetail.getChannelWidth();
         mScanResult.centerFreq0 = networkDetail.getCenterfreq0();
         mScanResult.centerFreq1 = networkDetail.getCenterfreq1();
-        mScanResult.informationElements = informationElements;
+        mElements = elements;
         mScanResult.anqpLines = anqpLines;
         if (networkDetail.is80211McResponderSupport()) {
             mScanResult.setFlag(ScanResult.FLAG_80211mc_RESPONDER);
@@ -156,6 +171,19 @@ public class ScanDetail {
         return mScanResult;
     }
 
+    /**
+     * Returns the ScanResult with its informationElements filled in. Use this for ScanResults
+     * handed out of the service; the service itself reads the elements through the
+     * NetworkDetail.
+     */
+    public synchronized ScanResult getScanResultWithElements() {
+        if (mElements != null) {
+            mScanResult.informationElements = mElements.toInformationElements();
+            mElements = null;
+        }
+        return mScanResult;
+    }
+
     public NetworkDetail getNetworkDetail() {
         return mNetworkDetail;
     }
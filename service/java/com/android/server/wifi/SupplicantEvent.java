@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiSsid;
+
+import com.android.server.wifi.hotspot2.Utils;
+
+/**
+ * The fields of a supplicant connection event: STATE-CHANGE, CONNECTED, DISCONNECTED or
+ * ASSOC-REJECT, or of an ANQP-QUERY-DONE event, parsed once by {@link WifiMonitor}. The parse
+ * methods accept the same data as the regular expressions, split() and substring() calls they
+ * replace, but walk the string in place instead of building a Matcher or token arrays, so their
+ * cost only grows with the length of the event. Fields an event does not carry are left at null,
+ * NO_BSSID, -1 or 0.
+ */
+final class SupplicantEvent {
+    /** Value of {@link #packedBssid} when the event has none. */
+    static final long NO_BSSID = -1;
+
+    private static final SupplicantState[] STATES = SupplicantState.values();
+
+    /** BSSID as it appears in the event, or null. Not set for ANQP-QUERY-DONE. */
+    final String bssid;
+    /** BSSID packed as in {@link HalScanResults}, or NO_BSSID. */
+    final long packedBssid;
+    /** Network id, or -1. */
+    final int networkId;
+    /**
+     * Reason code of a disconnection or status code of a rejection, or -1 if unreadable; for
+     * ANQP-QUERY-DONE, 1 if the query succeeded and 0 if not.
+     */
+    final int reasonCode;
+    /** 1 if a disconnection was initiated by this device, 0 if not. */
+    final int locallyGenerated;
+    /** New state of a STATE-CHANGE event, or null. */
+    final SupplicantState state;
+    /** SSID of a STATE-CHANGE event, or null. */
+    final WifiSsid wifiSsid;
+
+    private SupplicantEvent(String bssid, long packedBssid, int networkId, int reasonCode,
+            int locallyGenerated, SupplicantState state, WifiSsid wifiSsid) {
+        this.bssid = bssid;
+        this.packedBssid = packedBssid;
+        this.networkId = networkId;
+        this.reasonCode = reasonCode;
+        this.locallyGenerated = locallyGenerated;
+        this.state = state;
+        this.wifiSsid = wifiSsid;
+    }
+
+    /**
+     * Returns an event for the MAC address at |index| of |data|, which must be valid.
+     */
+    private static SupplicantEvent withBssid(String data, int index, int networkId,
+            int reasonCode, int locallyGenerated) {
+        return new SupplicantEvent(data.substring(index, index + 17),
+                parseMacAddress(data, index), networkId, reasonCode, locallyGenerated, null, null);
+    }
+
+    /**
+     * Parses the data of a STATE-CHANGE event:
+     * <pre>id=1 state=9 BSSID=00:1e:58:ec:d5:6d SSID=Some SSID</pre>
+     * Everything after the last SSID= is the SSID.
+     *
+     * @return the event, or null if it has no state
+     */
+    static SupplicantEvent parseStateChange(String data) {
+        int ssidIndex = data.lastIndexOf("SSID=");
+        WifiSsid wifiSsid = null;
+        if (ssidIndex != -1) {
+            wifiSsid = WifiSsid.createFromAsciiEncoded(data.substring(ssidIndex + 5));
+        }
+
+        int bssidIndex = -1;
+        int networkId = -1;
+        int newState = -1;
+        int length = data.length();
+        int start = 0;
+        while (start < length) {
+            int end = data.indexOf(' ', start);
+            if (end == -1) {
+                end = length;
+            }
+            // like split("="), only take name=value tokens with a single '=' and a value
+            int equals = data.indexOf('=', start);
+            if (equals > start && equals < end - 1 && data.lastIndexOf('=', end - 1) == equals) {
+                int nameLength = equals - start;
+                if (nameLength == 5 && data.startsWith("BSSID", start)) {
+                    if (end - equals - 1 == 17) {
+                        bssidIndex = parseMacAddress(data, equals + 1) != NO_BSSID
+                                ? equals + 1 : -1;
+                    }
+                } else if (nameLength == 2 && data.startsWith("id", start)) {
+                    networkId = parseInt(data, equals + 1, end, networkId);
+                } else if (nameLength == 5 && data.startsWith("state", start)) {
+                    newState = parseInt(data, equals + 1, end, newState);
+                }
+            }
+            start = end + 1;
+        }
+        if (newState == -1) {
+            return null;
+        }
+
+        SupplicantState state = SupplicantState.INVALID;
+        if (newState >= 0 && newState < STATES.length) {
+            state = STATES[newState];
+        }
+        String bssid = null;
+        long packedBssid = NO_BSSID;
+        if (bssidIndex != -1) {
+            bssid = data.substring(bssidIndex, bssidIndex + 17);
+            packedBssid = parseMacAddress(data, bssidIndex);
+        }
+        return new SupplicantEvent(bssid, packedBssid, networkId, 0, 0, state, wifiSsid);
+    }
+
+    /**
+     * Parses the data of a CONNECTED event:
+     * <pre>- Connection to 00:1e:58:ec:d5:6d completed (reauth) [id=1 id_str=]</pre>
+     *
+     * @return the event, or null if it has no BSSID followed by a network id
+     */
+    static SupplicantEvent parseConnected(String data) {
+        for (int i = findMacAddress(data, 0); i != -1; i = findMacAddress(data, i + 1)) {
+            if (!data.startsWith(" ", i + 17)) {
+                continue;
+            }
+            // the last " [id=<digits> " after the space, as the greedy ".*" would take
+            for (int idIndex = data.lastIndexOf(" [id="); idIndex >= i + 18;
+                    idIndex = data.lastIndexOf(" [id=", idIndex - 1)) {
+                int digitsEnd = skipDigits(data, idIndex + 5);
+                if (digitsEnd > idIndex + 5 && data.startsWith(" ", digitsEnd)) {
+                    return withBssid(data, i, parseInt(data, idIndex + 5, digitsEnd, -1), 0, 0);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the data of a DISCONNECTED event:
+     * <pre>bssid=ac:22:0b:24:70:74 reason=3 locally_generated=1</pre>
+     *
+     * @return the event, or null if it does not have all three fields
+     */
+    static SupplicantEvent parseDisconnected(String data) {
+        for (int i = findMacAddress(data, 0); i != -1; i = findMacAddress(data, i + 1)) {
+            int reasonIndex = skipSpaces(data, i + 17);
+            if (reasonIndex == i + 17 || !data.startsWith("reason=", reasonIndex)) {
+                continue;
+            }
+            int reasonEnd = skipDigits(data, reasonIndex + 7);
+            int localIndex = skipSpaces(data, reasonEnd);
+            if (reasonEnd == reasonIndex + 7 || localIndex == reasonEnd
+                    || !data.startsWith("locally_generated=", localIndex)
+                    || localIndex + 18 >= data.length()) {
+                continue;
+            }
+            char local = data.charAt(localIndex + 18);
+            if (local != '0' && local != '1') {
+                continue;
+            }
+            return withBssid(data, i, -1, parseInt(data, reasonIndex + 7, reasonEnd, -1),
+                    local - '0');
+        }
+        return null;
+    }
+
+    /**
+     * Parses the data of an ASSOC-REJECT event, whose reason code is the status code:
+     * <pre>bssid=ac:22:0b:24:70:74 status_code=1</pre>
+     *
+     * @return the event, or null if it does not have both fields
+     */
+    static SupplicantEvent parseAssocReject(String data) {
+        for (int i = findMacAddress(data, 0); i != -1; i = findMacAddress(data, i + 1)) {
+            int statusIndex = skipSpaces(data, i + 17);
+            if (statusIndex == i + 17 || !data.startsWith("status_code=", statusIndex)) {
+                continue;
+            }
+            int statusEnd = skipDigits(data, statusIndex + 12);
+            if (statusEnd == statusIndex + 12) {
+                continue;
+            }
+            return withBssid(data, i, -1, parseInt(data, statusIndex + 12, statusEnd, -1), 0);
+        }
+        return null;
+    }
+
+    /**
+     * Parses an ANQP-QUERY-DONE event:
+     * <pre>ANQP-QUERY-DONE addr=18:cf:5e:26:a4:88 result=SUCCESS</pre>
+     * The address is read as {@link Utils#parseMac} reads it,
+     * taking every hex digit up to the next space.
+     *
+     * @return the event, whose packedBssid is NO_BSSID if the address is not a valid MAC
+     *         address, or null if it has no addr= or no result=
+     */
+    static SupplicantEvent parseAnqpDone(String data) {
+        int addrIndex = data.indexOf("addr=");
+        int resultIndex = data.indexOf("result=");
+        if (addrIndex < 0 || resultIndex < 0) {
+            return null;
+        }
+        int resultStart = resultIndex + 7;
+        int resultEnd = data.indexOf(' ', resultStart);
+        if (resultEnd < 0) {
+            resultEnd = data.length();
+        }
+        boolean success = resultEnd - resultStart == 7
+                && data.regionMatches(true, resultStart, "success", 0, 7);
+
+        int addrEnd = data.indexOf(' ', addrIndex + 5);
+        if (addrEnd < 0) {
+            addrEnd = data.length();
+        }
+        long mac = 0;
+        int digits = 0;
+        for (int i = addrIndex + 5; i < addrEnd; i++) {
+            int nibble = Utils.fromHex(data.charAt(i), true);
+            if (nibble >= 0) {
+                mac = (mac << 4) | nibble;
+                digits++;
+            }
+        }
+        if (digits < 12 || (digits & 1) == 1) {
+            mac = NO_BSSID;
+        }
+        return new SupplicantEvent(null, mac, -1, success ? 1 : 0, 0, null, null);
+    }
+
+    /**
+     * Returns the index of the first MAC address in |s| at or after |from|, written as six
+     * colon separated lower case hex octets, or -1 if there is none.
+     */
+    static int findMacAddress(String s, int from) {
+        for (int i = from; i + 17 <= s.length(); i++) {
+            // the cheap check first, as most positions are not the start of an octet
+            if (s.charAt(i + 2) == ':' && parseMacAddress(s, i) != NO_BSSID) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the MAC address at |index| of |s|, written as six colon separated lower case hex
+     * octets, into a long with the first octet most significant. Returns NO_BSSID if there is
+     * no MAC address at |index|.
+     */
+    static long parseMacAddress(String s, int index) {
+        if (index < 0 || index + 17 > s.length()) {
+            return NO_BSSID;
+        }
+        long value = 0;
+        for (int octet = 0; octet < 6; octet++) {
+            int pos = index + 3 * octet;
+            if (octet > 0 && s.charAt(pos - 1) != ':') {
+                return NO_BSSID;
+            }
+            int high = hexDigit(s.charAt(pos));
+            int low = hexDigit(s.charAt(pos + 1));
+            if (high < 0 || low < 0) {
+                return NO_BSSID;
+            }
+            value = (value << 8) | (high << 4) | low;
+        }
+        return value;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static int skipDigits(String s, int index) {
+        while (index < s.length() && s.charAt(index) >= '0' && s.charAt(index) <= '9') {
+            index++;
+        }
+        return index;
+    }
+
+    private static int skipSpaces(String s, int index) {
+        while (index < s.length() && s.charAt(index) == ' ') {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Parses the optionally signed decimal in |s| from |start| to |end|, or returns
+     * |defaultValue| if it is not one or does not fit in an int.
+     */
+    private static int parseInt(String s, int start, int end, int defaultValue) {
+        int index = start;
+        boolean negative = false;
+        if (index < end && (s.charAt(index) == '-' || s.charAt(index) == '+')) {
+            negative = s.charAt(index) == '-';
+            index++;
+        }
+        if (index == end) {
+            return defaultValue;
+        }
+        long value = 0;
+        for (; index < end; index++) {
+            char c = s.charAt(index);
+            if (c < '0' || c > '9') {
+                return defaultValue;
+            }
+            value = value * 10 + (c - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return defaultValue;
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            return defaultValue;
+        }
+        return (int) value;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A reentrant lock whose hold times are recorded in a {@link LockHoldStats}, meant to be taken
+ * with try-with-resources:
+ *
+ *     try (TimedLock.Hold hold = lock.lock("command")) {
+ *         ...
+ *     }
+ *
+ * Only the outermost hold is recorded, under the command it was taken for.
+ */
+public class TimedLock {
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final LockHoldStats mStats;
+    private final Hold mHold = new Hold();
+    /* Command and start of the outermost hold; guarded by mLock */
+    private String mCommand;
+    private long mLockedAtNanos;
+
+    public TimedLock(LockHoldStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Waits for the lock and takes it for |command|.
+     * @return the hold, which releases the lock when closed
+     */
+    public Hold lock(String command) {
+        mLock.lock();
+        if (mLock.getHoldCount() == 1) {
+            mCommand = command;
+            mLockedAtNanos = System.nanoTime();
+        }
+        return mHold;
+    }
+
+    /**
+     * A hold of the lock. A single instance serves every hold, since only the thread that owns
+     * the lock can close it.
+     */
+    public class Hold implements AutoCloseable {
+        private Hold() {
+        }
+
+        @Override
+        public void close() {
+            if (mLock.getHoldCount() == 1) {
+                mStats.recordHold(mCommand, mLockedAtNanos);
+            }
+            mLock.unlock();
+        }
+    }
+}
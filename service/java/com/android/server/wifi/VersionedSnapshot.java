@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+/**
+ * An immutable copy of state owned by the WifiStateMachine thread, published so that binder
+ * threads can read it without a round trip to that thread.
+ *
+ * The owner publishes a value together with the version of the state it was built from. A
+ * reader passes in the current version and gets the value back only if the versions match and
+ * the value is no older than the maximum age, which bounds how stale any part of the state not
+ * covered by the version can get. Otherwise the reader gets null and should ask the owner.
+ *
+ * Publishing is done on the owner thread only; reads are lock free and may come from any thread.
+ */
+class VersionedSnapshot<T> {
+    private static class Entry<T> {
+        final int version;
+        final long timeMs;
+        final T value;
+
+        Entry(int version, long timeMs, T value) {
+            this.version = version;
+            this.timeMs = timeMs;
+            this.value = value;
+        }
+    }
+
+    private final Clock mClock;
+    private final long mMaxAgeMs;
+    private volatile Entry<T> mEntry;
+
+    VersionedSnapshot(Clock clock, long maxAgeMs) {
+        mClock = clock;
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Publishes |value|, which must not be modified afterwards, as the state at |version|.
+     */
+    void publish(int version, T value) {
+        mEntry = new Entry<T>(version, mClock.elapsedRealtime(), value);
+    }
+
+    /**
+     * Returns the published value if it was built from |currentVersion| and is recent enough,
+     * or null.
+     */
+    T get(int currentVersion) {
+        Entry<T> entry = mEntry;
+        if (entry == null || entry.version != currentVersion
+                || mClock.elapsedRealtime() - entry.timeMs > mMaxAgeMs) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Drops the published value, for when the state stops being available.
+     */
+    void invalidate() {
+        mEntry = null;
+    }
+}
@@ -51,7 +51,6 @@ import android.os.UserManager;
 import android.provider.Settings;
 import android.security.KeyStore;
 import android.text.TextUtils;
-import android.util.LocalLog;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -72,6 +71,7 @@ import com.android.server.wifi.hotspot2.Utils;
 import com.android.server.wifi.hotspot2.omadm.PasspointManagementObjectManager;
 import com.android.server.wifi.hotspot2.pps.Credential;
 import com.android.server.wifi.hotspot2.pps.HomeSP;
+import com.android.server.wifi.util.BinaryLocalLog;
 
 import org.xml.sax.SAXException;
 
@@ -154,6 +154,7 @@ public class WifiConfigManager {
     private static boolean sVDBG = false;
     private static boolean sVVDBG = false;
     public static final String TAG = "WifiConfigManager";
+    private static final int LOG_MESSAGE = BinaryLocalLog.registerFormat(TAG, "%s");
     public static final int MAX_TX_PACKET_FOR_FULL_SCANS = 8;
     public static final int MAX_RX_PACKET_FOR_FULL_SCANS = 16;
     public static final int MAX_TX_PACKET_FOR_PARTIAL_SCANS = 40;
@@ -226,6 +227,13 @@ public class WifiConfigManager {
     public final AtomicInteger mAlwaysEnableScansWhileAssociated = new AtomicInteger(0);
     public final AtomicInteger mMaxNumActiveChannelsForPartialScans = new AtomicInteger();
 
+    /**
+     * Incremented whenever the configured networks change in a way that is announced with a
+     * CONFIGURED_NETWORKS_CHANGED broadcast, and whenever a network selection status changes.
+     * Read from binder threads to check whether a snapshot of the networks is still current.
+     */
+    private final AtomicInteger mConfigVersion = new AtomicInteger();
+
     public boolean mEnableLinkDebouncing;
     public boolean mEnableWifiCellularHandoverUserTriggeredAdjustment;
     public int mNetworkSwitchingBlackListPeriodMs;
@@ -254,7 +262,7 @@ public class WifiConfigManager {
     /* configured networks with network id as the key */
     private final ConfigurationMap mConfiguredNetworks;
 
-    private final LocalLog mLocalLog;
+    private final BinaryLocalLog mLocalLog;
     private final KeyStore mKeyStore;
     private final WifiNetworkHistory mWifiNetworkHistory;
     private final WifiConfigStore mWifiConfigStore;
@@ -517,6 +525,14 @@ public class WifiConfigManager {
         return mConfiguredNetworks.getHiddenNetworkIdsForCurrentUser();
     }
 
+    /**
+     * Returns the version of the configured networks, see mConfigVersion. Safe to call from any
+     * thread.
+     */
+    int getConfigVersion() {
+        return mConfigVersion.get();
+    }
+
     /**
      * Find matching network for this scanResult
      */
@@ -1437,6 +1453,7 @@ public class WifiConfigManager {
         if (config == null) {
             return false;
         }
+        mConfigVersion.incrementAndGet();
 
         WifiConfiguration.NetworkSelectionStatus networkStatus = config.getNetworkSelectionStatus();
         if (reason < 0 || reason >= WifiConfiguration.NetworkSelectionStatus
@@ -1630,6 +1647,7 @@ public class WifiConfigManager {
      */
     private void sendConfiguredNetworksChangedBroadcast(WifiConfiguration network,
             int reason) {
+        mConfigVersion.incrementAndGet();
         Intent intent = new Intent(WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
         intent.putExtra(WifiManager.EXTRA_MULTIPLE_NETWORKS_CHANGED, false);
@@ -1642,6 +1660,7 @@ public class WifiConfigManager {
      * Should be called when multiple network configuration changes are made.
      */
     private void sendConfiguredNetworksChangedBroadcast() {
+        mConfigVersion.incrementAndGet();
         Intent intent = new Intent(WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
         intent.putExtra(WifiManager.EXTRA_MULTIPLE_NETWORKS_CHANGED, true);
@@ -1806,7 +1825,10 @@ public class WifiConfigManager {
     }
 
     public void writePasspointConfigs(final String fqdn, final HomeSP homeSP) {
-        mWriter.write(PPS_FILE, new DelayedDiskWrite.Writer() {
+        // The writer does not open this path; the MO manager replaces the provider's record in
+        // its subscription store, and PPS_FILE is only read once to migrate it.
+        final String storePath = mMOManager.getStoreDirectory().getPath();
+        mWriter.write(storePath, new DelayedDiskWrite.Writer() {
             @Override
             public void onWriteCalled(DataOutputStream out) throws IOException {
                 try {
@@ -1816,7 +1838,7 @@ public class WifiConfigManager {
                         mMOManager.removeSP(fqdn);
                     }
                 } catch (IOException e) {
-                    loge("Could not write " + PPS_FILE + " : " + e);
+                    loge("Could not write " + storePath + " : " + e);
                 }
             }
         }, false);
@@ -3018,7 +3040,7 @@ public class WifiConfigManager {
 
     private void localLog(String s) {
         if (mLocalLog != null) {
-            mLocalLog.log(s);
+            mLocalLog.log(LOG_MESSAGE, s);
         }
     }
 
@@ -3038,11 +3060,11 @@ public class WifiConfigManager {
         }
 
         if (config != null) {
-            mLocalLog.log(s + " " + config.getPrintableSsid() + " " + netId
+            mLocalLog.log(LOG_MESSAGE, s + " " + config.getPrintableSsid() + " " + netId
                     + " status=" + config.status
                     + " key=" + config.configKey());
         } else {
-            mLocalLog.log(s + " " + netId);
+            mLocalLog.log(LOG_MESSAGE, s + " " + netId);
         }
     }
 
@@ -32,11 +32,11 @@ import android.security.KeyChain;
 import android.security.KeyStore;
 import android.text.TextUtils;
 import android.util.ArraySet;
-import android.util.LocalLog;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.android.server.wifi.hotspot2.Utils;
+import com.android.server.wifi.util.BinaryLocalLog;
 import com.android.server.wifi.util.TelephonyUtil;
 
 import org.json.JSONException;
@@ -75,6 +75,7 @@ import java.util.Set;
 public class WifiConfigStore {
 
     public static final String TAG = "WifiConfigStore";
+    private static final int LOG_MESSAGE = BinaryLocalLog.registerFormat(TAG, "%s");
     // This is the only variable whose contents will not be interpreted by wpa_supplicant. We use it
     // to store metadata that allows us to correlate a wpa_supplicant.conf entry with additional
     // information about the same network stored in other files. The metadata is stored as a
@@ -92,7 +93,28 @@ public class WifiConfigStore {
     private static final boolean DBG = true;
     private static boolean VDBG = false;
 
-    private final LocalLog mLocalLog;
+    // Variables read by readNetworkVariables(), apart from the enterprise ones
+    private static final String[] NETWORK_VARIABLE_NAMES = {
+            WifiConfiguration.ssidVarName,
+            WifiConfiguration.bssidVarName,
+            WifiConfiguration.SIMNumVarName,
+            WifiConfiguration.priorityVarName,
+            WifiConfiguration.hiddenSSIDVarName,
+            WifiConfiguration.pmfVarName,
+            WifiConfiguration.wepTxKeyIdxVarName,
+            WifiConfiguration.wepKeyVarNames[0],
+            WifiConfiguration.wepKeyVarNames[1],
+            WifiConfiguration.wepKeyVarNames[2],
+            WifiConfiguration.wepKeyVarNames[3],
+            WifiConfiguration.pskVarName,
+            WifiConfiguration.Protocol.varName,
+            WifiConfiguration.KeyMgmt.varName,
+            WifiConfiguration.AuthAlgorithm.varName,
+            WifiConfiguration.PairwiseCipher.varName,
+            WifiConfiguration.GroupCipher.varName
+    };
+
+    private final BinaryLocalLog mLocalLog;
     private final WpaConfigFileObserver mFileObserver;
     private final Context mContext;
     private final WifiNative mWifiNative;
@@ -102,8 +124,8 @@ public class WifiConfigStore {
 
     private final BackupManagerProxy mBackupManagerProxy;
 
-    WifiConfigStore(Context context, WifiNative wifiNative, KeyStore keyStore, LocalLog localLog,
-            boolean showNetworks, boolean verboseDebug) {
+    WifiConfigStore(Context context, WifiNative wifiNative, KeyStore keyStore,
+            BinaryLocalLog localLog, boolean showNetworks, boolean verboseDebug) {
         mContext = context;
         mWifiNative = wifiNative;
         mKeyStore = keyStore;
@@ -226,9 +248,9 @@ public class WifiConfigStore {
         return -1;
     }
 
-    private void readNetworkBitsetVariable(int netId, BitSet variable, String varName,
-            String[] strings) {
-        String value = mWifiNative.getNetworkVariable(netId, varName);
+    private void readNetworkBitsetVariable(Map<String, String> values, BitSet variable,
+            String varName, String[] strings) {
+        String value = values.get(varName);
         if (!TextUtils.isEmpty(value)) {
             variable.clear();
             String[] vals = value.split(" ");
@@ -256,14 +278,19 @@ public class WifiConfigStore {
         if (netId < 0) {
             return;
         }
-        /*
-         * TODO: maybe should have a native method that takes an array of
-         * variable names and returns an array of values. But we'd still
-         * be doing a round trip to the supplicant daemon for each variable.
-         */
+        // Read all of the variables with one call instead of one call per variable.
+        String[] replies = mWifiNative.getNetworkVariables(netId, NETWORK_VARIABLE_NAMES);
+        if (replies == null) {
+            loge("Failed to read the variables of network " + netId);
+            replies = new String[NETWORK_VARIABLE_NAMES.length];
+        }
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < NETWORK_VARIABLE_NAMES.length; i++) {
+            values.put(NETWORK_VARIABLE_NAMES[i], replies[i]);
+        }
         String value;
 
-        value = mWifiNative.getNetworkVariable(netId, WifiConfiguration.ssidVarName);
+        value = values.get(WifiConfiguration.ssidVarName);
         if (!TextUtils.isEmpty(value)) {
             if (value.charAt(0) != '"') {
                 config.SSID = "\"" + WifiSsid.createFromHex(value).toString() + "\"";
@@ -276,14 +303,14 @@ public class WifiConfigStore {
             config.SSID = null;
         }
 
-        value = mWifiNative.getNetworkVariable(netId, WifiConfiguration.bssidVarName);
+        value = values.get(WifiConfiguration.bssidVarName);
         if (!TextUtils.isEmpty(value)) {
             config.getNetworkSelectionStatus().setNetworkSelectionBSSID(value);
         } else {
             config.getNetworkSelectionStatus().setNetworkSelectionBSSID(null);
         }
 
-        value = mWifiNative.getNetworkVariable(netId, WifiConfiguration.SIMNumVarName);
+        value = values.get(WifiConfiguration.SIMNumVarName);
         if (!TextUtils.isEmpty(value)) {
             try {
                 config.SIMNum = Integer.parseInt(value);
@@ -292,7 +319,7 @@ public class WifiConfigStore {
             }
         }
 
-        value = mWifiNative.getNetworkVariable(netId, WifiConfiguration.priorityVarName);
+        value = values.get(WifiConfiguration.priorityVarName);
         config.priority = -1;
         if (!TextUtils.isEmpty(value)) {
             try {
@@ -301,7 +328,7 @@ public class WifiConfigStore {
             }
         }
 
-        value = mWifiNative.getNetworkVariable(netId, WifiConfiguration.hiddenSSIDVarName);
+        value = values.get(WifiConfiguration.hiddenSSIDVarName);
         config.hiddenSSID = false;
         if (!TextUtils.isEmpty(value)) {
             try {
@@ -310,7 +337,7 @@ public class WifiConfigStore {
             }
         }
 
-        value = mWifiNative.getNetworkVariable(netId, WifiConfiguration.pmfVarName);
+        value = values.get(WifiConfiguration.pmfVarName);
         config.requirePMF = false;
         if (!TextUtils.isEmpty(value)) {
             try {
@@ -319,7 +346,7 @@ public class WifiConfigStore {
             }
         }
 
-        value = mWifiNative.getNetworkVariable(netId, WifiConfiguration.wepTxKeyIdxVarName);
+        value = values.get(WifiConfiguration.wepTxKeyIdxVarName);
         config.wepTxKeyIndex = -1;
         if (!TextUtils.isEmpty(value)) {
             try {
@@ -329,8 +356,7 @@ public class WifiConfigStore {
         }
 
         for (int i = 0; i < 4; i++) {
-            value = mWifiNative.getNetworkVariable(netId,
-                    WifiConfiguration.wepKeyVarNames[i]);
+            value = values.get(WifiConfiguration.wepKeyVarNames[i]);
             if (!TextUtils.isEmpty(value)) {
                 config.wepKeys[i] = value;
             } else {
@@ -338,26 +364,26 @@ public class WifiConfigStore {
             }
         }
 
-        value = mWifiNative.getNetworkVariable(netId, WifiConfiguration.pskVarName);
+        value = values.get(WifiConfiguration.pskVarName);
         if (!TextUtils.isEmpty(value)) {
             config.preSharedKey = value;
         } else {
             config.preSharedKey = null;
         }
 
-        readNetworkBitsetVariable(config.networkId, config.allowedProtocols,
+        readNetworkBitsetVariable(values, config.allowedProtocols,
                 WifiConfiguration.Protocol.varName, WifiConfiguration.Protocol.strings);
 
-        readNetworkBitsetVariable(config.networkId, config.allowedKeyManagement,
+        readNetworkBitsetVariable(values, config.allowedKeyManagement,
                 WifiConfiguration.KeyMgmt.varName, WifiConfiguration.KeyMgmt.strings);
 
-        readNetworkBitsetVariable(config.networkId, config.allowedAuthAlgorithms,
+        readNetworkBitsetVariable(values, config.allowedAuthAlgorithms,
                 WifiConfiguration.AuthAlgorithm.varName, WifiConfiguration.AuthAlgorithm.strings);
 
-        readNetworkBitsetVariable(config.networkId, config.allowedPairwiseCiphers,
+        readNetworkBitsetVariable(values, config.allowedPairwiseCiphers,
                 WifiConfiguration.PairwiseCipher.varName, WifiConfiguration.PairwiseCipher.strings);
 
-        readNetworkBitsetVariable(config.networkId, config.allowedGroupCiphers,
+        readNetworkBitsetVariable(values, config.allowedGroupCiphers,
                 WifiConfiguration.GroupCipher.varName, WifiConfiguration.GroupCipher.strings);
 
         if (config.enterpriseConfig == null) {
@@ -408,14 +434,14 @@ public class WifiConfigStore {
                 readNetworkVariables(config);
                 // Parse the serialized JSON dictionary in ID_STRING_VAR_NAME once and cache the
                 // result for efficiency.
-                Map<String, String> extras = mWifiNative.getNetworkExtra(config.networkId,
-                        ID_STRING_VAR_NAME);
+                final String idString =
+                        mWifiNative.getNetworkVariable(config.networkId, ID_STRING_VAR_NAME);
+                Map<String, String> extras = WifiNative.parseNetworkExtra(idString);
                 if (extras == null) {
                     extras = new HashMap<String, String>();
                     // If ID_STRING_VAR_NAME did not contain a dictionary, assume that it contains
                     // just a quoted FQDN. This is the legacy format that was used in Marshmallow.
-                    final String fqdn = Utils.unquote(mWifiNative.getNetworkVariable(
-                            config.networkId, ID_STRING_VAR_NAME));
+                    final String fqdn = Utils.unquote(idString);
                     if (fqdn != null) {
                         extras.put(ID_STRING_KEY_FQDN, fqdn);
                         config.FQDN = fqdn;
@@ -1274,7 +1300,7 @@ public class WifiConfigStore {
 
     private void localLog(String s) {
         if (mLocalLog != null) {
-            mLocalLog.log(TAG + ": " + s);
+            mLocalLog.log(LOG_MESSAGE, s);
         }
     }
 
@@ -31,11 +31,11 @@ import android.net.wifi.WifiScanner.PnoSettings;
 import android.net.wifi.WifiScanner.ScanSettings;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.R;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.wifi.util.BinaryLocalLog;
 import com.android.server.wifi.util.ScanDetailUtil;
 
 import java.io.FileDescriptor;
@@ -65,6 +65,7 @@ public class WifiConnectivityManager {
             "WifiConnectivityManager Restart Scan";
 
     private static final String TAG = "WifiConnectivityManager";
+    private static final int LOG_MESSAGE = BinaryLocalLog.registerFormat(TAG, "%s");
     private static final long RESET_TIME_STAMP = Long.MIN_VALUE;
     // Constants to indicate whether a scan should start immediately or
     // it should comply to the minimum scan interval rule.
@@ -132,8 +133,8 @@ public class WifiConnectivityManager {
     private final AlarmManager mAlarmManager;
     private final Handler mEventHandler;
     private final Clock mClock;
-    private final LocalLog mLocalLog =
-            new LocalLog(ActivityManager.isLowRamDeviceStatic() ? 128 : 256);
+    private final BinaryLocalLog mLocalLog =
+            new BinaryLocalLog(ActivityManager.isLowRamDeviceStatic() ? 128 : 256);
     private final LinkedList<Long> mConnectionAttemptTimeStamps;
 
     private boolean mDbg = false;
@@ -167,7 +168,7 @@ public class WifiConnectivityManager {
         if (mDbg) {
             Log.d(TAG, log);
         }
-        mLocalLog.log(log);
+        mLocalLog.log(LOG_MESSAGE, log);
     }
 
     // A periodic/PNO scan will be rescheduled up to MAX_SCAN_RESTART_ALLOWED times
@@ -1178,7 +1179,7 @@ public class WifiConnectivityManager {
         pw.println("WifiConnectivityManager - Log Begin ----");
         pw.println("WifiConnectivityManager - Number of connectivity attempts rate limited: "
                 + mTotalConnectivityAttemptsRateLimited);
-        mLocalLog.dump(fd, pw, args);
+        mLocalLog.dump(pw, TAG);
         pw.println("WifiConnectivityManager - Log End ----");
     }
 
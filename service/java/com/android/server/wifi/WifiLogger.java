@@ -17,28 +17,26 @@
 package com.android.server.wifi;
 
 import android.content.Context;
-import android.util.Base64;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.R;
 import com.android.server.wifi.util.ByteArrayRingBuffer;
+import com.android.server.wifi.util.DeflatedBase64Writer;
 import com.android.server.wifi.util.StringUtil;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.StringBuilder;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.zip.Deflater;
 
 /**
  * Tracks various logs for framework.
@@ -219,14 +217,14 @@ class WifiLogger extends BaseWifiLogger {
         for (int i = 0; i < mLastAlerts.size(); i++) {
             pw.println("--------------------------------------------------------------------");
             pw.println("Alert dump " + i);
-            pw.print(mLastAlerts.get(i));
+            mLastAlerts.get(i).dump(pw);
             pw.println("--------------------------------------------------------------------");
         }
 
         for (int i = 0; i < mLastBugReports.size(); i++) {
             pw.println("--------------------------------------------------------------------");
             pw.println("Bug dump " + i);
-            pw.print(mLastBugReports.get(i));
+            mLastBugReports.get(i).dump(pw);
             pw.println("--------------------------------------------------------------------");
         }
 
@@ -243,11 +241,12 @@ class WifiLogger extends BaseWifiLogger {
         long systemTimeMs;
         long kernelTimeNanos;
         int errorCode;
-        HashMap<String, byte[][]> ringBuffers = new HashMap();
+        HashMap<String, ByteArrayRingBuffer.Snapshot> ringBuffers = new HashMap();
         byte[] fwMemoryDump;
         byte[] mDriverStateDump;
         byte[] alertData;
-        LimitedCircularArray<String> kernelLogLines;
+        /** The last lines of the kernel log, as one substring of the log. */
+        String kernelLog;
         ArrayList<String> logcatLines;
 
         void clearVerboseLogs() {
@@ -256,82 +255,84 @@ class WifiLogger extends BaseWifiLogger {
         }
 
         public String toString() {
-            StringBuilder builder = new StringBuilder();
-
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            dump(pw);
+            pw.flush();
+            return sw.toString();
+        }
+
+        /**
+         * Writes the report to |pw|. Binary sections are deflated and base64 encoded in chunks
+         * straight into the writer, so the report is never materialized as a whole.
+         */
+        void dump(PrintWriter pw) {
             Calendar c = Calendar.getInstance();
             c.setTimeInMillis(systemTimeMs);
-            builder.append("system time = ").append(
-                    String.format("%tm-%td %tH:%tM:%tS.%tL", c, c, c, c, c, c)).append("\n");
+            pw.print("system time = ");
+            pw.format("%tm-%td %tH:%tM:%tS.%tL", c, c, c, c, c, c);
+            pw.print("\n");
 
             long kernelTimeMs = kernelTimeNanos/(1000*1000);
-            builder.append("kernel time = ").append(kernelTimeMs/1000).append(".").append
-                    (kernelTimeMs%1000).append("\n");
-
-            if (alertData == null)
-                builder.append("reason = ").append(errorCode).append("\n");
-            else {
-                builder.append("errorCode = ").append(errorCode);
-                builder.append("data \n");
-                builder.append(compressToBase64(alertData)).append("\n");
+            pw.print("kernel time = ");
+            pw.print(kernelTimeMs/1000);
+            pw.print(".");
+            pw.print(kernelTimeMs%1000);
+            pw.print("\n");
+
+            if (alertData == null) {
+                pw.print("reason = ");
+                pw.print(errorCode);
+                pw.print("\n");
+            } else {
+                pw.print("errorCode = ");
+                pw.print(errorCode);
+                pw.print("data \n");
+                DeflatedBase64Writer.write(pw, alertData);
+                pw.print("\n");
             }
 
-            if (kernelLogLines != null) {
-                builder.append("kernel log: \n");
-                for (int i = 0; i < kernelLogLines.size(); i++) {
-                    builder.append(kernelLogLines.get(i)).append("\n");
-                }
-                builder.append("\n");
+            if (kernelLog != null) {
+                pw.print("kernel log: \n");
+                pw.print(kernelLog);
+                pw.print("\n\n");
             }
 
             if (logcatLines != null) {
-                builder.append("system log: \n");
+                pw.print("system log: \n");
                 for (int i = 0; i < logcatLines.size(); i++) {
-                    builder.append(logcatLines.get(i)).append("\n");
+                    pw.print(logcatLines.get(i));
+                    pw.print("\n");
                 }
-                builder.append("\n");
+                pw.print("\n");
             }
 
-            for (HashMap.Entry<String, byte[][]> e : ringBuffers.entrySet()) {
-                String ringName = e.getKey();
-                byte[][] buffers = e.getValue();
-                builder.append("ring-buffer = ").append(ringName).append("\n");
-
-                int size = 0;
-                for (int i = 0; i < buffers.length; i++) {
-                    size += buffers[i].length;
-                }
-
-                byte[] buffer = new byte[size];
-                int index = 0;
-                for (int i = 0; i < buffers.length; i++) {
-                    System.arraycopy(buffers[i], 0, buffer, index, buffers[i].length);
-                    index += buffers[i].length;
-                }
-
-                builder.append(compressToBase64(buffer));
-                builder.append("\n");
+            for (HashMap.Entry<String, ByteArrayRingBuffer.Snapshot> e : ringBuffers.entrySet()) {
+                pw.print("ring-buffer = ");
+                pw.print(e.getKey());
+                pw.print("\n");
+                DeflatedBase64Writer.write(pw, e.getValue().getData());
+                pw.print("\n");
             }
 
             if (fwMemoryDump != null) {
-                builder.append(FIRMWARE_DUMP_SECTION_HEADER);
-                builder.append("\n");
-                builder.append(compressToBase64(fwMemoryDump));
-                builder.append("\n");
+                pw.print(FIRMWARE_DUMP_SECTION_HEADER);
+                pw.print("\n");
+                DeflatedBase64Writer.write(pw, fwMemoryDump);
+                pw.print("\n");
             }
 
             if (mDriverStateDump != null) {
-                builder.append(DRIVER_DUMP_SECTION_HEADER);
+                pw.print(DRIVER_DUMP_SECTION_HEADER);
                 if (StringUtil.isAsciiPrintable(mDriverStateDump)) {
-                    builder.append(" (ascii)\n");
-                    builder.append(new String(mDriverStateDump, Charset.forName("US-ASCII")));
-                    builder.append("\n");
+                    pw.print(" (ascii)\n");
+                    DeflatedBase64Writer.writeAscii(pw, mDriverStateDump);
+                    pw.print("\n");
                 } else {
-                    builder.append(" (base64)\n");
-                    builder.append(compressToBase64(mDriverStateDump));
+                    pw.print(" (base64)\n");
+                    DeflatedBase64Writer.write(pw, mDriverStateDump);
                 }
             }
-
-            return builder.toString();
         }
     }
 
@@ -518,17 +519,12 @@ class WifiLogger extends BaseWifiLogger {
             for (WifiNative.RingBufferStatus buffer : mRingBuffers) {
                 /* this will push data in mRingBuffers */
                 mWifiNative.getRingBufferData(buffer.name);
-                ByteArrayRingBuffer data = mRingBufferData.get(buffer.name);
-                byte[][] buffers = new byte[data.getNumBuffers()][];
-                for (int i = 0; i < data.getNumBuffers(); i++) {
-                    buffers[i] = data.getBuffer(i).clone();
-                }
-                report.ringBuffers.put(buffer.name, buffers);
+                report.ringBuffers.put(buffer.name, mRingBufferData.get(buffer.name).snapshot());
             }
         }
 
         report.logcatLines = getLogcat(127);
-        report.kernelLogLines = getKernelLog(127);
+        report.kernelLog = getKernelLog(127);
 
         if (captureFWDump) {
             report.fwMemoryDump = mWifiNative.getFwMemoryDump();
@@ -542,46 +538,6 @@ class WifiLogger extends BaseWifiLogger {
         return mLastBugReports;
     }
 
-    private static String compressToBase64(byte[] input) {
-        String result;
-        //compress
-        Deflater compressor = new Deflater();
-        compressor.setLevel(Deflater.BEST_SPEED);
-        compressor.setInput(input);
-        compressor.finish();
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
-        final byte[] buf = new byte[1024];
-
-        while (!compressor.finished()) {
-            int count = compressor.deflate(buf);
-            bos.write(buf, 0, count);
-        }
-
-        try {
-            compressor.end();
-            bos.close();
-        } catch (IOException e) {
-            Log.e(TAG, "ByteArrayOutputStream close error");
-            result =  android.util.Base64.encodeToString(input, Base64.DEFAULT);
-            return result;
-        }
-
-        byte[] compressed = bos.toByteArray();
-        if (DBG) {
-            Log.d(TAG," length is:" + (compressed == null? "0" : compressed.length));
-        }
-
-        //encode
-        result = android.util.Base64.encodeToString(
-                compressed.length < input.length ? compressed : input , Base64.DEFAULT);
-
-        if (DBG) {
-            Log.d(TAG, "FwMemoryDump length is :" + result.length());
-        }
-
-        return result;
-    }
-
     private ArrayList<String> getLogcat(int maxLines) {
         ArrayList<String> lines = new ArrayList<String>(maxLines);
         try {
@@ -604,16 +560,27 @@ class WifiLogger extends BaseWifiLogger {
         return lines;
     }
 
-    private LimitedCircularArray<String> getKernelLog(int maxLines) {
+    /**
+     * Returns the last |maxLines| lines of the kernel log as a single substring, without a
+     * trailing newline.
+     */
+    private String getKernelLog(int maxLines) {
         if (DBG) Log.d(TAG, "Reading kernel log ...");
-        LimitedCircularArray<String> lines = new LimitedCircularArray<String>(maxLines);
         String log = mWifiNative.readKernelLog();
-        String logLines[] = log.split("\n");
-        for (int i = 0; i < logLines.length; i++) {
-            lines.addLast(logLines[i]);
+        int end = log.length();
+        while (end > 0 && log.charAt(end - 1) == '\n') {
+            end--;
+        }
+        int start = end;
+        int newlines = 0;
+        while (start > 0) {
+            if (log.charAt(start - 1) == '\n' && ++newlines == maxLines) {
+                break;
+            }
+            start--;
         }
-        if (DBG) Log.d(TAG, "Added " + logLines.length + " lines");
-        return lines;
+        if (DBG) Log.d(TAG, "Kept " + (end - start) + " of " + log.length() + " chars");
+        return log.substring(start, end);
     }
 
     /** Packet fate reporting */
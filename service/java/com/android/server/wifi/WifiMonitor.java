@@ -20,7 +20,6 @@ import android.net.NetworkInfo;
 import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiEnterpriseConfig;
 import android.net.wifi.WifiManager;
-import android.net.wifi.WifiSsid;
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pDevice;
 import android.net.wifi.p2p.WifiP2pGroup;
@@ -31,13 +30,13 @@ import android.os.Message;
 import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Base64;
-import android.util.LocalLog;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.android.server.wifi.hotspot2.IconEvent;
 import com.android.server.wifi.hotspot2.Utils;
 import com.android.server.wifi.p2p.WifiP2pServiceImpl.P2pStatus;
+import com.android.server.wifi.util.BinaryLocalLog;
 
 import com.android.internal.util.Protocol;
 import com.android.internal.util.StateMachine;
@@ -62,6 +61,7 @@ public class WifiMonitor {
     private static boolean DBG = false;
     private static final boolean VDBG = false;
     private static final String TAG = "WifiMonitor";
+    private static final int LOG_EVENT = BinaryLocalLog.registerFormat(TAG, "Event [%s]");
 
     /** Events we receive from the supplicant daemon */
 
@@ -151,8 +151,6 @@ public class WifiMonitor {
      * <code>xx:xx:xx:xx:xx:xx</code> is the BSSID of the associated access point
      */
     private static final String CONNECTED_STR =    "CONNECTED";
-    private static final String ConnectPrefix = "Connection to ";
-    private static final String ConnectSuffix = " completed";
 
     /**
      * <pre>
@@ -245,32 +243,6 @@ public class WifiMonitor {
      */
     private static final String BSS_REMOVED_STR = "BSS-REMOVED";
 
-    /**
-     * Regex pattern for extracting an Ethernet-style MAC address from a string.
-     * Matches a strings like the following:<pre>
-     * CTRL-EVENT-CONNECTED - Connection to 00:1e:58:ec:d5:6d completed (reauth) [id=1 id_str=]</pre>
-     */
-    private static Pattern mConnectedEventPattern =
-        Pattern.compile("((?:[0-9a-f]{2}:){5}[0-9a-f]{2}) .* \\[id=([0-9]+) ");
-
-    /**
-     * Regex pattern for extracting an Ethernet-style MAC address from a string.
-     * Matches a strings like the following:<pre>
-     * CTRL-EVENT-DISCONNECTED - bssid=ac:22:0b:24:70:74 reason=3 locally_generated=1
-     */
-    private static Pattern mDisconnectedEventPattern =
-            Pattern.compile("((?:[0-9a-f]{2}:){5}[0-9a-f]{2}) +" +
-                    "reason=([0-9]+) +locally_generated=([0-1])");
-
-    /**
-     * Regex pattern for extracting an Ethernet-style MAC address from a string.
-     * Matches a strings like the following:<pre>
-     * CTRL-EVENT-ASSOC-REJECT - bssid=ac:22:0b:24:70:74 status_code=1
-     */
-    private static Pattern mAssocRejectEventPattern =
-            Pattern.compile("((?:[0-9a-f]{2}:){5}[0-9a-f]{2}) +" +
-                    "status_code=([0-9]+)");
-
     /**
      * Regex pattern for extracting an Ethernet-style MAC address from a string.
      * Matches a strings like the following:<pre>
@@ -612,6 +584,9 @@ public class WifiMonitor {
         while (true) {
             if (mWifiNative.connectToSupplicant()) {
                 mConnected = true;
+                // BSS events are not handled, so don't pass them up from the native layer
+                mWifiNative.setDroppedEvents(VDBG ? new String[0] : new String[] {
+                        EVENT_PREFIX_STR + BSS_ADDED_STR, EVENT_PREFIX_STR + BSS_REMOVED_STR });
                 new MonitorThread(mWifiNative.getLocalLog()).start();
                 return true;
             }
@@ -741,9 +716,9 @@ public class WifiMonitor {
     }
 
     private class MonitorThread extends Thread {
-        private final LocalLog mLocalLog;
+        private final BinaryLocalLog mLocalLog;
 
-        public MonitorThread(LocalLog localLog) {
+        public MonitorThread(BinaryLocalLog localLog) {
             super("WifiMonitor");
             mLocalLog = localLog;
         }
@@ -758,19 +733,31 @@ public class WifiMonitor {
                     if (DBG) Log.d(TAG, "MonitorThread exit because mConnected is false");
                     break;
                 }
-                String eventStr = mWifiNative.waitForEvent();
+                String[] events = mWifiNative.waitForEvents();
+                if (dispatchEvents(events)) {
+                    if (DBG) Log.d(TAG, "Disconnecting from the supplicant, no more events");
+                    break;
+                }
+            }
+        }
 
+        /**
+         * Dispatches a batch of events in order, stopping at one that disconnects.
+         * @return true if the monitor should disconnect from the supplicant
+         */
+        private boolean dispatchEvents(String[] events) {
+            for (String eventStr : events) {
                 // Skip logging the common but mostly uninteresting events
                 if (!eventStr.contains(BSS_ADDED_STR) && !eventStr.contains(BSS_REMOVED_STR)) {
                     if (DBG) Log.d(TAG, "Event [" + eventStr + "]");
-                    mLocalLog.log("Event [" + eventStr + "]");
+                    mLocalLog.log(LOG_EVENT, eventStr);
                 }
 
                 if (dispatchEvent(eventStr)) {
-                    if (DBG) Log.d(TAG, "Disconnecting from the supplicant, no more events");
-                    break;
+                    return true;
                 }
             }
+            return false;
         }
     }
 
@@ -899,26 +886,8 @@ public class WifiMonitor {
         * Map event name into event enum
         */
         int event;
-        if (eventName.equals(CONNECTED_STR)) {
+        if (eventName.equals(CONNECTED_STR))
             event = CONNECTED;
-            long bssid = -1L;
-            int prefix = eventStr.indexOf(ConnectPrefix);
-            if (prefix >= 0) {
-                int suffix = eventStr.indexOf(ConnectSuffix);
-                if (suffix > prefix) {
-                    try {
-                        bssid = Utils.parseMac(
-                                eventStr.substring(prefix + ConnectPrefix.length(), suffix));
-                    } catch (IllegalArgumentException iae) {
-                        bssid = -1L;
-                    }
-                }
-            }
-            mLastConnectBSSIDs.put(iface, bssid);
-            if (bssid == -1L) {
-                Log.w(TAG, "Failed to parse out BSSID from '" + eventStr + "'");
-            }
-        }
         else if (eventName.equals(DISCONNECTED_STR))
             event = DISCONNECTED;
         else if (eventName.equals(STATE_CHANGE_STR))
@@ -1021,27 +990,14 @@ public class WifiMonitor {
                 sendMessage(iface, AUTHENTICATION_FAILURE_EVENT, eventLogCounter);
             }
         } else if (event == ASSOC_REJECT) {
-            Matcher match = mAssocRejectEventPattern.matcher(eventData);
+            SupplicantEvent reject = SupplicantEvent.parseAssocReject(eventData);
             String BSSID = "";
             int status = -1;
-            if (!match.find()) {
+            if (reject == null) {
                 if (DBG) Log.d(TAG, "Assoc Reject: Could not parse assoc reject string");
             } else {
-                int groupNumber = match.groupCount();
-                int statusGroupNumber = -1;
-                if (groupNumber == 2) {
-                    BSSID = match.group(1);
-                    statusGroupNumber = 2;
-                } else {
-                    // Under such case Supplicant does not report BSSID
-                    BSSID = null;
-                    statusGroupNumber = 1;
-                }
-                try {
-                    status = Integer.parseInt(match.group(statusGroupNumber));
-                } catch (NumberFormatException e) {
-                    status = -1;
-                }
+                BSSID = reject.bssid;
+                status = reject.reasonCode;
             }
             sendMessage(iface, ASSOCIATION_REJECTION_EVENT, eventLogCounter, status, BSSID);
         } else if (event == BSS_ADDED && !VDBG) {
@@ -1261,46 +1217,35 @@ public class WifiMonitor {
      * Handle hostap events
      */
     private void handleHostApEvents(String dataString, String iface) {
-        String[] tokens = dataString.split(" ");
         /* AP-STA-CONNECTED 42:fc:89:a8:96:09 p2p_dev_addr=02:90:4c:a0:92:54 */
-        if (tokens[0].equals(AP_STA_CONNECTED_STR)) {
+        if (isFirstToken(dataString, AP_STA_CONNECTED_STR)) {
             sendMessage(iface, AP_STA_CONNECTED_EVENT, new WifiP2pDevice(dataString));
             /* AP-STA-DISCONNECTED 42:fc:89:a8:96:09 p2p_dev_addr=02:90:4c:a0:92:54 */
-        } else if (tokens[0].equals(AP_STA_DISCONNECTED_STR)) {
+        } else if (isFirstToken(dataString, AP_STA_DISCONNECTED_STR)) {
             sendMessage(iface, AP_STA_DISCONNECTED_EVENT, new WifiP2pDevice(dataString));
         }
     }
 
-    private static final String ADDR_STRING = "addr=";
-    private static final String RESULT_STRING = "result=";
+    /**
+     * Returns true if |token| is the whole first space separated token of |s|.
+     */
+    private static boolean isFirstToken(String s, String token) {
+        return s.startsWith(token) && (s.length() == token.length()
+                || s.charAt(token.length()) == ' ');
+    }
 
     // ANQP-QUERY-DONE addr=18:cf:5e:26:a4:88 result=SUCCESS
 
     private void handleAnqpResult(String eventStr, String iface) {
-        int addrPos = eventStr.indexOf(ADDR_STRING);
-        int resPos = eventStr.indexOf(RESULT_STRING);
-        if (addrPos < 0 || resPos < 0) {
+        SupplicantEvent anqpDone = SupplicantEvent.parseAnqpDone(eventStr);
+        if (anqpDone == null) {
             throw new IllegalArgumentException("Unexpected ANQP result notification");
         }
-        int eoaddr = eventStr.indexOf(' ', addrPos + ADDR_STRING.length());
-        if (eoaddr < 0) {
-            eoaddr = eventStr.length();
-        }
-        int eoresult = eventStr.indexOf(' ', resPos + RESULT_STRING.length());
-        if (eoresult < 0) {
-            eoresult = eventStr.length();
-        }
-
-        try {
-            long bssid = Utils.parseMac(eventStr.substring(addrPos + ADDR_STRING.length(), eoaddr));
-            int result = eventStr.substring(
-                    resPos + RESULT_STRING.length(), eoresult).equalsIgnoreCase("success") ? 1 : 0;
-
-            sendMessage(iface, ANQP_DONE_EVENT, result, 0, bssid);
-        }
-        catch (IllegalArgumentException iae) {
-            Log.e(TAG, "Bad MAC address in ANQP response: " + iae.getMessage());
+        if (anqpDone.packedBssid == SupplicantEvent.NO_BSSID) {
+            Log.e(TAG, "Bad MAC address in ANQP response: '" + eventStr + "'");
+            return;
         }
+        sendMessage(iface, ANQP_DONE_EVENT, anqpDone.reasonCode, 0, anqpDone.packedBssid);
     }
 
     private void handleIconResult(String eventStr, String iface) {
@@ -1388,56 +1333,15 @@ public class WifiMonitor {
      * id=network-id state=new-state
      */
     private void handleSupplicantStateChange(String dataString, String iface) {
-        WifiSsid wifiSsid = null;
-        int index = dataString.lastIndexOf("SSID=");
-        if (index != -1) {
-            wifiSsid = WifiSsid.createFromAsciiEncoded(
-                    dataString.substring(index + 5));
-        }
-        String[] dataTokens = dataString.split(" ");
-
-        String BSSID = null;
-        int networkId = -1;
-        int newState  = -1;
-        for (String token : dataTokens) {
-            String[] nameValue = token.split("=");
-            if (nameValue.length != 2) {
-                continue;
-            }
-
-            if (nameValue[0].equals("BSSID")) {
-                BSSID = nameValue[1];
-                continue;
-            }
-
-            int value;
-            try {
-                value = Integer.parseInt(nameValue[1]);
-            } catch (NumberFormatException e) {
-                continue;
-            }
+        SupplicantEvent stateChange = SupplicantEvent.parseStateChange(dataString);
+        if (stateChange == null) return;
 
-            if (nameValue[0].equals("id")) {
-                networkId = value;
-            } else if (nameValue[0].equals("state")) {
-                newState = value;
-            }
-        }
-
-        if (newState == -1) return;
-
-        SupplicantState newSupplicantState = SupplicantState.INVALID;
-        for (SupplicantState state : SupplicantState.values()) {
-            if (state.ordinal() == newState) {
-                newSupplicantState = state;
-                break;
-            }
-        }
-        if (newSupplicantState == SupplicantState.INVALID) {
-            Log.w(TAG, "Invalid supplicant state: " + newState);
+        if (stateChange.state == SupplicantState.INVALID) {
+            Log.w(TAG, "Invalid supplicant state: " + dataString);
         }
         sendMessage(iface, SUPPLICANT_STATE_CHANGE_EVENT, eventLogCounter, 0,
-                new StateChangeResult(networkId, wifiSsid, BSSID, newSupplicantState));
+                new StateChangeResult(stateChange.networkId, stateChange.wifiSsid,
+                        stateChange.bssid, stateChange.state));
     }
 
     private void handleNetworkStateChange(NetworkInfo.DetailedState newState, String data,
@@ -1445,38 +1349,26 @@ public class WifiMonitor {
         String BSSID = null;
         int networkId = -1;
         int reason = 0;
-        int ind = -1;
         int local = 0;
-        Matcher match;
         if (newState == NetworkInfo.DetailedState.CONNECTED) {
-            match = mConnectedEventPattern.matcher(data);
-            if (!match.find()) {
-               if (DBG) Log.d(TAG, "handleNetworkStateChange: Couldnt find BSSID in event string");
+            SupplicantEvent connected = SupplicantEvent.parseConnected(data);
+            if (connected == null) {
+                Log.w(TAG, "Failed to parse out BSSID from '" + data + "'");
+                mLastConnectBSSIDs.put(iface, SupplicantEvent.NO_BSSID);
             } else {
-                BSSID = match.group(1);
-                try {
-                    networkId = Integer.parseInt(match.group(2));
-                } catch (NumberFormatException e) {
-                    networkId = -1;
-                }
+                BSSID = connected.bssid;
+                networkId = connected.networkId;
+                mLastConnectBSSIDs.put(iface, connected.packedBssid);
             }
             sendMessage(iface, NETWORK_CONNECTION_EVENT, networkId, reason, BSSID);
         } else if (newState == NetworkInfo.DetailedState.DISCONNECTED) {
-            match = mDisconnectedEventPattern.matcher(data);
-            if (!match.find()) {
+            SupplicantEvent disconnected = SupplicantEvent.parseDisconnected(data);
+            if (disconnected == null) {
                if (DBG) Log.d(TAG, "handleNetworkStateChange: Could not parse disconnect string");
             } else {
-                BSSID = match.group(1);
-                try {
-                    reason = Integer.parseInt(match.group(2));
-                } catch (NumberFormatException e) {
-                    reason = -1;
-                }
-                try {
-                    local = Integer.parseInt(match.group(3));
-                } catch (NumberFormatException e) {
-                    local = -1;
-                }
+                BSSID = disconnected.bssid;
+                reason = disconnected.reasonCode;
+                local = disconnected.locallyGenerated;
             }
             if (DBG) Log.d(TAG, "WifiMonitor notify network disconnect: "
                     + BSSID
@@ -42,15 +42,16 @@ import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
 import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.text.TextUtils;
-import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.Immutable;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.HexDump;
 import com.android.server.connectivity.KeepalivePacketData;
 import com.android.server.wifi.hotspot2.NetworkDetail;
 import com.android.server.wifi.hotspot2.SupplicantBridge;
 import com.android.server.wifi.hotspot2.Utils;
+import com.android.server.wifi.util.BinaryLocalLog;
 import com.android.server.wifi.util.FrameParser;
 import com.android.server.wifi.util.InformationElementUtil;
 
@@ -87,7 +88,7 @@ import java.util.TimeZone;
  * Native calls for bring up/shut down of the supplicant daemon and for
  * sending requests to the supplicant daemon
  *
- * waitForEvent() is called on the monitor thread for events. All other methods
+ * waitForEvents() is called on the monitor thread for events. All other methods
  * must be serialized from the framework.
  *
  * {@hide}
@@ -99,14 +100,28 @@ public class WifiNative {
     public static final int WIFI_SUCCESS = 0;
 
     /**
-     * Hold this lock before calling supplicant or HAL methods
-     * it is required to mutually exclude access to the driver
+     * Hold this lock before sending commands to the supplicant. The wlan0 and p2p0 instances
+     * share it, since the commands of both go through the same control connection.
      */
-    public static final Object sLock = new Object();
-
-    private static final LocalLog sLocalLog = new LocalLog(8192);
-
-    public @NonNull LocalLog getLocalLog() {
+    public static final Object sSupplicantLock = new Object();
+    public static final LockHoldStats sSupplicantLockStats = new LockHoldStats("Supplicant");
+    public static final LockHoldStats sHalLockStats = new LockHoldStats("HAL");
+    /**
+     * Hold this lock before calling vendor HAL methods. Loading and unloading the driver needs
+     * both locks; sSupplicantLock is always taken first.
+     */
+    public static final TimedLock sHalLock = new TimedLock(sHalLockStats);
+
+    /** Shared with WifiMonitor and WifiConfigManager, each logging under its own tag. */
+    private static final BinaryLocalLog sLocalLog = new BinaryLocalLog(8192);
+    private static final String LOG_TAG = "WifiNative";
+    private static final int LOG_MESSAGE = BinaryLocalLog.registerFormat(LOG_TAG, "%s");
+    private static final int LOG_INTERFACE_MESSAGE = BinaryLocalLog.registerFormat(LOG_TAG,
+            "%s: %s%s");
+    private static final int LOG_COMMAND = BinaryLocalLog.registerFormat(LOG_TAG,
+            "%s: %s%s -> %s");
+
+    public @NonNull BinaryLocalLog getLocalLog() {
         return sLocalLog;
     }
 
@@ -173,7 +188,15 @@ public class WifiNative {
     }
 
     private void localLog(String s) {
-        if (sLocalLog != null) sLocalLog.log(mInterfaceName + ": " + s);
+        sLocalLog.log(LOG_INTERFACE_MESSAGE, mInterfaceName, mInterfacePrefix, s);
+    }
+
+    private void localLogCommand(String command, Object result) {
+        sLocalLog.log(LOG_COMMAND, mInterfaceName, mInterfacePrefix, command, result);
+    }
+
+    private void localLogCommand(String command, long result) {
+        sLocalLog.log(LOG_COMMAND, mInterfaceName, mInterfacePrefix, command, result);
     }
 
 
@@ -183,29 +206,55 @@ public class WifiNative {
      */
     private native static boolean loadDriverNative();
     public boolean loadDriver() {
-        synchronized (sLock) {
-            return loadDriverNative();
+        // The driver is shared by the supplicant and the HAL
+        synchronized (sSupplicantLock) {
+            try (TimedLock.Hold hold = sHalLock.lock("loadDriver")) {
+                long lockedAt = sSupplicantLockStats.acquire();
+                try {
+                    return loadDriverNative();
+                } finally {
+                    sSupplicantLockStats.release("loadDriver", lockedAt);
+                }
+            }
         }
     }
 
     private native static boolean isDriverLoadedNative();
     public boolean isDriverLoaded() {
-        synchronized (sLock) {
-            return isDriverLoadedNative();
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                return isDriverLoadedNative();
+            } finally {
+                sSupplicantLockStats.release("isDriverLoaded", lockedAt);
+            }
         }
     }
 
     private native static boolean unloadDriverNative();
     public boolean unloadDriver() {
-        synchronized (sLock) {
-            return unloadDriverNative();
+        // The driver is shared by the supplicant and the HAL
+        synchronized (sSupplicantLock) {
+            try (TimedLock.Hold hold = sHalLock.lock("unloadDriver")) {
+                long lockedAt = sSupplicantLockStats.acquire();
+                try {
+                    return unloadDriverNative();
+                } finally {
+                    sSupplicantLockStats.release("unloadDriver", lockedAt);
+                }
+            }
         }
     }
 
     private native static boolean startSupplicantNative(boolean p2pSupported);
     public boolean startSupplicant(boolean p2pSupported) {
-        synchronized (sLock) {
-            return startSupplicantNative(p2pSupported);
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                return startSupplicantNative(p2pSupported);
+            } finally {
+                sSupplicantLockStats.release("startSupplicant", lockedAt);
+            }
         }
     }
 
@@ -213,35 +262,60 @@ public class WifiNative {
        or when the supplicant is hung */
     private native static boolean killSupplicantNative(boolean p2pSupported);
     public boolean killSupplicant(boolean p2pSupported) {
-        synchronized (sLock) {
-            return killSupplicantNative(p2pSupported);
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                return killSupplicantNative(p2pSupported);
+            } finally {
+                sSupplicantLockStats.release("killSupplicant", lockedAt);
+            }
         }
     }
 
     private native static boolean connectToSupplicantNative();
     public boolean connectToSupplicant() {
-        synchronized (sLock) {
-            localLog(mInterfacePrefix + "connectToSupplicant");
-            return connectToSupplicantNative();
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                localLog("connectToSupplicant");
+                return connectToSupplicantNative();
+            } finally {
+                sSupplicantLockStats.release("connectToSupplicant", lockedAt);
+            }
         }
     }
 
     private native static void closeSupplicantConnectionNative();
     public void closeSupplicantConnection() {
-        synchronized (sLock) {
-            localLog(mInterfacePrefix + "closeSupplicantConnection");
-            closeSupplicantConnectionNative();
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                localLog("closeSupplicantConnection");
+                closeSupplicantConnectionNative();
+            } finally {
+                sSupplicantLockStats.release("closeSupplicantConnection", lockedAt);
+            }
         }
     }
 
     /**
-     * Wait for the supplicant to send an event, returning the event string.
-     * @return the event string sent by the supplicant.
+     * Wait for the supplicant to send an event, returning all the events read since the last
+     * call. Events are read ahead on a native thread, so a burst of them is returned at once.
+     * @return the event strings sent by the supplicant, oldest first.
      */
-    private native static String waitForEventNative();
-    public String waitForEvent() {
+    private native static String[] waitForEventsNative();
+    public String[] waitForEvents() {
         // No synchronization necessary .. it is implemented in WifiMonitor
-        return waitForEventNative();
+        return waitForEventsNative();
+    }
+
+    /**
+     * Drop events with the given names, e.g. CTRL-EVENT-BSS-ADDED, before they are returned
+     * by waitForEvents(). Replaces the names given before.
+     */
+    private native static void setDroppedEventsNative(String[] eventNames);
+    public void setDroppedEvents(String[] eventNames) {
+        setDroppedEventsNative(eventNames);
     }
 
 
@@ -254,34 +328,73 @@ public class WifiNative {
 
     private native String doStringCommandNative(String command);
 
+    private native String[] doStringCommandsNative(String[] commands);
+
+    /**
+     * Returns the name of a supplicant command without its arguments, to key lock statistics.
+     */
+    private static String commandName(String command) {
+        int end = command.indexOf(' ');
+        return end < 0 ? command : command.substring(0, end);
+    }
+
+    /**
+     * Dumps how long each lock was held, per command.
+     */
+    public static void dumpLockStats(PrintWriter pw) {
+        sSupplicantLockStats.dump(pw);
+        sHalLockStats.dump(pw);
+    }
+
     private boolean doBooleanCommand(String command) {
         if (DBG) Log.d(mTAG, "doBoolean: " + command);
-        synchronized (sLock) {
-            String toLog = mInterfacePrefix + command;
-            boolean result = doBooleanCommandNative(mInterfacePrefix + command);
-            localLog(toLog + " -> " + result);
-            if (DBG) Log.d(mTAG, command + ": returned " + result);
-            return result;
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                boolean result = doBooleanCommandNative(mInterfacePrefix + command);
+                localLogCommand(command, result);
+                if (DBG) Log.d(mTAG, command + ": returned " + result);
+                return result;
+            } finally {
+                sSupplicantLockStats.release(commandName(command), lockedAt);
+            }
         }
     }
 
     private boolean doBooleanCommandWithoutLogging(String command) {
+        return doBooleanCommandWithoutLogging(mInterfacePrefix, command);
+    }
+
+    /**
+     * Sends |command| with |prefix| in front of it instead of this interface's prefix, e.g. for a
+     * command on a P2P group interface. The reply is not logged.
+     */
+    private boolean doBooleanCommandWithoutLogging(String prefix, String command) {
         if (DBG) Log.d(mTAG, "doBooleanCommandWithoutLogging: " + command);
-        synchronized (sLock) {
-            boolean result = doBooleanCommandNative(mInterfacePrefix + command);
-            if (DBG) Log.d(mTAG, command + ": returned " + result);
-            return result;
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                boolean result = doBooleanCommandNative(prefix + command);
+                if (DBG) Log.d(mTAG, command + ": returned " + result);
+                return result;
+            } finally {
+                sSupplicantLockStats.release(commandName(command), lockedAt);
+            }
         }
     }
 
     private int doIntCommand(String command) {
         if (DBG) Log.d(mTAG, "doInt: " + command);
-        synchronized (sLock) {
-            String toLog = mInterfacePrefix + command;
-            int result = doIntCommandNative(mInterfacePrefix + command);
-            localLog(toLog + " -> " + result);
-            if (DBG) Log.d(mTAG, "   returned " + result);
-            return result;
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                int result = doIntCommandNative(mInterfacePrefix + command);
+                localLogCommand(command, result);
+                if (DBG) Log.d(mTAG, "   returned " + result);
+                return result;
+            } finally {
+                sSupplicantLockStats.release(commandName(command), lockedAt);
+            }
         }
     }
 
@@ -292,30 +405,75 @@ public class WifiNative {
                 Log.d(mTAG, "doString: [" + command + "]");
             }
         }
-        synchronized (sLock) {
-            String toLog = mInterfacePrefix + command;
-            String result = doStringCommandNative(mInterfacePrefix + command);
-            if (result == null) {
-                if (DBG) Log.d(mTAG, "doStringCommandNative no result");
-            } else {
-                if (!command.startsWith("STATUS-")) {
-                    localLog(toLog + " -> " + result);
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                String result = doStringCommandNative(mInterfacePrefix + command);
+                if (result == null) {
+                    if (DBG) Log.d(mTAG, "doStringCommandNative no result");
+                } else {
+                    if (!command.startsWith("STATUS-")) {
+                        localLogCommand(command, result);
+                    }
+                    if (DBG) Log.d(mTAG, "   returned " + result.replace("\n", " "));
                 }
-                if (DBG) Log.d(mTAG, "   returned " + result.replace("\n", " "));
+                return result;
+            } finally {
+                sSupplicantLockStats.release(commandName(command), lockedAt);
             }
-            return result;
         }
     }
 
     private String doStringCommandWithoutLogging(String command) {
+        return doStringCommandWithoutLogging(mInterfacePrefix, command);
+    }
+
+    /**
+     * Sends |command| with |prefix| in front of it instead of this interface's prefix. The reply
+     * is not logged.
+     */
+    private String doStringCommandWithoutLogging(String prefix, String command) {
         if (DBG) {
             //GET_NETWORK commands flood the logs
             if (!command.startsWith("GET_NETWORK")) {
                 Log.d(mTAG, "doString: [" + command + "]");
             }
         }
-        synchronized (sLock) {
-            return doStringCommandNative(mInterfacePrefix + command);
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                return doStringCommandNative(prefix + command);
+            } finally {
+                sSupplicantLockStats.release(commandName(command), lockedAt);
+            }
+        }
+    }
+
+    /**
+     * Sends |commands| back to back with a single native call, holding the supplicant lock
+     * throughout so that no other command is sent in between. The replies are not logged.
+     * @return the replies, in the order of |commands|; null for a command that failed.
+     */
+    private String[] doStringCommandsWithoutLogging(String[] commands) {
+        if (commands.length == 0) {
+            return commands;
+        }
+        String[] prefixed = new String[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            prefixed[i] = mInterfacePrefix + commands[i];
+        }
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                String[] replies = doStringCommandsNative(prefixed);
+                if (replies == null) {
+                    if (DBG) Log.d(mTAG, "doStringCommandsNative no result");
+                    replies = new String[commands.length];
+                }
+                return replies;
+            } finally {
+                sSupplicantLockStats.release(commandName(commands[0]), lockedAt);
+            }
         }
     }
 
@@ -433,7 +591,14 @@ public class WifiNative {
     }
 
     public Map<String, String> getNetworkExtra(int netId, String name) {
-        final String wrapped = getNetworkVariable(netId, name);
+        return parseNetworkExtra(getNetworkVariable(netId, name));
+    }
+
+    /**
+     * Decodes the value of a network variable written by setNetworkExtra().
+     * @return the extras, or null if |wrapped| does not hold any
+     */
+    public static Map<String, String> parseNetworkExtra(String wrapped) {
         if (wrapped == null || !wrapped.startsWith("\"") || !wrapped.endsWith("\"")) {
             return null;
         }
@@ -472,6 +637,32 @@ public class WifiNative {
         return doStringCommandWithoutLogging("GET_NETWORK " + netId + " " + name);
     }
 
+    /**
+     * Reads the variables |names| of network |netId| with a single native call, see
+     * {@link #doStringCommandsWithoutLogging}.
+     * @return the values, in the order of |names|; null for a variable that could not be read.
+     */
+    public String[] getNetworkVariables(int netId, String[] names) {
+        String[] commands = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            commands[i] = "GET_NETWORK " + netId + " " + names[i];
+        }
+        return doStringCommandsWithoutLogging(commands);
+    }
+
+    /**
+     * Reads the variable |name| of each network in |netIds| with a single native call, see
+     * {@link #doStringCommandsWithoutLogging}.
+     * @return the values, in the order of |netIds|; null for a variable that could not be read.
+     */
+    public String[] getNetworkVariables(int[] netIds, String name) {
+        String[] commands = new String[netIds.length];
+        for (int i = 0; i < netIds.length; i++) {
+            commands[i] = "GET_NETWORK " + netIds[i] + " " + name;
+        }
+        return doStringCommandsWithoutLogging(commands);
+    }
+
     public boolean removeNetwork(int netId) {
         return doBooleanCommand("REMOVE_NETWORK " + netId);
     }
@@ -590,25 +781,50 @@ public class WifiNative {
      *
      * RANGE=ALL gets all scan results
      * RANGE=ID- gets results from ID
-     * MASK=<N> BSS command information mask.
-     *
-     * The mask used in this method, 0x29d87, gets the following fields:
-     *
-     *     WPA_BSS_MASK_ID         (Bit 0)
-     *     WPA_BSS_MASK_BSSID      (Bit 1)
-     *     WPA_BSS_MASK_FREQ       (Bit 2)
-     *     WPA_BSS_MASK_LEVEL      (Bit 7)
-     *     WPA_BSS_MASK_TSF        (Bit 8)
-     *     WPA_BSS_MASK_IE         (Bit 10)
-     *     WPA_BSS_MASK_FLAGS      (Bit 11)
-     *     WPA_BSS_MASK_SSID       (Bit 12)
-     *     WPA_BSS_MASK_INTERNETW  (Bit 15) (adds ANQP info)
-     *     WPA_BSS_MASK_DELIM      (Bit 17)
-     *
-     * See wpa_supplicant/src/common/wpa_ctrl.h for details.
+     * MASK=<N> BSS command information mask, see {@link #getScanFetchMask}.
+     */
+    private String getRawScanResults(String range, int profile) {
+        return doStringCommandWithoutLogging("BSS RANGE=" + range + " MASK=0x"
+                + Integer.toHexString(getScanFetchMask(profile)));
+    }
+
+    /**
+     * Scan fetch profiles. STANDARD returns the fields of a ScanResult and the information
+     * elements; FULL adds the ANQP attributes.
+     */
+    public static final int SCAN_FETCH_STANDARD = 0;
+    public static final int SCAN_FETCH_FULL = 1;
+
+    /*
+     * BSS command information mask bits, see wpa_supplicant/src/common/wpa_ctrl.h for details.
      */
-    private String getRawScanResults(String range) {
-        return doStringCommandWithoutLogging("BSS RANGE=" + range + " MASK=0x29d87");
+    private static final int WPA_BSS_MASK_ID = 1 << 0;
+    private static final int WPA_BSS_MASK_BSSID = 1 << 1;
+    private static final int WPA_BSS_MASK_FREQ = 1 << 2;
+    private static final int WPA_BSS_MASK_LEVEL = 1 << 7;
+    private static final int WPA_BSS_MASK_TSF = 1 << 8;
+    private static final int WPA_BSS_MASK_IE = 1 << 10;
+    private static final int WPA_BSS_MASK_FLAGS = 1 << 11;
+    private static final int WPA_BSS_MASK_SSID = 1 << 12;
+    private static final int WPA_BSS_MASK_INTERNETW = 1 << 15; // adds ANQP info
+    private static final int WPA_BSS_MASK_DELIM = 1 << 17;
+
+    private static final int SCAN_FETCH_STANDARD_MASK = WPA_BSS_MASK_ID | WPA_BSS_MASK_BSSID
+            | WPA_BSS_MASK_FREQ | WPA_BSS_MASK_LEVEL | WPA_BSS_MASK_TSF | WPA_BSS_MASK_IE
+            | WPA_BSS_MASK_FLAGS | WPA_BSS_MASK_SSID | WPA_BSS_MASK_DELIM;
+
+    /**
+     * Returns the BSS command information mask for a scan fetch profile. FULL is 0x29d87.
+     */
+    static int getScanFetchMask(int profile) {
+        switch (profile) {
+            case SCAN_FETCH_STANDARD:
+                return SCAN_FETCH_STANDARD_MASK;
+            case SCAN_FETCH_FULL:
+                return SCAN_FETCH_STANDARD_MASK | WPA_BSS_MASK_INTERNETW;
+            default:
+                throw new IllegalArgumentException("Unknown scan fetch profile " + profile);
+        }
     }
 
     private static final String BSS_IE_STR = "ie=";
@@ -622,123 +838,142 @@ public class WifiNative {
     private static final String BSS_DELIMITER_STR = "====";
     private static final String BSS_END_STR = "####";
 
+    /**
+     * Gets all scan results with every field, including the ANQP attributes.
+     */
     public ArrayList<ScanDetail> getScanResults() {
+        return getScanResults(SCAN_FETCH_FULL);
+    }
+
+    /**
+     * Gets all scan results with the fields of a scan fetch profile.
+     */
+    public ArrayList<ScanDetail> getScanResults(int profile) {
         int next_sid = 0;
         ArrayList<ScanDetail> results = new ArrayList<>();
         while(next_sid >= 0) {
-            String rawResult = getRawScanResults(next_sid+"-");
-            next_sid = -1;
-
+            String rawResult = getRawScanResults(next_sid+"-", profile);
             if (TextUtils.isEmpty(rawResult))
                 break;
+            next_sid = parseScanResults(rawResult, results);
+        }
+        return results;
+    }
 
-            String[] lines = rawResult.split("\n");
-
-
-            // note that all these splits and substrings keep references to the original
-            // huge string buffer while the amount we really want is generally pretty small
-            // so make copies instead (one example b/11087956 wasted 400k of heap here).
-            final int bssidStrLen = BSS_BSSID_STR.length();
-            final int flagLen = BSS_FLAGS_STR.length();
+    /**
+     * Parses the records of a BSS reply into |results|.
+     *
+     * @return the id following the last record, or -1 if the reply held none
+     */
+    @VisibleForTesting
+    static int parseScanResults(String rawResult, List<ScanDetail> results) {
+        int next_sid = -1;
+        String[] lines = rawResult.split("\n");
+
+
+        // note that all these splits and substrings keep references to the original
+        // huge string buffer while the amount we really want is generally pretty small
+        // so make copies instead (one example b/11087956 wasted 400k of heap here).
+        final int bssidStrLen = BSS_BSSID_STR.length();
+        final int flagLen = BSS_FLAGS_STR.length();
+
+        String bssid = "";
+        int level = 0;
+        int freq = 0;
+        long tsf = 0;
+        String flags = "";
+        WifiSsid wifiSsid = null;
+        String infoElementsStr = null;
+        List<String> anqpLines = null;
+
+        for (String line : lines) {
+            if (line.startsWith(BSS_ID_STR)) { // Will find the last id line
+                try {
+                    next_sid = Integer.parseInt(line.substring(BSS_ID_STR.length())) + 1;
+                } catch (NumberFormatException e) {
+                    // Nothing to do
+                }
+            } else if (line.startsWith(BSS_BSSID_STR)) {
+                bssid = new String(line.getBytes(), bssidStrLen, line.length() - bssidStrLen);
+            } else if (line.startsWith(BSS_FREQ_STR)) {
+                try {
+                    freq = Integer.parseInt(line.substring(BSS_FREQ_STR.length()));
+                } catch (NumberFormatException e) {
+                    freq = 0;
+                }
+            } else if (line.startsWith(BSS_LEVEL_STR)) {
+                try {
+                    level = Integer.parseInt(line.substring(BSS_LEVEL_STR.length()));
+                    /* some implementations avoid negative values by adding 256
+                     * so we need to adjust for that here.
+                     */
+                    if (level > 0) level -= 256;
+                } catch (NumberFormatException e) {
+                    level = 0;
+                }
+            } else if (line.startsWith(BSS_TSF_STR)) {
+                try {
+                    tsf = Long.parseLong(line.substring(BSS_TSF_STR.length()));
+                } catch (NumberFormatException e) {
+                    tsf = 0;
+                }
+            } else if (line.startsWith(BSS_FLAGS_STR)) {
+                flags = new String(line.getBytes(), flagLen, line.length() - flagLen);
+            } else if (line.startsWith(BSS_SSID_STR)) {
+                wifiSsid = WifiSsid.createFromAsciiEncoded(
+                        line.substring(BSS_SSID_STR.length()));
+            } else if (line.startsWith(BSS_IE_STR)) {
+                infoElementsStr = line;
+            } else if (SupplicantBridge.isAnqpAttribute(line)) {
+                if (anqpLines == null) {
+                    anqpLines = new ArrayList<>();
+                }
+                anqpLines.add(line);
+            } else if (line.startsWith(BSS_DELIMITER_STR) || line.startsWith(BSS_END_STR)) {
+                if (bssid != null) {
+                    try {
+                        if (infoElementsStr == null) {
+                            throw new IllegalArgumentException("Null information element data");
+                        }
+                        int seperator = infoElementsStr.indexOf('=');
+                        if (seperator < 0) {
+                            throw new IllegalArgumentException("No element separator");
+                        }
 
-            String bssid = "";
-            int level = 0;
-            int freq = 0;
-            long tsf = 0;
-            String flags = "";
-            WifiSsid wifiSsid = null;
-            String infoElementsStr = null;
-            List<String> anqpLines = null;
+                        InformationElementUtil.ElementView elements =
+                                InformationElementUtil.ElementView.parse(
+                                Utils.hexToBytes(infoElementsStr.substring(seperator + 1)));
+
+                        NetworkDetail networkDetail = new NetworkDetail(bssid,
+                                elements, anqpLines, freq);
+                        String xssid = (wifiSsid != null) ? wifiSsid.toString() : WifiSsid.NONE;
+                        if (!xssid.equals(networkDetail.getTrimmedSSID())) {
+                            Log.d(TAG, String.format(
+                                    "Inconsistent SSID on BSSID '%s': '%s' vs '%s': %s",
+                                    bssid, xssid, networkDetail.getSSID(), infoElementsStr));
+                        }
 
-            for (String line : lines) {
-                if (line.startsWith(BSS_ID_STR)) { // Will find the last id line
-                    try {
-                        next_sid = Integer.parseInt(line.substring(BSS_ID_STR.length())) + 1;
-                    } catch (NumberFormatException e) {
-                        // Nothing to do
-                    }
-                } else if (line.startsWith(BSS_BSSID_STR)) {
-                    bssid = new String(line.getBytes(), bssidStrLen, line.length() - bssidStrLen);
-                } else if (line.startsWith(BSS_FREQ_STR)) {
-                    try {
-                        freq = Integer.parseInt(line.substring(BSS_FREQ_STR.length()));
-                    } catch (NumberFormatException e) {
-                        freq = 0;
-                    }
-                } else if (line.startsWith(BSS_LEVEL_STR)) {
-                    try {
-                        level = Integer.parseInt(line.substring(BSS_LEVEL_STR.length()));
-                        /* some implementations avoid negative values by adding 256
-                         * so we need to adjust for that here.
-                         */
-                        if (level > 0) level -= 256;
-                    } catch (NumberFormatException e) {
-                        level = 0;
-                    }
-                } else if (line.startsWith(BSS_TSF_STR)) {
-                    try {
-                        tsf = Long.parseLong(line.substring(BSS_TSF_STR.length()));
-                    } catch (NumberFormatException e) {
-                        tsf = 0;
-                    }
-                } else if (line.startsWith(BSS_FLAGS_STR)) {
-                    flags = new String(line.getBytes(), flagLen, line.length() - flagLen);
-                } else if (line.startsWith(BSS_SSID_STR)) {
-                    wifiSsid = WifiSsid.createFromAsciiEncoded(
-                            line.substring(BSS_SSID_STR.length()));
-                } else if (line.startsWith(BSS_IE_STR)) {
-                    infoElementsStr = line;
-                } else if (SupplicantBridge.isAnqpAttribute(line)) {
-                    if (anqpLines == null) {
-                        anqpLines = new ArrayList<>();
-                    }
-                    anqpLines.add(line);
-                } else if (line.startsWith(BSS_DELIMITER_STR) || line.startsWith(BSS_END_STR)) {
-                    if (bssid != null) {
-                        try {
-                            if (infoElementsStr == null) {
-                                throw new IllegalArgumentException("Null information element data");
-                            }
-                            int seperator = infoElementsStr.indexOf('=');
-                            if (seperator < 0) {
-                                throw new IllegalArgumentException("No element separator");
-                            }
-
-                            ScanResult.InformationElement[] infoElements =
-                                        InformationElementUtil.parseInformationElements(
-                                        Utils.hexToBytes(infoElementsStr.substring(seperator + 1)));
-
-                            NetworkDetail networkDetail = new NetworkDetail(bssid,
-                                    infoElements, anqpLines, freq);
-                            String xssid = (wifiSsid != null) ? wifiSsid.toString() : WifiSsid.NONE;
-                            if (!xssid.equals(networkDetail.getTrimmedSSID())) {
-                                Log.d(TAG, String.format(
-                                        "Inconsistent SSID on BSSID '%s': '%s' vs '%s': %s",
-                                        bssid, xssid, networkDetail.getSSID(), infoElementsStr));
-                            }
-
-                            if (networkDetail.hasInterworking()) {
-                                if (DBG) Log.d(TAG, "HSNwk: '" + networkDetail);
-                            }
-                            ScanDetail scan = new ScanDetail(networkDetail, wifiSsid, bssid, flags,
-                                    level, freq, tsf, infoElements, anqpLines);
-                            results.add(scan);
-                        } catch (IllegalArgumentException iae) {
-                            Log.d(TAG, "Failed to parse information elements: " + iae);
+                        if (networkDetail.hasInterworking()) {
+                            if (DBG) Log.d(TAG, "HSNwk: '" + networkDetail);
                         }
+                        ScanDetail scan = new ScanDetail(networkDetail, wifiSsid, bssid, flags,
+                                level, freq, tsf, elements, anqpLines);
+                        results.add(scan);
+                    } catch (IllegalArgumentException iae) {
+                        Log.d(TAG, "Failed to parse information elements: " + iae);
                     }
-                    bssid = null;
-                    level = 0;
-                    freq = 0;
-                    tsf = 0;
-                    flags = "";
-                    wifiSsid = null;
-                    infoElementsStr = null;
-                    anqpLines = null;
                 }
+                bssid = null;
+                level = 0;
+                freq = 0;
+                tsf = 0;
+                flags = "";
+                wifiSsid = null;
+                infoElementsStr = null;
+                anqpLines = null;
             }
         }
-        return results;
+        return next_sid;
     }
 
     /**
@@ -968,9 +1203,14 @@ public class WifiNative {
 
     public void startTdls(String macAddr, boolean enable) {
         if (enable) {
-            synchronized (sLock) {
-                doBooleanCommand("TDLS_DISCOVER " + macAddr);
-                doBooleanCommand("TDLS_SETUP " + macAddr);
+            synchronized (sSupplicantLock) {
+                long lockedAt = sSupplicantLockStats.acquire();
+                try {
+                    doBooleanCommand("TDLS_DISCOVER " + macAddr);
+                    doBooleanCommand("TDLS_SETUP " + macAddr);
+                } finally {
+                    sSupplicantLockStats.release("startTdls", lockedAt);
+                }
             }
         } else {
             doBooleanCommand("TDLS_TEARDOWN " + macAddr);
@@ -995,6 +1235,23 @@ public class WifiNative {
         return doStringCommand("PKTCNT_POLL");
     }
 
+    /**
+     * Reads the link quality with SIGNAL_POLL and, if |includePacketCounts| is set, PKTCNT_POLL.
+     * Both commands are sent in one hold of the supplicant lock.
+     */
+    public LinkSample pollLink(boolean includePacketCounts) {
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                String signalPoll = signalPoll();
+                String pktcntPoll = includePacketCounts ? pktcntPoll() : null;
+                return LinkSample.parse(signalPoll, pktcntPoll, SystemClock.elapsedRealtime());
+            } finally {
+                sSupplicantLockStats.release("pollLink", lockedAt);
+            }
+        }
+    }
+
     public void bssFlush() {
         doBooleanCommand("BSS_FLUSH 0");
     }
@@ -1008,12 +1265,10 @@ public class WifiNative {
     }
 
     public boolean startWpsPbc(String iface, String bssid) {
-        synchronized (sLock) {
-            if (TextUtils.isEmpty(bssid)) {
-                return doBooleanCommandNative("IFNAME=" + iface + " WPS_PBC");
-            } else {
-                return doBooleanCommandNative("IFNAME=" + iface + " WPS_PBC " + bssid);
-            }
+        if (TextUtils.isEmpty(bssid)) {
+            return doBooleanCommandWithoutLogging("IFNAME=" + iface + " ", "WPS_PBC");
+        } else {
+            return doBooleanCommandWithoutLogging("IFNAME=" + iface + " ", "WPS_PBC " + bssid);
         }
     }
 
@@ -1024,9 +1279,7 @@ public class WifiNative {
 
     public boolean startWpsPinKeypad(String iface, String pin) {
         if (TextUtils.isEmpty(pin)) return false;
-        synchronized (sLock) {
-            return doBooleanCommandNative("IFNAME=" + iface + " WPS_PIN any " + pin);
-        }
+        return doBooleanCommandWithoutLogging("IFNAME=" + iface + " ", "WPS_PIN any " + pin);
     }
 
 
@@ -1039,12 +1292,10 @@ public class WifiNative {
     }
 
     public String startWpsPinDisplay(String iface, String bssid) {
-        synchronized (sLock) {
-            if (TextUtils.isEmpty(bssid)) {
-                return doStringCommandNative("IFNAME=" + iface + " WPS_PIN any");
-            } else {
-                return doStringCommandNative("IFNAME=" + iface + " WPS_PIN " + bssid);
-            }
+        if (TextUtils.isEmpty(bssid)) {
+            return doStringCommandWithoutLogging("IFNAME=" + iface + " ", "WPS_PIN any");
+        } else {
+            return doStringCommandWithoutLogging("IFNAME=" + iface + " ", "WPS_PIN " + bssid);
         }
     }
 
@@ -1121,9 +1372,8 @@ public class WifiNative {
     }
 
     public boolean setP2pGroupIdle(String iface, int time) {
-        synchronized (sLock) {
-            return doBooleanCommandNative("IFNAME=" + iface + " SET p2p_group_idle " + time);
-        }
+        return doBooleanCommandWithoutLogging("IFNAME=" + iface + " ",
+                "SET p2p_group_idle " + time);
     }
 
     public void setPowerSave(boolean enabled) {
@@ -1135,12 +1385,10 @@ public class WifiNative {
     }
 
     public boolean setP2pPowerSave(String iface, boolean enabled) {
-        synchronized (sLock) {
-            if (enabled) {
-                return doBooleanCommandNative("IFNAME=" + iface + " P2P_SET ps 1");
-            } else {
-                return doBooleanCommandNative("IFNAME=" + iface + " P2P_SET ps 0");
-            }
+        if (enabled) {
+            return doBooleanCommandWithoutLogging("IFNAME=" + iface + " ", "P2P_SET ps 1");
+        } else {
+            return doBooleanCommandWithoutLogging("IFNAME=" + iface + " ", "P2P_SET ps 0");
         }
     }
 
@@ -1197,22 +1445,27 @@ public class WifiNative {
     public boolean p2pSetChannel(int lc, int oc) {
         if (DBG) Log.d(mTAG, "p2pSetChannel: lc="+lc+", oc="+oc);
 
-        synchronized (sLock) {
-            if (lc >=1 && lc <= 11) {
-                if (!doBooleanCommand("P2P_SET listen_channel " + lc)) {
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                if (lc >=1 && lc <= 11) {
+                    if (!doBooleanCommand("P2P_SET listen_channel " + lc)) {
+                        return false;
+                    }
+                } else if (lc != 0) {
                     return false;
                 }
-            } else if (lc != 0) {
-                return false;
-            }
 
-            if (oc >= 1 && oc <= 165 ) {
-                int freq = (oc <= 14 ? 2407 : 5000) + oc * 5;
-                return doBooleanCommand("P2P_SET disallow_freq 1000-"
-                        + (freq - 5) + "," + (freq + 5) + "-6000");
-            } else if (oc == 0) {
-                /* oc==0 disables "P2P_SET disallow_freq" (enables all freqs) */
-                return doBooleanCommand("P2P_SET disallow_freq \"\"");
+                if (oc >= 1 && oc <= 165 ) {
+                    int freq = (oc <= 14 ? 2407 : 5000) + oc * 5;
+                    return doBooleanCommand("P2P_SET disallow_freq 1000-"
+                            + (freq - 5) + "," + (freq + 5) + "-6000");
+                } else if (oc == 0) {
+                    /* oc==0 disables "P2P_SET disallow_freq" (enables all freqs) */
+                    return doBooleanCommand("P2P_SET disallow_freq \"\"");
+                }
+            } finally {
+                sSupplicantLockStats.release("p2pSetChannel", lockedAt);
             }
         }
         return false;
@@ -1311,9 +1564,7 @@ public class WifiNative {
 
     public boolean p2pGroupRemove(String iface) {
         if (TextUtils.isEmpty(iface)) return false;
-        synchronized (sLock) {
-            return doBooleanCommandNative("IFNAME=" + iface + " P2P_GROUP_REMOVE " + iface);
-        }
+        return doBooleanCommandWithoutLogging("IFNAME=" + iface + " ", "P2P_GROUP_REMOVE " + iface);
     }
 
     public boolean p2pReject(String deviceAddress) {
@@ -1351,9 +1602,7 @@ public class WifiNative {
         /* Explicitly calling the API without IFNAME= prefix to take care of the devices that
         don't have p2p0 interface. Supplicant seems to be returning the correct address anyway. */
 
-        synchronized (sLock) {
-            status = doStringCommandNative("STATUS");
-        }
+        status = doStringCommandWithoutLogging("", "STATUS");
 
         String result = "";
         if (status != null) {
@@ -1436,13 +1685,18 @@ public class WifiNative {
          * P2P_SERVICE_ADD upnp 10 uuid:6859dede-8574-59ab-9322-123456789012::urn:schemas-upnp
          * -org:service:ContentDirectory:2
          */
-        synchronized (sLock) {
-            for (String s : servInfo.getSupplicantQueryList()) {
-                String command = "P2P_SERVICE_ADD";
-                command += (" " + s);
-                if (!doBooleanCommand(command)) {
-                    return false;
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                for (String s : servInfo.getSupplicantQueryList()) {
+                    String command = "P2P_SERVICE_ADD";
+                    command += (" " + s);
+                    if (!doBooleanCommand(command)) {
+                        return false;
+                    }
                 }
+            } finally {
+                sSupplicantLockStats.release("p2pServiceAdd", lockedAt);
             }
         }
         return true;
@@ -1453,25 +1707,30 @@ public class WifiNative {
          * P2P_SERVICE_DEL bonjour <query hexdump>
          * P2P_SERVICE_DEL upnp <version hex> <service>
          */
-        synchronized (sLock) {
-            for (String s : servInfo.getSupplicantQueryList()) {
-                String command = "P2P_SERVICE_DEL ";
+        synchronized (sSupplicantLock) {
+            long lockedAt = sSupplicantLockStats.acquire();
+            try {
+                for (String s : servInfo.getSupplicantQueryList()) {
+                    String command = "P2P_SERVICE_DEL ";
 
-                String[] data = s.split(" ");
-                if (data.length < 2) {
-                    return false;
-                }
-                if ("upnp".equals(data[0])) {
-                    command += s;
-                } else if ("bonjour".equals(data[0])) {
-                    command += data[0];
-                    command += (" " + data[1]);
-                } else {
-                    return false;
-                }
-                if (!doBooleanCommand(command)) {
-                    return false;
+                    String[] data = s.split(" ");
+                    if (data.length < 2) {
+                        return false;
+                    }
+                    if ("upnp".equals(data[0])) {
+                        command += s;
+                    } else if ("bonjour".equals(data[0])) {
+                        command += data[0];
+                        command += (" " + data[1]);
+                    } else {
+                        return false;
+                    }
+                    if (!doBooleanCommand(command)) {
+                        return false;
+                    }
                 }
+            } finally {
+                sSupplicantLockStats.release("p2pServiceDel", lockedAt);
             }
         }
         return true;
@@ -1584,13 +1843,16 @@ public class WifiNative {
             debugLog = debugLog + " - " + elements[i].getMethodName();
         }
 
-        sLocalLog.log(debugLog);
+        sLocalLog.log(LOG_MESSAGE, debugLog);
 
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("startHal")) {
             if (startHalNative()) {
                 int wlan0Index = queryInterfaceIndex(mInterfaceName);
                 if (wlan0Index == -1) {
-                    if (DBG) sLocalLog.log("Could not find interface with name: " + mInterfaceName);
+                    if (DBG) {
+                        sLocalLog.log(LOG_MESSAGE, "Could not find interface with name: "
+                                + mInterfaceName);
+                    }
                     return false;
                 }
                 sWlan0Index = wlan0Index;
@@ -1598,7 +1860,7 @@ public class WifiNative {
                 sThread.start();
                 return true;
             } else {
-                if (DBG) sLocalLog.log("Could not start hal");
+                if (DBG) sLocalLog.log(LOG_MESSAGE, "Could not start hal");
                 Log.e(TAG, "Could not start hal");
                 return false;
             }
@@ -1606,7 +1868,7 @@ public class WifiNative {
     }
 
     public void stopHal() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("stopHal")) {
             if (isHalStarted()) {
                 stopHalNative();
                 try {
@@ -1629,7 +1891,7 @@ public class WifiNative {
     private static native int getInterfacesNative();
 
     public int queryInterfaceIndex(String interfaceName) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("queryInterfaceIndex")) {
             if (isHalStarted()) {
                 int num = getInterfacesNative();
                 for (int i = 0; i < num; i++) {
@@ -1645,7 +1907,7 @@ public class WifiNative {
 
     private static native String getInterfaceNameNative(int index);
     public String getInterfaceName(int index) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getInterfaceName")) {
             return getInterfaceNameNative(index);
         }
     }
@@ -1666,7 +1928,7 @@ public class WifiNative {
     }
 
     public boolean getScanCapabilities(ScanCapabilities capabilities) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getScanCapabilities")) {
             return isHalStarted() && getScanCapabilitiesNative(sWlan0Index, capabilities);
         }
     }
@@ -1676,7 +1938,8 @@ public class WifiNative {
 
     private static native boolean startScanNative(int iface, int id, ScanSettings settings);
     private static native boolean stopScanNative(int iface, int id);
-    private static native WifiScanner.ScanData[] getScanResultsNative(int iface, boolean flush);
+    private static native boolean getScanResultsNative(int iface, boolean flush,
+            HalScanResults results);
     private static native WifiLinkLayerStats getWifiLinkLayerStatsNative(int iface);
     private static native void setWifiLinkLayerStatsNative(int iface, int enable);
 
@@ -1911,12 +2174,15 @@ public class WifiNative {
     }
 
     // Callback from native
-    private static void onFullScanResult(int id, ScanResult result,
-            int bucketsScanned, int beaconCap) {
-        if (DBG) Log.i(TAG, "Got a full scan results event, ssid = " + result.SSID);
-
+    private static void onFullScanResult(int id, byte[] rawSsid, long bssid, int rssi,
+            int frequency, long timestamp, byte[] informationElements, int bucketsScanned,
+            int beaconCap) {
         ScanEventHandler handler = sScanEventHandler;
         if (handler != null) {
+            ScanResult result = HalScanResults.createScanResult(rawSsid, bssid, rssi, frequency,
+                    timestamp);
+            result.bytes = informationElements;
+            if (DBG) Log.i(TAG, "Got a full scan results event, ssid = " + result.SSID);
             populateScanResult(result, beaconCap, " onFullScanResult ");
             handler.onFullScanResult(result, bucketsScanned);
         }
@@ -1927,7 +2193,7 @@ public class WifiNative {
     private static ScanSettings sScanSettings;
 
     public boolean startScan(ScanSettings settings, ScanEventHandler eventHandler) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("startScan")) {
             if (isHalStarted()) {
                 if (sScanCmdId != 0) {
                     stopScan();
@@ -1955,7 +2221,7 @@ public class WifiNative {
     }
 
     public void stopScan() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("stopScan")) {
             if (isHalStarted()) {
                 if (sScanCmdId != 0) {
                     stopScanNative(sWlan0Index, sScanCmdId);
@@ -1968,21 +2234,30 @@ public class WifiNative {
     }
 
     public void pauseScan() {
-        synchronized (sLock) {
+        ScanEventHandler handler = null;
+        HalScanResults results = null;
+        try (TimedLock.Hold hold = sHalLock.lock("pauseScan")) {
             if (isHalStarted()) {
                 if (sScanCmdId != 0 && sScanSettings != null && sScanEventHandler != null) {
                     Log.d(TAG, "Pausing scan");
-                    WifiScanner.ScanData scanData[] = getScanResultsNative(sWlan0Index, true);
+                    handler = sScanEventHandler;
+                    results = new HalScanResults();
+                    if (!getScanResultsNative(sWlan0Index, true, results)) {
+                        results = null;
+                    }
                     stopScanNative(sWlan0Index, sScanCmdId);
                     sScanCmdId = 0;
-                    sScanEventHandler.onScanPaused(scanData);
                 }
             }
         }
+        // The ScanData objects are built without holding up other HAL calls.
+        if (handler != null) {
+            handler.onScanPaused(results != null ? results.getScanData() : null);
+        }
     }
 
     public void restartScan() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("restartScan")) {
             if (isHalStarted()) {
                 if (sScanCmdId == 0 && sScanSettings != null && sScanEventHandler != null) {
                     Log.d(TAG, "Restarting scan");
@@ -2001,18 +2276,14 @@ public class WifiNative {
     }
 
     public WifiScanner.ScanData[] getScanResults(boolean flush) {
-        synchronized (sLock) {
-            WifiScanner.ScanData[] sd = null;
-            if (isHalStarted()) {
-                sd = getScanResultsNative(sWlan0Index, flush);
-            }
-
-            if (sd != null) {
-                return sd;
-            } else {
+        HalScanResults results = new HalScanResults();
+        try (TimedLock.Hold hold = sHalLock.lock("getScanResults")) {
+            if (!isHalStarted() || !getScanResultsNative(sWlan0Index, flush, results)) {
                 return new WifiScanner.ScanData[0];
             }
         }
+        // Build the ScanResults outside of sHalLock
+        return results.getScanData();
     }
 
     public static interface HotlistEventHandler {
@@ -2029,7 +2300,7 @@ public class WifiNative {
 
     public boolean setHotlist(WifiScanner.HotlistSettings settings,
             HotlistEventHandler eventHandler) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("setHotlist")) {
             if (isHalStarted()) {
                 if (sHotlistCmdId != 0) {
                     return false;
@@ -2051,7 +2322,7 @@ public class WifiNative {
     }
 
     public void resetHotlist() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("resetHotlist")) {
             if (isHalStarted()) {
                 if (sHotlistCmdId != 0) {
                     resetHotlistNative(sWlan0Index, sHotlistCmdId);
@@ -2097,7 +2368,7 @@ public class WifiNative {
 
     public boolean trackSignificantWifiChange(
             WifiScanner.WifiChangeSettings settings, SignificantWifiChangeEventHandler handler) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("trackSignificantWifiChange")) {
             if (isHalStarted()) {
                 if (sSignificantWifiChangeCmdId != 0) {
                     return false;
@@ -2121,10 +2392,11 @@ public class WifiNative {
     }
 
     public void untrackSignificantWifiChange() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("untrackSignificantWifiChange")) {
             if (isHalStarted()) {
                 if (sSignificantWifiChangeCmdId != 0) {
-                    untrackSignificantWifiChangeNative(sWlan0Index, sSignificantWifiChangeCmdId);
+                    untrackSignificantWifiChangeNative(sWlan0Index,
+                            sSignificantWifiChangeCmdId);
                     sSignificantWifiChangeCmdId = 0;
                     sSignificantWifiChangeHandler = null;
                 }
@@ -2146,7 +2418,7 @@ public class WifiNative {
     public WifiLinkLayerStats getWifiLinkLayerStats(String iface) {
         // TODO: use correct iface name to Index translation
         if (iface == null) return null;
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getWifiLinkLayerStats")) {
             if (isHalStarted()) {
                 return getWifiLinkLayerStatsNative(sWlan0Index);
             } else {
@@ -2157,7 +2429,7 @@ public class WifiNative {
 
     public void setWifiLinkLayerStats(String iface, int enable) {
         if (iface == null) return;
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("setWifiLinkLayerStats")) {
             if (isHalStarted()) {
                 setWifiLinkLayerStatsNative(sWlan0Index, enable);
             }
@@ -2166,7 +2438,7 @@ public class WifiNative {
 
     public static native int getSupportedFeatureSetNative(int iface);
     public int getSupportedFeatureSet() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getSupportedFeatureSet")) {
             if (isHalStarted()) {
                 return getSupportedFeatureSetNative(sWlan0Index);
             } else {
@@ -2181,6 +2453,9 @@ public class WifiNative {
         void onRttResults(RttManager.RttResult[] result);
     }
 
+    /** Maximum number of peers in one {@link #requestRtt} call; keep in sync with the JNI. */
+    public static final int MAX_RTT_PEERS_PER_REQUEST = 16;
+
     private static RttEventHandler sRttEventHandler;
     private static int sRttCmdId;
 
@@ -2204,7 +2479,7 @@ public class WifiNative {
 
     public boolean requestRtt(
             RttManager.RttParams[] params, RttEventHandler handler) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("requestRtt")) {
             if (isHalStarted()) {
                 if (sRttCmdId != 0) {
                     Log.w(TAG, "Last one is still under measurement!");
@@ -2221,7 +2496,7 @@ public class WifiNative {
     }
 
     public boolean cancelRtt(RttManager.RttParams[] params) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("cancelRtt")) {
             if (isHalStarted()) {
                 if (sRttCmdId == 0) {
                     return false;
@@ -2252,7 +2527,7 @@ public class WifiNative {
      */
     @Nullable
     public ResponderConfig enableRttResponder(int timeoutSeconds) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("enableRttResponder")) {
             if (!isHalStarted()) return null;
             if (sRttResponderCmdId != 0) {
                 if (DBG) Log.e(mTAG, "responder mode already enabled - this shouldn't happen");
@@ -2273,7 +2548,7 @@ public class WifiNative {
      * {@code false} otherwise.
      */
     public boolean disableRttResponder() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("disableRttResponder")) {
             if (!isHalStarted()) return false;
             if (sRttResponderCmdId == 0) {
                 Log.e(mTAG, "responder role not enabled yet");
@@ -2287,7 +2562,7 @@ public class WifiNative {
     private static native boolean setScanningMacOuiNative(int iface, byte[] oui);
 
     public boolean setScanningMacOui(byte[] oui) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("setScanningMacOui")) {
             if (isHalStarted()) {
                 return setScanningMacOuiNative(sWlan0Index, oui);
             } else {
@@ -2300,7 +2575,7 @@ public class WifiNative {
             int iface, int band);
 
     public int [] getChannelsForBand(int band) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getChannelsForBand")) {
             if (isHalStarted()) {
                 return getChannelsForBandNative(sWlan0Index, band);
             } else {
@@ -2311,7 +2586,7 @@ public class WifiNative {
 
     private static native boolean isGetChannelsForBandSupportedNative();
     public boolean isGetChannelsForBandSupported(){
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("isGetChannelsForBandSupported")) {
             if (isHalStarted()) {
                 return isGetChannelsForBandSupportedNative();
             } else {
@@ -2322,7 +2597,7 @@ public class WifiNative {
 
     private static native boolean setDfsFlagNative(int iface, boolean dfsOn);
     public boolean setDfsFlag(boolean dfsOn) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("setDfsFlag")) {
             if (isHalStarted()) {
                 return setDfsFlagNative(sWlan0Index, dfsOn);
             } else {
@@ -2333,7 +2608,7 @@ public class WifiNative {
 
     private static native boolean setInterfaceUpNative(boolean up);
     public boolean setInterfaceUp(boolean up) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("setInterfaceUp")) {
             if (isHalStarted()) {
                 return setInterfaceUpNative(up);
             } else {
@@ -2344,7 +2619,7 @@ public class WifiNative {
 
     private static native RttManager.RttCapabilities getRttCapabilitiesNative(int iface);
     public RttManager.RttCapabilities getRttCapabilities() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getRttCapabilities")) {
             if (isHalStarted()) {
                 return getRttCapabilitiesNative(sWlan0Index);
             } else {
@@ -2355,7 +2630,7 @@ public class WifiNative {
 
     private static native ApfCapabilities getApfCapabilitiesNative(int iface);
     public ApfCapabilities getApfCapabilities() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getApfCapabilities")) {
             if (isHalStarted()) {
                 return getApfCapabilitiesNative(sWlan0Index);
             } else {
@@ -2366,7 +2641,7 @@ public class WifiNative {
 
     private static native boolean installPacketFilterNative(int iface, byte[] filter);
     public boolean installPacketFilter(byte[] filter) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("installPacketFilter")) {
             if (isHalStarted()) {
                 return installPacketFilterNative(sWlan0Index, filter);
             } else {
@@ -2377,7 +2652,7 @@ public class WifiNative {
 
     private static native boolean setCountryCodeHalNative(int iface, String CountryCode);
     public boolean setCountryCodeHal(String CountryCode) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("setCountryCodeHal")) {
             if (isHalStarted()) {
                 return setCountryCodeHalNative(sWlan0Index, CountryCode);
             } else {
@@ -2396,7 +2671,7 @@ public class WifiNative {
     private static native boolean enableDisableTdlsNative(int iface, boolean enable,
             String macAddr);
     public boolean enableDisableTdls(boolean enable, String macAdd, TdlsEventHandler tdlsCallBack) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("enableDisableTdls")) {
             sTdlsEventHandler = tdlsCallBack;
             return enableDisableTdlsNative(sWlan0Index, enable, macAdd);
         }
@@ -2412,7 +2687,7 @@ public class WifiNative {
     }
     private static native TdlsStatus getTdlsStatusNative(int iface, String macAddr);
     public TdlsStatus getTdlsStatus(String macAdd) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getTdlsStatus")) {
             if (isHalStarted()) {
                 return getTdlsStatusNative(sWlan0Index, macAdd);
             } else {
@@ -2435,7 +2710,7 @@ public class WifiNative {
 
     private static native TdlsCapabilities getTdlsCapabilitiesNative(int iface);
     public TdlsCapabilities getTdlsCapabilities () {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getTdlsCapabilities")) {
             if (isHalStarted()) {
                 return getTdlsCapabilitiesNative(sWlan0Index);
             } else {
@@ -2482,7 +2757,7 @@ public class WifiNative {
     private static int sLogCmdId = -1;
     private static native boolean setLoggingEventHandlerNative(int iface, int id);
     public boolean setLoggingEventHandler(WifiLoggerEventHandler handler) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("setLoggingEventHandler")) {
             if (isHalStarted()) {
                 int oldId =  sLogCmdId;
                 sLogCmdId = getNewCmdIdLocked();
@@ -2502,10 +2777,10 @@ public class WifiNative {
             int flags, int minIntervalSec ,int minDataSize, String ringName);
     public boolean startLoggingRingBuffer(int verboseLevel, int flags, int maxInterval,
             int minDataSize, String ringName){
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("startLoggingRingBuffer")) {
             if (isHalStarted()) {
-                return startLoggingRingBufferNative(sWlan0Index, verboseLevel, flags, maxInterval,
-                        minDataSize, ringName);
+                return startLoggingRingBufferNative(sWlan0Index, verboseLevel, flags,
+                        maxInterval, minDataSize, ringName);
             } else {
                 return false;
             }
@@ -2514,7 +2789,7 @@ public class WifiNative {
 
     private static native int getSupportedLoggerFeatureSetNative(int iface);
     public int getSupportedLoggerFeatureSet() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getSupportedLoggerFeatureSet")) {
             if (isHalStarted()) {
                 return getSupportedLoggerFeatureSetNative(sWlan0Index);
             } else {
@@ -2525,7 +2800,7 @@ public class WifiNative {
 
     private static native boolean resetLogHandlerNative(int iface, int id);
     public boolean resetLogHandler() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("resetLogHandler")) {
             if (isHalStarted()) {
                 if (sLogCmdId == -1) {
                     Log.e(TAG,"Can not reset handler Before set any handler");
@@ -2546,7 +2821,7 @@ public class WifiNative {
 
     private static native String getDriverVersionNative(int iface);
     public String getDriverVersion() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getDriverVersion")) {
             if (isHalStarted()) {
                 return getDriverVersionNative(sWlan0Index);
             } else {
@@ -2558,7 +2833,7 @@ public class WifiNative {
 
     private static native String getFirmwareVersionNative(int iface);
     public String getFirmwareVersion() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getFirmwareVersion")) {
             if (isHalStarted()) {
                 return getFirmwareVersionNative(sWlan0Index);
             } else {
@@ -2588,7 +2863,7 @@ public class WifiNative {
 
     private static native RingBufferStatus[] getRingBufferStatusNative(int iface);
     public RingBufferStatus[] getRingBufferStatus() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getRingBufferStatus")) {
             if (isHalStarted()) {
                 return getRingBufferStatusNative(sWlan0Index);
             } else {
@@ -2599,7 +2874,7 @@ public class WifiNative {
 
     private static native boolean getRingBufferDataNative(int iface, String ringName);
     public boolean getRingBufferData(String ringName) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getRingBufferData")) {
             if (isHalStarted()) {
                 return getRingBufferDataNative(sWlan0Index, ringName);
             } else {
@@ -2620,7 +2895,7 @@ public class WifiNative {
 
     private static native boolean getFwMemoryDumpNative(int iface);
     public byte[] getFwMemoryDump() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getFwMemoryDump")) {
             if (isHalStarted()) {
                 if(getFwMemoryDumpNative(sWlan0Index)) {
                     byte[] fwMemoryDump = mFwMemoryDump;
@@ -2637,7 +2912,7 @@ public class WifiNative {
     private static native byte[] getDriverStateDumpNative(int iface);
     /** Fetch the driver state, for driver debugging. */
     public byte[] getDriverStateDump() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getDriverStateDump")) {
             if (isHalStarted()) {
                 return getDriverStateDumpNative(sWlan0Index);
             } else {
@@ -2852,7 +3127,7 @@ public class WifiNative {
      * Ask the HAL to enable packet fate monitoring. Fails unless HAL is started.
      */
     public boolean startPktFateMonitoring() {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("startPktFateMonitoring")) {
             if (isHalStarted()) {
                 return startPktFateMonitoringNative(sWlan0Index) == WIFI_SUCCESS;
             } else {
@@ -2866,7 +3141,7 @@ public class WifiNative {
      * Fetch the most recent TX packet fates from the HAL. Fails unless HAL is started.
      */
     public boolean getTxPktFates(TxFateReport[] reportBufs) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getTxPktFates")) {
             if (isHalStarted()) {
                 int res = getTxPktFatesNative(sWlan0Index, reportBufs);
                 if (res != WIFI_SUCCESS) {
@@ -2886,7 +3161,7 @@ public class WifiNative {
      * Fetch the most recent RX packet fates from the HAL. Fails unless HAL is started.
      */
     public boolean getRxPktFates(RxFateReport[] reportBufs) {
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getRxPktFates")) {
             if (isHalStarted()) {
                 int res = getRxPktFatesNative(sWlan0Index, reportBufs);
                 if (res != WIFI_SUCCESS) {
@@ -2917,7 +3192,7 @@ public class WifiNative {
     public boolean setPnoList(PnoSettings settings, PnoEventHandler eventHandler) {
         Log.e(TAG, "setPnoList cmd " + sPnoCmdId);
 
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("setPnoList")) {
             if (isHalStarted()) {
                 sPnoCmdId = getNewCmdIdLocked();
                 sPnoEventHandler = eventHandler;
@@ -2951,7 +3226,7 @@ public class WifiNative {
     public boolean resetPnoList() {
         Log.e(TAG, "resetPnoList cmd " + sPnoCmdId);
 
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("resetPnoList")) {
             if (isHalStarted()) {
                 sPnoCmdId = getNewCmdIdLocked();
                 sPnoEventHandler = null;
@@ -2999,7 +3274,7 @@ public class WifiNative {
         }
         Log.e(TAG, "setBssidBlacklist cmd " + sPnoCmdId + " size " + size);
 
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("setBssidBlacklist")) {
             if (isHalStarted()) {
                 sPnoCmdId = getNewCmdIdLocked();
                 return setBssidBlacklistNative(sWlan0Index, sPnoCmdId, list);
@@ -3022,7 +3297,7 @@ public class WifiNative {
             Integer hexVal = Integer.parseInt(macAddrStr[i], 16);
             srcMac[i] = hexVal.byteValue();
         }
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("startSendingOffloadedPacket")) {
             if (isHalStarted()) {
                 return startSendingOffloadedPacketNative(sWlan0Index, slot, srcMac,
                         keepAlivePacket.dstMac, keepAlivePacket.data, period);
@@ -3037,7 +3312,7 @@ public class WifiNative {
     public int
     stopSendingOffloadedPacket(int slot) {
         Log.d(TAG, "stopSendingOffloadedPacket " + slot);
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("stopSendingOffloadedPacket")) {
             if (isHalStarted()) {
                 return stopSendingOffloadedPacketNative(sWlan0Index, slot);
             } else {
@@ -3068,7 +3343,7 @@ public class WifiNative {
     public int startRssiMonitoring(byte maxRssi, byte minRssi,
                                                 WifiRssiEventHandler rssiEventHandler) {
         Log.d(TAG, "startRssiMonitoring: maxRssi=" + maxRssi + " minRssi=" + minRssi);
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("startRssiMonitoring")) {
             sWifiRssiEventHandler = rssiEventHandler;
             if (isHalStarted()) {
                 if (sRssiMonitorCmdId != 0) {
@@ -3093,7 +3368,7 @@ public class WifiNative {
 
     public int stopRssiMonitoring() {
         Log.d(TAG, "stopRssiMonitoring, cmdId " + sRssiMonitorCmdId);
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("stopRssiMonitoring")) {
             if (isHalStarted()) {
                 int ret = 0;
                 if (sRssiMonitorCmdId != 0) {
@@ -3115,7 +3390,7 @@ public class WifiNative {
      */
     public WifiWakeReasonAndCounts getWlanWakeReasonCount() {
         Log.d(TAG, "getWlanWakeReasonCount " + sWlan0Index);
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("getWlanWakeReasonCount")) {
             if (isHalStarted()) {
                 return getWlanWakeReasonCountNative(sWlan0Index);
             } else {
@@ -3129,7 +3404,7 @@ public class WifiNative {
     public boolean configureNeighborDiscoveryOffload(boolean enabled) {
         final String logMsg =  "configureNeighborDiscoveryOffload(" + enabled + ")";
         Log.d(mTAG, logMsg);
-        synchronized (sLock) {
+        try (TimedLock.Hold hold = sHalLock.lock("configureNeighborDiscoveryOffload")) {
             if (isHalStarted()) {
                 final int ret = configureNeighborDiscoveryOffload(sWlan0Index, enabled);
                 if (ret != 0) {
@@ -27,10 +27,10 @@ import android.os.Environment;
 import android.os.Process;
 import android.text.TextUtils;
 
-import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.server.net.DelayedDiskWrite;
+import com.android.server.wifi.util.BinaryLocalLog;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
@@ -54,6 +54,7 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class WifiNetworkHistory {
     public static final String TAG = "WifiNetworkHistory";
+    private static final int LOG_MESSAGE = BinaryLocalLog.registerFormat(TAG, "%s");
     private static final boolean DBG = true;
     private static final boolean VDBG = true;
     static final String NETWORK_HISTORY_CONFIG_FILE = Environment.getDataDirectory()
@@ -110,14 +111,14 @@ public class WifiNetworkHistory {
 
     protected final DelayedDiskWrite mWriter;
     Context mContext;
-    private final LocalLog mLocalLog;
+    private final BinaryLocalLog mLocalLog;
     /*
      * Lost config list, whenever we read a config from networkHistory.txt that was not in
      * wpa_supplicant.conf
      */
     HashSet<String> mLostConfigsDbg = new HashSet<String>();
 
-    public WifiNetworkHistory(Context c, LocalLog localLog, DelayedDiskWrite writer) {
+    public WifiNetworkHistory(Context c, BinaryLocalLog localLog, DelayedDiskWrite writer) {
         mContext = c;
         mWriter = writer;
         mLocalLog = localLog;
@@ -624,7 +625,7 @@ public class WifiNetworkHistory {
 
     private void localLog(String s) {
         if (mLocalLog != null) {
-            mLocalLog.log(s);
+            mLocalLog.log(LOG_MESSAGE, s);
         }
     }
 
@@ -26,12 +26,12 @@ import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.text.TextUtils;
-import android.util.LocalLog;
 import android.util.Log;
 import android.util.Pair;
 
 import com.android.internal.R;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.wifi.util.BinaryLocalLog;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
@@ -54,6 +54,8 @@ public class WifiQualifiedNetworkSelector {
     private WifiNetworkScoreCache mNetworkScoreCache;
     private Clock mClock;
     private static final String TAG = "WifiQualifiedNetworkSelector:";
+    private static final String LOG_TAG = "WifiQualifiedNetworkSelector";
+    private static final int LOG_MESSAGE = BinaryLocalLog.registerFormat(LOG_TAG, "%s");
     private boolean skipQualifiedNetworkSelectionForAutoConnect = false;
     // Always enable debugging logs for now since QNS is still a new feature.
     private static final boolean FORCE_DEBUG = false;
@@ -99,7 +101,7 @@ public class WifiQualifiedNetworkSelector {
     private static final int INVALID_TIME_STAMP = -1;
     private long mLastQualifiedNetworkSelectionTimeStamp = INVALID_TIME_STAMP;
 
-    private final LocalLog mLocalLog = new LocalLog(512);
+    private final BinaryLocalLog mLocalLog = new BinaryLocalLog(512);
     private int mRssiScoreSlope = RSSI_SCORE_SLOPE;
     private int mRssiScoreOffset = RSSI_SCORE_OFFSET;
     private int mSameBssidAward = SAME_BSSID_AWARD;
@@ -123,12 +125,12 @@ public class WifiQualifiedNetworkSelector {
     private void localLog(String log) {
         if (mDbg) {
             Log.d(TAG, log);
-            mLocalLog.log(log);
+            mLocalLog.log(LOG_MESSAGE, log);
         }
     }
 
     private void localLoge(String log) {
-        mLocalLog.log(log);
+        mLocalLog.log(LOG_MESSAGE, log);
     }
 
     @VisibleForTesting
@@ -974,7 +976,7 @@ public class WifiQualifiedNetworkSelector {
     void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("Dump of WifiQualifiedNetworkSelector");
         pw.println("WifiQualifiedNetworkSelector - Log Begin ----");
-        mLocalLog.dump(fd, pw, args);
+        mLocalLog.dump(pw, LOG_TAG);
         pw.println("WifiQualifiedNetworkSelector - Log End ----");
     }
 
@@ -993,10 +995,10 @@ public class WifiQualifiedNetworkSelector {
         private int mHighScore = WifiNetworkScoreCache.INVALID_NETWORK_SCORE;
         private WifiConfiguration mSavedConfig;
         private ScanResult mScanResultCandidate;
-        private final LocalLog mLocalLog;
+        private final BinaryLocalLog mLocalLog;
         private final boolean mDbg;
 
-        ExternalScoreEvaluator(LocalLog localLog, boolean dbg) {
+        ExternalScoreEvaluator(BinaryLocalLog localLog, boolean dbg) {
             mLocalLog = localLog;
             mDbg = dbg;
         }
@@ -1047,7 +1049,7 @@ public class WifiQualifiedNetworkSelector {
 
         private void localLog(String log) {
             if (mDbg) {
-                mLocalLog.log(log);
+                mLocalLog.log(LOG_MESSAGE, log);
             }
         }
     }
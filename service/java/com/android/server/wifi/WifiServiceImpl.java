@@ -71,6 +71,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.SystemClock;
@@ -321,7 +322,7 @@ public class WifiServiceImpl extends IWifiManager.Stub {
         wifiThread.start();
         mWifiMetrics = mWifiInjector.getWifiMetrics();
         mTrafficPoller = new WifiTrafficPoller(mContext, wifiThread.getLooper(),
-                WifiNative.getWlanNativeInterface().getInterfaceName());
+                WifiNative.getWlanNativeInterface().getInterfaceName(), mFacade);
         mUserManager = UserManager.get(mContext);
         HandlerThread wifiStateMachineThread = new HandlerThread("WifiStateMachine");
         wifiStateMachineThread.start();
@@ -333,7 +334,7 @@ public class WifiServiceImpl extends IWifiManager.Stub {
                         R.bool.config_wifi_revert_country_code_on_cellular_loss));
         mWifiStateMachine = new WifiStateMachine(mContext, mFacade,
             wifiStateMachineThread.getLooper(), mUserManager, mWifiInjector,
-            new BackupManagerProxy(), mCountryCode);
+            new BackupManagerProxy(), mCountryCode, mTrafficPoller);
         mSettingsStore = new WifiSettingsStore(mContext);
         mWifiStateMachine.enableRssiPolling(true);
         mBatteryStats = BatteryStatsService.getService();
@@ -986,6 +987,9 @@ public class WifiServiceImpl extends IWifiManager.Stub {
         boolean isActiveNetworkScorer =
                 NetworkScorerAppManager.isCallerActiveScorer(mContext, uid);
         boolean hasInteractUsersFull = checkInteractAcrossUsersFull();
+        // Results handed to a remote caller are parceled right away, so they can be shared.
+        // Callers in this process get the objects themselves and need their own copies.
+        boolean isLocalCaller = Binder.getCallingPid() == Process.myPid();
         long ident = Binder.clearCallingIdentity();
         try {
             if (!canReadPeerMacAddresses && !isActiveNetworkScorer
@@ -1003,7 +1007,10 @@ public class WifiServiceImpl extends IWifiManager.Stub {
             if (!isCurrentProfile(userId) && !hasInteractUsersFull) {
                 return new ArrayList<ScanResult>();
             }
-            return mWifiStateMachine.syncGetScanResultsList();
+            if (isLocalCaller) {
+                return mWifiStateMachine.syncGetScanResultsList();
+            }
+            return mWifiStateMachine.getScanResultsSnapshot();
         } finally {
             Binder.restoreCallingIdentity(ident);
         }
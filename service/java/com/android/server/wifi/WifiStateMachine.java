@@ -124,6 +124,7 @@ import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -207,7 +208,12 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
 
     /* Scan results handling */
     private List<ScanDetail> mScanResults = new ArrayList<>();
-    private final Object mScanResultsLock = new Object();
+    /**
+     * Copies of the ScanResults in mScanResults, published once per scan so that binder threads
+     * can read them without a lock. Never modified once published.
+     */
+    private volatile List<ScanResult> mScanResultsSnapshot = Collections.emptyList();
+    private int mNumScanResultsSnapshots;
 
     // For debug, number of known scan results that were found as part of last scan result event,
     // as well the number of scans results returned by the supplicant with that message
@@ -300,11 +306,6 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
 
     private PowerManager.WakeLock mSuspendWakeLock;
 
-    /**
-     * Interval in milliseconds between polling for RSSI
-     * and linkspeed information
-     */
-    private static final int POLL_RSSI_INTERVAL_MSECS = 3000;
 
     /**
      * Interval in milliseconds between receiving a disconnect event
@@ -569,6 +570,17 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
     // We should really persist that into the networkHistory.txt file, and read it back when
     // WifiStateMachine starts up
     private WifiConnectionStatistics mWifiConnectionStatistics = new WifiConnectionStatistics();
+    private final LinkMonitor mLinkMonitor;
+
+    /**
+     * Longest time a snapshot of the configured networks is served without asking the state
+     * machine. Bounds the staleness of network fields that change without a new config version.
+     */
+    private static final long CONFIG_SNAPSHOT_MAX_AGE_MS = 1000;
+    private final VersionedSnapshot<List<WifiConfiguration>> mSavedNetworksSnapshot;
+    private final VersionedSnapshot<List<WifiConfiguration>> mPrivilegedSavedNetworksSnapshot;
+    /** Feature set read from the HAL while it is running, or 0 if not known. */
+    private volatile int mSupportedFeatureSet;
 
     // Used to filter out requests we couldn't possibly satisfy.
     private final NetworkCapabilities mNetworkCapabilitiesFilter = new NetworkCapabilities();
@@ -1008,6 +1020,8 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
     private long mGScanPeriodMilli;
 
     private FrameworkFacade mFacade;
+    // Given the packet counts read by the RSSI poll, so that it does not need to read them again.
+    private final WifiTrafficPoller mTrafficPoller;
 
     private final BackupManagerProxy mBackupManagerProxy;
 
@@ -1016,7 +1030,7 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
     public WifiStateMachine(Context context, FrameworkFacade facade, Looper looper,
                             UserManager userManager, WifiInjector wifiInjector,
                             BackupManagerProxy backupManagerProxy,
-                            WifiCountryCode countryCode) {
+                            WifiCountryCode countryCode, WifiTrafficPoller trafficPoller) {
         super("WifiStateMachine", looper);
         mWifiInjector = wifiInjector;
         mWifiMetrics = mWifiInjector.getWifiMetrics();
@@ -1026,7 +1040,13 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
         mBuildProperties = wifiInjector.getBuildProperties();
         mContext = context;
         mFacade = facade;
+        mTrafficPoller = trafficPoller;
         mWifiNative = WifiNative.getWlanNativeInterface();
+        mLinkMonitor = new LinkMonitor(mWifiNative, mClock);
+        mSavedNetworksSnapshot = new VersionedSnapshot<List<WifiConfiguration>>(mClock,
+                CONFIG_SNAPSHOT_MAX_AGE_MS);
+        mPrivilegedSavedNetworksSnapshot = new VersionedSnapshot<List<WifiConfiguration>>(mClock,
+                CONFIG_SNAPSHOT_MAX_AGE_MS);
         mBackupManagerProxy = backupManagerProxy;
 
         // TODO refactor WifiNative use of context out into it's own class
@@ -1630,9 +1650,12 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
         if (stats == null || mWifiLinkLayerStatsSupported <= 0) {
             long mTxPkts = mFacade.getTxPackets(mDataInterfaceName);
             long mRxPkts = mFacade.getRxPackets(mDataInterfaceName);
-            mWifiInfo.updatePacketRates(mTxPkts, mRxPkts);
+            mLinkMonitor.updatePacketRates(mWifiInfo, mTxPkts, mRxPkts);
+            if (mTrafficPoller != null) {
+                mTrafficPoller.onPacketCounts(mDataInterfaceName, mTxPkts, mRxPkts);
+            }
         } else {
-            mWifiInfo.updatePacketRates(stats);
+            mLinkMonitor.updatePacketRates(mWifiInfo, stats);
         }
         return stats;
     }
@@ -1969,16 +1992,24 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
     }
 
     /**
-     * TODO: doc
+     * Returns a copy of the results of the latest scan, which the caller may modify.
      */
     public List<ScanResult> syncGetScanResultsList() {
-        synchronized (mScanResultsLock) {
-            List<ScanResult> scanList = new ArrayList<ScanResult>();
-            for (ScanDetail result : mScanResults) {
-                scanList.add(new ScanResult(result.getScanResult()));
-            }
-            return scanList;
+        List<ScanResult> snapshot = mScanResultsSnapshot;
+        List<ScanResult> scanList = new ArrayList<ScanResult>(snapshot.size());
+        for (ScanResult result : snapshot) {
+            scanList.add(new ScanResult(result));
         }
+        return scanList;
+    }
+
+    /**
+     * Returns the results of the latest scan without copying them. The list and the results are
+     * shared by all callers until the next scan and must not be modified, so this is only meant
+     * for callers that parcel them straight away.
+     */
+    public List<ScanResult> getScanResultsSnapshot() {
+        return mScanResultsSnapshot;
     }
 
     public int syncAddPasspointManagementObject(AsyncChannel channel, String managementObject) {
@@ -2086,6 +2117,11 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
      */
 
     public List<WifiConfiguration> syncGetConfiguredNetworks(int uuid, AsyncChannel channel) {
+        List<WifiConfiguration> snapshot =
+                mSavedNetworksSnapshot.get(mWifiConfigManager.getConfigVersion());
+        if (snapshot != null) {
+            return copyNetworks(snapshot);
+        }
         Message resultMsg = channel.sendMessageSynchronously(CMD_GET_CONFIGURED_NETWORKS, uuid);
         List<WifiConfiguration> result = (List<WifiConfiguration>) resultMsg.obj;
         resultMsg.recycle();
@@ -2093,6 +2129,11 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
     }
 
     public List<WifiConfiguration> syncGetPrivilegedConfiguredNetwork(AsyncChannel channel) {
+        List<WifiConfiguration> snapshot =
+                mPrivilegedSavedNetworksSnapshot.get(mWifiConfigManager.getConfigVersion());
+        if (snapshot != null) {
+            return copyNetworks(snapshot);
+        }
         Message resultMsg = channel.sendMessageSynchronously(
                 CMD_GET_PRIVILEGED_CONFIGURED_NETWORKS);
         List<WifiConfiguration> result = (List<WifiConfiguration>) resultMsg.obj;
@@ -2105,6 +2146,25 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
         return (WifiConfiguration) resultMsg.obj;
     }
 
+    /**
+     * Publishes |networks|, just read from WifiConfigManager on the state machine thread, for
+     * the sync getters, and returns a copy of them for the current caller.
+     */
+    private List<WifiConfiguration> publishNetworks(
+            VersionedSnapshot<List<WifiConfiguration>> snapshot, List<WifiConfiguration> networks) {
+        snapshot.publish(mWifiConfigManager.getConfigVersion(),
+                Collections.unmodifiableList(networks));
+        return copyNetworks(networks);
+    }
+
+    private static List<WifiConfiguration> copyNetworks(List<WifiConfiguration> networks) {
+        List<WifiConfiguration> copy = new ArrayList<>(networks.size());
+        for (WifiConfiguration network : networks) {
+            copy.add(new WifiConfiguration(network));
+        }
+        return copy;
+    }
+
     /**
      * Get connection statistics synchronously
      *
@@ -2124,6 +2184,10 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
      */
 
     public int syncGetSupportedFeatures(AsyncChannel channel) {
+        int featureSet = mSupportedFeatureSet;
+        if (featureSet != 0) {
+            return featureSet;
+        }
         Message resultMsg = channel.sendMessageSynchronously(CMD_GET_SUPPORTED_FEATURES);
         int supportedFeatureSet = resultMsg.arg1;
         resultMsg.recycle();
@@ -2391,12 +2455,16 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
         pw.println("mDhcpResults " + mDhcpResults);
         pw.println("mNetworkInfo " + mNetworkInfo);
         pw.println("mLastSignalLevel " + mLastSignalLevel);
+        mLinkMonitor.dump(pw);
+        pw.println("mScanResultsSnapshot " + mScanResultsSnapshot.size() + " results, "
+                + mNumScanResultsSnapshots + " published");
         pw.println("mLastBssid " + mLastBssid);
         pw.println("mLastNetworkId " + mLastNetworkId);
         pw.println("mOperationalMode " + mOperationalMode);
         pw.println("mUserWantsSuspendOpt " + mUserWantsSuspendOpt);
         pw.println("mSuspendOptNeedsDisabled " + mSuspendOptNeedsDisabled);
         pw.println("Supplicant status " + mWifiNative.status(true));
+        WifiNative.dumpLockStats(pw);
         if (mCountryCode.getCountryCodeSentToDriver() != null) {
             pw.println("CountryCode sent to driver " + mCountryCode.getCountryCodeSentToDriver());
         } else {
@@ -3161,6 +3229,7 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
 
         if (scanResults.isEmpty()) {
             mScanResults = new ArrayList<>();
+            publishScanResults();
             return;
         }
 
@@ -3176,38 +3245,37 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
             }
         }
 
-        synchronized (mScanResultsLock) {
-            ScanDetail activeScanDetail = null;
-            mScanResults = scanResults;
-            mNumScanResultsReturned = mScanResults.size();
-            for (ScanDetail resultDetail : mScanResults) {
-                if (connected && resultDetail.getNetworkDetail().getBSSID() == activeBssid) {
-                    if (activeScanDetail == null
-                            || activeScanDetail.getNetworkDetail().getBSSID() != activeBssid
-                            || activeScanDetail.getNetworkDetail().getANQPElements() == null) {
-                        activeScanDetail = resultDetail;
-                    }
+        ScanDetail activeScanDetail = null;
+        mScanResults = scanResults;
+        mNumScanResultsReturned = mScanResults.size();
+        for (ScanDetail resultDetail : mScanResults) {
+            if (connected && resultDetail.getNetworkDetail().getBSSID() == activeBssid) {
+                if (activeScanDetail == null
+                        || activeScanDetail.getNetworkDetail().getBSSID() != activeBssid
+                        || activeScanDetail.getNetworkDetail().getANQPElements() == null) {
+                    activeScanDetail = resultDetail;
                 }
-                // Cache DTIM values parsed from the beacon frame Traffic Indication Map (TIM)
-                // Information Element (IE), into the associated WifiConfigurations. Most of the
-                // time there is no TIM IE in the scan result (Probe Response instead of Beacon
-                // Frame), these scanResult DTIM's are negative and ignored.
-                // <TODO> Cache these per BSSID, since dtim can change vary
-                NetworkDetail networkDetail = resultDetail.getNetworkDetail();
-                if (networkDetail != null && networkDetail.getDtimInterval() > 0) {
-                    List<WifiConfiguration> associatedWifiConfigurations =
-                            mWifiConfigManager.getSavedNetworkFromScanDetail(resultDetail);
-                    if (associatedWifiConfigurations != null) {
-                        for (WifiConfiguration associatedConf : associatedWifiConfigurations) {
-                            if (associatedConf != null) {
-                                associatedConf.dtimInterval = networkDetail.getDtimInterval();
-                            }
+            }
+            // Cache DTIM values parsed from the beacon frame Traffic Indication Map (TIM)
+            // Information Element (IE), into the associated WifiConfigurations. Most of the
+            // time there is no TIM IE in the scan result (Probe Response instead of Beacon
+            // Frame), these scanResult DTIM's are negative and ignored.
+            // <TODO> Cache these per BSSID, since dtim can change vary
+            NetworkDetail networkDetail = resultDetail.getNetworkDetail();
+            if (networkDetail != null && networkDetail.getDtimInterval() > 0) {
+                List<WifiConfiguration> associatedWifiConfigurations =
+                        mWifiConfigManager.getSavedNetworkFromScanDetail(resultDetail);
+                if (associatedWifiConfigurations != null) {
+                    for (WifiConfiguration associatedConf : associatedWifiConfigurations) {
+                        if (associatedConf != null) {
+                            associatedConf.dtimInterval = networkDetail.getDtimInterval();
                         }
                     }
                 }
             }
-            mWifiConfigManager.setActiveScanDetail(activeScanDetail);
         }
+        mWifiConfigManager.setActiveScanDetail(activeScanDetail);
+        publishScanResults();
 
         if (linkDebouncing) {
             // If debouncing, we dont re-select a SSID or BSSID hence
@@ -3219,41 +3287,39 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
         }
     }
 
+    /**
+     * Publishes copies of mScanResults for getScanResultsSnapshot() and syncGetScanResultsList().
+     */
+    private void publishScanResults() {
+        List<ScanResult> snapshot = new ArrayList<ScanResult>(mScanResults.size());
+        for (ScanDetail result : mScanResults) {
+            snapshot.add(new ScanResult(result.getScanResultWithElements()));
+        }
+        mScanResultsSnapshot = Collections.unmodifiableList(snapshot);
+        mNumScanResultsSnapshots++;
+    }
+
     /*
      * Fetch RSSI, linkspeed, and frequency on current connection
      */
     private void fetchRssiLinkSpeedAndFrequencyNative() {
-        Integer newRssi = null;
-        Integer newLinkSpeed = null;
-        Integer newFrequency = null;
-
-        String signalPoll = mWifiNative.signalPoll();
-
-        if (signalPoll != null) {
-            String[] lines = signalPoll.split("\n");
-            for (String line : lines) {
-                String[] prop = line.split("=");
-                if (prop.length < 2) continue;
-                try {
-                    if (prop[0].equals("RSSI")) {
-                        newRssi = Integer.parseInt(prop[1]);
-                    } else if (prop[0].equals("LINKSPEED")) {
-                        newLinkSpeed = Integer.parseInt(prop[1]);
-                    } else if (prop[0].equals("FREQUENCY")) {
-                        newFrequency = Integer.parseInt(prop[1]);
-                    }
-                } catch (NumberFormatException e) {
-                    //Ignore, defaults on rssi and linkspeed are assigned
-                }
-            }
-        }
+        updateLinkInfo(mLinkMonitor.poll(false));
+    }
+
+    /*
+     * Update mWifiInfo with the RSSI, linkspeed, and frequency of a new link sample
+     */
+    private void updateLinkInfo(LinkSample sample) {
+        int newRssi = sample.rssi;
+        int newLinkSpeed = sample.linkSpeed;
+        int newFrequency = sample.frequency;
 
         if (DBG) {
             logd("fetchRssiLinkSpeedAndFrequencyNative rssi=" + newRssi +
                  " linkspeed=" + newLinkSpeed + " freq=" + newFrequency);
         }
 
-        if (newRssi != null && newRssi > WifiInfo.INVALID_RSSI && newRssi < WifiInfo.MAX_RSSI) {
+        if (newRssi > WifiInfo.INVALID_RSSI && newRssi < WifiInfo.MAX_RSSI) {
             // screen out invalid values
             /* some implementations avoid negative values by adding 256
              * so we need to adjust for that here.
@@ -3285,10 +3351,10 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
             updateCapabilities(getCurrentWifiConfiguration());
         }
 
-        if (newLinkSpeed != null) {
+        if (newLinkSpeed != LinkSample.INVALID) {
             mWifiInfo.setLinkSpeed(newLinkSpeed);
         }
-        if (newFrequency != null && newFrequency > 0) {
+        if (newFrequency > 0) {
             if (ScanResult.is5GHz(newFrequency)) {
                 mWifiConnectionStatistics.num5GhzConnected++;
             }
@@ -3320,30 +3386,6 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
         return mWifiInfo.rxSuccessRate;
     }
 
-    /**
-     * Fetch TX packet counters on current connection
-     */
-    private void fetchPktcntNative(RssiPacketCountInfo info) {
-        String pktcntPoll = mWifiNative.pktcntPoll();
-
-        if (pktcntPoll != null) {
-            String[] lines = pktcntPoll.split("\n");
-            for (String line : lines) {
-                String[] prop = line.split("=");
-                if (prop.length < 2) continue;
-                try {
-                    if (prop[0].equals("TXGOOD")) {
-                        info.txgood = Integer.parseInt(prop[1]);
-                    } else if (prop[0].equals("TXBAD")) {
-                        info.txbad = Integer.parseInt(prop[1]);
-                    }
-                } catch (NumberFormatException e) {
-                    // Ignore
-                }
-            }
-        }
-    }
-
     private void updateLinkProperties(LinkProperties newLp) {
         if (DBG) {
             log("Link configuration changed for netId: " + mLastNetworkId
@@ -3655,6 +3697,7 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
         /* Reset data structures */
         mWifiScoreReport = null;
         mWifiInfo.reset();
+        mLinkMonitor.reset();
         linkDebouncing = false;
         /* Reset roaming parameters */
         mAutoRoaming = false;
@@ -4262,6 +4305,7 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
                     break;
                 case CMD_GET_SUPPORTED_FEATURES:
                     int featureSet = mWifiNative.getSupportedFeatureSet();
+                    mSupportedFeatureSet = featureSet;
                     replyToMessage(message, message.what, featureSet);
                     break;
                 case CMD_FIRMWARE_ALERT:
@@ -4359,6 +4403,7 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
     class InitialState extends State {
         @Override
         public void enter() {
+            mSupportedFeatureSet = 0;
             mWifiNative.stopHal();
             mWifiNative.unloadDriver();
             if (mWifiP2pChannel == null) {
@@ -5033,6 +5078,7 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
             mIsRunning = false;
             updateBatteryWorkSource(null);
             mScanResults = new ArrayList<>();
+            publishScanResults();
 
             final Intent intent = new Intent(WifiManager.WIFI_SCAN_AVAILABLE);
             intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
@@ -5465,6 +5511,9 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
 
         @Override
         public void exit() {
+            // Networks are only available in connect mode
+            mSavedNetworksSnapshot.invalidate();
+            mPrivilegedSavedNetworksSnapshot.invalidate();
             // Inform WifiConnectivityManager that Wifi is disabled
             if (mWifiConnectivityManager != null) {
                 mWifiConnectivityManager.setWifiEnabled(false);
@@ -5760,8 +5809,8 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
                     mBackupManagerProxy.notifyDataChanged();
                     break;
                 case CMD_GET_CONFIGURED_NETWORKS:
-                    replyToMessage(message, message.what,
-                            mWifiConfigManager.getSavedNetworks());
+                    replyToMessage(message, message.what, publishNetworks(
+                            mSavedNetworksSnapshot, mWifiConfigManager.getSavedNetworks()));
                     break;
                 case WifiMonitor.SUP_REQUEST_IDENTITY:
                     int networkId = message.arg2;
@@ -5817,8 +5866,9 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
                     }
                     break;
                 case CMD_GET_PRIVILEGED_CONFIGURED_NETWORKS:
-                    replyToMessage(message, message.what,
-                            mWifiConfigManager.getPrivilegedSavedNetworks());
+                    replyToMessage(message, message.what, publishNetworks(
+                            mPrivilegedSavedNetworksSnapshot,
+                            mWifiConfigManager.getPrivilegedSavedNetworks()));
                     break;
                 case CMD_GET_MATCHING_CONFIG:
                     replyToMessage(message, message.what,
@@ -6631,6 +6681,7 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
         @Override
         public void enter() {
             mRssiPollToken++;
+            mLinkMonitor.reset();
             if (mEnableRssiPolling) {
                 sendMessage(CMD_RSSI_POLL, mRssiPollToken, 0);
             }
@@ -6799,9 +6850,11 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
                                                                    mWifiScoreReport,
                                                                    mAggressiveHandover,
                                                                    mWifiMetrics);
+                            mLinkMonitor.updatePollInterval(mWifiInfo.txSuccessRate,
+                                    mWifiInfo.rxSuccessRate);
                         }
                         sendMessageDelayed(obtainMessage(CMD_RSSI_POLL,
-                                mRssiPollToken, 0), POLL_RSSI_INTERVAL_MSECS);
+                                mRssiPollToken, 0), mLinkMonitor.getPollIntervalMs());
                         if (DBG) sendRssiChangeBroadcast(mWifiInfo.getRssi());
                     } else {
                         // Polling has completed
@@ -6815,18 +6868,25 @@ public class WifiStateMachine extends StateMachine implements WifiNative.WifiRss
                         mEnableRssiPolling = false;
                     }
                     mRssiPollToken++;
+                    mLinkMonitor.reset();
                     if (mEnableRssiPolling) {
                         // First poll
                         fetchRssiLinkSpeedAndFrequencyNative();
                         sendMessageDelayed(obtainMessage(CMD_RSSI_POLL,
-                                mRssiPollToken, 0), POLL_RSSI_INTERVAL_MSECS);
+                                mRssiPollToken, 0), mLinkMonitor.getPollIntervalMs());
                     }
                     break;
                 case WifiManager.RSSI_PKTCNT_FETCH:
                     RssiPacketCountInfo info = new RssiPacketCountInfo();
-                    fetchRssiLinkSpeedAndFrequencyNative();
+                    LinkSample sample = mLinkMonitor.poll(true);
+                    updateLinkInfo(sample);
                     info.rssi = mWifiInfo.getRssi();
-                    fetchPktcntNative(info);
+                    if (sample.txGood != LinkSample.INVALID) {
+                        info.txgood = sample.txGood;
+                    }
+                    if (sample.txBad != LinkSample.INVALID) {
+                        info.txbad = sample.txBad;
+                    }
                     replyToMessage(message, WifiManager.RSSI_PKTCNT_FETCH_SUCCEEDED, info);
                     break;
                 case CMD_DELAYED_NETWORK_DISCONNECT:
@@ -23,7 +23,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.NetworkInfo;
-import android.net.TrafficStats;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
 import android.os.Looper;
@@ -38,7 +37,14 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-/* Polls for traffic stats and notifies the clients */
+/**
+ * Polls for traffic stats and notifies the clients.
+ *
+ * The poll interval starts at POLL_TRAFFIC_STATS_INTERVAL_MSECS and doubles after every poll
+ * that sees no traffic, up to MAX_POLL_TRAFFIC_STATS_INTERVAL_MSECS. Any traffic brings it back
+ * to the fast interval. Packet counts read elsewhere, such as by the WifiStateMachine RSSI poll,
+ * can be passed in with {@link #onPacketCounts} and postpone the next poll.
+ */
 final class WifiTrafficPoller {
 
     private boolean DBG = false;
@@ -47,17 +53,26 @@ final class WifiTrafficPoller {
     private static final String TAG = "WifiTrafficPoller";
     /**
      * Interval in milliseconds between polling for traffic
-     * statistics
+     * statistics while there is data activity
      */
     private static final int POLL_TRAFFIC_STATS_INTERVAL_MSECS = 1000;
+    /**
+     * Longest interval in milliseconds between polls, reached after
+     * a run of polls without data activity
+     */
+    private static final int MAX_POLL_TRAFFIC_STATS_INTERVAL_MSECS = 16000;
 
     private static final int ENABLE_TRAFFIC_STATS_POLL  = 1;
     private static final int TRAFFIC_STATS_POLL         = 2;
     private static final int ADD_CLIENT                 = 3;
     private static final int REMOVE_CLIENT              = 4;
+    private static final int PACKET_COUNTS_SAMPLED      = 5;
 
     private boolean mEnableTrafficStatsPoll = false;
     private int mTrafficStatsPollToken = 0;
+    private int mPollIntervalMs = POLL_TRAFFIC_STATS_INTERVAL_MSECS;
+    private int mNumPolls;
+    private int mNumSharedSamples;
     private long mTxPkts;
     private long mRxPkts;
     /* Tracks last reported data activity */
@@ -70,9 +85,11 @@ final class WifiTrafficPoller {
     private final TrafficHandler mTrafficHandler;
     private NetworkInfo mNetworkInfo;
     private final String mInterface;
+    private final FrameworkFacade mFacade;
 
-    WifiTrafficPoller(Context context, Looper looper, String iface) {
+    WifiTrafficPoller(Context context, Looper looper, String iface, FrameworkFacade facade) {
         mInterface = iface;
+        mFacade = facade;
         mTrafficHandler = new TrafficHandler(looper);
 
         IntentFilter filter = new IntentFilter();
@@ -109,6 +126,18 @@ final class WifiTrafficPoller {
         Message.obtain(mTrafficHandler, REMOVE_CLIENT, client).sendToTarget();
     }
 
+    /**
+     * Passes in packet counts of |iface| that were read for another purpose. They are used in
+     * place of the next poll, if polling is enabled.
+     */
+    void onPacketCounts(String iface, long txPkts, long rxPkts) {
+        if (iface == null || !iface.equals(mInterface)) {
+            return;
+        }
+        Message.obtain(mTrafficHandler, PACKET_COUNTS_SAMPLED, new long[] {txPkts, rxPkts})
+                .sendToTarget();
+    }
+
     void enableVerboseLogging(int verbose) {
         if (verbose > 0 ) {
             DBG = true;
@@ -133,9 +162,8 @@ final class WifiTrafficPoller {
                     }
                     mTrafficStatsPollToken++;
                     if (mEnableTrafficStatsPoll) {
-                        notifyOnDataActivity();
-                        sendMessageDelayed(Message.obtain(this, TRAFFIC_STATS_POLL,
-                                mTrafficStatsPollToken, 0), POLL_TRAFFIC_STATS_INTERVAL_MSECS);
+                        mPollIntervalMs = POLL_TRAFFIC_STATS_INTERVAL_MSECS;
+                        pollTrafficStats();
                     }
                     break;
                 case TRAFFIC_STATS_POLL:
@@ -143,12 +171,21 @@ final class WifiTrafficPoller {
                         Log.e(TAG, "TRAFFIC_STATS_POLL "
                                 + mEnableTrafficStatsPoll + " Token "
                                 + Integer.toString(mTrafficStatsPollToken)
-                                + " num clients " + mClients.size());
+                                + " num clients " + mClients.size()
+                                + " interval " + mPollIntervalMs);
                     }
                     if (msg.arg1 == mTrafficStatsPollToken) {
-                        notifyOnDataActivity();
-                        sendMessageDelayed(Message.obtain(this, TRAFFIC_STATS_POLL,
-                                mTrafficStatsPollToken, 0), POLL_TRAFFIC_STATS_INTERVAL_MSECS);
+                        pollTrafficStats();
+                    }
+                    break;
+                case PACKET_COUNTS_SAMPLED:
+                    if (mEnableTrafficStatsPoll) {
+                        long[] counts = (long[]) msg.obj;
+                        mNumSharedSamples++;
+                        notifyOnDataActivity(counts[0], counts[1]);
+                        // The sample stands in for the pending poll
+                        mTrafficStatsPollToken++;
+                        schedulePoll();
                     }
                     break;
                 case ADD_CLIENT:
@@ -179,13 +216,24 @@ final class WifiTrafficPoller {
         msg.sendToTarget();
     }
 
-    private void notifyOnDataActivity() {
+    private void pollTrafficStats() {
+        mNumPolls++;
+        notifyOnDataActivity(mFacade.getTxPackets(mInterface), mFacade.getRxPackets(mInterface));
+        schedulePoll();
+    }
+
+    private void schedulePoll() {
+        mTrafficHandler.sendMessageDelayed(Message.obtain(mTrafficHandler, TRAFFIC_STATS_POLL,
+                mTrafficStatsPollToken, 0), mPollIntervalMs);
+    }
+
+    private void notifyOnDataActivity(long txPkts, long rxPkts) {
         long sent, received;
         long preTxPkts = mTxPkts, preRxPkts = mRxPkts;
         int dataActivity = WifiManager.DATA_ACTIVITY_NONE;
 
-        mTxPkts = TrafficStats.getTxPackets(mInterface);
-        mRxPkts = TrafficStats.getRxPackets(mInterface);
+        mTxPkts = txPkts;
+        mRxPkts = rxPkts;
 
         if (VDBG) {
             Log.e(TAG, " packet count Tx="
@@ -223,11 +271,19 @@ final class WifiTrafficPoller {
                 }
             }
         }
+
+        if (dataActivity != WifiManager.DATA_ACTIVITY_NONE) {
+            mPollIntervalMs = POLL_TRAFFIC_STATS_INTERVAL_MSECS;
+        } else {
+            mPollIntervalMs = Math.min(mPollIntervalMs * 2, MAX_POLL_TRAFFIC_STATS_INTERVAL_MSECS);
+        }
     }
 
     void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("mEnableTrafficStatsPoll " + mEnableTrafficStatsPoll);
         pw.println("mTrafficStatsPollToken " + mTrafficStatsPollToken);
+        pw.println("mPollIntervalMs " + mPollIntervalMs);
+        pw.println("mNumPolls " + mNumPolls + " mNumSharedSamples " + mNumSharedSamples);
         pw.println("mTxPkts " + mTxPkts);
         pw.println("mRxPkts " + mRxPkts);
         pw.println("mDataActivity " + mDataActivity);
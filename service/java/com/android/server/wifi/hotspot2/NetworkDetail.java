@@ -18,7 +18,6 @@ import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -62,11 +61,6 @@ public class NetworkDetail {
     // True if the SSID is potentially from a hidden network
     private final boolean mIsHiddenSsid;
 
-    // BSS Load element:
-    private final int mStationCount;
-    private final int mChannelUtilization;
-    private final int mCapacity;
-
     //channel detailed information
    /*
     * 0 -- 20 MHz
@@ -79,18 +73,7 @@ public class NetworkDetail {
     private final int mPrimaryFreq;
     private final int mCenterfreq0;
     private final int mCenterfreq1;
-
-    /*
-     * 802.11 Standard (calculated from Capabilities and Supported Rates)
-     * 0 -- Unknown
-     * 1 -- 802.11a
-     * 2 -- 802.11b
-     * 3 -- 802.11g
-     * 4 -- 802.11n
-     * 7 -- 802.11ac
-     */
-    private final int mWifiMode;
-    private final int mMaxRate;
+    private final boolean mVhtOperationValid;
 
     /*
      * From Interworking element:
@@ -102,117 +85,144 @@ public class NetworkDetail {
     private final VenueNameElement.VenueGroup mVenueGroup;
     private final VenueNameElement.VenueType mVenueType;
 
+    /*
+     * The remaining attributes are decoded from mElements on first access. Each of them is
+     * published through a volatile field holding an object that is not modified once it has
+     * been assigned, so concurrent readers either see a fully decoded value or decode it again
+     * themselves, with the same result. mElements is a copy of just the elements listed in
+     * LAZY_ELEMENTS, so the scan's IE buffer is not kept alive.
+     */
+    private static final int[] LAZY_ELEMENTS = {
+            ScanResult.InformationElement.EID_BSS_LOAD,
+            ScanResult.InformationElement.EID_VSA,
+            ScanResult.InformationElement.EID_ROAMING_CONSORTIUM,
+            ScanResult.InformationElement.EID_TIM,
+            ScanResult.InformationElement.EID_EXTENDED_CAPS,
+            ScanResult.InformationElement.EID_SUPPORTED_RATES,
+            ScanResult.InformationElement.EID_EXTENDED_SUPPORTED_RATES
+    };
+    private final InformationElementUtil.ElementView mElements;
+    // Presence of the HT Operation and ERP elements, for the wifi mode
+    private final boolean mHtOperationPresent;
+    private final boolean mErpPresent;
+
+    // BSS Load element
+    private volatile InformationElementUtil.BssLoad mBssLoad;
+
     /*
      * From HS20 Indication element:
-     * mHSRelease is null only if the HS20 Indication element was not present.
-     * mAnqpDomainID is set to -1 if not present in the element.
+     * hsRelease is null only if the HS20 Indication element was not present.
+     * anqpDomainID is 0 if not present in the element.
      */
-    private final HSRelease mHSRelease;
-    private final int mAnqpDomainID;
+    private volatile InformationElementUtil.Vsa mVsa;
 
     /*
      * From beacon:
-     * mAnqpOICount is how many additional OIs are available through ANQP.
-     * mRoamingConsortiums is either null, if the element was not present, or is an array of
+     * anqpOICount is how many additional OIs are available through ANQP.
+     * roamingConsortiums is either null, if the element was not present, or is an array of
      * 1, 2 or 3 longs in which the roaming consortium values occupy the LSBs.
      */
-    private final int mAnqpOICount;
-    private final long[] mRoamingConsortiums;
-    private int mDtimInterval = -1;
+    private volatile InformationElementUtil.RoamingConsortium mRoamingConsortium;
+
+    private volatile InformationElementUtil.TrafficIndicationMap mTrafficIndicationMap;
+
+    private volatile InformationElementUtil.ExtendedCapabilities mExtendedCapabilities;
+
+    /*
+     * 802.11 Standard (calculated from Capabilities and Supported Rates)
+     * 0 -- Unknown
+     * 1 -- 802.11a
+     * 2 -- 802.11b
+     * 3 -- 802.11g
+     * 4 -- 802.11n
+     * 7 -- 802.11ac
+     */
+    private volatile WifiModeInfo mWifiModeInfo;
 
-    private final InformationElementUtil.ExtendedCapabilities mExtendedCapabilities;
+    // Set if any lazily decoded element turned out to be malformed.
+    private volatile boolean mMalformed;
 
     private final Map<Constants.ANQPElementType, ANQPElement> mANQPElements;
 
+    /**
+     * 802.11 standard and maximum rate of the BSS, derived from the Supported Rates and
+     * Extended Supported Rates elements.
+     */
+    private static class WifiModeInfo {
+        final int wifiMode;
+        final int maxRate;
+
+        WifiModeInfo(int wifiMode, int maxRate) {
+            this.wifiMode = wifiMode;
+            this.maxRate = maxRate;
+        }
+    }
+
     public NetworkDetail(String bssid, ScanResult.InformationElement[] infoElements,
             List<String> anqpLines, int freq) {
-        if (infoElements == null) {
+        this(bssid, toElementView(infoElements), anqpLines, freq);
+    }
+
+    /**
+     * Build a NetworkDetail from an index over the raw IE buffer. Only the SSID, Interworking
+     * and HT/VHT Operation elements are decoded here; everything else is decoded in place,
+     * without copying the payloads, when it is first asked for.
+     */
+    public NetworkDetail(String bssid, InformationElementUtil.ElementView elements,
+            List<String> anqpLines, int freq) {
+        if (elements == null) {
             throw new IllegalArgumentException("Null information elements");
         }
 
         mBSSID = Utils.parseMac(bssid);
+        mElements = elements.retain(LAZY_ELEMENTS);
+        mHtOperationPresent = elements.contains(ScanResult.InformationElement.EID_HT_OPERATION);
+        mErpPresent = elements.contains(ScanResult.InformationElement.EID_ERP);
 
         String ssid = null;
         boolean isHiddenSsid = false;
-        byte[] ssidOctets = null;
-
-        InformationElementUtil.BssLoad bssLoad = new InformationElementUtil.BssLoad();
+        ByteBuffer ssidOctets = null;
 
         InformationElementUtil.Interworking interworking =
                 new InformationElementUtil.Interworking();
 
-        InformationElementUtil.RoamingConsortium roamingConsortium =
-                new InformationElementUtil.RoamingConsortium();
-
-        InformationElementUtil.Vsa vsa = new InformationElementUtil.Vsa();
-
         InformationElementUtil.HtOperation htOperation = new InformationElementUtil.HtOperation();
         InformationElementUtil.VhtOperation vhtOperation =
                 new InformationElementUtil.VhtOperation();
 
-        InformationElementUtil.ExtendedCapabilities extendedCapabilities =
-                new InformationElementUtil.ExtendedCapabilities();
-
-        InformationElementUtil.TrafficIndicationMap trafficIndicationMap =
-                new InformationElementUtil.TrafficIndicationMap();
-
-        InformationElementUtil.SupportedRates supportedRates =
-                new InformationElementUtil.SupportedRates();
-        InformationElementUtil.SupportedRates extendedSupportedRates =
-                new InformationElementUtil.SupportedRates();
-
         RuntimeException exception = null;
 
-        ArrayList<Integer> iesFound = new ArrayList<Integer>();
         try {
-            for (ScanResult.InformationElement ie : infoElements) {
-                iesFound.add(ie.id);
-                switch (ie.id) {
+            for (int n = 0; n < elements.size(); n++) {
+                switch (elements.getId(n)) {
                     case ScanResult.InformationElement.EID_SSID:
-                        ssidOctets = ie.bytes;
-                        break;
-                    case ScanResult.InformationElement.EID_BSS_LOAD:
-                        bssLoad.from(ie);
+                        ssidOctets = elements.getPayload(n);
                         break;
                     case ScanResult.InformationElement.EID_HT_OPERATION:
-                        htOperation.from(ie);
+                        htOperation.from(elements.getPayload(n));
                         break;
                     case ScanResult.InformationElement.EID_VHT_OPERATION:
-                        vhtOperation.from(ie);
+                        vhtOperation.from(elements.getPayload(n));
                         break;
                     case ScanResult.InformationElement.EID_INTERWORKING:
-                        interworking.from(ie);
-                        break;
-                    case ScanResult.InformationElement.EID_ROAMING_CONSORTIUM:
-                        roamingConsortium.from(ie);
-                        break;
-                    case ScanResult.InformationElement.EID_VSA:
-                        vsa.from(ie);
-                        break;
-                    case ScanResult.InformationElement.EID_EXTENDED_CAPS:
-                        extendedCapabilities.from(ie);
-                        break;
-                    case ScanResult.InformationElement.EID_TIM:
-                        trafficIndicationMap.from(ie);
-                        break;
-                    case ScanResult.InformationElement.EID_SUPPORTED_RATES:
-                        supportedRates.from(ie);
-                        break;
-                    case ScanResult.InformationElement.EID_EXTENDED_SUPPORTED_RATES:
-                        extendedSupportedRates.from(ie);
+                        interworking.from(elements.getPayload(n));
                         break;
                     default:
                         break;
                 }
             }
         }
-        catch (IllegalArgumentException | BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+        catch (IllegalArgumentException | BufferUnderflowException | IndexOutOfBoundsException e) {
             Log.d(Utils.hs2LogTag(getClass()), "Caught " + e);
             if (ssidOctets == null) {
                 throw new IllegalArgumentException("Malformed IE string (no SSID)", e);
             }
             exception = e;
         }
+        if (ssidOctets == null && !decodeAll()) {
+            // Without an SSID a malformed element anywhere invalidates the whole frame.
+            throw new IllegalArgumentException("Malformed IE string (no SSID)");
+        }
         if (ssidOctets != null) {
             /*
              * Strict use of the "UTF-8 SSID" bit by APs appears to be spotty at best even if the
@@ -224,7 +234,7 @@ public class NetworkDetail {
              */
             CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
             try {
-                CharBuffer decoded = decoder.decode(ByteBuffer.wrap(ssidOctets));
+                CharBuffer decoded = decoder.decode(ssidOctets.duplicate());
                 ssid = decoded.toString();
             }
             catch (CharacterCodingException cce) {
@@ -232,16 +242,17 @@ public class NetworkDetail {
             }
 
             if (ssid == null) {
-                if (extendedCapabilities.isStrictUtf8() && exception != null) {
+                if (getExtendedCapabilitiesElement().isStrictUtf8()
+                        && (exception != null || !decodeAll())) {
                     throw new IllegalArgumentException("Failed to decode SSID in dubious IE string");
                 }
                 else {
-                    ssid = new String(ssidOctets, StandardCharsets.ISO_8859_1);
+                    ssid = StandardCharsets.ISO_8859_1.decode(ssidOctets.duplicate()).toString();
                 }
             }
             isHiddenSsid = true;
-            for (byte byteVal : ssidOctets) {
-                if (byteVal != 0) {
+            for (int n = ssidOctets.position(); n < ssidOctets.limit(); n++) {
+                if (ssidOctets.get(n) != 0) {
                     isHiddenSsid = false;
                     break;
                 }
@@ -251,23 +262,16 @@ public class NetworkDetail {
         mSSID = ssid;
         mHESSID = interworking.hessid;
         mIsHiddenSsid = isHiddenSsid;
-        mStationCount = bssLoad.stationCount;
-        mChannelUtilization = bssLoad.channelUtilization;
-        mCapacity = bssLoad.capacity;
         mAnt = interworking.ant;
         mInternet = interworking.internet;
         mVenueGroup = interworking.venueGroup;
         mVenueType = interworking.venueType;
-        mHSRelease = vsa.hsRelease;
-        mAnqpDomainID = vsa.anqpDomainID;
-        mAnqpOICount = roamingConsortium.anqpOICount;
-        mRoamingConsortiums = roamingConsortium.roamingConsortiums;
-        mExtendedCapabilities = extendedCapabilities;
         mANQPElements = SupplicantBridge.parseANQPLines(anqpLines);
         //set up channel info
         mPrimaryFreq = freq;
 
-        if (vhtOperation.isValid()) {
+        mVhtOperationValid = vhtOperation.isValid();
+        if (mVhtOperationValid) {
             // 80 or 160 MHz
             mChannelWidth = vhtOperation.getChannelWidth();
             mCenterfreq0 = vhtOperation.getCenterFreq0();
@@ -278,10 +282,116 @@ public class NetworkDetail {
             mCenterfreq1  = 0;
         }
 
-        // If trafficIndicationMap is not valid, mDtimPeriod will be negative
-        if (trafficIndicationMap.isValid()) {
-            mDtimInterval = trafficIndicationMap.mDtimPeriod;
+        if (VDBG) {
+            Log.d(TAG, mSSID + "ChannelWidth is: " + mChannelWidth + " PrimaryFreq: " + mPrimaryFreq
+                    + " mCenterfreq0: " + mCenterfreq0 + " mCenterfreq1: " + mCenterfreq1
+                    + (is80211McResponderSupport() ? "Support RTT reponder"
+                    : "Do not support RTT responder"));
+        }
+    }
+
+    private static InformationElementUtil.ElementView toElementView(
+            ScanResult.InformationElement[] infoElements) {
+        if (infoElements == null) {
+            throw new IllegalArgumentException("Null information elements");
+        }
+        return InformationElementUtil.ElementView.of(infoElements);
+    }
+
+    /**
+     * Decode the payload of every element with the given id into decoder. A malformed element
+     * is logged and leaves the decoder with whatever it had decoded up to that point.
+     */
+    private void decodeElements(int eid, InformationElementUtil.ElementDecoder decoder) {
+        try {
+            for (int n = mElements.indexOf(eid); n >= 0; n = mElements.indexOf(eid, n + 1)) {
+                decoder.from(mElements.getPayload(n));
+            }
+        }
+        catch (IllegalArgumentException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            Log.d(Utils.hs2LogTag(getClass()), "Caught " + e + " decoding element " + eid);
+            mMalformed = true;
         }
+    }
+
+    /**
+     * Force decoding of all lazily decoded elements.
+     * @return false if any element is malformed.
+     */
+    private boolean decodeAll() {
+        getBssLoad();
+        getVsa();
+        getRoamingConsortium();
+        getTrafficIndicationMap();
+        getExtendedCapabilitiesElement();
+        getWifiModeInfo();
+        return !mMalformed;
+    }
+
+    private InformationElementUtil.BssLoad getBssLoad() {
+        InformationElementUtil.BssLoad bssLoad = mBssLoad;
+        if (bssLoad == null) {
+            bssLoad = new InformationElementUtil.BssLoad();
+            decodeElements(ScanResult.InformationElement.EID_BSS_LOAD, bssLoad);
+            mBssLoad = bssLoad;
+        }
+        return bssLoad;
+    }
+
+    private InformationElementUtil.Vsa getVsa() {
+        InformationElementUtil.Vsa vsa = mVsa;
+        if (vsa == null) {
+            vsa = new InformationElementUtil.Vsa();
+            decodeElements(ScanResult.InformationElement.EID_VSA, vsa);
+            mVsa = vsa;
+        }
+        return vsa;
+    }
+
+    private InformationElementUtil.RoamingConsortium getRoamingConsortium() {
+        InformationElementUtil.RoamingConsortium roamingConsortium = mRoamingConsortium;
+        if (roamingConsortium == null) {
+            roamingConsortium = new InformationElementUtil.RoamingConsortium();
+            decodeElements(ScanResult.InformationElement.EID_ROAMING_CONSORTIUM,
+                    roamingConsortium);
+            mRoamingConsortium = roamingConsortium;
+        }
+        return roamingConsortium;
+    }
+
+    private InformationElementUtil.TrafficIndicationMap getTrafficIndicationMap() {
+        InformationElementUtil.TrafficIndicationMap trafficIndicationMap = mTrafficIndicationMap;
+        if (trafficIndicationMap == null) {
+            trafficIndicationMap = new InformationElementUtil.TrafficIndicationMap();
+            decodeElements(ScanResult.InformationElement.EID_TIM, trafficIndicationMap);
+            mTrafficIndicationMap = trafficIndicationMap;
+        }
+        return trafficIndicationMap;
+    }
+
+    private InformationElementUtil.ExtendedCapabilities getExtendedCapabilitiesElement() {
+        InformationElementUtil.ExtendedCapabilities extendedCapabilities = mExtendedCapabilities;
+        if (extendedCapabilities == null) {
+            extendedCapabilities = new InformationElementUtil.ExtendedCapabilities();
+            decodeElements(ScanResult.InformationElement.EID_EXTENDED_CAPS, extendedCapabilities);
+            mExtendedCapabilities = extendedCapabilities;
+        }
+        return extendedCapabilities;
+    }
+
+    private WifiModeInfo getWifiModeInfo() {
+        WifiModeInfo wifiModeInfo = mWifiModeInfo;
+        if (wifiModeInfo != null) {
+            return wifiModeInfo;
+        }
+
+        InformationElementUtil.SupportedRates supportedRates =
+                new InformationElementUtil.SupportedRates();
+        InformationElementUtil.SupportedRates extendedSupportedRates =
+                new InformationElementUtil.SupportedRates();
+        decodeElements(ScanResult.InformationElement.EID_SUPPORTED_RATES, supportedRates);
+        decodeElements(ScanResult.InformationElement.EID_EXTENDED_SUPPORTED_RATES,
+                extendedSupportedRates);
 
         int maxRateA = 0;
         int maxRateB = 0;
@@ -293,33 +403,29 @@ public class NetworkDetail {
         // Only process the determination logic if we got a 'SupportedRates'
         if (supportedRates.isValid()) {
             maxRateA = supportedRates.mRates.get(supportedRates.mRates.size() - 1);
-            mMaxRate = maxRateA > maxRateB ? maxRateA : maxRateB;
-            mWifiMode = InformationElementUtil.WifiMode.determineMode(mPrimaryFreq, mMaxRate,
-                    vhtOperation.isValid(),
-                    iesFound.contains(ScanResult.InformationElement.EID_HT_OPERATION),
-                    iesFound.contains(ScanResult.InformationElement.EID_ERP));
+            int maxRate = maxRateA > maxRateB ? maxRateA : maxRateB;
+            wifiModeInfo = new WifiModeInfo(
+                    InformationElementUtil.WifiMode.determineMode(mPrimaryFreq, maxRate,
+                            mVhtOperationValid, mHtOperationPresent, mErpPresent),
+                    maxRate);
         } else {
-            mWifiMode = 0;
-            mMaxRate = 0;
+            wifiModeInfo = new WifiModeInfo(0, 0);
             Log.w("WifiMode", mSSID + ", Invalid SupportedRates!!!");
         }
         if (VDBG) {
-            Log.d(TAG, mSSID + "ChannelWidth is: " + mChannelWidth + " PrimaryFreq: " + mPrimaryFreq
-                    + " mCenterfreq0: " + mCenterfreq0 + " mCenterfreq1: " + mCenterfreq1
-                    + (extendedCapabilities.is80211McRTTResponder ? "Support RTT reponder"
-                    : "Do not support RTT responder"));
             Log.v("WifiMode", mSSID
-                    + ", WifiMode: " + InformationElementUtil.WifiMode.toString(mWifiMode)
+                    + ", WifiMode: " + InformationElementUtil.WifiMode.toString(
+                    wifiModeInfo.wifiMode)
                     + ", Freq: " + mPrimaryFreq
-                    + ", mMaxRate: " + mMaxRate
-                    + ", VHT: " + String.valueOf(vhtOperation.isValid())
-                    + ", HT: " + String.valueOf(
-                    iesFound.contains(ScanResult.InformationElement.EID_HT_OPERATION))
-                    + ", ERP: " + String.valueOf(
-                    iesFound.contains(ScanResult.InformationElement.EID_ERP))
+                    + ", mMaxRate: " + wifiModeInfo.maxRate
+                    + ", VHT: " + String.valueOf(mVhtOperationValid)
+                    + ", HT: " + String.valueOf(mHtOperationPresent)
+                    + ", ERP: " + String.valueOf(mErpPresent)
                     + ", SupportedRates: " + supportedRates.toString()
                     + " ExtendedSupportedRates: " + extendedSupportedRates.toString());
         }
+        mWifiModeInfo = wifiModeInfo;
+        return wifiModeInfo;
     }
 
     private static ByteBuffer getAndAdvancePayload(ByteBuffer data, int plLength) {
@@ -334,27 +440,27 @@ public class NetworkDetail {
         mIsHiddenSsid = base.mIsHiddenSsid;
         mBSSID = base.mBSSID;
         mHESSID = base.mHESSID;
-        mStationCount = base.mStationCount;
-        mChannelUtilization = base.mChannelUtilization;
-        mCapacity = base.mCapacity;
         mAnt = base.mAnt;
         mInternet = base.mInternet;
         mVenueGroup = base.mVenueGroup;
         mVenueType = base.mVenueType;
-        mHSRelease = base.mHSRelease;
-        mAnqpDomainID = base.mAnqpDomainID;
-        mAnqpOICount = base.mAnqpOICount;
-        mRoamingConsortiums = base.mRoamingConsortiums;
-        mExtendedCapabilities =
-                new InformationElementUtil.ExtendedCapabilities(base.mExtendedCapabilities);
         mANQPElements = anqpElements;
         mChannelWidth = base.mChannelWidth;
         mPrimaryFreq = base.mPrimaryFreq;
         mCenterfreq0 = base.mCenterfreq0;
         mCenterfreq1 = base.mCenterfreq1;
-        mDtimInterval = base.mDtimInterval;
-        mWifiMode = base.mWifiMode;
-        mMaxRate = base.mMaxRate;
+        mVhtOperationValid = base.mVhtOperationValid;
+        // The decoded elements are never modified once published and can be shared.
+        mElements = base.mElements;
+        mHtOperationPresent = base.mHtOperationPresent;
+        mErpPresent = base.mErpPresent;
+        mMalformed = base.mMalformed;
+        mBssLoad = base.mBssLoad;
+        mVsa = base.mVsa;
+        mRoamingConsortium = base.mRoamingConsortium;
+        mTrafficIndicationMap = base.mTrafficIndicationMap;
+        mExtendedCapabilities = base.mExtendedCapabilities;
+        mWifiModeInfo = base.mWifiModeInfo;
     }
 
     public NetworkDetail complete(Map<Constants.ANQPElementType, ANQPElement> anqpElements) {
@@ -364,11 +470,11 @@ public class NetworkDetail {
     public boolean queriable(List<Constants.ANQPElementType> queryElements) {
         return mAnt != null &&
                 (Constants.hasBaseANQPElements(queryElements) ||
-                 Constants.hasR2Elements(queryElements) && mHSRelease == HSRelease.R2);
+                 Constants.hasR2Elements(queryElements) && getHSRelease() == HSRelease.R2);
     }
 
     public boolean has80211uInfo() {
-        return mAnt != null || mRoamingConsortiums != null || mHSRelease != null;
+        return mAnt != null || getRoamingConsortiums() != null || getHSRelease() != null;
     }
 
     public boolean hasInterworking() {
@@ -397,15 +503,15 @@ public class NetworkDetail {
     }
 
     public int getStationCount() {
-        return mStationCount;
+        return getBssLoad().stationCount;
     }
 
     public int getChannelUtilization() {
-        return mChannelUtilization;
+        return getBssLoad().channelUtilization;
     }
 
     public int getCapacity() {
-        return mCapacity;
+        return getBssLoad().capacity;
     }
 
     public boolean isInterworking() {
@@ -429,11 +535,11 @@ public class NetworkDetail {
     }
 
     public HSRelease getHSRelease() {
-        return mHSRelease;
+        return getVsa().hsRelease;
     }
 
     public int getAnqpDomainID() {
-        return mAnqpDomainID;
+        return getVsa().anqpDomainID;
     }
 
     public byte[] getOsuProviders() {
@@ -445,15 +551,15 @@ public class NetworkDetail {
     }
 
     public int getAnqpOICount() {
-        return mAnqpOICount;
+        return getRoamingConsortium().anqpOICount;
     }
 
     public long[] getRoamingConsortiums() {
-        return mRoamingConsortiums;
+        return getRoamingConsortium().roamingConsortiums;
     }
 
     public Long getExtendedCapabilities() {
-        return mExtendedCapabilities.extendedCapabilities;
+        return getExtendedCapabilitiesElement().extendedCapabilities;
     }
 
     public Map<Constants.ANQPElementType, ANQPElement> getANQPElements() {
@@ -473,19 +579,22 @@ public class NetworkDetail {
     }
 
     public int getWifiMode() {
-        return mWifiMode;
+        return getWifiModeInfo().wifiMode;
     }
 
     public int getDtimInterval() {
-        return mDtimInterval;
+        // If trafficIndicationMap is not valid, the DTIM interval is -1
+        InformationElementUtil.TrafficIndicationMap trafficIndicationMap =
+                getTrafficIndicationMap();
+        return trafficIndicationMap.isValid() ? trafficIndicationMap.mDtimPeriod : -1;
     }
 
     public boolean is80211McResponderSupport() {
-        return mExtendedCapabilities.is80211McRTTResponder;
+        return getExtendedCapabilitiesElement().is80211McRTTResponder;
     }
 
     public boolean isSSID_UTF8() {
-        return mExtendedCapabilities.isStrictUtf8();
+        return getExtendedCapabilitiesElement().isStrictUtf8();
     }
 
     @Override
@@ -513,10 +622,10 @@ public class NetworkDetail {
                 "ChannelUtilization=%d, Capacity=%d, Ant=%s, Internet=%s, " +
                 "VenueGroup=%s, VenueType=%s, HSRelease=%s, AnqpDomainID=%d, " +
                 "AnqpOICount=%d, RoamingConsortiums=%s}",
-                mSSID, mHESSID, mBSSID, mStationCount,
-                mChannelUtilization, mCapacity, mAnt, mInternet,
-                mVenueGroup, mVenueType, mHSRelease, mAnqpDomainID,
-                mAnqpOICount, Utils.roamingConsortiumsToString(mRoamingConsortiums));
+                mSSID, mHESSID, mBSSID, getStationCount(),
+                getChannelUtilization(), getCapacity(), mAnt, mInternet,
+                mVenueGroup, mVenueType, getHSRelease(), getAnqpDomainID(),
+                getAnqpOICount(), Utils.roamingConsortiumsToString(getRoamingConsortiums()));
     }
 
     public String toKeyString() {
@@ -537,7 +646,7 @@ public class NetworkDetail {
     public boolean isBeaconFrame() {
         // Beacon frames have a 'Traffic Indication Map' Information element
         // Probe Responses do not. This is indicated by a DTIM period > 0
-        return mDtimInterval > 0;
+        return getDtimInterval() > 0;
     }
 
     /**
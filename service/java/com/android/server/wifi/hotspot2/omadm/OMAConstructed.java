@@ -55,6 +55,13 @@ public class OMAConstructed extends OMANode {
         mChildren.put(child.getName(), child.reparent(this));
     }
 
+    /**
+     * Add a child that was created with this node as its parent, without copying it.
+     */
+    void putChild(OMANode child) {
+        mChildren.put(child.getName(), child);
+    }
+
     public String getScalarValue(Iterator<String> path) throws OMAException {
         if (!path.hasNext()) {
             throw new OMAException("Path too short for " + getPathString());
@@ -20,11 +20,9 @@ import com.android.server.wifi.hotspot2.pps.UpdateInfo;
 import org.xml.sax.SAXException;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
@@ -152,11 +150,23 @@ public class PasspointManagementObjectManager {
     }
 
     private final File mPpsFile;
+    private final PasspointSubscriptionStore mStore;
     private final boolean mEnabled;
     private final Map<String, HomeSP> mSPs;
 
+    /**
+     * @param ppsFile The legacy PPS file holding all providers in a single MO tree. Its content
+     *                is migrated into the per-provider subscription store on the first load.
+     * @param hs2enabled Whether Hotspot 2.0 is enabled.
+     */
     public PasspointManagementObjectManager(File ppsFile, boolean hs2enabled) {
+        this(ppsFile, new File(ppsFile.getPath() + ".d"), hs2enabled);
+    }
+
+    public PasspointManagementObjectManager(File ppsFile, File storeDirectory,
+                                            boolean hs2enabled) {
         mPpsFile = ppsFile;
+        mStore = new PasspointSubscriptionStore(storeDirectory);
         mEnabled = hs2enabled;
         mSPs = new HashMap<>();
     }
@@ -165,6 +175,13 @@ public class PasspointManagementObjectManager {
         return mEnabled;
     }
 
+    /**
+     * @return The directory of the subscription store that all updates are written to.
+     */
+    public File getStoreDirectory() {
+        return mStore.getDirectory();
+    }
+
     public boolean isConfigured() {
         return mEnabled && !mSPs.isEmpty();
     }
@@ -175,35 +192,100 @@ public class PasspointManagementObjectManager {
 
     public List<HomeSP> loadAllSPs() throws IOException {
 
-        if (!mEnabled || !mPpsFile.exists()) {
+        if (!mEnabled) {
+            return Collections.emptyList();
+        }
+
+        migrateLegacyFile();
+        if (mStore.isEmpty()) {
             return Collections.emptyList();
         }
 
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(mPpsFile))) {
-            mSPs.clear();
+        mSPs.clear();
+        List<HomeSP> sps = new ArrayList<>();
+        for (MOTree moTree : mStore.getAll()) {
+            for (HomeSP sp : buildSPs(moTree)) {
+                if (mSPs.put(sp.getFQDN(), sp) != null) {
+                    throw new OMAException("Multiple SPs for FQDN '" + sp.getFQDN() + "'");
+                } else {
+                    Log.d(Utils.hs2LogTag(getClass()),
+                            "retrieved " + sp.getFQDN() + " from PPS");
+                }
+                sps.add(sp);
+            }
+        }
+        return sps;
+    }
+
+    /**
+     * Move the providers of the legacy single file PPS tree into the subscription store, one
+     * record per FQDN, and delete the legacy file once all of them have been written. The store
+     * is marked as migrated before the delete, so a legacy file that could not be deleted is
+     * never migrated again over records updated since.
+     */
+    private void migrateLegacyFile() throws IOException {
+        if (!mPpsFile.exists()) {
+            return;
+        }
+
+        if (!mStore.isMigrated()) {
             MOTree moTree;
-            try {
+            try (BufferedInputStream in =
+                         new BufferedInputStream(new FileInputStream(mPpsFile))) {
                 moTree = MOTree.unmarshal(in);
             } catch (FileNotFoundException fnfe) {
-                return Collections.emptyList();     // Empty file
+                moTree = null;      // Empty file
             }
 
-            List<HomeSP> sps = buildSPs(moTree);
-            if (sps != null) {
-                for (HomeSP sp : sps) {
-                    if (mSPs.put(sp.getFQDN(), sp) != null) {
-                        throw new OMAException("Multiple SPs for FQDN '" + sp.getFQDN() + "'");
-                    } else {
-                        Log.d(Utils.hs2LogTag(getClass()),
-                                "retrieved " + sp.getFQDN() + " from PPS");
+            if (moTree != null) {
+                for (OMAConstructed pps : splitSubscriptions(moTree)) {
+                    MOTree spTree = MOTree.buildMgmtTree(OMAConstants.PPS_URN,
+                            OMAConstants.OMAVersion, pps);
+                    List<HomeSP> spList = buildSPs(spTree);
+                    if (spList.size() != 1) {
+                        throw new OMAException("Expected exactly one HomeSP, got "
+                                + spList.size());
                     }
+                    String fqdn = spList.get(0).getFQDN();
+                    mStore.put(fqdn, (OMAConstructed) spTree.getRoot()
+                            .getChild(TAG_PerProviderSubscription));
+                    Log.d(Utils.hs2LogTag(getClass()), "migrated " + fqdn + " from " + mPpsFile);
                 }
-                return sps;
+            }
+            mStore.setMigrated();
+        }
 
-            } else {
-                throw new OMAException("Failed to build HomeSP");
+        if (!mPpsFile.delete()) {
+            Log.w(Utils.hs2LogTag(getClass()), "Failed to delete " + mPpsFile
+                    + " after migration");
+        }
+    }
+
+    /**
+     * Split a legacy PPS tree into one PerProviderSubscription node per provider.
+     */
+    private static List<OMAConstructed> splitSubscriptions(MOTree moTree) throws OMAException {
+        List<OMAConstructed> subscriptions = new ArrayList<>();
+        OMAConstructed root = moTree.getRoot();
+        if (root.getName().equals(TAG_PerProviderSubscription)) {
+            // The old PPS file was rooted at PPS instead of MgmtTree to conserve space, with
+            // all instance nodes as direct children.
+            for (OMANode node : root.getChildren()) {
+                if (!node.isLeaf()) {
+                    OMAConstructed pps =
+                            new OMAConstructed(null, TAG_PerProviderSubscription, root.getContext());
+                    pps.addChild(node);
+                    subscriptions.add(pps);
+                }
+            }
+        } else {
+            for (OMANode node : root.getChildren()) {
+                if (node.getName().equals(TAG_PerProviderSubscription)) {
+                    subscriptions.add((OMAConstructed) node);
+                }
             }
         }
+        return subscriptions;
     }
 
     public static HomeSP buildSP(String xml) throws IOException, SAXException {
@@ -221,8 +303,6 @@ public class PasspointManagementObjectManager {
         return addSP(omaParser.parse(xml, OMAConstants.PPS_URN));
     }
 
-    private static final List<String> FQDNPath = Arrays.asList(TAG_HomeSP, TAG_FQDN);
-
     /**
      * R1 *only* addSP method.
      *
@@ -246,13 +326,7 @@ public class PasspointManagementObjectManager {
 
         OMAConstructed dummyRoot = new OMAConstructed(null, TAG_PerProviderSubscription, null);
         buildHomeSPTree(homeSP, dummyRoot, mSPs.size() + 1);
-        try {
-            addSP(dummyRoot);
-        } catch (FileNotFoundException fnfe) {
-            MOTree tree = MOTree.buildMgmtTree(OMAConstants.PPS_URN,
-                    OMAConstants.OMAVersion, dummyRoot);
-            writeMO(tree, mPpsFile);
-        }
+        mStore.put(homeSP.getFQDN(), dummyRoot);
         mSPs.put(homeSP.getFQDN(), homeSP);
     }
 
@@ -271,53 +345,11 @@ public class PasspointManagementObjectManager {
         OMAConstructed pps = (OMAConstructed) instanceTree.getRoot()
                 .getChild(TAG_PerProviderSubscription);
 
-        try {
-            addSP(pps);
-        } catch (FileNotFoundException fnfe) {
-            MOTree tree = new MOTree(instanceTree.getUrn(), instanceTree.getDtdRev(),
-                    instanceTree.getRoot());
-            writeMO(tree, mPpsFile);
-        }
+        mStore.put(fqdn, pps);
 
         return sp;
     }
 
-    /**
-     * Add an SP sub-tree. mo must be PPS with an immediate instance child (e.g. Cred01) and an
-     * optional UpdateIdentifier,
-     *
-     * @param mo The new MO
-     * @throws IOException
-     */
-    private void addSP(OMANode mo) throws IOException {
-        MOTree moTree;
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(mPpsFile))) {
-            moTree = MOTree.unmarshal(in);
-            moTree.getRoot().addChild(mo);
-        }
-        writeMO(moTree, mPpsFile);
-    }
-
-    private static OMAConstructed findTargetTree(MOTree moTree, String fqdn) throws OMAException {
-        OMANode pps = moTree.getRoot();
-        for (OMANode node : pps.getChildren()) {
-            OMANode instance = null;
-            if (node.getName().equals(TAG_PerProviderSubscription)) {
-                instance = getInstanceNode((OMAConstructed) node);
-            } else if (!node.isLeaf()) {
-                instance = node;
-            }
-            if (instance != null) {
-                String nodeFqdn = getString(instance.getListValue(FQDNPath.iterator()));
-                if (fqdn.equalsIgnoreCase(nodeFqdn)) {
-                    return (OMAConstructed) node;
-                    // targetTree is rooted at the PPS
-                }
-            }
-        }
-        return null;
-    }
-
     private static OMAConstructed getInstanceNode(OMAConstructed root) throws OMAException {
         for (OMANode child : root.getChildren()) {
             if (!child.isLeaf()) {
@@ -331,53 +363,51 @@ public class PasspointManagementObjectManager {
             throws IOException, SAXException {
 
         Log.d(Utils.hs2LogTag(getClass()), "modifying SP: " + mods);
-        MOTree moTree;
         int ppsMods = 0;
         int updateIdentifier;
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(mPpsFile))) {
-            moTree = MOTree.unmarshal(in);
-            // moTree is PPS/?/provider-data
-
-            OMAConstructed targetTree = findTargetTree(moTree, fqdn);
-            if (targetTree == null) {
-                throw new IOException("Failed to find PPS tree for " + fqdn);
-            }
-            OMAConstructed instance = getInstanceNode(targetTree);
-
-            for (PasspointManagementObjectDefinition mod : mods) {
-                LinkedList<String> tailPath = getTailPath(mod.getBaseUri(),
-                        TAG_PerProviderSubscription);
-                OMAConstructed modRoot = buildMoTree(mod).getRoot();
-                // modRoot is the MgmtTree with the actual object as a
-                // direct child (e.g. Credential)
-
-                if (tailPath.getFirst().equals(TAG_UpdateIdentifier)) {
-                    updateIdentifier = getInteger(modRoot.getChildren().iterator().next());
-                    OMANode oldUdi = targetTree.getChild(TAG_UpdateIdentifier);
-                    if (getInteger(oldUdi) != updateIdentifier) {
-                        ppsMods++;
-                    }
-                    if (oldUdi != null) {
-                        targetTree.replaceNode(oldUdi, modRoot.getChild(TAG_UpdateIdentifier));
-                    } else {
-                        targetTree.addChild(modRoot.getChild(TAG_UpdateIdentifier));
-                    }
+        MOTree moTree = mStore.get(fqdn);
+        // moTree is MgmtTree/PPS/provider-data
+        if (moTree == null) {
+            throw new IOException("Failed to find PPS tree for " + fqdn);
+        }
+
+        OMAConstructed targetTree =
+                (OMAConstructed) moTree.getRoot().getChild(TAG_PerProviderSubscription);
+        OMAConstructed instance = getInstanceNode(targetTree);
+
+        for (PasspointManagementObjectDefinition mod : mods) {
+            LinkedList<String> tailPath = getTailPath(mod.getBaseUri(),
+                    TAG_PerProviderSubscription);
+            OMAConstructed modRoot = buildMoTree(mod).getRoot();
+            // modRoot is the MgmtTree with the actual object as a
+            // direct child (e.g. Credential)
+
+            if (tailPath.getFirst().equals(TAG_UpdateIdentifier)) {
+                updateIdentifier = getInteger(modRoot.getChildren().iterator().next());
+                OMANode oldUdi = targetTree.getChild(TAG_UpdateIdentifier);
+                if (getInteger(oldUdi) != updateIdentifier) {
+                    ppsMods++;
+                }
+                if (oldUdi != null) {
+                    targetTree.replaceNode(oldUdi, modRoot.getChild(TAG_UpdateIdentifier));
                 } else {
-                    tailPath.removeFirst();     // Drop the instance
-                    OMANode current = instance.getListValue(tailPath.iterator());
-                    if (current == null) {
-                        throw new IOException("No previous node for " + tailPath + " in " + fqdn);
-                    }
-                    for (OMANode newNode : modRoot.getChildren()) {
-                        // newNode is something like Credential
-                        // current is the same existing node
-                        current.getParent().replaceNode(current, newNode);
-                        ppsMods++;
-                    }
+                    targetTree.addChild(modRoot.getChild(TAG_UpdateIdentifier));
+                }
+            } else {
+                tailPath.removeFirst();     // Drop the instance
+                OMANode current = instance.getListValue(tailPath.iterator());
+                if (current == null) {
+                    throw new IOException("No previous node for " + tailPath + " in " + fqdn);
+                }
+                for (OMANode newNode : modRoot.getChildren()) {
+                    // newNode is something like Credential
+                    // current is the same existing node
+                    current.getParent().replaceNode(current, newNode);
+                    ppsMods++;
                 }
             }
         }
-        writeMO(moTree, mPpsFile);
+        mStore.put(fqdn, targetTree);
 
         return ppsMods;
     }
@@ -423,45 +453,20 @@ public class PasspointManagementObjectManager {
 
         Log.d(Utils.hs2LogTag(getClass()), "Deleting HS20 profile for " + fqdn);
 
-        MOTree moTree;
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(mPpsFile))) {
-            moTree = MOTree.unmarshal(in);
-            OMAConstructed tbd = findTargetTree(moTree, fqdn);
-            if (tbd == null) {
-                throw new IOException("Node " + fqdn + " doesn't exist in MO tree");
-            }
-            OMAConstructed pps = moTree.getRoot();
-            OMANode removed = pps.removeNode("?", tbd);
-            if (removed == null) {
-                throw new IOException("Failed to remove " + fqdn + " out of MO tree");
-            }
+        if (!mStore.remove(fqdn)) {
+            throw new IOException("Failed to remove " + fqdn + " from " + mStore.getDirectory());
         }
-        writeMO(moTree, mPpsFile);
     }
 
+    /**
+     * Export the management tree of a provider in its XML form.
+     */
     public String getMOTree(String fqdn) throws IOException {
         if (fqdn == null) {
             return null;
         }
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(mPpsFile))) {
-            MOTree moTree = MOTree.unmarshal(in);
-            OMAConstructed target = findTargetTree(moTree, fqdn);
-            if (target == null) {
-                return null;
-            }
-            return MOTree.buildMgmtTree(OMAConstants.PPS_URN,
-                    OMAConstants.OMAVersion, target).toXml();
-        } catch (FileNotFoundException fnfe) {
-            return null;
-        }
-    }
-
-    private static void writeMO(MOTree moTree, File f) throws IOException {
-        try (BufferedOutputStream out =
-                     new BufferedOutputStream(new FileOutputStream(f, false))) {
-            moTree.marshal(out);
-            out.flush();
-        }
+        MOTree moTree = mStore.get(fqdn);
+        return moTree != null ? moTree.toXml() : null;
     }
 
     private static OMANode buildHomeSPTree(HomeSP homeSP, OMAConstructed root, int instanceID)
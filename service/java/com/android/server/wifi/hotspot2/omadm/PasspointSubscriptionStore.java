@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.hotspot2.omadm;
+
+import android.util.Log;
+
+import com.android.server.wifi.hotspot2.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Persistent store for PerProviderSubscription trees, holding one record per FQDN.
+ *
+ * Each record is a single file in the store directory containing the binary encoding of the
+ * provider's PerProviderSubscription node, including node attributes. Records are replaced
+ * atomically by writing a temporary file and renaming it over the old one, so adding, modifying
+ * or removing a provider only costs the I/O of that provider. The XML form of the tree is not
+ * used for storage.
+ */
+public class PasspointSubscriptionStore {
+    private static final int RECORD_MAGIC = 0x50505352;     // "PPSR"
+    private static final int RECORD_VERSION = 2;
+
+    private static final String RECORD_SUFFIX = ".pps";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String MIGRATED_MARKER = "migrated";
+
+    private static final byte NODE_SCALAR = 0;
+    private static final byte NODE_CONSTRUCTED = 1;
+
+    private final File mDirectory;
+
+    public PasspointSubscriptionStore(File directory) {
+        mDirectory = directory;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Retrieve the management tree for a single provider.
+     * @param fqdn The FQDN of the provider, matched case insensitively.
+     * @return A MgmtTree rooted tree holding the provider's PerProviderSubscription node, or null
+     * if there is no record for the provider.
+     * @throws IOException if the record cannot be read or is corrupt.
+     */
+    public MOTree get(String fqdn) throws IOException {
+        File file = getRecordFile(fqdn);
+        if (!file.exists()) {
+            return null;
+        }
+        return readRecord(file);
+    }
+
+    /**
+     * Retrieve the management trees of all stored providers. Records that fail to decode are
+     * logged and skipped so that a single damaged record does not hide the other providers.
+     */
+    public List<MOTree> getAll() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+
+        List<MOTree> trees = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (!file.getName().endsWith(RECORD_SUFFIX)) {
+                continue;
+            }
+            try {
+                trees.add(readRecord(file));
+            } catch (IOException ioe) {
+                Log.w(Utils.hs2LogTag(getClass()), "Skipping bad PPS record " + file + ": " + ioe);
+            }
+        }
+        return trees;
+    }
+
+    /**
+     * Atomically add or replace the record for a provider.
+     * @param fqdn The FQDN of the provider.
+     * @param pps The provider's PerProviderSubscription node.
+     * @throws IOException if the record cannot be written; the previous record, if any, is
+     * left intact in that case.
+     */
+    public void put(String fqdn, OMAConstructed pps) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+
+        File file = getRecordFile(fqdn);
+        File temp = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+        try {
+            try (FileOutputStream fos = new FileOutputStream(temp, false)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                out.writeInt(RECORD_MAGIC);
+                out.writeByte(RECORD_VERSION);
+                writeString(fqdn, out);
+                writeNode(pps, out);
+                out.flush();
+                fos.getFD().sync();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Remove the record for a provider.
+     * @return true if a record was removed.
+     */
+    public boolean remove(String fqdn) {
+        return getRecordFile(fqdn).delete();
+    }
+
+    /**
+     * @return true if the content of the legacy PPS file has been moved into this store.
+     */
+    public boolean isMigrated() {
+        return new File(mDirectory, MIGRATED_MARKER).exists();
+    }
+
+    /**
+     * Record that the content of the legacy PPS file has been moved into this store.
+     */
+    public void setMigrated() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+        File marker = new File(mDirectory, MIGRATED_MARKER);
+        if (!marker.exists() && !marker.createNewFile()) {
+            throw new IOException("Failed to create " + marker);
+        }
+    }
+
+    public boolean isEmpty() {
+        String[] names = mDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(RECORD_SUFFIX)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private File getRecordFile(String fqdn) {
+        String key = Utils.toHex(fqdn.toLowerCase(Locale.US).getBytes(StandardCharsets.UTF_8));
+        return new File(mDirectory, key + RECORD_SUFFIX);
+    }
+
+    private static MOTree readRecord(File file) throws IOException {
+        try (DataInputStream in =
+                     new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != RECORD_MAGIC) {
+                throw new OMAException("Not a PPS record: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version != RECORD_VERSION) {
+                throw new OMAException("Unsupported PPS record version " + version + ": " + file);
+            }
+            readString(in);     // The FQDN, only kept to make records self describing
+            OMANode pps = readNode(in, null);
+            if (pps.isLeaf()) {
+                throw new OMAException("Bad PPS record root in " + file);
+            }
+            return MOTree.buildMgmtTree(OMAConstants.PPS_URN, OMAConstants.OMAVersion,
+                    (OMAConstructed) pps);
+        }
+    }
+
+    private static void writeNode(OMANode node, DataOutputStream out) throws IOException {
+        out.writeByte(node.isLeaf() ? NODE_SCALAR : NODE_CONSTRUCTED);
+        writeString(node.getName(), out);
+        writeString(node.getContext(), out);
+        writeAttributes(node.getAttributes(), out);
+        if (node.isLeaf()) {
+            writeString(node.getValue(), out);
+        } else {
+            Collection<OMANode> children = node.getChildren();
+            writeLength(children.size(), out);
+            for (OMANode child : children) {
+                writeNode(child, out);
+            }
+        }
+    }
+
+    private static OMANode readNode(DataInputStream in, OMAConstructed parent)
+            throws IOException {
+        int type = in.readByte();
+        String name = readString(in);
+        String context = readString(in);
+        Map<String, String> attributes = readAttributes(in);
+        if (name == null) {
+            throw new OMAException("Unnamed node in PPS record");
+        }
+
+        switch (type) {
+            case NODE_SCALAR:
+                if (parent == null) {
+                    throw new OMAException("Scalar root in PPS record");
+                }
+                String value = readString(in);
+                OMAScalar scalar =
+                        new OMAScalar(parent, name, context, value != null ? value : "", attributes);
+                parent.putChild(scalar);
+                return scalar;
+            case NODE_CONSTRUCTED:
+                OMAConstructed node = new OMAConstructed(parent, name, context,
+                        new MultiValueMap<OMANode>(), attributes);
+                if (parent != null) {
+                    parent.putChild(node);
+                }
+                int children = readLength(in);
+                for (int n = 0; n < children; n++) {
+                    readNode(in, node);
+                }
+                return node;
+            default:
+                throw new OMAException("Bad node type " + type + " in PPS record");
+        }
+    }
+
+    /**
+     * Attributes are encoded as a count offset by one, so that zero can represent null,
+     * followed by the name and value of each attribute.
+     */
+    private static void writeAttributes(Map<String, String> attributes, DataOutputStream out)
+            throws IOException {
+        if (attributes == null) {
+            writeLength(0, out);
+            return;
+        }
+        writeLength(attributes.size() + 1, out);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            writeString(attribute.getKey(), out);
+            writeString(attribute.getValue(), out);
+        }
+    }
+
+    private static Map<String, String> readAttributes(DataInputStream in) throws IOException {
+        int count = readLength(in);
+        if (count == 0) {
+            return null;
+        }
+        Map<String, String> attributes = new HashMap<>();
+        for (int n = 0; n < count - 1; n++) {
+            attributes.put(readString(in), readString(in));
+        }
+        return attributes;
+    }
+
+    /**
+     * Strings are encoded as a variable length byte count followed by the UTF-8 octets. The
+     * count is offset by one so that zero can represent null.
+     */
+    private static void writeString(String s, DataOutputStream out) throws IOException {
+        if (s == null) {
+            writeLength(0, out);
+            return;
+        }
+        byte[] octets = s.getBytes(StandardCharsets.UTF_8);
+        writeLength(octets.length + 1, out);
+        out.write(octets);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readLength(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] octets = new byte[length - 1];
+        in.readFully(octets);
+        return new String(octets, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLength(int length, DataOutputStream out) throws IOException {
+        while ((length & ~0x7f) != 0) {
+            out.writeByte((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        out.writeByte(length);
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int octet = in.readUnsignedByte();
+            length |= (octet & 0x7f) << shift;
+            if ((octet & 0x80) == 0) {
+                return length;
+            }
+        }
+        throw new OMAException("Bad length in PPS record");
+    }
+}
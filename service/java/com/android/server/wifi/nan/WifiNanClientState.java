@@ -69,17 +69,6 @@ public class WifiNanClientState {
         return mUid;
     }
 
-    public WifiNanSessionState getNanSessionStateForPubSubId(int pubSubId) {
-        for (int i = 0; i < mSessions.size(); ++i) {
-            WifiNanSessionState session = mSessions.valueAt(i);
-            if (session.isPubSubIdSession(pubSubId)) {
-                return session;
-            }
-        }
-
-        return null;
-    }
-
     public void createSession(int sessionId, IWifiNanSessionListener listener, int events) {
         WifiNanSessionState session = mSessions.get(sessionId);
         if (session != null) {
@@ -24,6 +24,7 @@ import android.net.wifi.nan.SubscribeSettings;
 import android.net.wifi.nan.WifiNanSessionListener;
 import android.util.Log;
 
+import com.android.server.wifi.TimedLock;
 import com.android.server.wifi.WifiNative;
 
 import libcore.util.HexEncoding;
@@ -103,7 +104,7 @@ public class WifiNanNative {
         }
 
         if (DBG) Log.d(TAG, "isNanInit: trying to init");
-        synchronized (WifiNative.sLock) {
+        try (TimedLock.Hold hold = WifiNative.sHalLock.lock("nanInit")) {
             boolean halStarted = WifiNative.getWlanNativeInterface().isHalStarted();
             if (!halStarted) {
                 halStarted = WifiNative.getWlanNativeInterface().startHal();
@@ -142,7 +143,7 @@ public class WifiNanNative {
         if (VDBG) Log.d(TAG, "enableAndConfigure: configRequest=" + configRequest);
         if (isNanInit(true)) {
             int ret;
-            synchronized (WifiNative.sLock) {
+            try (TimedLock.Hold hold = WifiNative.sHalLock.lock("nanEnableAndConfigure")) {
                 ret = enableAndConfigureNative(transactionId, WifiNative.class,
                         WifiNative.sWlan0Index, configRequest);
             }
@@ -165,7 +166,7 @@ public class WifiNanNative {
         if (VDBG) Log.d(TAG, "disableNan");
         if (isNanInit(true)) {
             int ret;
-            synchronized (WifiNative.sLock) {
+            try (TimedLock.Hold hold = WifiNative.sHalLock.lock("nanDisable")) {
                 ret = disableNative(transactionId, WifiNative.class, WifiNative.sWlan0Index);
             }
             if (DBG) Log.d(TAG, "disableNative: ret=" + ret);
@@ -193,7 +194,7 @@ public class WifiNanNative {
 
         if (isNanInit(true)) {
             int ret;
-            synchronized (WifiNative.sLock) {
+            try (TimedLock.Hold hold = WifiNative.sHalLock.lock("nanPublish")) {
                 ret = publishNative(transactionId, publishId, WifiNative.class,
                         WifiNative.sWlan0Index, publishData, publishSettings);
             }
@@ -221,7 +222,7 @@ public class WifiNanNative {
 
         if (isNanInit(true)) {
             int ret;
-            synchronized (WifiNative.sLock) {
+            try (TimedLock.Hold hold = WifiNative.sHalLock.lock("nanSubscribe")) {
                 ret = subscribeNative(transactionId, subscribeId, WifiNative.class,
                         WifiNative.sWlan0Index, subscribeData, subscribeSettings);
             }
@@ -238,8 +239,12 @@ public class WifiNanNative {
     private static native int sendMessageNative(short transactionId, Object cls, int iface,
             int pubSubId, int requestorInstanceId, byte[] dest, byte[] message, int messageLength);
 
-    public void sendMessage(short transactionId, int pubSubId, int requestorInstanceId, byte[] dest,
-            byte[] message, int messageLength) {
+    /**
+     * Hands a message to the HAL. A response with |transactionId| only follows if this returns
+     * true.
+     */
+    public boolean sendMessage(short transactionId, int pubSubId, int requestorInstanceId,
+            byte[] dest, byte[] message, int messageLength) {
         boolean success;
 
         if (VDBG) {
@@ -252,7 +257,7 @@ public class WifiNanNative {
 
         if (isNanInit(true)) {
             int ret;
-            synchronized (WifiNative.sLock) {
+            try (TimedLock.Hold hold = WifiNative.sHalLock.lock("nanSendMessage")) {
                 ret = sendMessageNative(transactionId, WifiNative.class, WifiNative.sWlan0Index,
                         pubSubId, requestorInstanceId, dest, message, messageLength);
             }
@@ -263,7 +268,7 @@ public class WifiNanNative {
             success = false;
         }
 
-        // TODO: do something on !success - send failure message back
+        return success;
     }
 
     private static native int stopPublishNative(short transactionId, Object cls, int iface,
@@ -278,7 +283,7 @@ public class WifiNanNative {
 
         if (isNanInit(true)) {
             int ret;
-            synchronized (WifiNative.sLock) {
+            try (TimedLock.Hold hold = WifiNative.sHalLock.lock("nanStopPublish")) {
                 ret = stopPublishNative(transactionId, WifiNative.class, WifiNative.sWlan0Index,
                         pubSubId);
             }
@@ -304,7 +309,7 @@ public class WifiNanNative {
 
         if (isNanInit(true)) {
             int ret;
-            synchronized (WifiNative.sLock) {
+            try (TimedLock.Hold hold = WifiNative.sHalLock.lock("nanStopSubscribe")) {
                 ret = stopSubscribeNative(transactionId, WifiNative.class, WifiNative.sWlan0Index,
                         pubSubId);
             }
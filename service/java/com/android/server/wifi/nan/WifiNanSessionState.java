@@ -30,13 +30,14 @@ import libcore.util.HexEncoding;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 public class WifiNanSessionState {
     private static final String TAG = "WifiNanSessionState";
     private static final boolean DBG = false;
     private static final boolean VDBG = false; // STOPSHIP if true
 
-    private final SparseArray<String> mMacByRequestorInstanceId = new SparseArray<>();
+    private final SparseArray<byte[]> mMacByRequestorInstanceId = new SparseArray<>();
 
     private int mSessionId;
     private IWifiNanSessionListener mListener;
@@ -69,8 +70,15 @@ public class WifiNanSessionState {
         return mSessionId;
     }
 
-    public boolean isPubSubIdSession(int pubSubId) {
-        return mPubSubIdValid && mPubSubId == pubSubId;
+    public boolean isPubSubIdValid() {
+        return mPubSubIdValid;
+    }
+
+    /**
+     * The publish or subscribe ID of the session. Only meaningful if {@link #isPubSubIdValid()}.
+     */
+    public int getPubSubId() {
+        return mPubSubId;
     }
 
     public void publish(short transactionId, PublishData data, PublishSettings settings) {
@@ -93,26 +101,35 @@ public class WifiNanSessionState {
                 settings);
     }
 
-    public void sendMessage(short transactionId, int peerId, byte[] message, int messageLength,
+    /**
+     * Hand a message to the HAL. If it cannot be sent the failure is reported to the listener
+     * right away and no response from the HAL is to be expected.
+     *
+     * @return whether the message was handed to the HAL
+     */
+    public boolean sendMessage(short transactionId, int peerId, byte[] message, int messageLength,
             int messageId) {
         if (!mPubSubIdValid) {
             Log.e(TAG, "sendMessage: attempting to send a message on a non-live session "
                     + "(no successful publish or subscribe");
             onMessageSendFail(messageId, WifiNanSessionListener.FAIL_REASON_NO_MATCH_SESSION);
-            return;
+            return false;
         }
 
-        String peerMacStr = mMacByRequestorInstanceId.get(peerId);
-        if (peerMacStr == null) {
+        byte[] peerMac = mMacByRequestorInstanceId.get(peerId);
+        if (peerMac == null) {
             Log.e(TAG, "sendMessage: attempting to send a message to an address which didn't "
                     + "match/contact us");
             onMessageSendFail(messageId, WifiNanSessionListener.FAIL_REASON_NO_MATCH_SESSION);
-            return;
+            return false;
         }
-        byte[] peerMac = HexEncoding.decode(peerMacStr.toCharArray(), false);
 
-        WifiNanNative.getInstance().sendMessage(transactionId, mPubSubId, peerId, peerMac, message,
-                messageLength);
+        if (!WifiNanNative.getInstance().sendMessage(transactionId, mPubSubId, peerId, peerMac,
+                message, messageLength)) {
+            onMessageSendFail(messageId, WifiNanSessionListener.FAIL_REASON_OTHER);
+            return false;
+        }
+        return true;
     }
 
     public void stop(short transactionId) {
@@ -210,10 +227,12 @@ public class WifiNanSessionState {
 
     public void onMatch(int requestorInstanceId, byte[] peerMac, byte[] serviceSpecificInfo,
             int serviceSpecificInfoLength, byte[] matchFilter, int matchFilterLength) {
-        String prevMac = mMacByRequestorInstanceId.get(requestorInstanceId);
-        mMacByRequestorInstanceId.put(requestorInstanceId, new String(HexEncoding.encode(peerMac)));
+        byte[] prevMac = updatePeerMac(requestorInstanceId, peerMac);
 
-        if (DBG) Log.d(TAG, "onMatch: previous peer MAC replaced - " + prevMac);
+        if (DBG && prevMac != null) {
+            Log.d(TAG, "onMatch: previous peer MAC replaced - "
+                    + String.valueOf(HexEncoding.encode(prevMac)));
+        }
 
         try {
             if (mListener != null && (mEvents & WifiNanSessionListener.LISTEN_MATCH) != 0) {
@@ -227,11 +246,11 @@ public class WifiNanSessionState {
 
     public void onMessageReceived(int requestorInstanceId, byte[] peerMac, byte[] message,
             int messageLength) {
-        String prevMac = mMacByRequestorInstanceId.get(requestorInstanceId);
-        mMacByRequestorInstanceId.put(requestorInstanceId, new String(HexEncoding.encode(peerMac)));
+        byte[] prevMac = updatePeerMac(requestorInstanceId, peerMac);
 
-        if (DBG) {
-            Log.d(TAG, "onMessageReceived: previous peer MAC replaced - " + prevMac);
+        if (DBG && prevMac != null) {
+            Log.d(TAG, "onMessageReceived: previous peer MAC replaced - "
+                    + String.valueOf(HexEncoding.encode(prevMac)));
         }
 
         try {
@@ -244,12 +263,33 @@ public class WifiNanSessionState {
         }
     }
 
+    /**
+     * Record |peerMac| as the address of |requestorInstanceId|. The stored array is only
+     * replaced when the address changes.
+     *
+     * @return the previous address if it was different, or null
+     */
+    private byte[] updatePeerMac(int requestorInstanceId, byte[] peerMac) {
+        byte[] prevMac = mMacByRequestorInstanceId.get(requestorInstanceId);
+        if (Arrays.equals(prevMac, peerMac)) {
+            return null;
+        }
+        mMacByRequestorInstanceId.put(requestorInstanceId, peerMac.clone());
+        return prevMac;
+    }
+
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("NanSessionState:");
         pw.println("  mSessionId: " + mSessionId);
         pw.println("  mSessionType: " + mSessionType);
         pw.println("  mEvents: " + mEvents);
         pw.println("  mPubSubId: " + (mPubSubIdValid ? Integer.toString(mPubSubId) : "not valid"));
-        pw.println("  mMacByRequestorInstanceId: [" + mMacByRequestorInstanceId + "]");
+        pw.print("  mMacByRequestorInstanceId: [{");
+        for (int i = 0; i < mMacByRequestorInstanceId.size(); ++i) {
+            if (i != 0) pw.print(", ");
+            pw.print(mMacByRequestorInstanceId.keyAt(i) + "="
+                    + String.valueOf(HexEncoding.encode(mMacByRequestorInstanceId.valueAt(i))));
+        }
+        pw.println("}]");
     }
 }
@@ -23,10 +23,12 @@ import android.net.wifi.nan.PublishData;
 import android.net.wifi.nan.PublishSettings;
 import android.net.wifi.nan.SubscribeData;
 import android.net.wifi.nan.SubscribeSettings;
+import android.net.wifi.nan.WifiNanSessionListener;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -34,8 +36,11 @@ import libcore.util.HexEncoding;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
 
 public class WifiNanStateManager {
     private static final String TAG = "WifiNanStateManager";
@@ -70,6 +75,23 @@ public class WifiNanStateManager {
     private static final int MESSAGE_ON_MATCH = 25;
     private static final int MESSAGE_ON_MESSAGE_RECEIVED = 26;
     private static final int MESSAGE_ON_CAPABILITIES_UPDATED = 27;
+    private static final int MESSAGE_SET_MAX_MESSAGES_IN_FLIGHT = 28;
+    private static final int MESSAGE_SEND_QUEUED_MESSAGES = 29;
+    private static final int MESSAGE_ON_MESSAGE_SEND_TIMEOUT = 30;
+
+    /*
+     * Outbound message flow control: at most mMaxMessagesInFlight messages are handed to the
+     * HAL before their responses arrive. The others wait in a queue per session; the queues are
+     * served round robin across clients and, within a client, across its sessions. A message
+     * which fails because the firmware is out of resources is put back at the head of its queue
+     * and sending is paused for an exponentially increasing delay. A message whose response
+     * does not arrive within SEND_RESPONSE_TIMEOUT_MS is failed so that its slot is released.
+     */
+    private static final int DEFAULT_MAX_MESSAGES_IN_FLIGHT = 4;
+    private static final int MAX_QUEUED_MESSAGES_PER_SESSION = 64;
+    private static final int MAX_SEND_RETRIES = 3;
+    private static final long SEND_RETRY_BASE_DELAY_MS = 100;
+    private static final long SEND_RESPONSE_TIMEOUT_MS = 5000;
 
     private static final String MESSAGE_BUNDLE_KEY_SESSION_ID = "session_id";
     private static final String MESSAGE_BUNDLE_KEY_EVENTS = "events";
@@ -96,8 +118,27 @@ public class WifiNanStateManager {
     // no synchronization necessary: only access through Handler
     private final SparseArray<WifiNanClientState> mClients = new SparseArray<>();
     private final SparseArray<TransactionInfoBase> mPendingResponses = new SparseArray<>();
+    /*
+     * Sessions with a valid publish/subscribe ID, by that ID, so that discovery events are
+     * dispatched without searching every session of every client.
+     */
+    private final SparseArray<WifiNanSessionState> mSessionsByPubSubId = new SparseArray<>();
     private short mNextTransactionId = 1;
 
+    private final Map<WifiNanSessionState, SessionSendQueue> mSendQueues = new HashMap<>();
+    /* Non-empty send queues, grouped by client; both levels are served round robin. */
+    private final LinkedList<LinkedList<SessionSendQueue>> mSendReadyClients = new LinkedList<>();
+    private int mMaxMessagesInFlight = DEFAULT_MAX_MESSAGES_IN_FLIGHT;
+    private int mMessagesInFlight = 0;
+    private boolean mSendRetryPending = false;
+    private int mMessagesSent = 0;
+    private int mMessagesSucceeded = 0;
+    private int mMessagesFailed = 0;
+    private int mMessagesRetried = 0;
+    private int mMessagesDropped = 0;
+    private long mSendLatencyTotalMs = 0;
+    private long mSendLatencyMaxMs = 0;
+
     private WifiNanStateManager() {
         // EMPTY: singleton pattern
     }
@@ -205,6 +246,16 @@ public class WifiNanStateManager {
         mHandler.sendMessage(msg);
     }
 
+    /**
+     * Set the number of messages which may be handed to the HAL before earlier ones are
+     * acknowledged. Further messages are queued.
+     */
+    public void setMaxMessagesInFlight(int maxMessagesInFlight) {
+        Message msg = mHandler.obtainMessage(MESSAGE_SET_MAX_MESSAGES_IN_FLIGHT);
+        msg.arg1 = maxMessagesInFlight;
+        mHandler.sendMessage(msg);
+    }
+
     public void onCapabilitiesUpdate(short transactionId, WifiNanNative.Capabilities capabilities) {
         Message msg = mHandler.obtainMessage(MESSAGE_ON_CAPABILITIES_UPDATED);
         msg.arg1 = transactionId;
@@ -437,6 +488,17 @@ public class WifiNanStateManager {
                     stopSessionLocal(msg.arg1, msg.arg2);
                     break;
                 }
+                case MESSAGE_SET_MAX_MESSAGES_IN_FLIGHT:
+                    mMaxMessagesInFlight = Math.max(1, msg.arg1);
+                    sendQueuedMessagesLocal();
+                    break;
+                case MESSAGE_SEND_QUEUED_MESSAGES:
+                    mSendRetryPending = false;
+                    sendQueuedMessagesLocal();
+                    break;
+                case MESSAGE_ON_MESSAGE_SEND_TIMEOUT:
+                    onMessageSendTimeoutLocal((TransactionInfoMessage) msg.obj);
+                    break;
                 case MESSAGE_ON_CAPABILITIES_UPDATED:
                     onCapabilitiesUpdatedLocal((short) msg.arg1,
                             (WifiNanNative.Capabilities) msg.obj);
@@ -536,6 +598,23 @@ public class WifiNanStateManager {
 
     private static class TransactionInfoMessage extends TransactionInfoSession {
         public int mMessageId;
+        public int mPeerId;
+        public byte[] mMessage;
+        public int mMessageLength;
+        public int mRetries;
+        public long mQueuedTimestampMs;
+    }
+
+    /**
+     * Messages of one session waiting to be handed to the HAL.
+     */
+    private static class SessionSendQueue {
+        public final int mUid;
+        public final ArrayDeque<TransactionInfoMessage> mMessages = new ArrayDeque<>();
+
+        SessionSendQueue(int uid) {
+            mUid = uid;
+        }
     }
 
     private static class TransactionInfoConfig extends TransactionInfoBase {
@@ -579,15 +658,6 @@ public class WifiNanStateManager {
         return info;
     }
 
-    private TransactionInfoMessage createTransactionInfoMessage(int uid, int sessionId,
-            int messageId) {
-        TransactionInfoMessage info = new TransactionInfoMessage();
-        fillInTransactionInfoSession(info, uid, sessionId);
-        info.mMessageId = messageId;
-        allocateAndRegisterTransactionId(info);
-        return info;
-    }
-
     private TransactionInfoConfig createTransactionInfoConfig(ConfigRequest configRequest) {
         TransactionInfoConfig info = new TransactionInfoConfig();
         info.mConfig = configRequest;
@@ -595,6 +665,13 @@ public class WifiNanStateManager {
         return info;
     }
 
+    private void removePendingResponseAt(int index) {
+        if (mPendingResponses.valueAt(index) instanceof TransactionInfoMessage) {
+            mMessagesInFlight--;
+        }
+        mPendingResponses.removeAt(index);
+    }
+
     private TransactionInfoBase getAndRemovePendingResponseTransactionInfo(short transactionId) {
         TransactionInfoBase transInfo = mPendingResponses.get(transactionId);
         if (transInfo != null) {
@@ -605,15 +682,32 @@ public class WifiNanStateManager {
     }
 
     private WifiNanSessionState getNanSessionStateForPubSubId(int pubSubId) {
-        for (int i = 0; i < mClients.size(); ++i) {
-            WifiNanSessionState session = mClients.valueAt(i)
-                    .getNanSessionStateForPubSubId(pubSubId);
-            if (session != null) {
-                return session;
-            }
+        return mSessionsByPubSubId.get(pubSubId);
+    }
+
+    /**
+     * Update the entry of |session| in mSessionsByPubSubId after its publish/subscribe ID was
+     * assigned or invalidated.
+     */
+    private void updatePubSubIdIndex(WifiNanSessionState session) {
+        int index = mSessionsByPubSubId.indexOfValue(session);
+        if (index >= 0) {
+            mSessionsByPubSubId.removeAt(index);
         }
+        if (session.isPubSubIdValid()) {
+            mSessionsByPubSubId.put(session.getPubSubId(), session);
+        }
+    }
 
-        return null;
+    /**
+     * Remove the entries of sessions which are no longer live, e.g. after they were destroyed.
+     */
+    private void prunePubSubIdIndex() {
+        for (int i = mSessionsByPubSubId.size() - 1; i >= 0; --i) {
+            if (!mSessionsByPubSubId.valueAt(i).isPubSubIdValid()) {
+                mSessionsByPubSubId.removeAt(i);
+            }
+        }
     }
 
     /*
@@ -646,21 +740,20 @@ public class WifiNanStateManager {
             return;
         }
 
-        List<Integer> toRemove = new ArrayList<>();
-        for (int i = 0; i < mPendingResponses.size(); ++i) {
+        for (int i = mPendingResponses.size() - 1; i >= 0; --i) {
             TransactionInfoBase info = mPendingResponses.valueAt(i);
             if (!(info instanceof TransactionInfoSession)) {
                 continue;
             }
             if (((TransactionInfoSession) info).mClient.getUid() == uid) {
-                toRemove.add(i);
+                removePendingResponseAt(i);
             }
         }
-        for (Integer id : toRemove) {
-            mPendingResponses.removeAt(id);
-        }
+        removeSendQueues(uid, null);
 
         client.destroy();
+        prunePubSubIdIndex();
+        sendQueuedMessagesLocal();
 
         if (mClients.size() == 0) {
             WifiNanNative.getInstance().disable(createTransactionInfo().mTransactionId);
@@ -719,8 +812,7 @@ public class WifiNanStateManager {
             return;
         }
 
-        List<Integer> toRemove = new ArrayList<>();
-        for (int i = 0; i < mPendingResponses.size(); ++i) {
+        for (int i = mPendingResponses.size() - 1; i >= 0; --i) {
             TransactionInfoBase info = mPendingResponses.valueAt(i);
             if (!(info instanceof TransactionInfoSession)) {
                 continue;
@@ -728,14 +820,17 @@ public class WifiNanStateManager {
             TransactionInfoSession infoSession = (TransactionInfoSession) info;
             if (infoSession.mClient.getUid() == uid
                     && infoSession.mSession.getSessionId() == sessionId) {
-                toRemove.add(i);
+                removePendingResponseAt(i);
             }
         }
-        for (Integer id : toRemove) {
-            mPendingResponses.removeAt(id);
+        WifiNanSessionState session = client.getSession(sessionId);
+        if (session != null) {
+            removeSendQueues(uid, session);
         }
 
         client.destroySession(sessionId);
+        prunePubSubIdIndex();
+        sendQueuedMessagesLocal();
     }
 
     private void publishLocal(int uid, int sessionId, PublishData publishData,
@@ -769,9 +864,150 @@ public class WifiNanStateManager {
                     + peerId + ", messageLength=" + messageLength + ", messageId=" + messageId);
         }
 
-        TransactionInfoMessage info = createTransactionInfoMessage(uid, sessionId, messageId);
+        TransactionInfoMessage info = new TransactionInfoMessage();
+        fillInTransactionInfoSession(info, uid, sessionId);
+        info.mMessageId = messageId;
+        info.mPeerId = peerId;
+        info.mMessage = message;
+        info.mMessageLength = messageLength;
+        info.mQueuedTimestampMs = SystemClock.elapsedRealtime();
+
+        SessionSendQueue queue = mSendQueues.get(info.mSession);
+        if (queue == null) {
+            queue = new SessionSendQueue(uid);
+            mSendQueues.put(info.mSession, queue);
+        }
+        if (queue.mMessages.size() >= MAX_QUEUED_MESSAGES_PER_SESSION) {
+            Log.w(TAG, "sendMessage: queue full for uid=" + uid + ", sessionId=" + sessionId
+                    + " - dropping messageId=" + messageId);
+            mMessagesDropped++;
+            info.mSession.onMessageSendFail(messageId,
+                    WifiNanSessionListener.FAIL_REASON_NO_RESOURCES);
+            return;
+        }
+
+        addToSendQueue(queue, info, false);
+        sendQueuedMessagesLocal();
+    }
+
+    private void addToSendQueue(SessionSendQueue queue, TransactionInfoMessage info,
+            boolean atHead) {
+        boolean wasEmpty = queue.mMessages.isEmpty();
+        if (atHead) {
+            queue.mMessages.addFirst(info);
+        } else {
+            queue.mMessages.addLast(info);
+        }
+        if (!wasEmpty) {
+            return;
+        }
+
+        for (LinkedList<SessionSendQueue> clientQueues : mSendReadyClients) {
+            if (clientQueues.getFirst().mUid == queue.mUid) {
+                clientQueues.addLast(queue);
+                return;
+            }
+        }
+        LinkedList<SessionSendQueue> clientQueues = new LinkedList<>();
+        clientQueues.add(queue);
+        mSendReadyClients.addLast(clientQueues);
+    }
 
-        info.mSession.sendMessage(info.mTransactionId, peerId, message, messageLength, messageId);
+    /**
+     * Hand queued messages to the HAL while the in-flight window has room.
+     */
+    private void sendQueuedMessagesLocal() {
+        while (!mSendRetryPending && mMessagesInFlight < mMaxMessagesInFlight
+                && !mSendReadyClients.isEmpty()) {
+            LinkedList<SessionSendQueue> clientQueues = mSendReadyClients.removeFirst();
+            SessionSendQueue queue = clientQueues.removeFirst();
+            TransactionInfoMessage info = queue.mMessages.removeFirst();
+            if (!queue.mMessages.isEmpty()) {
+                clientQueues.addLast(queue);
+            }
+            if (!clientQueues.isEmpty()) {
+                mSendReadyClients.addLast(clientQueues);
+            }
+
+            allocateAndRegisterTransactionId(info);
+            mMessagesInFlight++;
+            mMessagesSent++;
+            if (!info.mSession.sendMessage(info.mTransactionId, info.mPeerId, info.mMessage,
+                    info.mMessageLength, info.mMessageId)) {
+                // already reported to the listener; no response will come
+                getAndRemovePendingResponseTransactionInfo(info.mTransactionId);
+                mMessagesInFlight--;
+                mMessagesFailed++;
+                continue;
+            }
+            mHandler.sendMessageDelayed(
+                    mHandler.obtainMessage(MESSAGE_ON_MESSAGE_SEND_TIMEOUT, info),
+                    SEND_RESPONSE_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Discard the queued messages of |session|, or of all sessions of |uid| if |session| is
+     * null. No callbacks are made.
+     */
+    private void removeSendQueues(int uid, WifiNanSessionState session) {
+        Iterator<Map.Entry<WifiNanSessionState, SessionSendQueue>> it =
+                mSendQueues.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<WifiNanSessionState, SessionSendQueue> entry = it.next();
+            SessionSendQueue queue = entry.getValue();
+            if (queue.mUid != uid || (session != null && entry.getKey() != session)) {
+                continue;
+            }
+            it.remove();
+            mMessagesDropped += queue.mMessages.size();
+            queue.mMessages.clear();
+        }
+
+        Iterator<LinkedList<SessionSendQueue>> clients = mSendReadyClients.iterator();
+        while (clients.hasNext()) {
+            LinkedList<SessionSendQueue> clientQueues = clients.next();
+            Iterator<SessionSendQueue> queues = clientQueues.iterator();
+            while (queues.hasNext()) {
+                if (queues.next().mMessages.isEmpty()) {
+                    queues.remove();
+                }
+            }
+            if (clientQueues.isEmpty()) {
+                clients.remove();
+            }
+        }
+    }
+
+    /**
+     * Fail every queued and in-flight message with |reason|.
+     */
+    private void failAllMessagesLocal(int reason) {
+        for (int i = mPendingResponses.size() - 1; i >= 0; --i) {
+            TransactionInfoBase info = mPendingResponses.valueAt(i);
+            if (info instanceof TransactionInfoMessage) {
+                removePendingResponseAt(i);
+                mMessagesFailed++;
+                TransactionInfoMessage infoMessage = (TransactionInfoMessage) info;
+                infoMessage.mSession.onMessageSendFail(infoMessage.mMessageId, reason);
+            }
+        }
+        for (LinkedList<SessionSendQueue> clientQueues : mSendReadyClients) {
+            for (SessionSendQueue queue : clientQueues) {
+                for (TransactionInfoMessage info : queue.mMessages) {
+                    mMessagesFailed++;
+                    info.mSession.onMessageSendFail(info.mMessageId, reason);
+                }
+                queue.mMessages.clear();
+            }
+        }
+        mSendReadyClients.clear();
+    }
+
+    private void recordSendLatency(TransactionInfoMessage info) {
+        long latencyMs = SystemClock.elapsedRealtime() - info.mQueuedTimestampMs;
+        mSendLatencyTotalMs += latencyMs;
+        mSendLatencyMaxMs = Math.max(mSendLatencyMaxMs, latencyMs);
     }
 
     private void stopSessionLocal(int uid, int sessionId) {
@@ -857,6 +1093,8 @@ public class WifiNanStateManager {
             Log.v(TAG, "onNanDown: reason=" + reason);
         }
 
+        failAllMessagesLocal(WifiNanSessionListener.FAIL_REASON_OTHER);
+
         int interested = 0;
         for (int i = 0; i < mClients.size(); ++i) {
             WifiNanClientState client = mClients.valueAt(i);
@@ -923,6 +1161,7 @@ public class WifiNanStateManager {
         TransactionInfoSession infoSession = (TransactionInfoSession) info;
 
         infoSession.mSession.onPublishSuccess(publishId);
+        updatePubSubIdIndex(infoSession.mSession);
     }
 
     private void onPublishFailLocal(short transactionId, int status) {
@@ -943,6 +1182,7 @@ public class WifiNanStateManager {
         TransactionInfoSession infoSession = (TransactionInfoSession) info;
 
         infoSession.mSession.onPublishFail(status);
+        updatePubSubIdIndex(infoSession.mSession);
     }
 
     private void onPublishTerminatedLocal(int publishId, int status) {
@@ -957,6 +1197,7 @@ public class WifiNanStateManager {
         }
 
         session.onPublishTerminated(status);
+        updatePubSubIdIndex(session);
     }
 
     private void onSubscribeSuccessLocal(short transactionId, int subscribeId) {
@@ -979,6 +1220,7 @@ public class WifiNanStateManager {
         TransactionInfoSession infoSession = (TransactionInfoSession) info;
 
         infoSession.mSession.onSubscribeSuccess(subscribeId);
+        updatePubSubIdIndex(infoSession.mSession);
     }
 
     private void onSubscribeFailLocal(short transactionId, int status) {
@@ -999,6 +1241,7 @@ public class WifiNanStateManager {
         TransactionInfoSession infoSession = (TransactionInfoSession) info;
 
         infoSession.mSession.onSubscribeFail(status);
+        updatePubSubIdIndex(infoSession.mSession);
     }
 
     private void onSubscribeTerminatedLocal(int subscribeId, int status) {
@@ -1013,6 +1256,7 @@ public class WifiNanStateManager {
         }
 
         session.onSubscribeTerminated(status);
+        updatePubSubIdIndex(session);
     }
 
     private void onMessageSendSuccessLocal(short transactionId) {
@@ -1033,7 +1277,12 @@ public class WifiNanStateManager {
         }
         TransactionInfoMessage infoMessage = (TransactionInfoMessage) info;
 
+        mHandler.removeMessages(MESSAGE_ON_MESSAGE_SEND_TIMEOUT, infoMessage);
+        mMessagesInFlight--;
+        mMessagesSucceeded++;
+        recordSendLatency(infoMessage);
         infoMessage.mSession.onMessageSendSuccess(infoMessage.mMessageId);
+        sendQueuedMessagesLocal();
     }
 
     private void onMessageSendFailLocal(short transactionId, int status) {
@@ -1054,7 +1303,27 @@ public class WifiNanStateManager {
         }
         TransactionInfoMessage infoMessage = (TransactionInfoMessage) info;
 
+        mHandler.removeMessages(MESSAGE_ON_MESSAGE_SEND_TIMEOUT, infoMessage);
+        mMessagesInFlight--;
+        SessionSendQueue queue = mSendQueues.get(infoMessage.mSession);
+        if (status == WifiNanSessionListener.FAIL_REASON_NO_RESOURCES
+                && infoMessage.mRetries < MAX_SEND_RETRIES && queue != null) {
+            // firmware queue full: back off, then resend ahead of the session's other messages
+            infoMessage.mRetries++;
+            mMessagesRetried++;
+            addToSendQueue(queue, infoMessage, true);
+            if (!mSendRetryPending) {
+                mSendRetryPending = true;
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(MESSAGE_SEND_QUEUED_MESSAGES),
+                        SEND_RETRY_BASE_DELAY_MS << (infoMessage.mRetries - 1));
+            }
+            return;
+        }
+
+        mMessagesFailed++;
+        recordSendLatency(infoMessage);
         infoMessage.mSession.onMessageSendFail(infoMessage.mMessageId, status);
+        sendQueuedMessagesLocal();
     }
 
     private void onUnknownTransactionLocal(int responseType, short transactionId, int status) {
@@ -1065,7 +1334,37 @@ public class WifiNanStateManager {
         if (info == null) {
             Log.e(TAG, "onUnknownTransaction(): no info registered for transactionId="
                     + transactionId);
+            return;
+        }
+        if (info instanceof TransactionInfoMessage) {
+            failInFlightMessageLocal((TransactionInfoMessage) info,
+                    WifiNanSessionListener.FAIL_REASON_OTHER);
+        }
+    }
+
+    private void onMessageSendTimeoutLocal(TransactionInfoMessage info) {
+        // the message may have completed, or been re-queued under a new transaction ID
+        if (mPendingResponses.get(info.mTransactionId) != info) {
+            return;
         }
+        Log.e(TAG, "onMessageSendTimeout: no response for transactionId=" + info.mTransactionId
+                + ", messageId=" + info.mMessageId);
+
+        mPendingResponses.remove(info.mTransactionId);
+        failInFlightMessageLocal(info, WifiNanSessionListener.FAIL_REASON_OTHER);
+    }
+
+    /**
+     * Fail an in-flight message which was already removed from mPendingResponses, release its
+     * slot and send the next queued messages.
+     */
+    private void failInFlightMessageLocal(TransactionInfoMessage info, int reason) {
+        mHandler.removeMessages(MESSAGE_ON_MESSAGE_SEND_TIMEOUT, info);
+        mMessagesInFlight--;
+        mMessagesFailed++;
+        recordSendLatency(info);
+        info.mSession.onMessageSendFail(info.mMessageId, reason);
+        sendQueuedMessagesLocal();
     }
 
     private void onMatchLocal(int pubSubId, int requestorInstanceId, byte[] peerMac,
@@ -1163,8 +1462,26 @@ public class WifiNanStateManager {
         pw.println("NanStateManager:");
         pw.println("  mClients: [" + mClients + "]");
         pw.println("  mPendingResponses: [" + mPendingResponses + "]");
+        pw.println("  mSessionsByPubSubId: [" + mSessionsByPubSubId + "]");
         pw.println("  mCapabilities: [" + mCapabilities + "]");
         pw.println("  mNextTransactionId: " + mNextTransactionId);
+        int queued = 0;
+        for (SessionSendQueue queue : mSendQueues.values()) {
+            queued += queue.mMessages.size();
+        }
+        int responded = mMessagesSucceeded + mMessagesFailed;
+        pw.println("  Message queue: inFlight=" + mMessagesInFlight + "/" + mMaxMessagesInFlight
+                + ", queued=" + queued + ", retryPending=" + mSendRetryPending);
+        pw.println("  Messages: sent=" + mMessagesSent + ", succeeded=" + mMessagesSucceeded
+                + ", failed=" + mMessagesFailed + ", retried=" + mMessagesRetried + ", dropped="
+                + mMessagesDropped + ", latencyAvgMs="
+                + (responded == 0 ? 0 : mSendLatencyTotalMs / responded) + ", latencyMaxMs="
+                + mSendLatencyMaxMs);
+        for (Map.Entry<WifiNanSessionState, SessionSendQueue> entry : mSendQueues.entrySet()) {
+            pw.println("    uid=" + entry.getValue().mUid + ", sessionId="
+                    + entry.getKey().getSessionId() + ", depth="
+                    + entry.getValue().mMessages.size());
+        }
         for (int i = 0; i < mClients.size(); ++i) {
             mClients.valueAt(i).dump(fd, pw, args);
         }
@@ -63,6 +63,7 @@ import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -72,10 +73,12 @@ import android.widget.EditText;
 import android.widget.TextView;
 
 import com.android.internal.R;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.AsyncChannel;
 import com.android.internal.util.Protocol;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
+import com.android.server.wifi.Clock;
 import com.android.server.wifi.WifiMonitor;
 import com.android.server.wifi.WifiNative;
 import com.android.server.wifi.WifiStateMachine;
@@ -176,6 +179,11 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
     //   msg.obj  = StateMachine to send to when blocked
     public static final int BLOCK_DISCOVERY                 =   BASE + 15;
 
+    /* Delayed message to send the accumulated peer changes */
+    private static final int PEERS_CHANGED_BROADCAST        =   BASE + 16;
+    /* Delayed message to write the supplicant configuration */
+    private static final int SAVE_CONFIG                    =   BASE + 17;
+
     // Messages for interaction with IpManager.
     private static final int IPM_PRE_DHCP_ACTION            =   BASE + 30;
     private static final int IPM_POST_DHCP_ACTION           =   BASE + 31;
@@ -183,6 +191,12 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
     private static final int IPM_PROVISIONING_SUCCESS       =   BASE + 33;
     private static final int IPM_PROVISIONING_FAILURE       =   BASE + 34;
 
+    /* Peer list broadcasts are coalesced and sent at most once per interval */
+    private static final long PEERS_CHANGED_MIN_INTERVAL_MS = 500;
+
+    /* Changes to persistent groups within this time are saved to the supplicant config at once */
+    private static final long SAVE_CONFIG_DELAY_MS = 1000;
+
     public static final int ENABLED                         = 1;
     public static final int DISABLED                        = 0;
 
@@ -562,16 +576,23 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
          * when connection is cancelled or lost
          */
         private final WifiP2pDeviceList mPeersLostDuringConnection = new WifiP2pDeviceList();
+        private final PeersChangedCoalescer mPeersChangedCoalescer =
+                new PeersChangedCoalescer(new Clock());
         private final WifiP2pGroupList mGroups = new WifiP2pGroupList(null,
                 new GroupDeleteListener() {
             @Override
             public void onDeleteGroup(int netId) {
                 if (DBG) logd("called onDeleteGroup() netId=" + netId);
                 mWifiNative.removeNetwork(netId);
-                mWifiNative.saveConfig();
+                mPersistentGroupSync.forget(netId);
+                scheduleSaveConfig();
                 sendP2pPersistentGroupsChangedBroadcast();
             }
         });
+        private final PersistentGroupSync mPersistentGroupSync =
+                new PersistentGroupSync(mWifiNative, mGroups);
+        private boolean mSaveConfigPending = false;
+        private int mSaveConfigCount = 0;
         private final WifiP2pInfo mWifiP2pInfo = new WifiP2pInfo();
         private WifiP2pGroup mGroup;
         private boolean mIsBTCoexDisabled = false;
@@ -787,6 +808,13 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                     replyToMessage(message, WifiP2pManager.RESPONSE_PEERS,
                             new WifiP2pDeviceList(mPeers));
                     break;
+                case PEERS_CHANGED_BROADCAST:
+                    flushPeersChangedBroadcast();
+                    break;
+                case SAVE_CONFIG:
+                    // The supplicant is gone; nothing left to save to.
+                    mSaveConfigPending = false;
+                    break;
                 case WifiP2pManager.REQUEST_CONNECTION_INFO:
                     replyToMessage(message, WifiP2pManager.RESPONSE_CONNECTION_INFO,
                             new WifiP2pInfo(mWifiP2pInfo));
@@ -1084,10 +1112,14 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         sendPeersChangedBroadcast();
                     }
                     if (mGroups.clear()) sendP2pPersistentGroupsChangedBroadcast();
+                    flushSaveConfig();
 
                     mWifiMonitor.stopMonitoring(mWifiNative.getInterfaceName());
                     transitionTo(mP2pDisablingState);
                     break;
+                case SAVE_CONFIG:
+                    flushSaveConfig();
+                    break;
                 case WifiP2pManager.SET_DEVICE_NAME:
                 {
                     WifiP2pDevice d = (WifiP2pDevice) message.obj;
@@ -1771,10 +1803,14 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         /*
                          * update cache information and set network id to mGroup.
                          */
-                        updatePersistentNetworks(RELOAD);
+                        updatePersistentNetworks(NO_RELOAD);
                         String devAddr = mGroup.getOwner().deviceAddress;
-                        mGroup.setNetworkId(mGroups.getNetworkId(devAddr,
-                                mGroup.getNetworkName()));
+                        int netId = mGroups.getNetworkId(devAddr, mGroup.getNetworkName());
+                        if (netId < 0) {
+                            updatePersistentNetworks(RELOAD);
+                            netId = mGroups.getNetworkId(devAddr, mGroup.getNetworkName());
+                        }
+                        mGroup.setNetworkId(netId);
                     }
 
                     if (mGroup.isGroupOwner()) {
@@ -2335,6 +2371,12 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         pw.println("mWifiP2pInfo " + mWifiP2pInfo);
         pw.println("mGroup " + mGroup);
         pw.println("mSavedPeerConfig " + mSavedPeerConfig);
+        pw.println("mPeers " + mPeers.getDeviceList().size() + " changes "
+                + mPeersChangedCoalescer.getChangeCount() + " broadcasts "
+                + mPeersChangedCoalescer.getBroadcastCount());
+        pw.println("mGroups " + mGroups.getGroupList().size() + " mLastSyncedNetId "
+                + mPersistentGroupSync.getLastSyncedNetId() + " full syncs "
+                + mPersistentGroupSync.getFullSyncCount() + " config saves " + mSaveConfigCount);
         pw.println();
     }
 
@@ -2372,9 +2414,24 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         mContext.sendStickyBroadcastAsUser(intent, UserHandle.ALL);
     }
 
+    /**
+     * Schedule a peers changed broadcast. Changes made within PEERS_CHANGED_MIN_INTERVAL_MS of
+     * the previous broadcast, or while handling the same burst of events, are sent together.
+     */
     private void sendPeersChangedBroadcast() {
+        long delayMs = mPeersChangedCoalescer.onPeersChanged();
+        if (delayMs >= 0) {
+            sendMessageDelayed(PEERS_CHANGED_BROADCAST, delayMs);
+        }
+    }
+
+    private void flushPeersChangedBroadcast() {
+        removeMessages(PEERS_CHANGED_BROADCAST);
+        WifiP2pDeviceList peers = mPeersChangedCoalescer.flush(mPeers);
+        if (peers == null) return;
+
         final Intent intent = new Intent(WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION);
-        intent.putExtra(WifiP2pManager.EXTRA_P2P_DEVICE_LIST, new WifiP2pDeviceList(mPeers));
+        intent.putExtra(WifiP2pManager.EXTRA_P2P_DEVICE_LIST, peers);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
         mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
     }
@@ -2605,75 +2662,36 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
      * wpa_supplicant and mGroups.
      */
     private void updatePersistentNetworks(boolean reload) {
-        String listStr = mWifiNative.listNetworks();
-        if (listStr == null) return;
-
-        boolean isSaveRequired = false;
-        String[] lines = listStr.split("\n");
-        if (lines == null) return;
-
-        if (reload) mGroups.clear();
-
-        // Skip the first line, which is a header
-        for (int i = 1; i < lines.length; i++) {
-            String[] result = lines[i].split("\t");
-            if (result == null || result.length < 4) {
-                continue;
-            }
-            // network-id | ssid | bssid | flags
-            int netId = -1;
-            String ssid = result[1];
-            String bssid = result[2];
-            String flags = result[3];
-            try {
-                netId = Integer.parseInt(result[0]);
-            } catch(NumberFormatException e) {
-                e.printStackTrace();
-                continue;
-            }
-
-            if (flags.indexOf("[CURRENT]") != -1) {
-                continue;
-            }
-            if (flags.indexOf("[P2P-PERSISTENT]") == -1) {
-                /*
-                 * The unused profile is sometimes remained when the p2p group formation is failed.
-                 * So, we clean up the p2p group here.
-                 */
-                if (DBG) logd("clean up the unused persistent group. netId=" + netId);
-                mWifiNative.removeNetwork(netId);
-                isSaveRequired = true;
-                continue;
-            }
-
-            if (mGroups.contains(netId)) {
-                continue;
-            }
-
-            WifiP2pGroup group = new WifiP2pGroup();
-            group.setNetworkId(netId);
-            group.setNetworkName(ssid);
-            String mode = mWifiNative.getNetworkVariable(netId, "mode");
-            if (mode != null && mode.equals("3")) {
-                group.setIsGroupOwner(true);
-            }
-            if (bssid.equalsIgnoreCase(mThisDevice.deviceAddress)) {
-                group.setOwner(mThisDevice);
-            } else {
-                WifiP2pDevice device = new WifiP2pDevice();
-                device.deviceAddress = bssid;
-                group.setOwner(device);
-            }
-            mGroups.add(group);
-            isSaveRequired = true;
+        int result = mPersistentGroupSync.sync(reload, mThisDevice);
+        if ((result & PersistentGroupSync.SAVE_REQUIRED) != 0) {
+            scheduleSaveConfig();
         }
-
-        if (reload || isSaveRequired) {
-            mWifiNative.saveConfig();
+        if ((result & PersistentGroupSync.GROUPS_CHANGED) != 0) {
             sendP2pPersistentGroupsChangedBroadcast();
         }
     }
 
+    /**
+     * Save the supplicant configuration after SAVE_CONFIG_DELAY_MS, together with any other
+     * changes made until then.
+     */
+    private void scheduleSaveConfig() {
+        if (mSaveConfigPending) return;
+        mSaveConfigPending = true;
+        sendMessageDelayed(SAVE_CONFIG, SAVE_CONFIG_DELAY_MS);
+    }
+
+    /**
+     * Save the supplicant configuration now if a save is pending.
+     */
+    private void flushSaveConfig() {
+        if (!mSaveConfigPending) return;
+        mSaveConfigPending = false;
+        removeMessages(SAVE_CONFIG);
+        mSaveConfigCount++;
+        mWifiNative.saveConfig();
+    }
+
     /**
      * A config is valid if it has a peer address that has already been
      * discovered
@@ -2798,13 +2816,18 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         if (deviceAddress == null) return -1;
 
         Collection<WifiP2pGroup> groups = mGroups.getGroupList();
+        int[] netIds = new int[groups.size()];
+        int i = 0;
         for (WifiP2pGroup group : groups) {
-            int netId = group.getNetworkId();
-            String[] p2pClientList = getClientList(netId);
-            if (p2pClientList == null) continue;
-            for (String client : p2pClientList) {
+            netIds[i++] = group.getNetworkId();
+        }
+        // One call for the client lists of all groups
+        String[] p2pClientLists = mWifiNative.getNetworkVariables(netIds, "p2p_client_list");
+        for (i = 0; i < netIds.length; i++) {
+            if (p2pClientLists == null || p2pClientLists[i] == null) continue;
+            for (String client : p2pClientLists[i].split(" ")) {
                 if (deviceAddress.equalsIgnoreCase(client)) {
-                    return netId;
+                    return netIds[i];
                 }
             }
         }
@@ -2863,7 +2886,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         }
         mWifiNative.setNetworkVariable(netId,
                 "p2p_client_list", modifiedClientList.toString());
-        mWifiNative.saveConfig();
+        scheduleSaveConfig();
         return true;
     }
 
@@ -3058,6 +3081,15 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         mReplyChannel.replyToMessage(msg, dstMsg);
     }
 
+    private void replyToMessage(Message msg, int what, int arg1, Object obj) {
+        if (msg.replyTo == null) return;
+        Message dstMsg = obtainMessage(msg);
+        dstMsg.what = what;
+        dstMsg.arg1 = arg1;
+        dstMsg.obj = obj;
+        mReplyChannel.replyToMessage(msg, dstMsg);
+    }
+
     private void replyToMessage(Message msg, int what, Object obj) {
         if (msg.replyTo == null) return;
         Message dstMsg = obtainMessage(msg);
@@ -3344,6 +3376,274 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
 
     }
 
+    /**
+     * Keeps a persistent group list in sync with the P2P persistent networks of the supplicant,
+     * and remembers the group owner mode of each network so that it is read only once.
+     */
+    @VisibleForTesting
+    static class PersistentGroupSync {
+        /* Flags returned by sync() */
+        static final int GROUPS_CHANGED = 1 << 0;
+        static final int SAVE_REQUIRED = 1 << 1;
+
+        private final WifiNative mWifiNative;
+        private final WifiP2pGroupList mGroups;
+        /* Persistent networks as last read from the supplicant, by network id; only the name,
+         * owner address and group owner mode are set. Spares the mode lookup when a network is
+         * read again, also across full listings. An entry is dropped when its network is
+         * removed, and replaced when the network's name or owner changes. */
+        private final SparseArray<WifiP2pGroup> mModes = new SparseArray<WifiP2pGroup>();
+        /* Highest network id read by sync() below which all networks are known. The
+         * supplicant gives a new network the highest id in use plus one, so ids above this mark
+         * are new, but the id of a removed network can be given out again if it was the
+         * highest; forget() lowers the mark below it. */
+        private int mLastSyncedNetId = -1;
+        private int mFullSyncCount = 0;
+
+        PersistentGroupSync(WifiNative wifiNative, WifiP2pGroupList groups) {
+            mWifiNative = wifiNative;
+            mGroups = groups;
+        }
+
+        int getLastSyncedNetId() {
+            return mLastSyncedNetId;
+        }
+
+        int getFullSyncCount() {
+            return mFullSyncCount;
+        }
+
+        /**
+         * With |reload| the whole network list is read and the group list is rebuilt from it;
+         * this is only needed when the supplicant may have changed its networks behind our
+         * back. Otherwise only the networks above mLastSyncedNetId are read, which relies on
+         * the supplicant's id allocation; a caller that does not find the network it expects
+         * falls back to a reload.
+         *
+         * @return GROUPS_CHANGED and SAVE_REQUIRED as they apply
+         */
+        int sync(boolean reload, WifiP2pDevice thisDevice) {
+            String listStr = reload ? mWifiNative.listNetworks()
+                    : mWifiNative.listNetworks(mLastSyncedNetId);
+            if (listStr == null) return 0;
+
+            boolean isSaveRequired = false;
+            boolean groupsChanged = false;
+            String[] lines = listStr.split("\n");
+            if (lines == null) return 0;
+
+            if (reload) {
+                mGroups.clear();
+                mLastSyncedNetId = -1;
+                mFullSyncCount++;
+                groupsChanged = true;
+            }
+            int lastSyncedNetId = mLastSyncedNetId;
+            int firstSkippedNetId = Integer.MAX_VALUE;
+            // Networks in a full listing; the modes of all others are dropped after the loop
+            SparseBooleanArray listedNetIds = new SparseBooleanArray();
+            // Groups of networks not seen before, whose modes are read together after the loop
+            List<WifiP2pGroup> unknownModeGroups = new ArrayList<WifiP2pGroup>();
+
+            // Skip the first line, which is a header
+            for (int i = 1; i < lines.length; i++) {
+                String[] result = lines[i].split("\t");
+                if (result == null || result.length < 4) {
+                    continue;
+                }
+                // network-id | ssid | bssid | flags
+                int netId = -1;
+                String ssid = result[1];
+                String bssid = result[2];
+                String flags = result[3];
+                try {
+                    netId = Integer.parseInt(result[0]);
+                } catch(NumberFormatException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                listedNetIds.put(netId, true);
+
+                if (flags.indexOf("[CURRENT]") != -1) {
+                    // Look at it again on the next synchronization.
+                    firstSkippedNetId = Math.min(firstSkippedNetId, netId);
+                    continue;
+                }
+                lastSyncedNetId = Math.max(lastSyncedNetId, netId);
+                if (flags.indexOf("[P2P-PERSISTENT]") == -1) {
+                    /*
+                     * The unused profile is sometimes remained when the p2p group formation is
+                     * failed. So, we clean up the p2p group here.
+                     */
+                    if (DBG) Slog.d(TAG, "clean up the unused persistent group. netId=" + netId);
+                    mWifiNative.removeNetwork(netId);
+                    mModes.remove(netId);
+                    // The id may be given to the next network added; read it again then.
+                    firstSkippedNetId = Math.min(firstSkippedNetId, netId);
+                    isSaveRequired = true;
+                    continue;
+                }
+
+                if (mGroups.contains(netId)) {
+                    continue;
+                }
+
+                WifiP2pGroup group = new WifiP2pGroup();
+                group.setNetworkId(netId);
+                group.setNetworkName(ssid);
+                if (bssid.equalsIgnoreCase(thisDevice.deviceAddress)) {
+                    group.setOwner(thisDevice);
+                } else {
+                    WifiP2pDevice device = new WifiP2pDevice();
+                    device.deviceAddress = bssid;
+                    group.setOwner(device);
+                }
+                WifiP2pGroup known = mModes.get(netId);
+                if (known != null && ssid.equals(known.getNetworkName())
+                        && bssid.equalsIgnoreCase(known.getOwner().deviceAddress)) {
+                    group.setIsGroupOwner(known.isGroupOwner());
+                } else {
+                    unknownModeGroups.add(group);
+                }
+                mGroups.add(group);
+                groupsChanged = true;
+            }
+            mLastSyncedNetId = Math.min(lastSyncedNetId, firstSkippedNetId - 1);
+            if (reload) {
+                for (int i = mModes.size() - 1; i >= 0; i--) {
+                    if (!listedNetIds.get(mModes.keyAt(i))) {
+                        mModes.removeAt(i);
+                    }
+                }
+            }
+            readModes(unknownModeGroups);
+
+            return (groupsChanged ? GROUPS_CHANGED : 0) | (isSaveRequired ? SAVE_REQUIRED : 0);
+        }
+
+        /**
+         * Forget a persistent network that was removed from the supplicant. Its id may be given
+         * to the next network added, so the next synchronization reads from below it.
+         */
+        void forget(int netId) {
+            mModes.remove(netId);
+            mLastSyncedNetId = Math.min(mLastSyncedNetId, netId - 1);
+        }
+
+        /**
+         * Read from the supplicant whether each of |groups| is a group owner profile, with one
+         * call for all of them, and remember the modes by network id until the network changes.
+         */
+        private void readModes(List<WifiP2pGroup> groups) {
+            if (groups.isEmpty()) return;
+
+            int[] netIds = new int[groups.size()];
+            for (int i = 0; i < netIds.length; i++) {
+                netIds[i] = groups.get(i).getNetworkId();
+            }
+            String[] modes = mWifiNative.getNetworkVariables(netIds, "mode");
+            for (int i = 0; i < netIds.length; i++) {
+                WifiP2pGroup group = groups.get(i);
+                group.setIsGroupOwner(modes != null && "3".equals(modes[i]));
+
+                WifiP2pGroup known = new WifiP2pGroup();
+                known.setNetworkName(group.getNetworkName());
+                WifiP2pDevice owner = new WifiP2pDevice();
+                owner.deviceAddress = group.getOwner().deviceAddress;
+                known.setOwner(owner);
+                known.setIsGroupOwner(group.isGroupOwner());
+                mModes.put(netIds[i], known);
+            }
+        }
+    }
+
+    /**
+     * Coalesces the changes of the peer list into peers changed broadcasts: the first change
+     * after a broadcast schedules the next one, no sooner than PEERS_CHANGED_MIN_INTERVAL_MS after
+     * it, and a broadcast is skipped if the peers are the same as in the previous one.
+     */
+    @VisibleForTesting
+    static class PeersChangedCoalescer {
+        private final Clock mClock;
+        /* Copy of the peer list as last broadcast */
+        private WifiP2pDeviceList mBroadcastPeers = new WifiP2pDeviceList();
+        private boolean mPending = false;
+        private long mLastBroadcastMs = 0;
+        private int mChangeCount = 0;
+        private int mBroadcastCount = 0;
+
+        PeersChangedCoalescer(Clock clock) {
+            mClock = clock;
+        }
+
+        int getChangeCount() {
+            return mChangeCount;
+        }
+
+        int getBroadcastCount() {
+            return mBroadcastCount;
+        }
+
+        /**
+         * Note a change of the peer list.
+         * @return the delay after which flush() is due, or -1 if it is already scheduled
+         */
+        long onPeersChanged() {
+            mChangeCount++;
+            if (mPending) return -1;
+            mPending = true;
+            long delayMs = mLastBroadcastMs + PEERS_CHANGED_MIN_INTERVAL_MS
+                    - mClock.elapsedRealtime();
+            return Math.max(0, delayMs);
+        }
+
+        /**
+         * Take the peer list for the scheduled broadcast.
+         * @return a copy of |peers| to broadcast, or null if they have not changed since the
+         *         previous broadcast
+         */
+        WifiP2pDeviceList flush(WifiP2pDeviceList peers) {
+            mPending = false;
+            if (samePeers(mBroadcastPeers, peers)) return null;
+
+            mBroadcastPeers = new WifiP2pDeviceList(peers);
+            mBroadcastCount++;
+            mLastBroadcastMs = mClock.elapsedRealtime();
+            return new WifiP2pDeviceList(peers);
+        }
+
+        private static boolean samePeers(WifiP2pDeviceList a, WifiP2pDeviceList b) {
+            if (a.getDeviceList().size() != b.getDeviceList().size()) return false;
+            for (WifiP2pDevice device : b.getDeviceList()) {
+                if (!samePeer(a.get(device.deviceAddress), device)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Compare the fields of two peers that clients can see.
+         */
+        @VisibleForTesting
+        static boolean samePeer(WifiP2pDevice a, WifiP2pDevice b) {
+            if (a == null || b == null) return a == b;
+            return a.status == b.status
+                    && a.wpsConfigMethodsSupported == b.wpsConfigMethodsSupported
+                    && a.deviceCapability == b.deviceCapability
+                    && a.groupCapability == b.groupCapability
+                    && TextUtils.equals(a.deviceAddress, b.deviceAddress)
+                    && TextUtils.equals(a.deviceName, b.deviceName)
+                    && TextUtils.equals(a.primaryDeviceType, b.primaryDeviceType)
+                    && TextUtils.equals(a.secondaryDeviceType, b.secondaryDeviceType)
+                    && sameWfdInfo(a.wfdInfo, b.wfdInfo);
+        }
+
+        private static boolean sameWfdInfo(WifiP2pWfdInfo a, WifiP2pWfdInfo b) {
+            if (a == null || b == null) return a == b;
+            return a.isWfdEnabled() == b.isWfdEnabled()
+                    && TextUtils.equals(a.getDeviceInfoHex(), b.getDeviceInfoHex());
+        }
+    }
+
     /**
      * Information about a particular client and we track the service discovery requests
      * and the local services registered by the client.
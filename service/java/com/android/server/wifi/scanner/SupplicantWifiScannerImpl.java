@@ -549,7 +549,9 @@ public class SupplicantWifiScannerImpl extends WifiScannerImpl implements Handle
             }
 
             if (DBG) Log.d(TAG, "Polling scan data for scan: " + mLastScanSettings.scanId);
-            ArrayList<ScanDetail> nativeResults = mWifiNative.getScanResults();
+            // Scanner clients get ScanResults, which have no use for the ANQP attributes
+            ArrayList<ScanDetail> nativeResults =
+                    mWifiNative.getScanResults(WifiNative.SCAN_FETCH_STANDARD);
             List<ScanResult> singleScanResults = new ArrayList<>();
             List<ScanResult> backgroundScanResults = new ArrayList<>();
             List<ScanResult> hwPnoScanResults = new ArrayList<>();
@@ -557,6 +559,7 @@ public class SupplicantWifiScannerImpl extends WifiScannerImpl implements Handle
                 ScanResult result = nativeResults.get(i).getScanResult();
                 long timestamp_ms = result.timestamp / 1000; // convert us -> ms
                 if (timestamp_ms > mLastScanSettings.startTime) {
+                    result = nativeResults.get(i).getScanResultWithElements();
                     if (mLastScanSettings.backgroundScanActive) {
                         backgroundScanResults.add(result);
                     }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.util;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.IllegalFormatException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A replacement for {@link android.util.LocalLog} that defers all formatting to dump time.
+ *
+ * Each record holds a timestamp, the id of a format registered once with
+ * {@link #registerFormat}, and up to {@link #MAX_ARGS} arguments, either primitive or object
+ * references. Records are kept in segments of {@link #SEGMENT_RECORDS} slots, each allocated
+ * the first time the ring reaches it, so a log that is rarely written stays small. Logging
+ * copies the record into the next slot of the ring without taking a lock; the text is only
+ * built by {@link #dump}. Object arguments are kept by reference, so they should be immutable,
+ * e.g. Strings.
+ *
+ * Formats are shared by all logs, so components may register theirs in static initializers.
+ * Several components may also share one log, each with its own tag, and dump their records
+ * apart.
+ */
+public class BinaryLocalLog {
+    /** The most arguments a record can hold. */
+    public static final int MAX_ARGS = 4;
+
+    /** The most records allocated at once. */
+    public static final int SEGMENT_RECORDS = 256;
+
+    private static final long UNUSED = -1;
+
+    private static final Object sFormatLock = new Object();
+    private static final ArrayList<String> sFormats = new ArrayList<>();
+    private static final ArrayList<String> sFormatTags = new ArrayList<>();
+
+    /**
+     * The records of up to SEGMENT_RECORDS slots of the ring.
+     */
+    private static class Segment {
+        /** Sequence number of the record in each slot, or UNUSED while it is being written. */
+        final AtomicLongArray seqs;
+        final long[] times;
+        final int[] formatIds;
+        /** Bit i is set if argument i of the record is in longArgs rather than objectArgs. */
+        final int[] longArgMasks;
+        final long[] longArgs;
+        final Object[] objectArgs;
+
+        Segment(int records) {
+            seqs = new AtomicLongArray(records);
+            for (int i = 0; i < records; i++) {
+                seqs.set(i, UNUSED);
+            }
+            times = new long[records];
+            formatIds = new int[records];
+            longArgMasks = new int[records];
+            longArgs = new long[records * MAX_ARGS];
+            objectArgs = new Object[records * MAX_ARGS];
+        }
+    }
+
+    private final int mMaxRecords;
+
+    /** Sequence number of the next record. */
+    private final AtomicLong mNextSeq = new AtomicLong();
+    /** The segments of the ring, null until a record is written to them. */
+    private final AtomicReferenceArray<Segment> mSegments;
+
+    /**
+     * Creates a log that keeps the last |maxRecords| records.
+     */
+    public BinaryLocalLog(int maxRecords) {
+        if (maxRecords < 1) {
+            throw new IllegalArgumentException();
+        }
+        mMaxRecords = maxRecords;
+        mSegments = new AtomicReferenceArray<>(
+                (maxRecords + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+    }
+
+    /**
+     * Registers a {@link String#format} format for the records of |tag|, returning the id to
+     * log them with in any log. Registering the same tag and format again returns the same id.
+     * Long arguments are rendered as Longs, so take %d rather than %b or %c.
+     */
+    public static int registerFormat(String tag, String format) {
+        synchronized (sFormatLock) {
+            for (int i = 0; i < sFormats.size(); i++) {
+                if (sFormats.get(i).equals(format) && sFormatTags.get(i).equals(tag)) {
+                    return i;
+                }
+            }
+            sFormats.add(format);
+            sFormatTags.add(tag);
+            return sFormats.size() - 1;
+        }
+    }
+
+    public void log(int format) {
+        long seq = mNextSeq.getAndIncrement();
+        Segment segment = getSegment(seq);
+        int slot = startRecord(segment, seq, format, 0);
+        segment.seqs.set(slot, seq);
+    }
+
+    public void log(int format, Object a) {
+        long seq = mNextSeq.getAndIncrement();
+        Segment segment = getSegment(seq);
+        int slot = startRecord(segment, seq, format, 0);
+        segment.objectArgs[slot * MAX_ARGS] = a;
+        segment.seqs.set(slot, seq);
+    }
+
+    public void log(int format, long a) {
+        long seq = mNextSeq.getAndIncrement();
+        Segment segment = getSegment(seq);
+        int slot = startRecord(segment, seq, format, 0x1);
+        segment.longArgs[slot * MAX_ARGS] = a;
+        segment.seqs.set(slot, seq);
+    }
+
+    public void log(int format, Object a, Object b) {
+        long seq = mNextSeq.getAndIncrement();
+        Segment segment = getSegment(seq);
+        int slot = startRecord(segment, seq, format, 0);
+        int base = slot * MAX_ARGS;
+        segment.objectArgs[base] = a;
+        segment.objectArgs[base + 1] = b;
+        segment.seqs.set(slot, seq);
+    }
+
+    public void log(int format, Object a, long b) {
+        long seq = mNextSeq.getAndIncrement();
+        Segment segment = getSegment(seq);
+        int slot = startRecord(segment, seq, format, 0x2);
+        int base = slot * MAX_ARGS;
+        segment.objectArgs[base] = a;
+        segment.longArgs[base + 1] = b;
+        segment.seqs.set(slot, seq);
+    }
+
+    public void log(int format, Object a, Object b, Object c) {
+        long seq = mNextSeq.getAndIncrement();
+        Segment segment = getSegment(seq);
+        int slot = startRecord(segment, seq, format, 0);
+        int base = slot * MAX_ARGS;
+        segment.objectArgs[base] = a;
+        segment.objectArgs[base + 1] = b;
+        segment.objectArgs[base + 2] = c;
+        segment.seqs.set(slot, seq);
+    }
+
+    public void log(int format, Object a, Object b, Object c, Object d) {
+        long seq = mNextSeq.getAndIncrement();
+        Segment segment = getSegment(seq);
+        int slot = startRecord(segment, seq, format, 0);
+        int base = slot * MAX_ARGS;
+        segment.objectArgs[base] = a;
+        segment.objectArgs[base + 1] = b;
+        segment.objectArgs[base + 2] = c;
+        segment.objectArgs[base + 3] = d;
+        segment.seqs.set(slot, seq);
+    }
+
+    public void log(int format, Object a, Object b, Object c, long d) {
+        long seq = mNextSeq.getAndIncrement();
+        Segment segment = getSegment(seq);
+        int slot = startRecord(segment, seq, format, 0x8);
+        int base = slot * MAX_ARGS;
+        segment.objectArgs[base] = a;
+        segment.objectArgs[base + 1] = b;
+        segment.objectArgs[base + 2] = c;
+        segment.longArgs[base + 3] = d;
+        segment.seqs.set(slot, seq);
+    }
+
+    /**
+     * Returns the segment holding record |seq|, allocating it if no record was written to it
+     * yet. Only the last segment of the ring may be shorter than SEGMENT_RECORDS.
+     */
+    private Segment getSegment(long seq) {
+        int index = (int) (seq % mMaxRecords) / SEGMENT_RECORDS;
+        Segment segment = mSegments.get(index);
+        if (segment == null) {
+            int records = Math.min(SEGMENT_RECORDS, mMaxRecords - index * SEGMENT_RECORDS);
+            mSegments.compareAndSet(index, null, new Segment(records));
+            segment = mSegments.get(index);
+        }
+        return segment;
+    }
+
+    /**
+     * Claims the slot of record |seq| in |segment| and fills in everything but the arguments.
+     * The record is published by setting its slot's sequence number once the arguments are
+     * written.
+     */
+    private int startRecord(Segment segment, long seq, int format, int longArgMask) {
+        int slot = (int) (seq % mMaxRecords) % SEGMENT_RECORDS;
+        segment.seqs.set(slot, UNUSED);
+        segment.times[slot] = System.currentTimeMillis();
+        segment.formatIds[slot] = format;
+        segment.longArgMasks[slot] = longArgMask;
+        // drop references to the arguments of the record overwritten, so they can be collected
+        int base = slot * MAX_ARGS;
+        for (int i = 0; i < MAX_ARGS; i++) {
+            segment.objectArgs[base + i] = null;
+        }
+        return slot;
+    }
+
+    /**
+     * Dumps all records, oldest first, each with its tag.
+     */
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        dump(pw, null);
+    }
+
+    /**
+     * Dumps the records of |tag|, oldest first, or of all tags if it is null. Records written
+     * while dumping may be left out.
+     */
+    public void dump(PrintWriter pw, String tag) {
+        String[] formats;
+        String[] formatTags;
+        synchronized (sFormatLock) {
+            formats = sFormats.toArray(new String[sFormats.size()]);
+            formatTags = sFormatTags.toArray(new String[sFormatTags.size()]);
+        }
+        Calendar calendar = Calendar.getInstance();
+        Object[] args = new Object[MAX_ARGS];
+        long end = mNextSeq.get();
+        for (long seq = Math.max(0, end - mMaxRecords); seq < end; seq++) {
+            Segment segment = mSegments.get((int) (seq % mMaxRecords) / SEGMENT_RECORDS);
+            int slot = (int) (seq % mMaxRecords) % SEGMENT_RECORDS;
+            if (segment == null || segment.seqs.get(slot) != seq) {
+                continue;
+            }
+            long time = segment.times[slot];
+            int format = segment.formatIds[slot];
+            int longArgMask = segment.longArgMasks[slot];
+            int base = slot * MAX_ARGS;
+            for (int i = 0; i < MAX_ARGS; i++) {
+                args[i] = (longArgMask & (1 << i)) != 0
+                        ? Long.valueOf(segment.longArgs[base + i]) : segment.objectArgs[base + i];
+            }
+            if (segment.seqs.get(slot) != seq || format < 0 || format >= formats.length) {
+                // overwritten while it was being read
+                continue;
+            }
+            if (tag != null && !tag.equals(formatTags[format])) {
+                continue;
+            }
+
+            calendar.setTimeInMillis(time);
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%tm-%td %tH:%tM:%tS.%tL", calendar, calendar, calendar,
+                    calendar, calendar, calendar));
+            sb.append(" - ");
+            if (tag == null) {
+                sb.append(formatTags[format]).append(": ");
+            }
+            try {
+                sb.append(String.format(formats[format], args));
+            } catch (IllegalFormatException e) {
+                sb.append(formats[format]);
+                for (Object arg : args) {
+                    sb.append(' ').append(arg);
+                }
+            }
+            pw.println(sb.toString());
+        }
+    }
+}
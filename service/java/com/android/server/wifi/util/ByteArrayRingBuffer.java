@@ -16,16 +16,35 @@
 
 package com.android.server.wifi.util;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 
 /**
  * A ring buffer where each element of the ring is itself a byte array.
+ *
+ * The data of all elements is held in a single circular array of |maxBytes| bytes, allocated
+ * up front, with the offset and length of each element kept in a separate circular index. Adding
+ * and evicting an element costs O(1) plus the copy of the added data, and no per element objects
+ * are allocated.
  */
 public class ByteArrayRingBuffer {
-    private ArrayList<byte[]> mArrayList;
+    private static final int INITIAL_INDEX_CAPACITY = 16;
+
+    private byte[] mData;
     private int mMaxBytes;
+    private int mStart;             // offset of the oldest byte in mData
     private int mBytesUsed;
 
+    private int[] mOffsets;         // circular index of element offsets into mData
+    private int[] mLengths;         // circular index of element lengths
+    private int mFirstElement;      // position of the oldest element in the index
+    private int mNumElements;
+
+    /**
+     * True if mData and the index are referenced by a {@link Snapshot}. They are copied before
+     * the next modification, so that snapshots never change.
+     */
+    private boolean mShared;
+
     /**
      * Creates a ring buffer that holds at most |maxBytes| of data. The overhead for each element
      * is not included in this limit.
@@ -35,9 +54,10 @@ public class ByteArrayRingBuffer {
         if (maxBytes < 1) {
             throw new IllegalArgumentException();
         }
-        mArrayList = new ArrayList<byte[]>();
+        mData = new byte[maxBytes];
         mMaxBytes = maxBytes;
-        mBytesUsed = 0;
+        mOffsets = new int[INITIAL_INDEX_CAPACITY];
+        mLengths = new int[INITIAL_INDEX_CAPACITY];
     }
 
     /**
@@ -46,6 +66,7 @@ public class ByteArrayRingBuffer {
      * <p><b>Note:</b> will fail if |newData| itself exceeds the size limit for this buffer.
      * Will first remove all existing entries in this case. (This guarantees that the ring buffer
      * always represents a contiguous sequence of data.)
+     * <p>The data is copied into the ring; the caller may reuse |newData| afterwards.
      * @param newData data to be added to the ring
      * @return true if the data was added
      */
@@ -55,18 +76,36 @@ public class ByteArrayRingBuffer {
             return false;
         }
 
-        mArrayList.add(newData);
+        if (mShared || mNumElements == mOffsets.length) {
+            reallocate(mMaxBytes,
+                    mNumElements == mOffsets.length ? mOffsets.length * 2 : mOffsets.length);
+        }
+
+        int offset = wrap(mStart + mBytesUsed);
+        int firstPart = Math.min(newData.length, mData.length - offset);
+        System.arraycopy(newData, 0, mData, offset, firstPart);
+        System.arraycopy(newData, firstPart, mData, 0, newData.length - firstPart);
+
+        int index = (mFirstElement + mNumElements) % mOffsets.length;
+        mOffsets[index] = offset;
+        mLengths[index] = newData.length;
+        mNumElements++;
         mBytesUsed += newData.length;
         return true;
     }
 
     /**
-     * Returns the |i|-th element of the ring. The element retains its position in the ring.
+     * Returns a copy of the |i|-th element of the ring. The element retains its position in the
+     * ring.
      * @param i
      * @return the requested element
      */
     public byte[] getBuffer(int i) {
-        return mArrayList.get(i);
+        if (i < 0 || i >= mNumElements) {
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + mNumElements);
+        }
+        int index = (mFirstElement + i) % mOffsets.length;
+        return copyOut(mData, mOffsets[index], mLengths[index]);
     }
 
     /**
@@ -74,7 +113,7 @@ public class ByteArrayRingBuffer {
      * @return the number of elements present
      */
     public int getNumBuffers() {
-        return mArrayList.size();
+        return mNumElements;
     }
 
     /**
@@ -84,16 +123,149 @@ public class ByteArrayRingBuffer {
     public void resize(int maxBytes) {
         pruneToSize(maxBytes);
         mMaxBytes = maxBytes;
+        if (mData.length != maxBytes) {
+            reallocate(maxBytes, mOffsets.length);
+        }
+    }
+
+    /**
+     * Returns an immutable view of the current contents of the ring.
+     *
+     * The snapshot shares storage with the ring, which copies its storage before it is next
+     * modified. If the ring is less than half full, the data is instead copied into a compact
+     * array right away, so that snapshots never pin much more memory than the data they hold.
+     */
+    public Snapshot snapshot() {
+        if (mBytesUsed < mData.length / 2) {
+            byte[] data = new byte[mBytesUsed];
+            int[] offsets = new int[mNumElements];
+            int[] lengths = new int[mNumElements];
+            int offset = 0;
+            for (int i = 0; i < mNumElements; i++) {
+                int index = (mFirstElement + i) % mOffsets.length;
+                copyOut(mData, mOffsets[index], mLengths[index], data, offset);
+                offsets[i] = offset;
+                lengths[i] = mLengths[index];
+                offset += mLengths[index];
+            }
+            return new Snapshot(data, 0, mBytesUsed, offsets, lengths, 0, mNumElements);
+        }
+        mShared = true;
+        return new Snapshot(mData, mStart, mBytesUsed, mOffsets, mLengths, mFirstElement,
+                mNumElements);
     }
 
     private void pruneToSize(int sizeBytes) {
-        int newBytesUsed = mBytesUsed;
-        int i = 0;
-        while (i < mArrayList.size() && newBytesUsed > sizeBytes) {
-            newBytesUsed -= mArrayList.get(i).length;
-            i++;
+        while (mNumElements > 0 && mBytesUsed > sizeBytes) {
+            int length = mLengths[mFirstElement];
+            mStart = wrap(mStart + length);
+            mBytesUsed -= length;
+            mFirstElement = (mFirstElement + 1) % mOffsets.length;
+            mNumElements--;
+        }
+        if (mNumElements == 0) {
+            mStart = 0;
+        }
+    }
+
+    /**
+     * Moves the contents into new storage of the given sizes, with the oldest byte and the
+     * oldest element at position 0.
+     */
+    private void reallocate(int dataCapacity, int indexCapacity) {
+        byte[] data = new byte[dataCapacity];
+        int[] offsets = new int[indexCapacity];
+        int[] lengths = new int[indexCapacity];
+        copyOut(mData, mStart, mBytesUsed, data, 0);
+        int offset = 0;
+        for (int i = 0; i < mNumElements; i++) {
+            int index = (mFirstElement + i) % mOffsets.length;
+            offsets[i] = offset;
+            lengths[i] = mLengths[index];
+            offset += mLengths[index];
+        }
+        mData = data;
+        mOffsets = offsets;
+        mLengths = lengths;
+        mStart = 0;
+        mFirstElement = 0;
+        mShared = false;
+    }
+
+    private int wrap(int offset) {
+        return offset >= mData.length ? offset - mData.length : offset;
+    }
+
+    private static byte[] copyOut(byte[] ring, int offset, int length) {
+        byte[] out = new byte[length];
+        copyOut(ring, offset, length, out, 0);
+        return out;
+    }
+
+    private static void copyOut(byte[] ring, int offset, int length, byte[] out, int outOffset) {
+        int firstPart = Math.min(length, ring.length - offset);
+        System.arraycopy(ring, offset, out, outOffset, firstPart);
+        System.arraycopy(ring, 0, out, outOffset + firstPart, length - firstPart);
+    }
+
+    /**
+     * The contents of a ByteArrayRingBuffer at the time {@link #snapshot()} was called.
+     */
+    public static class Snapshot {
+        private final byte[] mData;
+        private final int mStart;
+        private final int mBytesUsed;
+        private final int[] mOffsets;
+        private final int[] mLengths;
+        private final int mFirstElement;
+        private final int mNumElements;
+
+        private Snapshot(byte[] data, int start, int bytesUsed, int[] offsets, int[] lengths,
+                int firstElement, int numElements) {
+            mData = data;
+            mStart = start;
+            mBytesUsed = bytesUsed;
+            mOffsets = offsets;
+            mLengths = lengths;
+            mFirstElement = firstElement;
+            mNumElements = numElements;
+        }
+
+        public int getNumBuffers() {
+            return mNumElements;
+        }
+
+        /**
+         * Returns a copy of the |i|-th element.
+         */
+        public byte[] getBuffer(int i) {
+            if (i < 0 || i >= mNumElements) {
+                throw new IndexOutOfBoundsException("Index " + i + ", size " + mNumElements);
+            }
+            int index = (mFirstElement + i) % mOffsets.length;
+            return copyOut(mData, mOffsets[index], mLengths[index]);
+        }
+
+        /**
+         * Returns the total number of bytes in all elements.
+         */
+        public int getNumBytes() {
+            return mBytesUsed;
+        }
+
+        /**
+         * Returns the data of all elements, oldest first, as at most two buffers over the
+         * snapshot's storage. The buffers must not be modified.
+         */
+        public ByteBuffer[] getData() {
+            int firstPart = Math.min(mBytesUsed, mData.length - mStart);
+            if (firstPart == mBytesUsed) {
+                return new ByteBuffer[] { ByteBuffer.wrap(mData, mStart, mBytesUsed) };
+            }
+            return new ByteBuffer[] {
+                    ByteBuffer.wrap(mData, mStart, firstPart),
+                    ByteBuffer.wrap(mData, 0, mBytesUsed - firstPart)
+            };
         }
-        mArrayList.subList(0, i).clear();
-        mBytesUsed = newBytesUsed;
     }
 }
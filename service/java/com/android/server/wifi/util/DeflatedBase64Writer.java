@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.util;
+
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes binary dump data to a PrintWriter as base64 text.
+ *
+ * The data is deflated once into a buffer that is never allowed to grow to the size of the
+ * data; if the deflated form does not fit, the data is written as is. The base64 encoding is
+ * produced in fixed size chunks, and data made of several arrays is never concatenated.
+ */
+public class DeflatedBase64Writer {
+    private static final int CHUNK_SIZE = 4096;
+    /** Largest array size that can be safely allocated. */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private DeflatedBase64Writer() {
+    }
+
+    /**
+     * Write the base64 encoding of |data|, or of its deflated form if that is shorter. The output
+     * is the same as Base64.encodeToString(..., Base64.DEFAULT) of the chosen form.
+     * @param pw the writer to write to
+     * @param data the data to write; the arrays are treated as one contiguous sequence
+     */
+    public static void write(PrintWriter pw, byte[]... data) {
+        ByteBuffer[] buffers = new ByteBuffer[data.length];
+        for (int i = 0; i < data.length; i++) {
+            buffers[i] = ByteBuffer.wrap(data[i]);
+        }
+        write(pw, buffers);
+    }
+
+    /**
+     * Write the remaining bytes of array backed buffers, as {@link #write(PrintWriter, byte[]...)}
+     * does. The positions of the buffers are not changed.
+     */
+    public static void write(PrintWriter pw, ByteBuffer... data) {
+        long rawLength = 0;
+        for (ByteBuffer chunk : data) {
+            rawLength += chunk.remaining();
+        }
+        ByteBuffer deflated = deflate(data, rawLength);
+
+        Base64OutputStream out = new Base64OutputStream(
+                new PrintWriterOutputStream(pw), Base64.DEFAULT);
+        try {
+            if (deflated != null) {
+                out.write(deflated.array(), 0, deflated.limit());
+            } else {
+                for (ByteBuffer chunk : data) {
+                    out.write(chunk.array(), chunk.arrayOffset() + chunk.position(),
+                            chunk.remaining());
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            // PrintWriterOutputStream never throws; PrintWriter records its own errors.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write |data| as is, one character per byte. Meant for data already known to be printable
+     * ASCII, see {@link StringUtil#isAsciiPrintable(byte[])}.
+     */
+    public static void writeAscii(PrintWriter pw, byte[] data) {
+        new PrintWriterOutputStream(pw).write(data, 0, data.length);
+    }
+
+    /**
+     * Deflate |data|, giving up as soon as the output reaches |rawLength| bytes.
+     * @return the deflated bytes, from 0 to the limit of the buffer, or null if they are not
+     *         shorter than |rawLength|
+     */
+    private static ByteBuffer deflate(ByteBuffer[] data, long rawLength) {
+        int capacity = (int) Math.min(rawLength - 1, MAX_ARRAY_SIZE);
+        if (capacity <= 0) {
+            return null;
+        }
+        byte[] out = new byte[Math.min(capacity, CHUNK_SIZE)];
+        int length = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (ByteBuffer chunk : data) {
+                deflater.setInput(chunk.array(), chunk.arrayOffset() + chunk.position(),
+                        chunk.remaining());
+                while (!deflater.needsInput()) {
+                    out = ensureSpace(out, length, capacity);
+                    if (out == null) {
+                        return null;
+                    }
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out = ensureSpace(out, length, capacity);
+                if (out == null) {
+                    return null;
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+        } finally {
+            deflater.end();
+        }
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    /**
+     * Make room after the first |length| bytes of |out|, growing it up to |capacity| bytes.
+     * @return |out| or a larger copy of it, or null if it is full at |capacity| bytes
+     */
+    private static byte[] ensureSpace(byte[] out, int length, int capacity) {
+        if (length < out.length) {
+            return out;
+        }
+        if (length == capacity) {
+            return null;
+        }
+        return Arrays.copyOf(out, (int) Math.min(2L * length, capacity));
+    }
+
+    /**
+     * Passes bytes through to a PrintWriter as ISO-8859-1 characters. Closing the stream does not
+     * close the writer.
+     */
+    private static class PrintWriterOutputStream extends OutputStream {
+        private final PrintWriter mWriter;
+        private final char[] mChars = new char[CHUNK_SIZE];
+
+        PrintWriterOutputStream(PrintWriter writer) {
+            mWriter = writer;
+        }
+
+        @Override
+        public void write(int b) {
+            mWriter.write(b & 0xff);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int count = Math.min(len, mChars.length);
+                for (int i = 0; i < count; i++) {
+                    mChars[i] = (char) (b[off + i] & 0xff);
+                }
+                mWriter.write(mChars, 0, count);
+                off += count;
+                len -= count;
+            }
+        }
+    }
+}
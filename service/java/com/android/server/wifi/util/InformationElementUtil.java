@@ -29,44 +29,262 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 
 public class InformationElementUtil {
 
     public static InformationElement[] parseInformationElements(byte[] bytes) {
-        if (bytes == null) {
-            return new InformationElement[0];
+        return ElementView.parse(bytes).toInformationElements();
+    }
+
+    /**
+     * A parser for the payload of one type of Information Element.
+     */
+    public interface ElementDecoder {
+        /**
+         * Parse the element payload, from the position to the limit of payload.
+         */
+        void from(ByteBuffer payload);
+    }
+
+    /**
+     * Read-only index over a buffer of encoded Information Elements.
+     *
+     * Only the id, offset and length of every element is recorded, in a single int array. The
+     * payloads are never copied; getPayload() returns a little endian view into the original
+     * buffer, which the typed parsers below decode directly. A view over elements that have
+     * already been split up references the payload array of each element instead.
+     */
+    public static class ElementView {
+        private static final int ENTRY_SIZE = 3;
+        private static final int ID = 0;
+        private static final int OFFSET = 1;
+        private static final int LENGTH = 2;
+
+        private static final byte[] NO_BYTES = new byte[0];
+        private static final ElementView EMPTY = new ElementView(NO_BYTES, new int[0]);
+
+        // Either one buffer holding all the payloads, or one payload array per element
+        private final byte[] mBytes;
+        private final byte[][] mPayloads;
+        private final int[] mEntries;
+
+        private ElementView(byte[] bytes, int[] entries) {
+            mBytes = bytes;
+            mPayloads = null;
+            mEntries = entries;
+        }
+
+        private ElementView(byte[][] payloads, int[] entries) {
+            mBytes = null;
+            mPayloads = payloads;
+            mEntries = entries;
+        }
+
+        /**
+         * Index the elements in a raw IE buffer. The buffer is referenced, not copied, and must
+         * not be modified afterwards.
+         */
+        public static ElementView parse(byte[] bytes) {
+            if (bytes == null) {
+                return EMPTY;
+            }
+            int count = scan(bytes, null);
+            int[] entries = new int[count * ENTRY_SIZE];
+            scan(bytes, entries);
+            return new ElementView(bytes, entries);
+        }
+
+        /**
+         * Build a view over elements that have already been split up, e.g. the
+         * informationElements of a ScanResult. The payload arrays are referenced, not copied,
+         * and must not be modified afterwards.
+         */
+        public static ElementView of(InformationElement[] ies) {
+            if (ies == null || ies.length == 0) {
+                return EMPTY;
+            }
+            byte[][] payloads = new byte[ies.length][];
+            int[] entries = new int[ies.length * ENTRY_SIZE];
+            for (int n = 0; n < ies.length; n++) {
+                payloads[n] = ies[n].bytes != null ? ies[n].bytes : NO_BYTES;
+                entries[n * ENTRY_SIZE + ID] = ies[n].id;
+                entries[n * ENTRY_SIZE + LENGTH] = payloads[n].length;
+            }
+            return new ElementView(payloads, entries);
+        }
+
+        /**
+         * Walk the elements of bytes, recording them into entries if it is not null.
+         * @return the number of well formed elements.
+         */
+        private static int scan(byte[] bytes, int[] entries) {
+            int count = 0;
+            int position = 0;
+            boolean foundSsid = false;
+            while (bytes.length - position > 1) {
+                int eid = bytes[position] & Constants.BYTE_MASK;
+                int elementLength = bytes[position + 1] & Constants.BYTE_MASK;
+                position += 2;
+
+                if (elementLength > bytes.length - position
+                        || (eid == InformationElement.EID_SSID && foundSsid)) {
+                    // APs often pad the data with bytes that happen to match that of the EID_SSID
+                    // marker.  This is not due to a known issue for APs to incorrectly send the
+                    // SSID name multiple times.
+                    break;
+                }
+                if (eid == InformationElement.EID_SSID) {
+                    foundSsid = true;
+                }
+
+                if (entries != null) {
+                    entries[count * ENTRY_SIZE + ID] = eid;
+                    entries[count * ENTRY_SIZE + OFFSET] = position;
+                    entries[count * ENTRY_SIZE + LENGTH] = elementLength;
+                }
+                count++;
+                position += elementLength;
+            }
+            return count;
+        }
+
+        public int size() {
+            return mEntries.length / ENTRY_SIZE;
+        }
+
+        public int getId(int index) {
+            return mEntries[index * ENTRY_SIZE + ID];
+        }
+
+        public int getLength(int index) {
+            return mEntries[index * ENTRY_SIZE + LENGTH];
+        }
+
+        /**
+         * @return the index of the first element with the given id, or -1 if there is none.
+         */
+        public int indexOf(int id) {
+            return indexOf(id, 0);
+        }
+
+        /**
+         * @return the index of the first element with the given id at or after fromIndex, or -1
+         * if there is none.
+         */
+        public int indexOf(int id, int fromIndex) {
+            for (int n = fromIndex * ENTRY_SIZE; n < mEntries.length; n += ENTRY_SIZE) {
+                if (mEntries[n + ID] == id) {
+                    return n / ENTRY_SIZE;
+                }
+            }
+            return -1;
         }
-        ByteBuffer data = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
 
-        ArrayList<InformationElement> infoElements = new ArrayList<>();
-        boolean found_ssid = false;
-        while (data.remaining() > 1) {
-            int eid = data.get() & Constants.BYTE_MASK;
-            int elementLength = data.get() & Constants.BYTE_MASK;
+        public boolean contains(int id) {
+            return indexOf(id) >= 0;
+        }
 
-            if (elementLength > data.remaining() || (eid == InformationElement.EID_SSID
-                    && found_ssid)) {
-                // APs often pad the data with bytes that happen to match that of the EID_SSID
-                // marker.  This is not due to a known issue for APs to incorrectly send the SSID
-                // name multiple times.
-                break;
+        /**
+         * @return a little endian buffer positioned at the start of the payload of the element
+         * at index and limited to its end. The buffer shares content with the view.
+         */
+        public ByteBuffer getPayload(int index) {
+            return ByteBuffer.wrap(getBuffer(index), mEntries[index * ENTRY_SIZE + OFFSET],
+                    mEntries[index * ENTRY_SIZE + LENGTH]).slice()
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * @return a copy of the payload of the element at index.
+         */
+        public byte[] getBytes(int index) {
+            int offset = mEntries[index * ENTRY_SIZE + OFFSET];
+            return Arrays.copyOfRange(getBuffer(index), offset,
+                    offset + mEntries[index * ENTRY_SIZE + LENGTH]);
+        }
+
+        private byte[] getBuffer(int index) {
+            return mPayloads != null ? mPayloads[index] : mBytes;
+        }
+
+        /**
+         * Copy the elements with any of the given ids, in their original order, into a view
+         * over a buffer of their own, so that holding on to it does not keep the rest of the
+         * IE buffer alive. A view over split up elements keeps referencing their payloads.
+         */
+        public ElementView retain(int... ids) {
+            int count = 0;
+            int total = 0;
+            for (int n = 0; n < size(); n++) {
+                if (containsId(ids, getId(n))) {
+                    count++;
+                    total += getLength(n);
+                }
+            }
+            if (count == 0) {
+                return EMPTY;
+            }
+            if (mPayloads != null) {
+                byte[][] payloads = new byte[count][];
+                int[] entries = new int[count * ENTRY_SIZE];
+                int entry = 0;
+                for (int n = 0; n < size(); n++) {
+                    if (containsId(ids, getId(n))) {
+                        payloads[entry / ENTRY_SIZE] = mPayloads[n];
+                        entries[entry + ID] = getId(n);
+                        entries[entry + LENGTH] = getLength(n);
+                        entry += ENTRY_SIZE;
+                    }
+                }
+                return new ElementView(payloads, entries);
             }
-            if (eid == InformationElement.EID_SSID) {
-                found_ssid = true;
+            byte[] bytes = new byte[total];
+            int[] entries = new int[count * ENTRY_SIZE];
+            int offset = 0;
+            int entry = 0;
+            for (int n = 0; n < size(); n++) {
+                if (!containsId(ids, getId(n))) {
+                    continue;
+                }
+                int length = getLength(n);
+                System.arraycopy(mBytes, mEntries[n * ENTRY_SIZE + OFFSET], bytes, offset, length);
+                entries[entry + ID] = getId(n);
+                entries[entry + OFFSET] = offset;
+                entries[entry + LENGTH] = length;
+                entry += ENTRY_SIZE;
+                offset += length;
             }
+            return new ElementView(bytes, entries);
+        }
 
-            InformationElement ie = new InformationElement();
-            ie.id = eid;
-            ie.bytes = new byte[elementLength];
-            data.get(ie.bytes);
-            infoElements.add(ie);
+        private static boolean containsId(int[] ids, int id) {
+            for (int candidate : ids) {
+                if (candidate == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Materialize the elements in the form used by ScanResult.
+         */
+        public InformationElement[] toInformationElements() {
+            InformationElement[] ies = new InformationElement[size()];
+            for (int n = 0; n < ies.length; n++) {
+                InformationElement ie = new InformationElement();
+                ie.id = getId(n);
+                ie.bytes = getBytes(n);
+                ies[n] = ie;
+            }
+            return ies;
         }
-        return infoElements.toArray(new InformationElement[infoElements.size()]);
     }
 
 
-    public static class BssLoad {
+    public static class BssLoad implements ElementDecoder {
         public int stationCount = 0;
         public int channelUtilization = 0;
         public int capacity = 0;
@@ -75,18 +293,22 @@ public class InformationElementUtil {
             if (ie.id != InformationElement.EID_BSS_LOAD) {
                 throw new IllegalArgumentException("Element id is not BSS_LOAD, : " + ie.id);
             }
-            if (ie.bytes.length != 5) {
+            from(ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        @Override
+        public void from(ByteBuffer data) {
+            if (data.remaining() != 5) {
                 throw new IllegalArgumentException("BSS Load element length is not 5: "
-                                                   + ie.bytes.length);
+                                                   + data.remaining());
             }
-            ByteBuffer data = ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN);
             stationCount = data.getShort() & Constants.SHORT_MASK;
             channelUtilization = data.get() & Constants.BYTE_MASK;
             capacity = data.getShort() & Constants.SHORT_MASK;
         }
     }
 
-    public static class HtOperation {
+    public static class HtOperation implements ElementDecoder {
         public int secondChannelOffset = 0;
 
         public int getChannelWidth() {
@@ -117,11 +339,16 @@ public class InformationElementUtil {
             if (ie.id != InformationElement.EID_HT_OPERATION) {
                 throw new IllegalArgumentException("Element id is not HT_OPERATION, : " + ie.id);
             }
-            secondChannelOffset = ie.bytes[1] & 0x3;
+            from(ByteBuffer.wrap(ie.bytes));
+        }
+
+        @Override
+        public void from(ByteBuffer data) {
+            secondChannelOffset = data.get(data.position() + 1) & 0x3;
         }
     }
 
-    public static class VhtOperation {
+    public static class VhtOperation implements ElementDecoder {
         public int channelMode = 0;
         public int centerFreqIndex1 = 0;
         public int centerFreqIndex2 = 0;
@@ -151,13 +378,19 @@ public class InformationElementUtil {
             if (ie.id != InformationElement.EID_VHT_OPERATION) {
                 throw new IllegalArgumentException("Element id is not VHT_OPERATION, : " + ie.id);
             }
-            channelMode = ie.bytes[0] & Constants.BYTE_MASK;
-            centerFreqIndex1 = ie.bytes[1] & Constants.BYTE_MASK;
-            centerFreqIndex2 = ie.bytes[2] & Constants.BYTE_MASK;
+            from(ByteBuffer.wrap(ie.bytes));
+        }
+
+        @Override
+        public void from(ByteBuffer data) {
+            int start = data.position();
+            channelMode = data.get(start) & Constants.BYTE_MASK;
+            centerFreqIndex1 = data.get(start + 1) & Constants.BYTE_MASK;
+            centerFreqIndex2 = data.get(start + 2) & Constants.BYTE_MASK;
         }
     }
 
-    public static class Interworking {
+    public static class Interworking implements ElementDecoder {
         public NetworkDetail.Ant ant = null;
         public boolean internet = false;
         public VenueNameElement.VenueGroup venueGroup = null;
@@ -168,12 +401,17 @@ public class InformationElementUtil {
             if (ie.id != InformationElement.EID_INTERWORKING) {
                 throw new IllegalArgumentException("Element id is not INTERWORKING, : " + ie.id);
             }
-            ByteBuffer data = ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN);
+            from(ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        @Override
+        public void from(ByteBuffer data) {
+            int length = data.remaining();
             int anOptions = data.get() & Constants.BYTE_MASK;
             ant = NetworkDetail.Ant.values()[anOptions & 0x0f];
             internet = (anOptions & 0x10) != 0;
             // Len 1 none, 3 venue-info, 7 HESSID, 9 venue-info & HESSID
-            if (ie.bytes.length == 3 || ie.bytes.length == 9) {
+            if (length == 3 || length == 9) {
                 try {
                     ByteBuffer vinfo = data.duplicate();
                     vinfo.limit(vinfo.position() + 2);
@@ -184,17 +422,17 @@ public class InformationElementUtil {
                 } catch (ProtocolException pe) {
                     /*Cannot happen*/
                 }
-            } else if (ie.bytes.length != 1 && ie.bytes.length != 7) {
+            } else if (length != 1 && length != 7) {
                 throw new IllegalArgumentException("Bad Interworking element length: "
-                        + ie.bytes.length);
+                        + length);
             }
-            if (ie.bytes.length == 7 || ie.bytes.length == 9) {
+            if (length == 7 || length == 9) {
                 hessid = getInteger(data, ByteOrder.BIG_ENDIAN, 6);
             }
         }
     }
 
-    public static class RoamingConsortium {
+    public static class RoamingConsortium implements ElementDecoder {
         public int anqpOICount = 0;
         public long[] roamingConsortiums = null;
 
@@ -203,13 +441,18 @@ public class InformationElementUtil {
                 throw new IllegalArgumentException("Element id is not ROAMING_CONSORTIUM, : "
                         + ie.id);
             }
-            ByteBuffer data = ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN);
+            from(ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        @Override
+        public void from(ByteBuffer data) {
+            int length = data.remaining();
             anqpOICount = data.get() & Constants.BYTE_MASK;
 
             int oi12Length = data.get() & Constants.BYTE_MASK;
             int oi1Length = oi12Length & Constants.NIBBLE_MASK;
             int oi2Length = (oi12Length >>> 4) & Constants.NIBBLE_MASK;
-            int oi3Length = ie.bytes.length - 2 - oi1Length - oi2Length;
+            int oi3Length = length - 2 - oi1Length - oi2Length;
             int oiCount = 0;
             if (oi1Length > 0) {
                 oiCount++;
@@ -236,15 +479,20 @@ public class InformationElementUtil {
         }
     }
 
-    public static class Vsa {
+    public static class Vsa implements ElementDecoder {
         private static final int ANQP_DOMID_BIT = 0x04;
 
         public NetworkDetail.HSRelease hsRelease = null;
         public int anqpDomainID = 0;    // No domain ID treated the same as a 0; unique info per AP.
 
         public void from(InformationElement ie) {
-            ByteBuffer data = ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN);
-            if (ie.bytes.length >= 5 && data.getInt() == Constants.HS20_FRAME_PREFIX) {
+            from(ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        @Override
+        public void from(ByteBuffer data) {
+            int length = data.remaining();
+            if (length >= 5 && data.getInt() == Constants.HS20_FRAME_PREFIX) {
                 int hsConf = data.get() & Constants.BYTE_MASK;
                 switch ((hsConf >> 4) & Constants.NIBBLE_MASK) {
                     case 0:
@@ -258,9 +506,9 @@ public class InformationElementUtil {
                         break;
                 }
                 if ((hsConf & ANQP_DOMID_BIT) != 0) {
-                    if (ie.bytes.length < 7) {
+                    if (length < 7) {
                         throw new IllegalArgumentException(
-                                "HS20 indication element too short: " + ie.bytes.length);
+                                "HS20 indication element too short: " + length);
                     }
                     anqpDomainID = data.getShort() & Constants.SHORT_MASK;
                 }
@@ -268,7 +516,7 @@ public class InformationElementUtil {
         }
     }
 
-    public static class ExtendedCapabilities {
+    public static class ExtendedCapabilities implements ElementDecoder {
         private static final int RTT_RESP_ENABLE_BIT = 70;
         private static final long SSID_UTF8_BIT = 0x0001000000000000L;
 
@@ -288,16 +536,22 @@ public class InformationElementUtil {
         }
 
         public void from(InformationElement ie) {
-            ByteBuffer data = ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN);
+            from(ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        @Override
+        public void from(ByteBuffer data) {
+            int start = data.position();
+            int length = data.remaining();
             extendedCapabilities =
-                    Constants.getInteger(data, ByteOrder.LITTLE_ENDIAN, ie.bytes.length);
+                    Constants.getInteger(data, ByteOrder.LITTLE_ENDIAN, length);
 
             int index = RTT_RESP_ENABLE_BIT / 8;
             byte offset = RTT_RESP_ENABLE_BIT % 8;
-            if (ie.bytes.length < index + 1) {
+            if (length < index + 1) {
                 is80211McRTTResponder = false;
             } else {
-                is80211McRTTResponder = (ie.bytes[index] & ((byte) 0x1 << offset)) != 0;
+                is80211McRTTResponder = (data.get(start + index) & ((byte) 0x1 << offset)) != 0;
             }
         }
     }
@@ -562,7 +816,7 @@ public class InformationElementUtil {
      * only be present in scan results that are derived from a Beacon Frame, not from the more
      * plentiful probe responses. Call 'isValid()' after parsing, to ensure the results are correct.
      */
-    public static class TrafficIndicationMap {
+    public static class TrafficIndicationMap implements ElementDecoder {
         private static final int MAX_TIM_LENGTH = 254;
         private boolean mValid = false;
         public int mLength = 0;
@@ -589,8 +843,13 @@ public class InformationElementUtil {
         public void from(InformationElement ie) {
             mValid = false;
             if (ie == null || ie.bytes == null) return;
-            mLength = ie.bytes.length;
-            ByteBuffer data = ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN);
+            from(ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        @Override
+        public void from(ByteBuffer data) {
+            mValid = false;
+            mLength = data.remaining();
             try {
                 mDtimCount = data.get() & Constants.BYTE_MASK;
                 mDtimPeriod = data.get() & Constants.BYTE_MASK;
@@ -665,7 +924,7 @@ public class InformationElementUtil {
     /**
      * Parser for both the Supported Rates & Extended Supported Rates Information Elements
      */
-    public static class SupportedRates {
+    public static class SupportedRates implements ElementDecoder {
         public static final int MASK = 0x7F; // 0111 1111
         public boolean mValid = false;
         public ArrayList<Integer> mRates;
@@ -731,12 +990,21 @@ public class InformationElementUtil {
         //
         public void from(InformationElement ie) {
             mValid = false;
-            if (ie == null || ie.bytes == null || ie.bytes.length > 8 || ie.bytes.length < 1)  {
+            if (ie == null || ie.bytes == null) {
+                return;
+            }
+            from(ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        @Override
+        public void from(ByteBuffer data) {
+            mValid = false;
+            int length = data.remaining();
+            if (length > 8 || length < 1)  {
                 return;
             }
-            ByteBuffer data = ByteBuffer.wrap(ie.bytes).order(ByteOrder.LITTLE_ENDIAN);
             try {
-                for (int i = 0; i < ie.bytes.length; i++) {
+                for (int i = 0; i < length; i++) {
                     int rate = getRateFromByte(data.get());
                     if (rate > 0) {
                         mRates.add(rate);
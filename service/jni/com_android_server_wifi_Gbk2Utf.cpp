@@ -13,6 +13,8 @@
 #include "jni.h"
 #include "com_android_server_wifi_Gbk2Utf.h"
 
+#include <utils/Unicode.h>
+
 #define BUF_SIZE 256
 #define CONVERT_LINE_LEN 2048
 #define CHARSET_CN ("gbk")
@@ -21,67 +23,95 @@ namespace android {
 
 static jint DBG = false;
 
-struct accessPointObjectItem *g_pItemList = NULL;
-struct accessPointObjectItem *g_pLastNode = NULL;
-pthread_mutex_t *g_pItemListMutex = NULL;
+/* Most GBK SSIDs remembered; the least recently seen or used ones are dropped first */
+#define MAX_GBK_SSIDS 1024
+
+/* Translations of the GBK SSIDs seen in scan results; NULL while the driver is unloaded */
+static GbkSsidTable *g_pGbkSsidTable = NULL;
+static pthread_mutex_t g_gbkSsidTableMutex = PTHREAD_MUTEX_INITIALIZER;
 
-static void addAPObjectItem(const char *ssid, const char *ssid_utf8)
+void createGbkSsidTable()
+{
+    pthread_mutex_lock(&g_gbkSsidTableMutex);
+    if (NULL == g_pGbkSsidTable) {
+        g_pGbkSsidTable = new GbkSsidTable(MAX_GBK_SSIDS);
+    }
+    pthread_mutex_unlock(&g_gbkSsidTableMutex);
+}
+
+void destroyGbkSsidTable()
+{
+    pthread_mutex_lock(&g_gbkSsidTableMutex);
+    delete g_pGbkSsidTable;
+    g_pGbkSsidTable = NULL;
+    pthread_mutex_unlock(&g_gbkSsidTableMutex);
+}
+
+static void addGbkSsid(const char *ssid, const char *ssid_utf8)
 {
     if (NULL == ssid || NULL == ssid_utf8) {
         ALOGE("ssid or ssid_utf8 is NULL");
         return;
     }
 
-    struct accessPointObjectItem *pTmpItemNode = NULL;
-    struct accessPointObjectItem *pItemNode = NULL;
-    bool foundItem = false;
+    pthread_mutex_lock(&g_gbkSsidTableMutex);
+    if (g_pGbkSsidTable != NULL) {
+        g_pGbkSsidTable->put(ssid, ssid_utf8);
+        if (DBG)
+            ALOGD("Added AP %s, %zu GBK SSIDs known", ssid, g_pGbkSsidTable->size());
+    }
+    pthread_mutex_unlock(&g_gbkSsidTableMutex);
+}
 
-    pthread_mutex_lock(g_pItemListMutex);
-    pTmpItemNode = g_pItemList;
-    while (pTmpItemNode) {
-        if (pTmpItemNode->ssid && (*(pTmpItemNode->ssid) == ssid)) {
-            foundItem = true;
-            break;
-        }
-        pTmpItemNode = pTmpItemNode->pNext;
+/* Copies the UTF-8 form of a GBK SSID that was seen before into |buf| */
+static bool findUtf8Ssid(const char *ssid, char *buf, size_t size)
+{
+    std::string utf8;
+    bool found = false;
+
+    pthread_mutex_lock(&g_gbkSsidTableMutex);
+    if (g_pGbkSsidTable != NULL) {
+        found = g_pGbkSsidTable->findUtf8(ssid, &utf8);
     }
-    if (foundItem) {
-        if (DBG)
-            ALOGD("Found AP %s", pTmpItemNode->ssid->string());
-    } else {
-        pItemNode = new struct accessPointObjectItem();
-        if (NULL == pItemNode) {
-            ALOGE("Failed to allocate memory for new item!");
-            goto EXIT;
-        }
-        memset(pItemNode, 0, sizeof(accessPointObjectItem));
-        pItemNode->ssid_utf8 = new String8(ssid_utf8);
-        if (NULL == pItemNode->ssid_utf8) {
-            ALOGE("Failed to allocate memory for new ssid_utf8!");
-            delete pItemNode;
-            goto EXIT;
-        }
-        pItemNode->ssid = new String8(ssid);
-        if (NULL == pItemNode->ssid) {
-            ALOGE("Failed to allocate memory for new ssid!");
-            delete pItemNode;
-            goto EXIT;
-        }
+    pthread_mutex_unlock(&g_gbkSsidTableMutex);
 
-        pItemNode->pNext = NULL;
-        if (DBG)
-            ALOGD("AP doesn't exist, new one for %s", ssid);
-        if (NULL == g_pItemList) {
-            g_pItemList = pItemNode;
-            g_pLastNode = g_pItemList;
-        } else {
-            g_pLastNode->pNext = pItemNode;
-            g_pLastNode = pItemNode;
-        }
+    if (found) {
+        strlcpy(buf, utf8.c_str(), size);
     }
+    return found;
+}
 
-EXIT:
-    pthread_mutex_unlock(g_pItemListMutex);
+/* GBK converters, one per thread, kept open for the life of the thread */
+static pthread_key_t g_gbkConverterKey;
+static pthread_once_t g_gbkConverterKeyOnce = PTHREAD_ONCE_INIT;
+
+static void closeGbkConverter(void *converter)
+{
+    ucnv_close((UConverter *) converter);
+}
+
+static void createGbkConverterKey()
+{
+    pthread_key_create(&g_gbkConverterKey, closeGbkConverter);
+}
+
+/* Returns the GBK converter of the calling thread, opening it on first use */
+static UConverter *getGbkConverter()
+{
+    pthread_once(&g_gbkConverterKeyOnce, createGbkConverterKey);
+    UConverter *pConverter = (UConverter *) pthread_getspecific(g_gbkConverterKey);
+    if (NULL == pConverter) {
+        UErrorCode err = U_ZERO_ERROR;
+        pConverter = ucnv_open(CHARSET_CN, &err);
+        if (U_FAILURE(err)) {
+            ALOGE("ucnv_open error");
+            return NULL;
+        }
+        pthread_setspecific(g_gbkConverterKey, pConverter);
+    } else {
+        ucnv_reset(pConverter);
+    }
+    return pConverter;
 }
 
 static int hex2num(char c)
@@ -366,78 +396,128 @@ static size_t createToHex(char *buf, size_t buf_size, const char *str, unsigned
     return pos - buf;
 }
 
-void parseScanResults(String16& str, const char *reply)
+/*
+ * Appends |len| bytes of UTF-8 to |out| as UTF-16. Returns false, leaving |out| unchanged, if
+ * they are not valid UTF-8 or do not fit.
+ */
+static bool appendUtf8(const char *str, size_t len, jchar *out, size_t outSize, size_t *outLen)
 {
-    unsigned int lineBeg = 0, lineEnd = 0;
-    size_t  replyLen = strlen(reply);
+    size_t pos = *outLen;
+    size_t i;
+
+    for (i = 0; i < len && (unsigned char) str[i] < 0x80; i++) {
+    }
+    if (i == len) {
+        /* ASCII, the common case */
+        if (pos + len > outSize)
+            return false;
+        for (i = 0; i < len; i++)
+            out[pos++] = (unsigned char) str[i];
+    } else {
+        ssize_t utf16Len = utf8_to_utf16_length((const uint8_t *) str, len);
+        if (utf16Len < 0 || pos + utf16Len > outSize)
+            return false;
+        utf8_to_utf16_no_null_terminator((const uint8_t *) str, len, (char16_t *) (out + pos));
+        pos += utf16Len;
+    }
+    *outLen = pos;
+    return true;
+}
+
+/*
+ * Decodes the value of an ssid= line and, if it is GBK, converts it to UTF-8 into |ssid_utf8|
+ * and the printable form of that into |ssid_txt|. The raw SSID is left in |ssid|.
+ */
+static bool convertGbkSsid(const char *value, size_t len, char *ssid, char *ssid_utf8,
+        char *ssid_txt)
+{
+    char escaped[BUF_SIZE] = {0};
+    bool isUTF8 = false, isCh = false;
+    size_t ssidLen;
+
+    if (len >= BUF_SIZE)
+        return false;
+    memcpy(escaped, value, len);
+    memset(ssid, 0, BUF_SIZE);
+    ssidLen = ssid_decode(ssid, BUF_SIZE - 1, escaped);
+    isUTF8 = isUTF8String(ssid, ssidLen);
+    isCh = isGBKString(ssid, ssidLen);
+    if (DBG)
+        ALOGD("%s, ssid = %s, buf = %s,isUTF8= %d, isCh = %d",
+            __FUNCTION__, escaped, ssid, isUTF8, isCh);
+    if (isUTF8 || !isCh)
+        return false;
+
+    if (!findUtf8Ssid(ssid, ssid_utf8, BUF_SIZE)) {
+        char dest[CONVERT_LINE_LEN] = {0};
+        UErrorCode err = U_ZERO_ERROR;
+        UConverter *pConverter = getGbkConverter();
+        if (NULL == pConverter)
+            return false;
+        ucnv_toAlgorithmic(UCNV_UTF8, pConverter, dest, CONVERT_LINE_LEN,
+                    ssid, strlen(ssid), &err);
+        if (U_FAILURE(err)) {
+            ALOGE("ucnv_toUChars error");
+            return false;
+        }
+        strlcpy(ssid_utf8, dest, BUF_SIZE);
+    }
+    ssid_encode(ssid_txt, BUF_SIZE, ssid_utf8, strlen(ssid_utf8));
+    if (DBG)
+        ALOGD("%s, ssid_txt = %s", __FUNCTION__, ssid_txt);
+    return true;
+}
+
+size_t parseScanResults(const char *reply, jchar *out, size_t outSize)
+{
+    const char *line = reply;
+    const char *end = reply + strlen(reply);
+    size_t  outLen = 0;
     char    ssid[BUF_SIZE] = {0};
     char    ssid_utf8[BUF_SIZE] = {0};
     char    ssid_txt[BUF_SIZE] = {0};
-    bool    isUTF8 = false, isCh = false;
-    char    buf[BUF_SIZE] = {0};
-    String8 line;
-
-    UConverterType conType = UCNV_UTF8;
-    char dest[CONVERT_LINE_LEN] = {0};
-    UErrorCode err = U_ZERO_ERROR;
-    UConverter* pConverter = ucnv_open(CHARSET_CN, &err);
-    if (U_FAILURE(err)) {
-        ALOGE("ucnv_open error");
-        return;
-    }
+    bool    pendingGbkSsid = false;
+
+    /*
+     * Copy the reply line by line, rewriting only the ssid= lines holding GBK SSIDs and
+     * remembering each of those once the end of its BSS is reached.
+     */
+    while (line < end) {
+        const char *newline = (const char *) memchr(line, '\n', end - line);
+        const char *lineEnd = newline != NULL ? newline + 1 : end;
+        size_t lineLen = lineEnd - line;
+        bool copied = false;
 
-    /* Parse every line of the reply to construct accessPointObjectItem list */
-    for (lineBeg = 0, lineEnd = 0; lineEnd <= replyLen; ++lineEnd) {
-        if (lineEnd == replyLen || '\n' == reply[lineEnd]) {
-            line.setTo(reply + lineBeg, lineEnd - lineBeg + 1);
-            if (DBG)
-                ALOGD("%s, line=%s ", __FUNCTION__, line.string());
-            if (strncmp(line.string(), "ssid=", 5) == 0) {
-                sscanf(line.string() + 5, "%[^\n]", ssid);
-                ssid_decode(buf,BUF_SIZE,ssid);
-                isUTF8 = isUTF8String(buf,sizeof(buf));
-                isCh = isGBKString(buf, sizeof(buf));
-                if (DBG)
-                    ALOGD("%s, ssid = %s, buf = %s,isUTF8= %d, isCh = %d",
-                        __FUNCTION__, ssid, buf ,isUTF8, isCh);
-                if (!isUTF8 && isCh) {
-                    ucnv_toAlgorithmic(conType, pConverter, dest, CONVERT_LINE_LEN,
-                                buf, strlen(buf), &err);
-                    if (U_FAILURE(err)) {
-                        ALOGE("ucnv_toUChars error");
-                        goto EXIT;
-                    }
-                    ssid_encode(ssid_txt, BUF_SIZE, dest, strlen(dest));
-                    if (DBG)
-                        ALOGD("%s, ssid_txt = %s", __FUNCTION__,ssid_txt);
-                    str += String16("ssid=");
-                    str += String16(ssid_txt);
-                    str += String16("\n");
-                    memset(ssid_utf8, 0, BUF_SIZE);
-                    strlcpy(ssid_utf8, dest, BUF_SIZE);
-                    memset(dest, 0, CONVERT_LINE_LEN);
-                    memset(ssid_txt, 0, BUF_SIZE);
-                } else {
-                    memset(buf, 0, BUF_SIZE);
-                    str += String16(line.string());
-                }
-            } else if (strncmp(line.string(), "====", 4) == 0) {
-                if (DBG)
-                    ALOGD("After sscanf,ssid:%s, isCh:%d",
-                        ssid, isCh);
-                if( !isUTF8 && isCh){
-                    addAPObjectItem(buf, ssid_utf8);
-                    memset(buf, 0, BUF_SIZE);
+        if (DBG)
+            ALOGD("%s, line=%.*s ", __FUNCTION__, (int) lineLen, line);
+        if (lineLen >= 5 && strncmp(line, "ssid=", 5) == 0) {
+            size_t valueLen = (newline != NULL ? newline : end) - (line + 5);
+            pendingGbkSsid = convertGbkSsid(line + 5, valueLen, ssid, ssid_utf8, ssid_txt);
+            if (pendingGbkSsid) {
+                size_t txtLen = strlen(ssid_txt);
+                if (outLen + 5 + txtLen + 1 <= outSize) {
+                    appendUtf8("ssid=", 5, out, outSize, &outLen);
+                    appendUtf8(ssid_txt, txtLen, out, outSize, &outLen);
+                    appendUtf8("\n", 1, out, outSize, &outLen);
+                    copied = true;
                 }
             }
-            if (strncmp(line.string(), "ssid=", 5) != 0)
-                str += String16(line.string());
-            lineBeg = lineEnd + 1;
+        } else if (lineLen >= 4 && strncmp(line, "====", 4) == 0) {
+            if (DBG)
+                ALOGD("After sscanf,ssid:%s, isCh:%d", ssid, pendingGbkSsid);
+            if (pendingGbkSsid) {
+                addGbkSsid(ssid, ssid_utf8);
+                pendingGbkSsid = false;
+            }
+        }
+        if (!copied) {
+            /* lines that are not valid UTF-8 are dropped, as String16 did */
+            appendUtf8(line, lineLen, out, outSize, &outLen);
         }
+        line = lineEnd;
     }
 
-EXIT:
-    ucnv_close(pConverter);
+    return outLen;
 }
 
 void constructSsid(String16& str, const char *reply)
@@ -450,9 +530,8 @@ void constructSsid(String16& str, const char *reply)
     char    dest[CONVERT_LINE_LEN] = {0};
     UConverterType conType = UCNV_UTF8;
     UErrorCode err = U_ZERO_ERROR;
-    UConverter*  pConverter = ucnv_open(CHARSET_CN, &err);
-    if (U_FAILURE(err)) {
-        ALOGE("ucnv_open error");
+    UConverter*  pConverter = getGbkConverter();
+    if (NULL == pConverter) {
         return;
     }
     sscanf(reply, "%[^\n]", ssid);
@@ -466,7 +545,7 @@ void constructSsid(String16& str, const char *reply)
                             buf, strlen(buf), &err);
         if (U_FAILURE(err)) {
             ALOGE("ucnv_toUChars error");
-            goto EXIT;
+            return;
         }
         createToHex(ssid_txt, strlen(dest)*2 + 1, dest, strlen(dest));
         if (DBG)
@@ -481,14 +560,11 @@ void constructSsid(String16& str, const char *reply)
         memset(buf, 0, BUF_SIZE);
         str += String16(reply);
     }
-
-EXIT:
-    ucnv_close(pConverter);
 }
 
 jboolean setNetworkVariable(char *buf)
 {
-    struct accessPointObjectItem *pTmpItemNode = NULL;
+    std::string gbk;
     bool gbk_found = false;
 
     unsigned int netId;
@@ -505,47 +581,30 @@ jboolean setNetworkVariable(char *buf)
     /* parse SET_NETWORK command*/
     sscanf(buf, "%s %s %d %s %s", interface, dummy, &netId, name, value);
 
-    /* L Framework will convert string to HEX, so we convert it back here for comparation */
-    if (0 == strncmp(name, "ssid", 4)) {
-        createFromHex(ssid, BUF_SIZE, value);
-    }
-
     if (DBG)
         ALOGD("parse SET_NETWORK command success, netId = %d, name = %s, value =%s, length=%d",
                netId, name, value, strlen(value));
 
-    if (NULL == g_pItemListMutex) {
-        /* Driver is unloaded, g_pItemList, g_pItemListMutex are NULL */
+    if (0 != strncmp(name, "ssid", 4)) {
         return JNI_TRUE;
     }
-    pthread_mutex_lock(g_pItemListMutex);
-    pTmpItemNode = g_pItemList;
-    if (NULL == pTmpItemNode) {
-        if (DBG)
-            ALOGD("g_pItemList is NULL");
-    }
-    while (pTmpItemNode) {
-        if (pTmpItemNode->ssid_utf8) {
-            ALOGD("ssid_utf8 = %s, length=%d, value =%s, length=%d",
-                   pTmpItemNode->ssid_utf8->string(),strlen(pTmpItemNode->ssid_utf8->string()), ssid, strlen(ssid));
 
-            if (0 == strcmp(pTmpItemNode->ssid_utf8->string(), ssid)) {
-            gbk_found = true;
-            break;
-            }
-        }
-        pTmpItemNode = pTmpItemNode->pNext;
+    /* L Framework will convert string to HEX, so we convert it back here for comparation */
+    createFromHex(ssid, BUF_SIZE, value);
+
+    pthread_mutex_lock(&g_gbkSsidTableMutex);
+    if (g_pGbkSsidTable != NULL) {
+        /* Driver is loaded; the table is NULL otherwise */
+        gbk_found = g_pGbkSsidTable->findGbk(ssid, &gbk);
     }
+    pthread_mutex_unlock(&g_gbkSsidTableMutex);
 
-    if (0 == strncmp(name, "ssid", 4) && gbk_found) {
-        snprintf(buf, BUF_SIZE, "%s SET_NETWORK %d ssid \"%s\"", interface, netId, pTmpItemNode->ssid->string());
+    if (gbk_found) {
+        snprintf(buf, BUF_SIZE, "%s SET_NETWORK %d ssid \"%s\"", interface, netId, gbk.c_str());
     if (DBG)
         ALOGD("new SET_NETWORK command is: %s", buf);
     }
 
-    pthread_mutex_unlock(g_pItemListMutex);
-
-
     return JNI_TRUE;
 }
 
@@ -560,11 +619,7 @@ void constructEventSsid(char *eventstr)
      UConverterType conType = UCNV_UTF8;
      char dest[CONVERT_LINE_LEN] = {0};
      UErrorCode err = U_ZERO_ERROR;
-     UConverter* pConverter = ucnv_open(CHARSET_CN, &err);
-     if (U_FAILURE(err)) {
-         ALOGE("ucnv_open error");
-         return;
-     }
+     UConverter* pConverter = NULL;
 
      tmp = strstr(eventstr, " SSID");
      if (tmp&&(strlen(tmp) > 6 )) {
@@ -578,11 +633,18 @@ void constructEventSsid(char *eventstr)
          isUTF8 = isUTF8String(buf,sizeof(buf));
          isCh = isGBKString(buf, sizeof(buf));
          if (!isUTF8 && isCh) {
-             ucnv_toAlgorithmic(conType, pConverter, dest, CONVERT_LINE_LEN,
-                             buf, strlen(buf), &err);
-             if (U_FAILURE(err)) {
-                 ALOGE("ucnv_toUChars error");
-                 goto EXIT;
+             /* SSIDs in events are usually ones the last scan results already translated */
+             if (!findUtf8Ssid(buf, dest, CONVERT_LINE_LEN)) {
+                 pConverter = getGbkConverter();
+                 if (NULL == pConverter) {
+                     return;
+                 }
+                 ucnv_toAlgorithmic(conType, pConverter, dest, CONVERT_LINE_LEN,
+                                 buf, strlen(buf), &err);
+                 if (U_FAILURE(err)) {
+                     ALOGE("ucnv_toUChars error");
+                     return;
+                 }
              }
              ssid_encode(ssid_txt, BUF_SIZE, dest, strlen(dest));
              if (!strstr(tmp,"="))
@@ -593,9 +655,6 @@ void constructEventSsid(char *eventstr)
                  ALOGD("%s, ssid_txt = %s, eventsrt = %s", __FUNCTION__, ssid_txt, eventstr);
          }
      }
-
-EXIT:
-     ucnv_close(pConverter);
 }
 
 } //namespace android
@@ -37,15 +37,19 @@
 #include <utils/misc.h>
 #include <utils/Log.h>
 
+#include "gbk_ssid_table.h"
+
 namespace android {
 
-struct accessPointObjectItem {
-    String8 *ssid_utf8;
-    String8 *ssid;
-    struct  accessPointObjectItem *pNext;
-};
+extern void createGbkSsidTable();
+
+extern void destroyGbkSsidTable();
 
-extern void parseScanResults(String16& str, const char *reply);
+/*
+ * Writes a BSS RANGE= reply to |out| as UTF-16, with GBK SSIDs converted to UTF-8, and returns
+ * the number of characters written. Output is at most 1.5 times the reply plus one line.
+ */
+extern size_t parseScanResults(const char *reply, jchar *out, size_t outSize);
 
 extern void constructSsid(String16& str, const char *reply);
 
@@ -40,8 +40,10 @@
 #include "jni_helper.h"
 #include "rtt.h"
 #include "wifi_hal_stub.h"
+#include "wifi_event_queue.h"
 #define REPLY_BUF_SIZE 4096 + 1         // wpa_supplicant's maximum size + 1 for nul
 #define EVENT_BUF_SIZE 2048
+#define MAX_QUEUED_EVENTS 256
 #define WAKE_REASON_TYPE_MAX 10
 
 #define CONVERT_LINE_LEN 2048
@@ -58,9 +60,6 @@ static jint DBG = false;
 
 //Please put all HAL function call here and call from the function table instead of directly call
 wifi_hal_fn hal_fn;
-extern struct accessPointObjectItem *g_pItemList;
-extern struct accessPointObjectItem *g_pLastNode;
-extern pthread_mutex_t *g_pItemListMutex;
 extern String8 *g_pCurrentSSID;
 static bool doCommand(JNIEnv* env, jstring javaCommand,
                       char* reply, size_t reply_len) {
@@ -123,10 +122,13 @@ static jstring doStringCommand(JNIEnv* env, jstring javaCommand) {
         return NULL;
     }
     if (DBG) ALOGD("cmd = %s, reply: %s", command.c_str(), reply);
-    String16 str;
     if (strstr(command.c_str(),"BSS RANGE=")) {
-        parseScanResults(str,reply);
-    } else if (strstr(command.c_str(),"GET_NETWORK") &&
+        jchar scanResults[2 * (REPLY_BUF_SIZE)];
+        size_t len = parseScanResults(reply, scanResults, NELEM(scanResults));
+        return env->NewString(scanResults, len);
+    }
+    String16 str;
+    if (strstr(command.c_str(),"GET_NETWORK") &&
               strstr(command.c_str(),"ssid") && !strstr(command.c_str(),"bssid")
               && !strstr(command.c_str(),"scan_ssid")){
         constructSsid(str, reply);
@@ -148,41 +150,13 @@ static jboolean android_net_wifi_isDriverLoaded(JNIEnv* env, jclass)
 
 static jboolean android_net_wifi_loadDriver(JNIEnv* env, jclass)
 {
-    g_pItemListMutex = new pthread_mutex_t;
-    if (NULL == g_pItemListMutex) {
-        ALOGE("Failed to allocate memory for g_pItemListMutex!");
-        return JNI_FALSE;
-    }
-    pthread_mutex_init(g_pItemListMutex, NULL);
+    createGbkSsidTable();
     return (::wifi_load_driver() == 0);
 }
 
 static jboolean android_net_wifi_unloadDriver(JNIEnv* env, jclass)
 {
-    if (g_pItemListMutex != NULL) {
-        pthread_mutex_lock(g_pItemListMutex);
-        struct accessPointObjectItem *pCurrentNode = g_pItemList;
-        struct accessPointObjectItem *pNextNode = NULL;
-        while (pCurrentNode) {
-            pNextNode = pCurrentNode->pNext;
-            if (NULL != pCurrentNode->ssid) {
-                delete pCurrentNode->ssid;
-                pCurrentNode->ssid = NULL;
-            }
-            if (NULL != pCurrentNode->ssid_utf8) {
-                delete pCurrentNode->ssid_utf8;
-                pCurrentNode->ssid_utf8 = NULL;
-            }
-            delete pCurrentNode;
-            pCurrentNode = pNextNode;
-        }
-        g_pItemList = NULL;
-        g_pLastNode = NULL;
-        pthread_mutex_unlock(g_pItemListMutex);
-        pthread_mutex_destroy(g_pItemListMutex);
-        delete g_pItemListMutex;
-        g_pItemListMutex = NULL;
-    }
+    destroyGbkSsidTable();
     return (::wifi_unload_driver() == 0);
 }
 
@@ -191,33 +165,79 @@ static jboolean android_net_wifi_startSupplicant(JNIEnv* env, jclass, jboolean p
     return (::wifi_start_supplicant(p2pSupported) == 0);
 }
 
+static int readSupplicantEvent(char *buf, size_t len)
+{
+    int nread = ::wifi_wait_for_event(buf, len);
+    if (nread > 0) {
+        if (strstr(buf, " SSID=") || strstr(buf, " SSID ")){
+            constructEventSsid(buf);
+        }
+    }
+    return nread;
+}
+
+static WifiEventQueue gEventQueue(readSupplicantEvent, MAX_QUEUED_EVENTS, EVENT_BUF_SIZE);
+
 static jboolean android_net_wifi_killSupplicant(JNIEnv* env, jclass, jboolean p2pSupported)
 {
-    return (::wifi_stop_supplicant(p2pSupported) == 0);
+    jboolean result = (::wifi_stop_supplicant(p2pSupported) == 0);
+    // wake up a reader blocked on the connection to the stopped supplicant, then drop its events
+    ::wifi_close_supplicant_connection();
+    gEventQueue.reset();
+    return result;
 }
 
 static jboolean android_net_wifi_connectToSupplicant(JNIEnv* env, jclass)
 {
+    // nothing read on an earlier connection, e.g. its CTRL-EVENT-TERMINATING, belongs to this one
+    gEventQueue.reset();
     return (::wifi_connect_to_supplicant() == 0);
 }
 
 static void android_net_wifi_closeSupplicantConnection(JNIEnv* env, jclass)
 {
     ::wifi_close_supplicant_connection();
+    gEventQueue.reset();
 }
 
-static jstring android_net_wifi_waitForEvent(JNIEnv* env, jclass)
+static jclass gStringClass;
+
+static jobjectArray android_net_wifi_waitForEvents(JNIEnv* env, jclass)
 {
-    char buf[EVENT_BUF_SIZE];
-    int nread = ::wifi_wait_for_event(buf, sizeof buf);
-    if (nread > 0) {
-        if (strstr(buf, " SSID=") || strstr(buf, " SSID ")){
-            constructEventSsid(buf);
-        }
-        return env->NewStringUTF(buf);
-    } else {
+    std::vector<std::string> events;
+    gEventQueue.take(&events);
+
+    jobjectArray array = env->NewObjectArray(events.size(), gStringClass, NULL);
+    if (array == NULL) {
         return NULL;
     }
+    for (size_t i = 0; i < events.size(); i++) {
+        jstring event = env->NewStringUTF(events[i].c_str());
+        if (event == NULL) {
+            return NULL;
+        }
+        env->SetObjectArrayElement(array, i, event);
+        env->DeleteLocalRef(event);
+    }
+    return array;
+}
+
+static void android_net_wifi_setDroppedEvents(JNIEnv* env, jclass, jobjectArray javaNames)
+{
+    std::vector<std::string> names;
+    jsize length = env->GetArrayLength(javaNames);
+    for (jsize i = 0; i < length; i++) {
+        jstring javaName = (jstring) env->GetObjectArrayElement(javaNames, i);
+        {
+            ScopedUtfChars name(env, javaName);
+            if (name.c_str() == NULL) {
+                return;
+            }
+            names.push_back(name.c_str());
+        }
+        env->DeleteLocalRef(javaName);
+    }
+    gEventQueue.setDroppedEvents(names);
 }
 
 static jboolean android_net_wifi_doBooleanCommand(JNIEnv* env, jclass, jstring javaCommand) {
@@ -232,6 +252,30 @@ static jstring android_net_wifi_doStringCommand(JNIEnv* env, jclass, jstring jav
     return doStringCommand(env,javaCommand);
 }
 
+// Send several commands to the supplicant, and return their replies as a String array with
+// null for each command that failed.
+static jobjectArray android_net_wifi_doStringCommands(JNIEnv* env, jclass,
+        jobjectArray javaCommands) {
+    jsize length = env->GetArrayLength(javaCommands);
+    jobjectArray replies = env->NewObjectArray(length, gStringClass, NULL);
+    if (replies == NULL) {
+        return NULL;
+    }
+    for (jsize i = 0; i < length; i++) {
+        jstring javaCommand = (jstring) env->GetObjectArrayElement(javaCommands, i);
+        jstring reply = doStringCommand(env, javaCommand);
+        env->DeleteLocalRef(javaCommand);
+        if (env->ExceptionCheck()) {
+            return NULL;
+        }
+        if (reply != NULL) {
+            env->SetObjectArrayElement(replies, i, reply);
+            env->DeleteLocalRef(reply);
+        }
+    }
+    return replies;
+}
+
 /* wifi_hal <==> WifiNative bridge */
 
 static jclass mCls;                             /* saved WifiNative object */
@@ -240,6 +284,260 @@ static JavaVM *mVM;                             /* saved JVM pointer */
 static const char *WifiHandleVarName = "sWifiHalHandle";
 static const char *WifiIfaceHandleVarName = "sWifiIfaceHandles";
 
+/*
+ * IDs of the classes, fields and methods used on every scan result and HAL event. They are
+ * looked up once in registerNatives, so the callbacks do not resolve them by name each time.
+ */
+static struct {
+    jmethodID setSsid;
+    jmethodID onScanStatus;
+    jmethodID onFullScanResult;
+    jmethodID onHotlistApFound;
+    jmethodID onHotlistApLost;
+    jmethodID onSignificantWifiChange;
+    jmethodID onRttResults;
+    jmethodID onPnoNetworkFound;
+    jmethodID onRssiThresholdBreached;
+} gWifiNativeMethods;
+
+static struct {
+    jclass clazz;
+    jmethodID constructor;
+    jfieldID BSSID;
+    jfieldID level;
+    jfieldID frequency;
+    jfieldID timestamp;
+    jfieldID bytes;
+} gScanResultClassInfo;
+
+static struct {
+    jclass clazz;
+    jfieldID numScans;
+    jfieldID scanIds;
+    jfieldID scanFlags;
+    jfieldID bucketsScanned;
+    jfieldID firstResults;
+    jfieldID bssids;
+    jfieldID rssis;
+    jfieldID frequencies;
+    jfieldID timestamps;
+    jfieldID ssids;
+    jfieldID ssidOffsets;
+} gHalScanResultsClassInfo;
+
+static struct {
+    jclass clazz;
+    jmethodID constructor;
+    jfieldID beacon_rx;
+    jfieldID rssi_mgmt;
+    jfieldID rxmpdu[4];
+    jfieldID txmpdu[4];
+    jfieldID lostmpdu[4];
+    jfieldID retries[4];
+    jfieldID on_time;
+    jfieldID tx_time;
+    jfieldID rx_time;
+    jfieldID on_time_scan;
+    jfieldID tx_time_per_level;
+} gLinkLayerStatsClassInfo;
+
+static struct {
+    jclass clazz;
+    jmethodID constructor;
+    jfieldID bssid;
+    jfieldID burstNumber;
+    jfieldID measurementFrameNumber;
+    jfieldID successMeasurementFrameNumber;
+    jfieldID frameNumberPerBurstPeer;
+    jfieldID status;
+    jfieldID measurementType;
+    jfieldID retryAfterDuration;
+    jfieldID ts;
+    jfieldID rssi;
+    jfieldID rssiSpread;
+    jfieldID txRate;
+    jfieldID rxRate;
+    jfieldID rtt;
+    jfieldID rttStandardDeviation;
+    jfieldID distance;
+    jfieldID distanceStandardDeviation;
+    jfieldID distanceSpread;
+    jfieldID burstDuration;
+    jfieldID negotiatedBurstNum;
+    jfieldID LCI;
+    jfieldID LCR;
+} gRttResultClassInfo;
+
+static struct {
+    jclass clazz;
+    jmethodID constructor;
+    jfieldID id;
+    jfieldID data;
+} gWifiInformationElementClassInfo;
+
+/* Access categories in the order of the _be, _bk, _vi and _vo fields of WifiLinkLayerStats */
+static const int LinkLayerStatsAcs[4] = { WIFI_AC_BE, WIFI_AC_BK, WIFI_AC_VI, WIFI_AC_VO };
+static const char *LinkLayerStatsAcSuffixes[4] = { "_be", "_bk", "_vi", "_vo" };
+
+/* Looks up a JNI ID; stops at the first failure so no lookup runs with an exception pending */
+#define LOOK_UP_OR_FAIL(id, lookup) \
+    do { \
+        (id) = (lookup); \
+        if ((id) == NULL) { \
+            return false; \
+        } \
+    } while (0)
+
+static bool lookUpClassInfo(JNIHelper &helper, jclass wifiNativeClass) {
+    LOOK_UP_OR_FAIL(gWifiNativeMethods.setSsid,
+            helper.getStaticMethodID(wifiNativeClass, "setSsid",
+                "([BLandroid/net/wifi/ScanResult;)Z"));
+    LOOK_UP_OR_FAIL(gWifiNativeMethods.onScanStatus,
+            helper.getStaticMethodID(wifiNativeClass, "onScanStatus", "(II)V"));
+    LOOK_UP_OR_FAIL(gWifiNativeMethods.onFullScanResult,
+            helper.getStaticMethodID(wifiNativeClass, "onFullScanResult", "(I[BJIIJ[BII)V"));
+    LOOK_UP_OR_FAIL(gWifiNativeMethods.onHotlistApFound,
+            helper.getStaticMethodID(wifiNativeClass, "onHotlistApFound",
+                "(I[Landroid/net/wifi/ScanResult;)V"));
+    LOOK_UP_OR_FAIL(gWifiNativeMethods.onHotlistApLost,
+            helper.getStaticMethodID(wifiNativeClass, "onHotlistApLost",
+                "(I[Landroid/net/wifi/ScanResult;)V"));
+    LOOK_UP_OR_FAIL(gWifiNativeMethods.onSignificantWifiChange,
+            helper.getStaticMethodID(wifiNativeClass, "onSignificantWifiChange",
+                "(I[Landroid/net/wifi/ScanResult;)V"));
+    LOOK_UP_OR_FAIL(gWifiNativeMethods.onRttResults,
+            helper.getStaticMethodID(wifiNativeClass, "onRttResults",
+                "(I[Landroid/net/wifi/RttManager$RttResult;)V"));
+    LOOK_UP_OR_FAIL(gWifiNativeMethods.onPnoNetworkFound,
+            helper.getStaticMethodID(wifiNativeClass, "onPnoNetworkFound",
+                "(I[Landroid/net/wifi/ScanResult;[I)V"));
+    LOOK_UP_OR_FAIL(gWifiNativeMethods.onRssiThresholdBreached,
+            helper.getStaticMethodID(wifiNativeClass, "onRssiThresholdBreached", "(IB)V"));
+
+    gStringClass = helper.findClassGlobalRef("java/lang/String");
+    if (gStringClass == NULL) {
+        return false;
+    }
+
+    jclass cls = helper.findClassGlobalRef("android/net/wifi/ScanResult");
+    if (cls == NULL) {
+        return false;
+    }
+    gScanResultClassInfo.clazz = cls;
+    LOOK_UP_OR_FAIL(gScanResultClassInfo.constructor, helper.getMethodID(cls, "<init>", "()V"));
+    LOOK_UP_OR_FAIL(gScanResultClassInfo.BSSID,
+            helper.getFieldID(cls, "BSSID", "Ljava/lang/String;"));
+    LOOK_UP_OR_FAIL(gScanResultClassInfo.level, helper.getFieldID(cls, "level", "I"));
+    LOOK_UP_OR_FAIL(gScanResultClassInfo.frequency, helper.getFieldID(cls, "frequency", "I"));
+    LOOK_UP_OR_FAIL(gScanResultClassInfo.timestamp, helper.getFieldID(cls, "timestamp", "J"));
+    LOOK_UP_OR_FAIL(gScanResultClassInfo.bytes, helper.getFieldID(cls, "bytes", "[B"));
+
+    cls = helper.findClassGlobalRef("com/android/server/wifi/HalScanResults");
+    if (cls == NULL) {
+        return false;
+    }
+    gHalScanResultsClassInfo.clazz = cls;
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.numScans, helper.getFieldID(cls, "numScans", "I"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.scanIds, helper.getFieldID(cls, "scanIds", "[I"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.scanFlags, helper.getFieldID(cls, "scanFlags", "[I"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.bucketsScanned,
+            helper.getFieldID(cls, "bucketsScanned", "[I"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.firstResults,
+            helper.getFieldID(cls, "firstResults", "[I"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.bssids, helper.getFieldID(cls, "bssids", "[J"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.rssis, helper.getFieldID(cls, "rssis", "[I"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.frequencies,
+            helper.getFieldID(cls, "frequencies", "[I"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.timestamps,
+            helper.getFieldID(cls, "timestamps", "[J"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.ssids, helper.getFieldID(cls, "ssids", "[B"));
+    LOOK_UP_OR_FAIL(gHalScanResultsClassInfo.ssidOffsets,
+            helper.getFieldID(cls, "ssidOffsets", "[I"));
+
+    cls = helper.findClassGlobalRef("android/net/wifi/WifiLinkLayerStats");
+    if (cls == NULL) {
+        return false;
+    }
+    gLinkLayerStatsClassInfo.clazz = cls;
+    LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.constructor, helper.getMethodID(cls, "<init>", "()V"));
+    LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.beacon_rx, helper.getFieldID(cls, "beacon_rx", "I"));
+    LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.rssi_mgmt, helper.getFieldID(cls, "rssi_mgmt", "I"));
+    for (int i = 0; i < 4; i++) {
+        char name[32];
+        snprintf(name, sizeof(name), "rxmpdu%s", LinkLayerStatsAcSuffixes[i]);
+        LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.rxmpdu[i], helper.getFieldID(cls, name, "J"));
+        snprintf(name, sizeof(name), "txmpdu%s", LinkLayerStatsAcSuffixes[i]);
+        LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.txmpdu[i], helper.getFieldID(cls, name, "J"));
+        snprintf(name, sizeof(name), "lostmpdu%s", LinkLayerStatsAcSuffixes[i]);
+        LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.lostmpdu[i], helper.getFieldID(cls, name, "J"));
+        snprintf(name, sizeof(name), "retries%s", LinkLayerStatsAcSuffixes[i]);
+        LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.retries[i], helper.getFieldID(cls, name, "J"));
+    }
+    LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.on_time, helper.getFieldID(cls, "on_time", "I"));
+    LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.tx_time, helper.getFieldID(cls, "tx_time", "I"));
+    LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.rx_time, helper.getFieldID(cls, "rx_time", "I"));
+    LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.on_time_scan,
+            helper.getFieldID(cls, "on_time_scan", "I"));
+    LOOK_UP_OR_FAIL(gLinkLayerStatsClassInfo.tx_time_per_level,
+            helper.getFieldID(cls, "tx_time_per_level", "[I"));
+
+    cls = helper.findClassGlobalRef("android/net/wifi/RttManager$WifiInformationElement");
+    if (cls == NULL) {
+        return false;
+    }
+    gWifiInformationElementClassInfo.clazz = cls;
+    LOOK_UP_OR_FAIL(gWifiInformationElementClassInfo.constructor,
+            helper.getMethodID(cls, "<init>", "()V"));
+    LOOK_UP_OR_FAIL(gWifiInformationElementClassInfo.id, helper.getFieldID(cls, "id", "B"));
+    LOOK_UP_OR_FAIL(gWifiInformationElementClassInfo.data, helper.getFieldID(cls, "data", "[B"));
+
+    cls = helper.findClassGlobalRef("android/net/wifi/RttManager$RttResult");
+    if (cls == NULL) {
+        return false;
+    }
+    gRttResultClassInfo.clazz = cls;
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.constructor, helper.getMethodID(cls, "<init>", "()V"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.bssid,
+            helper.getFieldID(cls, "bssid", "Ljava/lang/String;"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.burstNumber, helper.getFieldID(cls, "burstNumber", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.measurementFrameNumber,
+            helper.getFieldID(cls, "measurementFrameNumber", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.successMeasurementFrameNumber,
+            helper.getFieldID(cls, "successMeasurementFrameNumber", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.frameNumberPerBurstPeer,
+            helper.getFieldID(cls, "frameNumberPerBurstPeer", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.status, helper.getFieldID(cls, "status", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.measurementType,
+            helper.getFieldID(cls, "measurementType", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.retryAfterDuration,
+            helper.getFieldID(cls, "retryAfterDuration", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.ts, helper.getFieldID(cls, "ts", "J"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.rssi, helper.getFieldID(cls, "rssi", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.rssiSpread, helper.getFieldID(cls, "rssiSpread", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.txRate, helper.getFieldID(cls, "txRate", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.rxRate, helper.getFieldID(cls, "rxRate", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.rtt, helper.getFieldID(cls, "rtt", "J"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.rttStandardDeviation,
+            helper.getFieldID(cls, "rttStandardDeviation", "J"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.distance, helper.getFieldID(cls, "distance", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.distanceStandardDeviation,
+            helper.getFieldID(cls, "distanceStandardDeviation", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.distanceSpread,
+            helper.getFieldID(cls, "distanceSpread", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.burstDuration,
+            helper.getFieldID(cls, "burstDuration", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.negotiatedBurstNum,
+            helper.getFieldID(cls, "negotiatedBurstNum", "I"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.LCI,
+            helper.getFieldID(cls, "LCI", "Landroid/net/wifi/RttManager$WifiInformationElement;"));
+    LOOK_UP_OR_FAIL(gRttResultClassInfo.LCR,
+            helper.getFieldID(cls, "LCR", "Landroid/net/wifi/RttManager$WifiInformationElement;"));
+
+    return true;
+}
+
+#undef LOOK_UP_OR_FAIL
+
 wifi_handle getWifiHandle(JNIHelper &helper, jclass cls) {
     return (wifi_handle) helper.getStaticLongField(cls, WifiHandleVarName);
 }
@@ -255,18 +553,28 @@ jboolean setSSIDField(JNIHelper helper, jobject scanResult, const char *rawSsid)
     if (len > 0) {
         JNIObject<jbyteArray> ssidBytes = helper.newByteArray(len);
         helper.setByteArrayRegion(ssidBytes, 0, len, (jbyte *) rawSsid);
-        jboolean ret = helper.callStaticMethod(mCls,
-                "setSsid", "([BLandroid/net/wifi/ScanResult;)Z", ssidBytes.get(), scanResult);
+        jboolean ret = helper.callStaticMethod(mCls, gWifiNativeMethods.setSsid,
+                ssidBytes.get(), scanResult);
         return ret;
     } else {
         //empty SSID or SSID start with \0
         return true;
     }
 }
+/* Packs a BSSID into the low six bytes of a long, the first octet most significant */
+static jlong packBssid(const mac_addr bssid) {
+    jlong packed = 0;
+    for (int i = 0; i < 6; i++) {
+        packed = (packed << 8) | bssid[i];
+    }
+    return packed;
+}
+
 static JNIObject<jobject> createScanResult(JNIHelper &helper, wifi_scan_result *result,
         bool fill_ie) {
     // ALOGD("creating scan result");
-    JNIObject<jobject> scanResult = helper.createObject("android/net/wifi/ScanResult");
+    JNIObject<jobject> scanResult = helper.createObject(gScanResultClassInfo.clazz,
+            gScanResultClassInfo.constructor);
     if (scanResult == NULL) {
         ALOGE("Error in creating scan result");
         return JNIObject<jobject>(helper, NULL);
@@ -283,11 +591,11 @@ static JNIObject<jobject> createScanResult(JNIHelper &helper, wifi_scan_result *
     sprintf(bssid, "%02x:%02x:%02x:%02x:%02x:%02x", result->bssid[0], result->bssid[1],
         result->bssid[2], result->bssid[3], result->bssid[4], result->bssid[5]);
 
-    helper.setStringField(scanResult, "BSSID", bssid);
+    helper.setStringField(scanResult, gScanResultClassInfo.BSSID, bssid);
 
-    helper.setIntField(scanResult, "level", result->rssi);
-    helper.setIntField(scanResult, "frequency", result->channel);
-    helper.setLongField(scanResult, "timestamp", result->ts);
+    helper.setIntField(scanResult, gScanResultClassInfo.level, result->rssi);
+    helper.setIntField(scanResult, gScanResultClassInfo.frequency, result->channel);
+    helper.setLongField(scanResult, gScanResultClassInfo.timestamp, result->ts);
 
     if (fill_ie) {
         JNIObject<jbyteArray> elements = helper.newByteArray(result->ie_length);
@@ -297,7 +605,7 @@ static JNIObject<jobject> createScanResult(JNIHelper &helper, wifi_scan_result *
         }
         jbyte * bytes = (jbyte *)&(result->ie_data[0]);
         helper.setByteArrayRegion(elements, 0, result->ie_length, bytes);
-        helper.setObjectField(scanResult, "bytes", "[B", elements);
+        helper.setObjectField(scanResult, gScanResultClassInfo.bytes, elements);
     }
 
     return scanResult;
@@ -496,7 +804,7 @@ static void onScanEvent(wifi_request_id id, wifi_scan_event event) {
 
     // ALOGD("onScanStatus called, vm = %p, obj = %p, env = %p", mVM, mCls, env);
 
-    helper.reportEvent(mCls, "onScanStatus", "(II)V", id, event);
+    helper.reportEvent(mCls, gWifiNativeMethods.onScanStatus, id, event);
 }
 
 static void onFullScanResult(wifi_request_id id, wifi_scan_result *result,
@@ -506,14 +814,20 @@ static void onFullScanResult(wifi_request_id id, wifi_scan_result *result,
 
     //ALOGD("onFullScanResult called, vm = %p, obj = %p, env = %p", mVM, mCls, env);
 
-    JNIObject<jobject> scanResult = createScanResult(helper, result, true);
-
-    if (scanResult == NULL) {
+    int ssid_len = strlen(result->ssid);
+    JNIObject<jbyteArray> ssid = helper.newByteArray(ssid_len);
+    JNIObject<jbyteArray> elements = helper.newByteArray(result->ie_length);
+    if (ssid == NULL || elements == NULL) {
+        ALOGE("Error in allocating arrays for onFullScanResult, ie length=%d",
+                result->ie_length);
         return;
     }
+    helper.setByteArrayRegion(ssid, 0, ssid_len, (jbyte *) result->ssid);
+    helper.setByteArrayRegion(elements, 0, result->ie_length, (jbyte *) &(result->ie_data[0]));
 
-    helper.reportEvent(mCls, "onFullScanResult", "(ILandroid/net/wifi/ScanResult;II)V", id,
-            scanResult.get(), buckets_scanned, (jint) result->capability);
+    helper.reportEvent(mCls, gWifiNativeMethods.onFullScanResult, id, ssid.get(),
+            packBssid(result->bssid), (jint) result->rssi, (jint) result->channel,
+            (jlong) result->ts, elements.get(), buckets_scanned, (jint) result->capability);
 }
 
 static jboolean android_net_wifi_startScan(
@@ -608,8 +922,13 @@ static int compare_scan_result_timestamp(const void *v1, const void *v2) {
     return result1->ts - result2->ts;
 }
 
-static jobject android_net_wifi_getScanResults(
-        JNIEnv *env, jclass cls, jint iface, jboolean flush)  {
+/*
+ * Copies the cached results into the arrays of a HalScanResults, so that the number of JNI
+ * allocations does not grow with the number of results. The Java side builds the ScanResult
+ * objects when they are needed.
+ */
+static jboolean android_net_wifi_getScanResults(
+        JNIEnv *env, jclass cls, jint iface, jboolean flush, jobject out)  {
 
     JNIHelper helper(env);
     wifi_cached_scan_results scan_data[64];
@@ -620,60 +939,98 @@ static jobject android_net_wifi_getScanResults(
 
     byte b = flush ? 0xFF : 0;
     int result = hal_fn.wifi_get_cached_gscan_results(handle, b, num_scan_data, scan_data, &num_scan_data);
-    if (result == WIFI_SUCCESS) {
-        JNIObject<jobjectArray> scanData = helper.createObjectArray(
-                "android/net/wifi/WifiScanner$ScanData", num_scan_data);
-        if (scanData == NULL) {
-            ALOGE("Error in allocating array of scanData for getScanResults, length=%d",
-                  num_scan_data);
-            return NULL;
-        }
-
-        for (int i = 0; i < num_scan_data; i++) {
-
-            JNIObject<jobject> data = helper.createObject("android/net/wifi/WifiScanner$ScanData");
-            if (data == NULL) {
-                ALOGE("Error in allocating scanData for getScanResults");
-                return NULL;
-            }
-
-            helper.setIntField(data, "mId", scan_data[i].scan_id);
-            helper.setIntField(data, "mFlags", scan_data[i].flags);
-            helper.setIntField(data, "mBucketsScanned", scan_data[i].buckets_scanned);
-
-            /* sort all scan results by timestamp */
-            qsort(scan_data[i].results, scan_data[i].num_results,
-                    sizeof(wifi_scan_result), compare_scan_result_timestamp);
-
-            JNIObject<jobjectArray> scanResults = helper.createObjectArray(
-                    "android/net/wifi/ScanResult", scan_data[i].num_results);
-            if (scanResults == NULL) {
-                ALOGE("Error in allocating scanResult array for getScanResults, length=%d",
-                      scan_data[i].num_results);
-                return NULL;
-            }
-
-            wifi_scan_result *results = scan_data[i].results;
-            for (int j = 0; j < scan_data[i].num_results; j++) {
+    if (result != WIFI_SUCCESS) {
+        return false;
+    }
 
-                JNIObject<jobject> scanResult = createScanResult(helper, &results[j], false);
-                if (scanResult == NULL) {
-                    ALOGE("Error in creating scan result for getScanResults");
-                    return NULL;
-                }
+    int num_results = 0;
+    int ssids_length = 0;
+    for (int i = 0; i < num_scan_data; i++) {
+        /* sort all scan results by timestamp */
+        qsort(scan_data[i].results, scan_data[i].num_results,
+                sizeof(wifi_scan_result), compare_scan_result_timestamp);
+        num_results += scan_data[i].num_results;
+        for (int j = 0; j < scan_data[i].num_results; j++) {
+            ssids_length += strlen(scan_data[i].results[j].ssid);
+        }
+    }
 
-                helper.setObjectArrayElement(scanResults, j, scanResult);
-            }
+    std::vector<jint> scan_ids(num_scan_data);
+    std::vector<jint> scan_flags(num_scan_data);
+    std::vector<jint> buckets_scanned(num_scan_data);
+    std::vector<jint> first_results(num_scan_data + 1);
+    std::vector<jlong> bssids(num_results);
+    std::vector<jint> rssis(num_results);
+    std::vector<jint> frequencies(num_results);
+    std::vector<jlong> timestamps(num_results);
+    std::vector<jbyte> ssids(ssids_length);
+    std::vector<jint> ssid_offsets(num_results + 1);
 
-            helper.setObjectField(data, "mResults", "[Landroid/net/wifi/ScanResult;", scanResults);
-            helper.setObjectArrayElement(scanData, i, data);
+    int n = 0;
+    int ssid_offset = 0;
+    for (int i = 0; i < num_scan_data; i++) {
+        scan_ids[i] = scan_data[i].scan_id;
+        scan_flags[i] = scan_data[i].flags;
+        buckets_scanned[i] = scan_data[i].buckets_scanned;
+        first_results[i] = n;
+        for (int j = 0; j < scan_data[i].num_results; j++, n++) {
+            wifi_scan_result &r = scan_data[i].results[j];
+            bssids[n] = packBssid(r.bssid);
+            rssis[n] = r.rssi;
+            frequencies[n] = r.channel;
+            timestamps[n] = r.ts;
+            int ssid_len = strlen(r.ssid);
+            memcpy(ssids.data() + ssid_offset, r.ssid, ssid_len);
+            ssid_offsets[n] = ssid_offset;
+            ssid_offset += ssid_len;
         }
-
-        // ALOGD("retrieved %d scan data from interface[%d] = %p", num_scan_data, iface, handle);
-        return scanData.detach();
-    } else {
-        return NULL;
     }
+    first_results[num_scan_data] = n;
+    ssid_offsets[num_results] = ssid_offset;
+
+    JNIObject<jintArray> scanIds = helper.newIntArray(num_scan_data);
+    JNIObject<jintArray> scanFlags = helper.newIntArray(num_scan_data);
+    JNIObject<jintArray> bucketsScanned = helper.newIntArray(num_scan_data);
+    JNIObject<jintArray> firstResults = helper.newIntArray(num_scan_data + 1);
+    JNIObject<jlongArray> bssidArray = helper.newLongArray(num_results);
+    JNIObject<jintArray> rssiArray = helper.newIntArray(num_results);
+    JNIObject<jintArray> frequencyArray = helper.newIntArray(num_results);
+    JNIObject<jlongArray> timestampArray = helper.newLongArray(num_results);
+    JNIObject<jbyteArray> ssidArray = helper.newByteArray(ssids_length);
+    JNIObject<jintArray> ssidOffsets = helper.newIntArray(num_results + 1);
+    if (scanIds == NULL || scanFlags == NULL || bucketsScanned == NULL || firstResults == NULL
+            || bssidArray == NULL || rssiArray == NULL || frequencyArray == NULL
+            || timestampArray == NULL || ssidArray == NULL || ssidOffsets == NULL) {
+        ALOGE("Error in allocating arrays for getScanResults, scans=%d results=%d",
+                num_scan_data, num_results);
+        return false;
+    }
+
+    helper.setIntArrayRegion(scanIds, 0, num_scan_data, scan_ids.data());
+    helper.setIntArrayRegion(scanFlags, 0, num_scan_data, scan_flags.data());
+    helper.setIntArrayRegion(bucketsScanned, 0, num_scan_data, buckets_scanned.data());
+    helper.setIntArrayRegion(firstResults, 0, num_scan_data + 1, first_results.data());
+    helper.setLongArrayRegion(bssidArray, 0, num_results, bssids.data());
+    helper.setIntArrayRegion(rssiArray, 0, num_results, rssis.data());
+    helper.setIntArrayRegion(frequencyArray, 0, num_results, frequencies.data());
+    helper.setLongArrayRegion(timestampArray, 0, num_results, timestamps.data());
+    helper.setByteArrayRegion(ssidArray, 0, ssids_length, ssids.data());
+    helper.setIntArrayRegion(ssidOffsets, 0, num_results + 1, ssid_offsets.data());
+
+    helper.setObjectField(out, gHalScanResultsClassInfo.scanIds, scanIds);
+    helper.setObjectField(out, gHalScanResultsClassInfo.scanFlags, scanFlags);
+    helper.setObjectField(out, gHalScanResultsClassInfo.bucketsScanned, bucketsScanned);
+    helper.setObjectField(out, gHalScanResultsClassInfo.firstResults, firstResults);
+    helper.setObjectField(out, gHalScanResultsClassInfo.bssids, bssidArray);
+    helper.setObjectField(out, gHalScanResultsClassInfo.rssis, rssiArray);
+    helper.setObjectField(out, gHalScanResultsClassInfo.frequencies, frequencyArray);
+    helper.setObjectField(out, gHalScanResultsClassInfo.timestamps, timestampArray);
+    helper.setObjectField(out, gHalScanResultsClassInfo.ssids, ssidArray);
+    helper.setObjectField(out, gHalScanResultsClassInfo.ssidOffsets, ssidOffsets);
+    helper.setIntField(out, gHalScanResultsClassInfo.numScans, num_scan_data);
+
+    // ALOGD("retrieved %d scan data from interface[%d] = %p", num_scan_data, iface, handle);
+    return true;
 }
 
 
@@ -779,7 +1136,7 @@ static void onHotlistApFound(wifi_request_id id,
     ALOGD("onHotlistApFound called, vm = %p, obj = %p, num_results = %d", mVM, mCls, num_results);
 
     JNIObject<jobjectArray> scanResults = helper.newObjectArray(num_results,
-            "android/net/wifi/ScanResult", NULL);
+            gScanResultClassInfo.clazz, NULL);
     if (scanResults == NULL) {
         ALOGE("Error in allocating ScanResult array in onHotlistApFound, length=%d", num_results);
         return;
@@ -798,8 +1155,7 @@ static void onHotlistApFound(wifi_request_id id,
         ALOGD("Found AP %32s", results[i].ssid);
     }
 
-    helper.reportEvent(mCls, "onHotlistApFound", "(I[Landroid/net/wifi/ScanResult;)V",
-        id, scanResults.get());
+    helper.reportEvent(mCls, gWifiNativeMethods.onHotlistApFound, id, scanResults.get());
 }
 
 static void onHotlistApLost(wifi_request_id id,
@@ -809,7 +1165,7 @@ static void onHotlistApLost(wifi_request_id id,
     ALOGD("onHotlistApLost called, vm = %p, obj = %p, num_results = %d", mVM, mCls, num_results);
 
     JNIObject<jobjectArray> scanResults = helper.newObjectArray(num_results,
-            "android/net/wifi/ScanResult", NULL);
+            gScanResultClassInfo.clazz, NULL);
     if (scanResults == NULL) {
         ALOGE("Error in allocating ScanResult array onHotlistApLost, length=%d", num_results);
         return;
@@ -828,8 +1184,7 @@ static void onHotlistApLost(wifi_request_id id,
         ALOGD("Lost AP %32s", results[i].ssid);
     }
 
-    helper.reportEvent(mCls, "onHotlistApLost", "(I[Landroid/net/wifi/ScanResult;)V",
-        id, scanResults.get());
+    helper.reportEvent(mCls, gWifiNativeMethods.onHotlistApLost, id, scanResults.get());
 }
 
 
@@ -916,7 +1271,7 @@ void onSignificantWifiChange(wifi_request_id id,
     ALOGD("onSignificantWifiChange called, vm = %p, obj = %p", mVM, mCls);
 
     JNIObject<jobjectArray> scanResults = helper.newObjectArray(
-            num_results, "android/net/wifi/ScanResult", NULL);
+            num_results, gScanResultClassInfo.clazz, NULL);
     if (scanResults == NULL) {
         ALOGE("Error in allocating ScanResult array in onSignificantWifiChange, length=%d",
               num_results);
@@ -927,7 +1282,8 @@ void onSignificantWifiChange(wifi_request_id id,
 
         wifi_significant_change_result &result = *(results[i]);
 
-        JNIObject<jobject> scanResult = helper.createObject("android/net/wifi/ScanResult");
+        JNIObject<jobject> scanResult = helper.createObject(gScanResultClassInfo.clazz,
+                gScanResultClassInfo.constructor);
         if (scanResult == NULL) {
             ALOGE("Error in creating scan result in onSignificantWifiChange");
             return;
@@ -939,17 +1295,16 @@ void onSignificantWifiChange(wifi_request_id id,
         sprintf(bssid, "%02x:%02x:%02x:%02x:%02x:%02x", result.bssid[0], result.bssid[1],
             result.bssid[2], result.bssid[3], result.bssid[4], result.bssid[5]);
 
-        helper.setStringField(scanResult, "BSSID", bssid);
+        helper.setStringField(scanResult, gScanResultClassInfo.BSSID, bssid);
 
-        helper.setIntField(scanResult, "level", result.rssi[0]);
-        helper.setIntField(scanResult, "frequency", result.channel);
+        helper.setIntField(scanResult, gScanResultClassInfo.level, result.rssi[0]);
+        helper.setIntField(scanResult, gScanResultClassInfo.frequency, result.channel);
         // helper.setLongField(scanResult, "timestamp", result.ts);
 
         helper.setObjectArrayElement(scanResults, i, scanResult);
     }
 
-    helper.reportEvent(mCls, "onSignificantWifiChange", "(I[Landroid/net/wifi/ScanResult;)V",
-        id, scanResults.get());
+    helper.reportEvent(mCls, gWifiNativeMethods.onSignificantWifiChange, id, scanResults.get());
 
 }
 
@@ -1109,7 +1464,7 @@ static jobject android_net_wifi_getLinkLayerStats (JNIEnv *env, jclass cls, jint
     }
 
     JNIObject<jobject> wifiLinkLayerStats = helper.createObject(
-            "android/net/wifi/WifiLinkLayerStats");
+            gLinkLayerStatsClassInfo.clazz, gLinkLayerStatsClassInfo.constructor);
     if (wifiLinkLayerStats == NULL) {
        ALOGE("Error in allocating wifiLinkLayerStats");
        return NULL;
@@ -1121,34 +1476,30 @@ static jobject android_net_wifi_getLinkLayerStats (JNIEnv *env, jclass cls, jint
         return NULL;
     }
 
-    helper.setIntField(wifiLinkLayerStats, "beacon_rx", link_stat.beacon_rx);
-    helper.setIntField(wifiLinkLayerStats, "rssi_mgmt", link_stat.rssi_mgmt);
-    helper.setLongField(wifiLinkLayerStats, "rxmpdu_be", link_stat.ac[WIFI_AC_BE].rx_mpdu);
-    helper.setLongField(wifiLinkLayerStats, "rxmpdu_bk", link_stat.ac[WIFI_AC_BK].rx_mpdu);
-    helper.setLongField(wifiLinkLayerStats, "rxmpdu_vi", link_stat.ac[WIFI_AC_VI].rx_mpdu);
-    helper.setLongField(wifiLinkLayerStats, "rxmpdu_vo", link_stat.ac[WIFI_AC_VO].rx_mpdu);
-    helper.setLongField(wifiLinkLayerStats, "txmpdu_be", link_stat.ac[WIFI_AC_BE].tx_mpdu);
-    helper.setLongField(wifiLinkLayerStats, "txmpdu_bk", link_stat.ac[WIFI_AC_BK].tx_mpdu);
-    helper.setLongField(wifiLinkLayerStats, "txmpdu_vi", link_stat.ac[WIFI_AC_VI].tx_mpdu);
-    helper.setLongField(wifiLinkLayerStats, "txmpdu_vo", link_stat.ac[WIFI_AC_VO].tx_mpdu);
-    helper.setLongField(wifiLinkLayerStats, "lostmpdu_be", link_stat.ac[WIFI_AC_BE].mpdu_lost);
-    helper.setLongField(wifiLinkLayerStats, "lostmpdu_bk", link_stat.ac[WIFI_AC_BK].mpdu_lost);
-    helper.setLongField(wifiLinkLayerStats, "lostmpdu_vi",  link_stat.ac[WIFI_AC_VI].mpdu_lost);
-    helper.setLongField(wifiLinkLayerStats, "lostmpdu_vo", link_stat.ac[WIFI_AC_VO].mpdu_lost);
-    helper.setLongField(wifiLinkLayerStats, "retries_be", link_stat.ac[WIFI_AC_BE].retries);
-    helper.setLongField(wifiLinkLayerStats, "retries_bk", link_stat.ac[WIFI_AC_BK].retries);
-    helper.setLongField(wifiLinkLayerStats, "retries_vi", link_stat.ac[WIFI_AC_VI].retries);
-    helper.setLongField(wifiLinkLayerStats, "retries_vo", link_stat.ac[WIFI_AC_VO].retries);
-
-    helper.setIntField(wifiLinkLayerStats, "on_time", radio_stat.on_time);
-    helper.setIntField(wifiLinkLayerStats, "tx_time", radio_stat.tx_time);
-    helper.setIntField(wifiLinkLayerStats, "rx_time", radio_stat.rx_time);
-    helper.setIntField(wifiLinkLayerStats, "on_time_scan", radio_stat.on_time_scan);
+    helper.setIntField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.beacon_rx,
+            link_stat.beacon_rx);
+    helper.setIntField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.rssi_mgmt,
+            link_stat.rssi_mgmt);
+    for (int i = 0; i < 4; i++) {
+        wifi_wmm_ac_stat &ac = link_stat.ac[LinkLayerStatsAcs[i]];
+        helper.setLongField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.rxmpdu[i], ac.rx_mpdu);
+        helper.setLongField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.txmpdu[i], ac.tx_mpdu);
+        helper.setLongField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.lostmpdu[i],
+                ac.mpdu_lost);
+        helper.setLongField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.retries[i], ac.retries);
+    }
+
+    helper.setIntField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.on_time, radio_stat.on_time);
+    helper.setIntField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.tx_time, radio_stat.tx_time);
+    helper.setIntField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.rx_time, radio_stat.rx_time);
+    helper.setIntField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.on_time_scan,
+            radio_stat.on_time_scan);
     if (radio_stat.tx_time_per_levels != 0) {
         helper.setIntArrayRegion(tx_time_per_level, 0, radio_stat.num_tx_levels,
                 (jint *)radio_stat.tx_time_per_levels);
     }
-    helper.setObjectField(wifiLinkLayerStats, "tx_time_per_level", "[I", tx_time_per_level);
+    helper.setObjectField(wifiLinkLayerStats, gLinkLayerStatsClassInfo.tx_time_per_level,
+            tx_time_per_level);
 
 
     return wifiLinkLayerStats.detach();
@@ -1190,7 +1541,7 @@ static void onRttResults(wifi_request_id id, unsigned num_results, wifi_rtt_resu
     if (DBG) ALOGD("onRttResults called, vm = %p, obj = %p", mVM, mCls);
 
     JNIObject<jobjectArray> rttResults = helper.newObjectArray(
-            num_results, "android/net/wifi/RttManager$RttResult", NULL);
+            num_results, gRttResultClassInfo.clazz, NULL);
     if (rttResults == NULL) {
         ALOGE("Error in allocating RttResult array in onRttResults, length=%d", num_results);
         return;
@@ -1200,7 +1551,8 @@ static void onRttResults(wifi_request_id id, unsigned num_results, wifi_rtt_resu
 
         wifi_rtt_result *result = results[i];
 
-        JNIObject<jobject> rttResult = helper.createObject("android/net/wifi/RttManager$RttResult");
+        JNIObject<jobject> rttResult = helper.createObject(gRttResultClassInfo.clazz,
+                gRttResultClassInfo.constructor);
         if (rttResult == NULL) {
             ALOGE("Error in creating rtt result in onRttResults");
             return;
@@ -1210,63 +1562,67 @@ static void onRttResults(wifi_request_id id, unsigned num_results, wifi_rtt_resu
         sprintf(bssid, "%02x:%02x:%02x:%02x:%02x:%02x", result->addr[0], result->addr[1],
             result->addr[2], result->addr[3], result->addr[4], result->addr[5]);
 
-        helper.setStringField(rttResult, "bssid", bssid);
-        helper.setIntField( rttResult, "burstNumber",              result->burst_num);
-        helper.setIntField( rttResult, "measurementFrameNumber",   result->measurement_number);
-        helper.setIntField( rttResult, "successMeasurementFrameNumber",   result->success_number);
-        helper.setIntField(rttResult, "frameNumberPerBurstPeer",   result->number_per_burst_peer);
-        helper.setIntField( rttResult, "status",                   result->status);
-        helper.setIntField( rttResult, "measurementType",          result->type);
-        helper.setIntField(rttResult, "retryAfterDuration",       result->retry_after_duration);
-        helper.setLongField(rttResult, "ts",                       result->ts);
-        helper.setIntField( rttResult, "rssi",                     result->rssi);
-        helper.setIntField( rttResult, "rssiSpread",               result->rssi_spread);
-        helper.setIntField( rttResult, "txRate",                   result->tx_rate.bitrate);
-        helper.setIntField( rttResult, "rxRate",                   result->rx_rate.bitrate);
-        helper.setLongField(rttResult, "rtt",                      result->rtt);
-        helper.setLongField(rttResult, "rttStandardDeviation",     result->rtt_sd);
-        helper.setIntField( rttResult, "distance",                 result->distance_mm / 10);
-        helper.setIntField( rttResult, "distanceStandardDeviation", result->distance_sd_mm / 10);
-        helper.setIntField( rttResult, "distanceSpread",           result->distance_spread_mm / 10);
-        helper.setIntField( rttResult, "burstDuration",             result->burst_duration);
-        helper.setIntField( rttResult, "negotiatedBurstNum",      result->negotiated_burst_num);
-
-        JNIObject<jobject> LCI = helper.createObject(
-                "android/net/wifi/RttManager$WifiInformationElement");
+        helper.setStringField(rttResult, gRttResultClassInfo.bssid, bssid);
+        helper.setIntField( rttResult, gRttResultClassInfo.burstNumber,  result->burst_num);
+        helper.setIntField( rttResult, gRttResultClassInfo.measurementFrameNumber,
+                result->measurement_number);
+        helper.setIntField( rttResult, gRttResultClassInfo.successMeasurementFrameNumber,
+                result->success_number);
+        helper.setIntField(rttResult, gRttResultClassInfo.frameNumberPerBurstPeer,
+                result->number_per_burst_peer);
+        helper.setIntField( rttResult, gRttResultClassInfo.status,       result->status);
+        helper.setIntField( rttResult, gRttResultClassInfo.measurementType, result->type);
+        helper.setIntField(rttResult, gRttResultClassInfo.retryAfterDuration,
+                result->retry_after_duration);
+        helper.setLongField(rttResult, gRttResultClassInfo.ts,           result->ts);
+        helper.setIntField( rttResult, gRttResultClassInfo.rssi,         result->rssi);
+        helper.setIntField( rttResult, gRttResultClassInfo.rssiSpread,   result->rssi_spread);
+        helper.setIntField( rttResult, gRttResultClassInfo.txRate,       result->tx_rate.bitrate);
+        helper.setIntField( rttResult, gRttResultClassInfo.rxRate,       result->rx_rate.bitrate);
+        helper.setLongField(rttResult, gRttResultClassInfo.rtt,          result->rtt);
+        helper.setLongField(rttResult, gRttResultClassInfo.rttStandardDeviation, result->rtt_sd);
+        helper.setIntField( rttResult, gRttResultClassInfo.distance,     result->distance_mm / 10);
+        helper.setIntField( rttResult, gRttResultClassInfo.distanceStandardDeviation,
+                result->distance_sd_mm / 10);
+        helper.setIntField( rttResult, gRttResultClassInfo.distanceSpread,
+                result->distance_spread_mm / 10);
+        helper.setIntField( rttResult, gRttResultClassInfo.burstDuration, result->burst_duration);
+        helper.setIntField( rttResult, gRttResultClassInfo.negotiatedBurstNum,
+                result->negotiated_burst_num);
+
+        JNIObject<jobject> LCI = helper.createObject(gWifiInformationElementClassInfo.clazz,
+                gWifiInformationElementClassInfo.constructor);
         if (result->LCI != NULL && result->LCI->len > 0) {
-            helper.setByteField(LCI, "id", result->LCI->id);
+            helper.setByteField(LCI, gWifiInformationElementClassInfo.id, result->LCI->id);
             JNIObject<jbyteArray> elements = helper.newByteArray(result->LCI->len);
             jbyte *bytes = (jbyte *)&(result->LCI->data[0]);
             helper.setByteArrayRegion(elements, 0, result->LCI->len, bytes);
-            helper.setObjectField(LCI, "data", "[B", elements);
+            helper.setObjectField(LCI, gWifiInformationElementClassInfo.data, elements);
         } else {
-            helper.setByteField(LCI, "id", (byte)(0xff));
+            helper.setByteField(LCI, gWifiInformationElementClassInfo.id, (byte)(0xff));
         }
-        helper.setObjectField(rttResult, "LCI",
-            "Landroid/net/wifi/RttManager$WifiInformationElement;", LCI);
+        helper.setObjectField(rttResult, gRttResultClassInfo.LCI, LCI);
 
-        JNIObject<jobject> LCR = helper.createObject(
-                "android/net/wifi/RttManager$WifiInformationElement");
+        JNIObject<jobject> LCR = helper.createObject(gWifiInformationElementClassInfo.clazz,
+                gWifiInformationElementClassInfo.constructor);
         if (result->LCR != NULL && result->LCR->len > 0) {
-            helper.setByteField(LCR, "id",           result->LCR->id);
+            helper.setByteField(LCR, gWifiInformationElementClassInfo.id, result->LCR->id);
             JNIObject<jbyteArray> elements = helper.newByteArray(result->LCI->len);
             jbyte *bytes = (jbyte *)&(result->LCR->data[0]);
             helper.setByteArrayRegion(elements, 0, result->LCI->len, bytes);
-            helper.setObjectField(LCR, "data", "[B", elements);
+            helper.setObjectField(LCR, gWifiInformationElementClassInfo.data, elements);
         } else {
-            helper.setByteField(LCR, "id", (byte)(0xff));
+            helper.setByteField(LCR, gWifiInformationElementClassInfo.id, (byte)(0xff));
         }
-        helper.setObjectField(rttResult, "LCR",
-            "Landroid/net/wifi/RttManager$WifiInformationElement;", LCR);
+        helper.setObjectField(rttResult, gRttResultClassInfo.LCR, LCR);
 
         helper.setObjectArrayElement(rttResults, i, rttResult);
     }
 
-    helper.reportEvent(mCls, "onRttResults", "(I[Landroid/net/wifi/RttManager$RttResult;)V",
-        id, rttResults.get());
+    helper.reportEvent(mCls, gWifiNativeMethods.onRttResults, id, rttResults.get());
 }
 
-const int MaxRttConfigs = 16;
+const int MaxRttConfigs = 16;     // WifiNative.MAX_RTT_PEERS_PER_REQUEST
 
 static jboolean android_net_wifi_requestRange(
         JNIEnv *env, jclass cls, jint iface, jint id, jobject params)  {
@@ -2196,7 +2552,7 @@ static void onPnoNetworkFound(wifi_request_id id,
     }
 
     JNIObject<jobjectArray> scanResults = helper.newObjectArray(num_results,
-            "android/net/wifi/ScanResult", NULL);
+            gScanResultClassInfo.clazz, NULL);
     if (scanResults == NULL) {
         ALOGE("onpnoNetworkFound: Error in allocating scanResults array");
         return;
@@ -2227,7 +2583,7 @@ static void onPnoNetworkFound(wifi_request_id id,
         }
     }
 
-    helper.reportEvent(mCls, "onPnoNetworkFound", "(I[Landroid/net/wifi/ScanResult;[I)V", id,
+    helper.reportEvent(mCls, gWifiNativeMethods.onPnoNetworkFound, id,
                scanResults.get(), beaconCaps.get());
 }
 
@@ -2433,7 +2789,7 @@ static void onRssiThresholdbreached(wifi_request_id id, u8 *cur_bssid, s8 cur_rs
             cur_bssid[3], cur_bssid[4], cur_bssid[5]);
     JNIHelper helper(mVM);
     //ALOGD("onRssiThresholdbreached called, vm = %p, obj = %p, env = %p", mVM, mCls, env);
-    helper.reportEvent(mCls, "onRssiThresholdBreached", "(IB)V", id, cur_rssi);
+    helper.reportEvent(mCls, gWifiNativeMethods.onRssiThresholdBreached, id, cur_rssi);
 }
 
 static jint android_net_wifi_start_rssi_monitoring_native(JNIEnv *env, jclass cls, jint iface,
@@ -2596,11 +2952,15 @@ static JNINativeMethod gWifiMethods[] = {
     { "connectToSupplicantNative", "()Z", (void *)android_net_wifi_connectToSupplicant },
     { "closeSupplicantConnectionNative", "()V",
             (void *)android_net_wifi_closeSupplicantConnection },
-    { "waitForEventNative", "()Ljava/lang/String;", (void*)android_net_wifi_waitForEvent },
+    { "waitForEventsNative", "()[Ljava/lang/String;", (void*)android_net_wifi_waitForEvents },
+    { "setDroppedEventsNative", "([Ljava/lang/String;)V",
+            (void*)android_net_wifi_setDroppedEvents },
     { "doBooleanCommandNative", "(Ljava/lang/String;)Z", (void*)android_net_wifi_doBooleanCommand },
     { "doIntCommandNative", "(Ljava/lang/String;)I", (void*)android_net_wifi_doIntCommand },
     { "doStringCommandNative", "(Ljava/lang/String;)Ljava/lang/String;",
             (void*) android_net_wifi_doStringCommand },
+    { "doStringCommandsNative", "([Ljava/lang/String;)[Ljava/lang/String;",
+            (void*) android_net_wifi_doStringCommands },
     { "setApMode", "(Z)Z", (void*) android_net_wifi_setApMode},
     { "startHalNative", "()Z", (void*) android_net_wifi_startHal },
     { "stopHalNative", "()V", (void*) android_net_wifi_stopHal },
@@ -2612,7 +2972,7 @@ static JNINativeMethod gWifiMethods[] = {
     { "startScanNative", "(IILcom/android/server/wifi/WifiNative$ScanSettings;)Z",
             (void*) android_net_wifi_startScan},
     { "stopScanNative", "(II)Z", (void*) android_net_wifi_stopScan},
-    { "getScanResultsNative", "(IZ)[Landroid/net/wifi/WifiScanner$ScanData;",
+    { "getScanResultsNative", "(IZLcom/android/server/wifi/HalScanResults;)Z",
             (void *) android_net_wifi_getScanResults},
     { "setHotlistNative", "(IILandroid/net/wifi/WifiScanner$HotlistSettings;)Z",
             (void*) android_net_wifi_setHotlist},
@@ -2702,6 +3062,12 @@ jint Java_com_android_server_wifi_WifiNative_registerNatives(JNIEnv* env, jclass
     // initialization needed for unit test APK
     JniConstants::init(env);
 
+    JNIHelper helper(env);
+    if (!lookUpClassInfo(helper, clazz)) {
+        ALOGE("Error in looking up the classes used by HAL callbacks");
+        return -1;
+    }
+
     return jniRegisterNativeMethods(env,
             "com/android/server/wifi/WifiNative", gWifiMethods, NELEM(gWifiMethods));
 }
@@ -41,6 +41,105 @@ wifi_interface_handle getIfaceHandle(JNIHelper &helper, jclass cls, jint index);
 
 extern wifi_hal_fn hal_fn;
 
+/* IDs used by the NAN callbacks, looked up once in registerNanNatives */
+static struct {
+    jmethodID onNanNotifyResponse;
+    jmethodID onNanNotifyResponsePublishSubscribe;
+    jmethodID onNanNotifyResponseCapabilities;
+    jmethodID onPublishTerminated;
+    jmethodID onMatchEvent;
+    jmethodID onSubscribeTerminated;
+    jmethodID onFollowupEvent;
+    jmethodID onDiscoveryEngineEvent;
+    jmethodID onDisabledEvent;
+} gWifiNanNativeMethods;
+
+static struct {
+    jclass clazz;
+    jmethodID constructor;
+    jfieldID maxConcurrentNanClusters;
+    jfieldID maxPublishes;
+    jfieldID maxSubscribes;
+    jfieldID maxServiceNameLen;
+    jfieldID maxMatchFilterLen;
+    jfieldID maxTotalMatchFilterLen;
+    jfieldID maxServiceSpecificInfoLen;
+    jfieldID maxVsaDataLen;
+    jfieldID maxMeshDataLen;
+    jfieldID maxNdiInterfaces;
+    jfieldID maxNdpSessions;
+    jfieldID maxAppInfoLen;
+} gCapabilitiesClassInfo;
+
+static bool lookUpNanClassInfo(JNIHelper &helper, jclass wifiNanNativeClass) {
+    gWifiNanNativeMethods.onNanNotifyResponse = helper.getStaticMethodID(wifiNanNativeClass,
+            "onNanNotifyResponse", "(SIII)V");
+    gWifiNanNativeMethods.onNanNotifyResponsePublishSubscribe = helper.getStaticMethodID(
+            wifiNanNativeClass, "onNanNotifyResponsePublishSubscribe", "(SIIII)V");
+    gWifiNanNativeMethods.onNanNotifyResponseCapabilities = helper.getStaticMethodID(
+            wifiNanNativeClass, "onNanNotifyResponseCapabilities",
+            "(SIILcom/android/server/wifi/nan/WifiNanNative$Capabilities;)V");
+    gWifiNanNativeMethods.onPublishTerminated = helper.getStaticMethodID(wifiNanNativeClass,
+            "onPublishTerminated", "(II)V");
+    gWifiNanNativeMethods.onMatchEvent = helper.getStaticMethodID(wifiNanNativeClass,
+            "onMatchEvent", "(II[B[BI[BI)V");
+    gWifiNanNativeMethods.onSubscribeTerminated = helper.getStaticMethodID(wifiNanNativeClass,
+            "onSubscribeTerminated", "(II)V");
+    gWifiNanNativeMethods.onFollowupEvent = helper.getStaticMethodID(wifiNanNativeClass,
+            "onFollowupEvent", "(II[B[BI)V");
+    gWifiNanNativeMethods.onDiscoveryEngineEvent = helper.getStaticMethodID(wifiNanNativeClass,
+            "onDiscoveryEngineEvent", "(I[B)V");
+    gWifiNanNativeMethods.onDisabledEvent = helper.getStaticMethodID(wifiNanNativeClass,
+            "onDisabledEvent", "(I)V");
+    if (gWifiNanNativeMethods.onNanNotifyResponse == NULL
+            || gWifiNanNativeMethods.onNanNotifyResponsePublishSubscribe == NULL
+            || gWifiNanNativeMethods.onNanNotifyResponseCapabilities == NULL
+            || gWifiNanNativeMethods.onPublishTerminated == NULL
+            || gWifiNanNativeMethods.onMatchEvent == NULL
+            || gWifiNanNativeMethods.onSubscribeTerminated == NULL
+            || gWifiNanNativeMethods.onFollowupEvent == NULL
+            || gWifiNanNativeMethods.onDiscoveryEngineEvent == NULL
+            || gWifiNanNativeMethods.onDisabledEvent == NULL) {
+        return false;
+    }
+
+    jclass cls = helper.findClassGlobalRef(
+            "com/android/server/wifi/nan/WifiNanNative$Capabilities");
+    if (cls == NULL) {
+        return false;
+    }
+    gCapabilitiesClassInfo.clazz = cls;
+    gCapabilitiesClassInfo.constructor = helper.getMethodID(cls, "<init>", "()V");
+    gCapabilitiesClassInfo.maxConcurrentNanClusters =
+            helper.getFieldID(cls, "maxConcurrentNanClusters", "I");
+    gCapabilitiesClassInfo.maxPublishes = helper.getFieldID(cls, "maxPublishes", "I");
+    gCapabilitiesClassInfo.maxSubscribes = helper.getFieldID(cls, "maxSubscribes", "I");
+    gCapabilitiesClassInfo.maxServiceNameLen = helper.getFieldID(cls, "maxServiceNameLen", "I");
+    gCapabilitiesClassInfo.maxMatchFilterLen = helper.getFieldID(cls, "maxMatchFilterLen", "I");
+    gCapabilitiesClassInfo.maxTotalMatchFilterLen =
+            helper.getFieldID(cls, "maxTotalMatchFilterLen", "I");
+    gCapabilitiesClassInfo.maxServiceSpecificInfoLen =
+            helper.getFieldID(cls, "maxServiceSpecificInfoLen", "I");
+    gCapabilitiesClassInfo.maxVsaDataLen = helper.getFieldID(cls, "maxVsaDataLen", "I");
+    gCapabilitiesClassInfo.maxMeshDataLen = helper.getFieldID(cls, "maxMeshDataLen", "I");
+    gCapabilitiesClassInfo.maxNdiInterfaces = helper.getFieldID(cls, "maxNdiInterfaces", "I");
+    gCapabilitiesClassInfo.maxNdpSessions = helper.getFieldID(cls, "maxNdpSessions", "I");
+    gCapabilitiesClassInfo.maxAppInfoLen = helper.getFieldID(cls, "maxAppInfoLen", "I");
+    return gCapabilitiesClassInfo.constructor != NULL
+            && gCapabilitiesClassInfo.maxConcurrentNanClusters != NULL
+            && gCapabilitiesClassInfo.maxPublishes != NULL
+            && gCapabilitiesClassInfo.maxSubscribes != NULL
+            && gCapabilitiesClassInfo.maxServiceNameLen != NULL
+            && gCapabilitiesClassInfo.maxMatchFilterLen != NULL
+            && gCapabilitiesClassInfo.maxTotalMatchFilterLen != NULL
+            && gCapabilitiesClassInfo.maxServiceSpecificInfoLen != NULL
+            && gCapabilitiesClassInfo.maxVsaDataLen != NULL
+            && gCapabilitiesClassInfo.maxMeshDataLen != NULL
+            && gCapabilitiesClassInfo.maxNdiInterfaces != NULL
+            && gCapabilitiesClassInfo.maxNdpSessions != NULL
+            && gCapabilitiesClassInfo.maxAppInfoLen != NULL;
+}
+
 // Start NAN functions
 
 static void OnNanNotifyResponse(transaction_id id, NanResponseMsg* msg) {
@@ -51,20 +150,20 @@ static void OnNanNotifyResponse(transaction_id id, NanResponseMsg* msg) {
   JNIHelper helper(mVM);
   switch (msg->response_type) {
     case NAN_RESPONSE_PUBLISH:
-      helper.reportEvent(mCls, "onNanNotifyResponsePublishSubscribe",
-                         "(SIIII)V", (short) id, (int) msg->response_type,
+      helper.reportEvent(mCls, gWifiNanNativeMethods.onNanNotifyResponsePublishSubscribe,
+                         (short) id, (int) msg->response_type,
                          (int) msg->status, (int) msg->value,
                          msg->body.publish_response.publish_id);
       break;
     case NAN_RESPONSE_SUBSCRIBE:
-      helper.reportEvent(mCls, "onNanNotifyResponsePublishSubscribe",
-                         "(SIIII)V", (short) id, (int) msg->response_type,
+      helper.reportEvent(mCls, gWifiNanNativeMethods.onNanNotifyResponsePublishSubscribe,
+                         (short) id, (int) msg->response_type,
                          (int) msg->status, (int) msg->value,
                          msg->body.subscribe_response.subscribe_id);
       break;
     case NAN_GET_CAPABILITIES: {
       JNIObject<jobject> data = helper.createObject(
-          "com/android/server/wifi/nan/WifiNanNative$Capabilities");
+          gCapabilitiesClassInfo.clazz, gCapabilitiesClassInfo.constructor);
       if (data == NULL) {
         ALOGE(
             "Error in allocating WifiNanNative.Capabilities OnNanNotifyResponse");
@@ -72,41 +171,40 @@ static void OnNanNotifyResponse(transaction_id id, NanResponseMsg* msg) {
       }
 
       helper.setIntField(
-          data, "maxConcurrentNanClusters",
+          data, gCapabilitiesClassInfo.maxConcurrentNanClusters,
           (int) msg->body.nan_capabilities.max_concurrent_nan_clusters);
-      helper.setIntField(data, "maxPublishes",
+      helper.setIntField(data, gCapabilitiesClassInfo.maxPublishes,
                          (int) msg->body.nan_capabilities.max_publishes);
-      helper.setIntField(data, "maxSubscribes",
+      helper.setIntField(data, gCapabilitiesClassInfo.maxSubscribes,
                          (int) msg->body.nan_capabilities.max_subscribes);
-      helper.setIntField(data, "maxServiceNameLen",
+      helper.setIntField(data, gCapabilitiesClassInfo.maxServiceNameLen,
                          (int) msg->body.nan_capabilities.max_service_name_len);
-      helper.setIntField(data, "maxMatchFilterLen",
+      helper.setIntField(data, gCapabilitiesClassInfo.maxMatchFilterLen,
                          (int) msg->body.nan_capabilities.max_match_filter_len);
       helper.setIntField(
-          data, "maxTotalMatchFilterLen",
+          data, gCapabilitiesClassInfo.maxTotalMatchFilterLen,
           (int) msg->body.nan_capabilities.max_total_match_filter_len);
       helper.setIntField(
-          data, "maxServiceSpecificInfoLen",
+          data, gCapabilitiesClassInfo.maxServiceSpecificInfoLen,
           (int) msg->body.nan_capabilities.max_service_specific_info_len);
-      helper.setIntField(data, "maxVsaDataLen",
+      helper.setIntField(data, gCapabilitiesClassInfo.maxVsaDataLen,
                          (int) msg->body.nan_capabilities.max_vsa_data_len);
-      helper.setIntField(data, "maxMeshDataLen",
+      helper.setIntField(data, gCapabilitiesClassInfo.maxMeshDataLen,
                          (int) msg->body.nan_capabilities.max_mesh_data_len);
-      helper.setIntField(data, "maxNdiInterfaces",
+      helper.setIntField(data, gCapabilitiesClassInfo.maxNdiInterfaces,
                          (int) msg->body.nan_capabilities.max_ndi_interfaces);
-      helper.setIntField(data, "maxNdpSessions",
+      helper.setIntField(data, gCapabilitiesClassInfo.maxNdpSessions,
                          (int) msg->body.nan_capabilities.max_ndp_sessions);
-      helper.setIntField(data, "maxAppInfoLen",
+      helper.setIntField(data, gCapabilitiesClassInfo.maxAppInfoLen,
                          (int) msg->body.nan_capabilities.max_app_info_len);
 
       helper.reportEvent(
-          mCls, "onNanNotifyResponseCapabilities",
-          "(SIILcom/android/server/wifi/nan/WifiNanNative$Capabilities;)V",
+          mCls, gWifiNanNativeMethods.onNanNotifyResponseCapabilities,
           (short) id, (int) msg->status, (int) msg->value, data.get());
       break;
     }
     default:
-      helper.reportEvent(mCls, "onNanNotifyResponse", "(SIII)V", (short) id,
+      helper.reportEvent(mCls, gWifiNanNativeMethods.onNanNotifyResponse, (short) id,
                          (int) msg->response_type, (int) msg->status,
                          (int) msg->value);
       break;
@@ -117,7 +215,7 @@ static void OnNanEventPublishTerminated(NanPublishTerminatedInd* event) {
     ALOGD("OnNanEventPublishTerminated");
 
     JNIHelper helper(mVM);
-    helper.reportEvent(mCls, "onPublishTerminated", "(II)V",
+    helper.reportEvent(mCls, gWifiNanNativeMethods.onPublishTerminated,
                        event->publish_id, event->reason);
 }
 
@@ -137,7 +235,7 @@ static void OnNanEventMatch(NanMatchInd* event) {
     helper.setByteArrayRegion(mfBytes, 0, event->sdf_match_filter_len,
                               (jbyte *) event->sdf_match_filter);
 
-    helper.reportEvent(mCls, "onMatchEvent", "(II[B[BI[BI)V",
+    helper.reportEvent(mCls, gWifiNanNativeMethods.onMatchEvent,
                        (int) event->publish_subscribe_id,
                        (int) event->requestor_instance_id,
                        macBytes.get(),
@@ -153,7 +251,7 @@ static void OnNanEventSubscribeTerminated(NanSubscribeTerminatedInd* event) {
     ALOGD("OnNanEventSubscribeTerminated");
 
     JNIHelper helper(mVM);
-    helper.reportEvent(mCls, "onSubscribeTerminated", "(II)V",
+    helper.reportEvent(mCls, gWifiNanNativeMethods.onSubscribeTerminated,
                        event->subscribe_id, event->reason);
 }
 
@@ -168,7 +266,7 @@ static void OnNanEventFollowup(NanFollowupInd* event) {
     JNIObject<jbyteArray> msgBytes = helper.newByteArray(event->service_specific_info_len);
     helper.setByteArrayRegion(msgBytes, 0, event->service_specific_info_len, (jbyte *) event->service_specific_info);
 
-    helper.reportEvent(mCls, "onFollowupEvent", "(II[B[BI)V",
+    helper.reportEvent(mCls, gWifiNanNativeMethods.onFollowupEvent,
                        (int) event->publish_subscribe_id,
                        (int) event->requestor_instance_id,
                        macBytes.get(),
@@ -188,7 +286,7 @@ static void OnNanEventDiscEngEvent(NanDiscEngEventInd* event) {
         helper.setByteArrayRegion(macBytes, 0, 6, (jbyte *) event->data.cluster.addr);
     }
 
-    helper.reportEvent(mCls, "onDiscoveryEngineEvent", "(I[B)V",
+    helper.reportEvent(mCls, gWifiNanNativeMethods.onDiscoveryEngineEvent,
                        (int) event->event_type, macBytes.get());
 }
 
@@ -197,7 +295,7 @@ static void OnNanEventDisabled(NanDisabledInd* event) {
 
     JNIHelper helper(mVM);
 
-    helper.reportEvent(mCls, "onDisabledEvent", "(I)V", (int) event->reason);
+    helper.reportEvent(mCls, gWifiNanNativeMethods.onDisabledEvent, (int) event->reason);
 }
 
 static void OnNanEventTca(NanTCAInd* event) {
@@ -516,6 +614,12 @@ static JNINativeMethod gWifiNanMethods[] = {
 /* User to register native functions */
 extern "C"
 jint Java_com_android_server_wifi_nan_WifiNanNative_registerNanNatives(JNIEnv* env, jclass clazz) {
+    JNIHelper helper(env);
+    if (!lookUpNanClassInfo(helper, clazz)) {
+        ALOGE("Error in looking up the classes used by NAN callbacks");
+        return -1;
+    }
+
     return jniRegisterNativeMethods(env,
             "com/android/server/wifi/nan/WifiNanNative", gWifiNanMethods, NELEM(gWifiNanMethods));
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "gbk_ssid_table.h"
+
+namespace android {
+
+GbkSsidTable::GbkSsidTable(size_t capacity) : mCapacity(capacity > 0 ? capacity : 1) {
+}
+
+void GbkSsidTable::put(const std::string &gbk, const std::string &utf8) {
+    auto found = mByGbk.find(gbk);
+    if (found != mByGbk.end()) {
+        EntryList::iterator entry = found->second;
+        if (entry->utf8 != utf8) {
+            auto byUtf8 = mByUtf8.find(entry->utf8);
+            if (byUtf8 != mByUtf8.end() && byUtf8->second == entry) {
+                mByUtf8.erase(byUtf8);
+            }
+            entry->utf8 = utf8;
+            mByUtf8[utf8] = entry;
+        }
+        touch(entry);
+        return;
+    }
+
+    if (mEntries.size() >= mCapacity) {
+        evictOldest();
+    }
+    Entry newEntry;
+    newEntry.gbk = gbk;
+    newEntry.utf8 = utf8;
+    mEntries.push_front(newEntry);
+    mByGbk[gbk] = mEntries.begin();
+    mByUtf8[utf8] = mEntries.begin();
+}
+
+bool GbkSsidTable::findUtf8(const std::string &gbk, std::string *utf8) {
+    auto found = mByGbk.find(gbk);
+    if (found == mByGbk.end()) {
+        return false;
+    }
+    touch(found->second);
+    *utf8 = found->second->utf8;
+    return true;
+}
+
+bool GbkSsidTable::findGbk(const std::string &utf8, std::string *gbk) {
+    auto found = mByUtf8.find(utf8);
+    if (found == mByUtf8.end()) {
+        return false;
+    }
+    touch(found->second);
+    *gbk = found->second->gbk;
+    return true;
+}
+
+void GbkSsidTable::touch(EntryList::iterator entry) {
+    if (entry != mEntries.begin()) {
+        mEntries.splice(mEntries.begin(), mEntries, entry);
+    }
+}
+
+void GbkSsidTable::evictOldest() {
+    EntryList::iterator oldest = --mEntries.end();
+    mByGbk.erase(oldest->gbk);
+    /* another SSID may have taken over the same UTF-8 form since */
+    auto byUtf8 = mByUtf8.find(oldest->utf8);
+    if (byUtf8 != mByUtf8.end() && byUtf8->second == oldest) {
+        mByUtf8.erase(byUtf8);
+    }
+    mEntries.erase(oldest);
+}
+
+} // namespace android
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef GBK_SSID_TABLE_H
+#define GBK_SSID_TABLE_H
+
+#include <list>
+#include <string>
+#include <unordered_map>
+
+namespace android {
+
+/*
+ * Translations between the GBK encoded SSIDs seen in scan results and their UTF-8 form, which
+ * is what the framework knows them by. Lookups in either direction are hash lookups, and once
+ * the table holds |capacity| SSIDs the least recently used one is dropped.
+ *
+ * Not thread safe.
+ */
+class GbkSsidTable {
+public:
+    explicit GbkSsidTable(size_t capacity);
+
+    /* Adds the translation of |gbk|, or marks it as used if it is already known */
+    void put(const std::string &gbk, const std::string &utf8);
+
+    /* Finds the UTF-8 form of |gbk| and marks it as used; false if it is not known */
+    bool findUtf8(const std::string &gbk, std::string *utf8);
+
+    /* Finds the GBK form of |utf8| and marks it as used; false if it is not known */
+    bool findGbk(const std::string &utf8, std::string *gbk);
+
+    size_t size() const {
+        return mEntries.size();
+    }
+
+private:
+    struct Entry {
+        std::string gbk;
+        std::string utf8;
+    };
+    typedef std::list<Entry> EntryList;
+
+    void touch(EntryList::iterator entry);
+    void evictOldest();
+
+    const size_t mCapacity;
+    /* most recently used first */
+    EntryList mEntries;
+    std::unordered_map<std::string, EntryList::iterator> mByGbk;
+    std::unordered_map<std::string, EntryList::iterator> mByUtf8;
+};
+
+} // namespace android
+
+#endif // GBK_SSID_TABLE_H
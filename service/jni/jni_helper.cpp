@@ -618,6 +618,127 @@ JNIObject<jobjectArray> JNIHelper::createObjectArray(const char *className, int
     return JNIObject<jobjectArray>(*this, (jobjectArray)array.detach());
 }
 
+jclass JNIHelper::findClassGlobalRef(const char *className)
+{
+    JNIObject<jclass> cls(*this, mEnv->FindClass(className));
+    if (cls == NULL) {
+        ALOGE("Error in finding class %s", className);
+        return NULL;
+    }
+
+    return (jclass)mEnv->NewGlobalRef(cls);
+}
+
+jfieldID JNIHelper::getFieldID(jclass cls, const char *name, const char *signature)
+{
+    jfieldID field = mEnv->GetFieldID(cls, name, signature);
+    if (field == NULL) {
+        ALOGE("Error in getting field ID of %s", name);
+    }
+
+    return field;
+}
+
+jmethodID JNIHelper::getMethodID(jclass cls, const char *name, const char *signature)
+{
+    jmethodID method = mEnv->GetMethodID(cls, name, signature);
+    if (method == NULL) {
+        ALOGE("Error in getting method ID of %s", name);
+    }
+
+    return method;
+}
+
+jmethodID JNIHelper::getStaticMethodID(jclass cls, const char *name, const char *signature)
+{
+    jmethodID method = mEnv->GetStaticMethodID(cls, name, signature);
+    if (method == NULL) {
+        ALOGE("Error in getting method ID of %s", name);
+    }
+
+    return method;
+}
+
+void JNIHelper::setIntField(jobject obj, jfieldID field, jint value)
+{
+    mEnv->SetIntField(obj, field, value);
+}
+
+void JNIHelper::setByteField(jobject obj, jfieldID field, jbyte value)
+{
+    mEnv->SetByteField(obj, field, value);
+}
+
+void JNIHelper::setLongField(jobject obj, jfieldID field, jlong value)
+{
+    mEnv->SetLongField(obj, field, value);
+}
+
+void JNIHelper::setObjectField(jobject obj, jfieldID field, jobject value)
+{
+    mEnv->SetObjectField(obj, field, value);
+}
+
+jboolean JNIHelper::setStringField(jobject obj, jfieldID field, const char *value)
+{
+    JNIObject<jstring> str(*this, mEnv->NewStringUTF(value));
+
+    if (mEnv->ExceptionCheck()) {
+        mEnv->ExceptionDescribe();
+        mEnv->ExceptionClear();
+        return false;
+    }
+
+    if (str == NULL) {
+        THROW(*this, "Error creating string");
+        return false;
+    }
+
+    mEnv->SetObjectField(obj, field, str);
+    return true;
+}
+
+void JNIHelper::reportEvent(jclass cls, jmethodID method, ...)
+{
+    va_list params;
+    va_start(params, method);
+
+    mEnv->CallStaticVoidMethodV(cls, method, params);
+    if (mEnv->ExceptionCheck()) {
+        mEnv->ExceptionDescribe();
+        mEnv->ExceptionClear();
+    }
+
+    va_end(params);
+}
+
+jboolean JNIHelper::callStaticMethod(jclass cls, jmethodID method, ...)
+{
+    va_list params;
+    va_start(params, method);
+
+    jboolean result = mEnv->CallStaticBooleanMethodV(cls, method, params);
+    va_end(params);
+    if (mEnv->ExceptionCheck()) {
+        mEnv->ExceptionDescribe();
+        mEnv->ExceptionClear();
+        return false;
+    }
+
+    return result;
+}
+
+JNIObject<jobject> JNIHelper::createObject(jclass cls, jmethodID constructor)
+{
+    JNIObject<jobject> obj(*this, mEnv->NewObject(cls, constructor));
+    if (obj == NULL) {
+        ALOGE("Could not create new object");
+        return JNIObject<jobject>(*this, NULL);
+    }
+
+    return obj;
+}
+
 JNIObject<jobject> JNIHelper::getObjectArrayElement(jobjectArray array, int index)
 {
     return JNIObject<jobject>(*this, mEnv->GetObjectArrayElement(array, index));
@@ -642,6 +763,10 @@ JNIObject<jobjectArray> JNIHelper::newObjectArray(int num, const char *className
     return JNIObject<jobjectArray>(*this, mEnv->NewObjectArray(num, cls, val));
 }
 
+JNIObject<jobjectArray> JNIHelper::newObjectArray(int num, jclass cls, jobject val) {
+    return JNIObject<jobjectArray>(*this, mEnv->NewObjectArray(num, cls, val));
+}
+
 JNIObject<jbyteArray> JNIHelper::newByteArray(int num) {
     return JNIObject<jbyteArray>(*this, mEnv->NewByteArray(num));
 }
@@ -112,10 +112,27 @@ public :
     void setStaticLongArrayField(jclass obj, const char *name, jlongArray value);
     jboolean callStaticMethod(jclass cls, const char *method, const char *signature, ...);
 
+    /* helpers to look up IDs once; classes are returned as global references */
+    jclass findClassGlobalRef(const char *className);
+    jfieldID getFieldID(jclass cls, const char *name, const char *signature);
+    jmethodID getMethodID(jclass cls, const char *name, const char *signature);
+    jmethodID getStaticMethodID(jclass cls, const char *name, const char *signature);
+
+    /* helpers to deal with members through IDs that were looked up in advance */
+    void setIntField(jobject obj, jfieldID field, jint value);
+    void setByteField(jobject obj, jfieldID field, jbyte value);
+    void setLongField(jobject obj, jfieldID field, jlong value);
+    void setObjectField(jobject obj, jfieldID field, jobject value);
+    jboolean setStringField(jobject obj, jfieldID field, const char *value);
+    void reportEvent(jclass cls, jmethodID method, ...);
+    jboolean callStaticMethod(jclass cls, jmethodID method, ...);
+    JNIObject<jobject> createObject(jclass cls, jmethodID constructor);
+
     JNIObject<jobject> getObjectArrayElement(jobjectArray array, int index);
     JNIObject<jobject> getObjectArrayElement(jobject array, int index);
     int getArrayLength(jarray array);
     JNIObject<jobjectArray> newObjectArray(int num, const char *className, jobject val);
+    JNIObject<jobjectArray> newObjectArray(int num, jclass cls, jobject val);
     JNIObject<jbyteArray> newByteArray(int num);
     JNIObject<jintArray> newIntArray(int num);
     JNIObject<jlongArray> newLongArray(int num);
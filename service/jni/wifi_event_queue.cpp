@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "wifi"
+
+#include "wifi_event_queue.h"
+
+#include <errno.h>
+#include <string.h>
+#include <time.h>
+
+#include <algorithm>
+
+#include <utils/Log.h>
+
+namespace android {
+
+static const char IFNAME_PREFIX[] = "IFNAME=";
+static const char TERMINATING_EVENT[] = "CTRL-EVENT-TERMINATING";
+static const char READER_FAILED_EVENT[] =
+        "CTRL-EVENT-TERMINATING - could not start the event reader";
+
+/* Delays before reading again after a failed read, doubled on each consecutive failure */
+static const long MIN_READ_RETRY_DELAY_MS = 10;
+static const long MAX_READ_RETRY_DELAY_MS = 1000;
+
+/* Skips the IFNAME=<iface> prefix of an event, if it has one */
+static const char *eventName(const char *event) {
+    if (strncmp(event, IFNAME_PREFIX, sizeof(IFNAME_PREFIX) - 1) == 0) {
+        const char *space = strchr(event, ' ');
+        if (space != NULL) {
+            return space + 1;
+        }
+    }
+    return event;
+}
+
+static bool hasPrefix(const char *s, const std::string &prefix) {
+    return strncmp(s, prefix.c_str(), prefix.size()) == 0;
+}
+
+WifiEventQueue::WifiEventQueue(ReadFn read, size_t maxEvents, size_t maxEventLength)
+        : mRead(read),
+          mMaxEvents(maxEvents > 0 ? maxEvents : 1),
+          mMaxEventLength(maxEventLength),
+          mReaderStarted(false),
+          mReaderRunning(false),
+          mStopping(false) {
+    pthread_mutex_init(&mLock, NULL);
+    pthread_cond_init(&mChanged, NULL);
+}
+
+void WifiEventQueue::setDroppedEvents(const std::vector<std::string> &names) {
+    pthread_mutex_lock(&mLock);
+    mDroppedEvents = names;
+    pthread_mutex_unlock(&mLock);
+}
+
+void WifiEventQueue::take(std::vector<std::string> *events) {
+    pthread_mutex_lock(&mLock);
+    while (mEvents.empty()) {
+        if (mReaderRunning || mStopping) {
+            pthread_cond_wait(&mChanged, &mLock);
+            continue;
+        }
+        joinReaderLocked();
+        if (pthread_create(&mReader, NULL, readerLoop, this) != 0) {
+            ALOGE("Could not start the supplicant event reader");
+            events->push_back(READER_FAILED_EVENT);
+            pthread_mutex_unlock(&mLock);
+            return;
+        }
+        mReaderStarted = true;
+        mReaderRunning = true;
+    }
+    events->reserve(events->size() + mEvents.size());
+    while (!mEvents.empty()) {
+        events->push_back(std::string());
+        events->back().swap(mEvents.front());
+        mEvents.pop_front();
+    }
+    pthread_cond_broadcast(&mChanged);
+    pthread_mutex_unlock(&mLock);
+}
+
+void WifiEventQueue::reset() {
+    pthread_mutex_lock(&mLock);
+    mStopping = true;
+    pthread_cond_broadcast(&mChanged);
+    if (mReaderStarted) {
+        pthread_t reader = mReader;
+        pthread_mutex_unlock(&mLock);
+        pthread_join(reader, NULL);
+        pthread_mutex_lock(&mLock);
+        mReaderStarted = false;
+    }
+    mEvents.clear();
+    mStopping = false;
+    pthread_cond_broadcast(&mChanged);
+    pthread_mutex_unlock(&mLock);
+}
+
+/*
+ * Joins a reader which has stopped by itself. Only called while !mReaderRunning, when the
+ * reader no longer takes mLock, so it is safe to wait for it with mLock held.
+ */
+void WifiEventQueue::joinReaderLocked() {
+    if (mReaderStarted) {
+        pthread_join(mReader, NULL);
+        mReaderStarted = false;
+    }
+}
+
+bool WifiEventQueue::isDropped(const char *event) {
+    const char *name = eventName(event);
+    for (size_t i = 0; i < mDroppedEvents.size(); i++) {
+        if (hasPrefix(name, mDroppedEvents[i])) {
+            return true;
+        }
+    }
+    return false;
+}
+
+void *WifiEventQueue::readerLoop(void *arg) {
+    WifiEventQueue *queue = static_cast<WifiEventQueue *>(arg);
+    std::vector<char> buf(queue->mMaxEventLength);
+    long retryDelayMs = 0;
+    bool terminating = false;
+    while (!terminating) {
+        int nread = queue->mRead(&buf[0], buf.size());
+
+        pthread_mutex_lock(&queue->mLock);
+        if (nread <= 0) {
+            // back off, so that a read which keeps failing does not keep a CPU busy
+            retryDelayMs = retryDelayMs == 0 ? MIN_READ_RETRY_DELAY_MS
+                    : std::min(retryDelayMs * 2, MAX_READ_RETRY_DELAY_MS);
+            ALOGW("Could not read a supplicant event, retrying in %ld ms", retryDelayMs);
+            struct timespec deadline;
+            clock_gettime(CLOCK_REALTIME, &deadline);
+            deadline.tv_sec += retryDelayMs / 1000;
+            deadline.tv_nsec += (retryDelayMs % 1000) * 1000000;
+            if (deadline.tv_nsec >= 1000000000) {
+                deadline.tv_sec++;
+                deadline.tv_nsec -= 1000000000;
+            }
+            while (!queue->mStopping && pthread_cond_timedwait(&queue->mChanged, &queue->mLock,
+                    &deadline) != ETIMEDOUT) {
+            }
+        } else {
+            retryDelayMs = 0;
+            terminating = strncmp(eventName(&buf[0]), TERMINATING_EVENT,
+                    sizeof(TERMINATING_EVENT) - 1) == 0;
+            if (terminating || !queue->isDropped(&buf[0])) {
+                while (queue->mEvents.size() >= queue->mMaxEvents && !queue->mStopping) {
+                    pthread_cond_wait(&queue->mChanged, &queue->mLock);
+                }
+                if (!queue->mStopping) {
+                    queue->mEvents.push_back(std::string(&buf[0]));
+                    pthread_cond_broadcast(&queue->mChanged);
+                }
+            }
+        }
+        if (queue->mStopping) {
+            // whatever was read belongs to the connection being torn down
+            terminating = true;
+        }
+        if (terminating) {
+            queue->mReaderRunning = false;
+            pthread_cond_broadcast(&queue->mChanged);
+        }
+        pthread_mutex_unlock(&queue->mLock);
+    }
+    return NULL;
+}
+
+} // namespace android
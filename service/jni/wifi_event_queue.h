@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef WIFI_EVENT_QUEUE_H
+#define WIFI_EVENT_QUEUE_H
+
+#include <pthread.h>
+
+#include <deque>
+#include <string>
+#include <vector>
+
+namespace android {
+
+/*
+ * Supplicant events read ahead of the monitor thread, so that it can take all pending events
+ * in one call. A reader thread blocks in |read| and queues each event, except those whose name
+ * was dropped with setDroppedEvents(). It is started by the first take(), and stops after
+ * queuing a CTRL-EVENT-TERMINATING event, since the supplicant connection is gone then; the
+ * next take() starts it again. reset() stops it and discards queued events between supplicant
+ * connections, so that nothing read on one connection is returned on the next.
+ *
+ * Once |maxEvents| events are queued the reader waits for them to be taken, leaving further
+ * events in the supplicant socket.
+ */
+class WifiEventQueue {
+public:
+    /* Reads the next event into |buf| as a nul terminated string, returning its length */
+    typedef int (*ReadFn)(char *buf, size_t len);
+
+    WifiEventQueue(ReadFn read, size_t maxEvents, size_t maxEventLength);
+
+    /* Drops events named |names| from now on, e.g. CTRL-EVENT-BSS-ADDED */
+    void setDroppedEvents(const std::vector<std::string> &names);
+
+    /*
+     * Waits for an event, then moves all queued events to |events|, oldest first. If the reader
+     * cannot be started, returns a CTRL-EVENT-TERMINATING event instead, so that the caller
+     * stops waiting for events.
+     */
+    void take(std::vector<std::string> *events);
+
+    /*
+     * Stops the reader and discards all queued events. Must be called while there is no
+     * supplicant connection, so that a reader blocked in |read| returns.
+     */
+    void reset();
+
+private:
+    static void *readerLoop(void *arg);
+    bool isDropped(const char *event);
+    void joinReaderLocked();
+
+    const ReadFn mRead;
+    const size_t mMaxEvents;
+    const size_t mMaxEventLength;
+
+    pthread_mutex_t mLock;
+    pthread_cond_t mChanged;
+    std::deque<std::string> mEvents;
+    std::vector<std::string> mDroppedEvents;
+    pthread_t mReader;
+    /* mReader was started and has not been joined yet */
+    bool mReaderStarted;
+    /* mReader has not queued a CTRL-EVENT-TERMINATING event yet */
+    bool mReaderRunning;
+    /* reset() is waiting for mReader to stop */
+    bool mStopping;
+};
+
+} // namespace android
+
+#endif // WIFI_EVENT_QUEUE_H
@@ -55,6 +55,28 @@ LOCAL_SHARED_LIBRARIES += \
 
 include $(BUILD_SHARED_LIBRARY)
 
+# Make GBK SSID table benchmark
+# ============================================================
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_CFLAGS += -Wall -Werror -Wextra -Wno-unused-parameter -Wno-unused-function \
+                -Wunused-variable -Winit-self -Wwrite-strings -Wshadow
+
+LOCAL_C_INCLUDES += \
+	$(LOCAL_PATH)/../../service/jni
+
+LOCAL_SRC_FILES := \
+	jni/gbk_ssid_table_benchmark.cpp \
+	../../service/jni/gbk_ssid_table.cpp
+
+LOCAL_MODULE := gbk_ssid_table_benchmark
+LOCAL_MODULE_PATH := $(TARGET_OUT_DATA_NATIVE_TESTS)/gbk_ssid_table_benchmark
+
+include $(BUILD_EXECUTABLE)
+
 # Make test APK
 # ============================================================
 include $(CLEAR_VARS)
@@ -66,6 +88,9 @@ RESOURCE_FILES := $(call all-named-files-under, R.java, $(intermediates.COMMON))
 LOCAL_SRC_FILES := $(call all-subdir-java-files) \
 	$RESOURCE_FILES
 
+# Benchmarks only log timings; they are built into their own package below
+LOCAL_SRC_FILES := $(filter-out $(call all-java-files-under, benchmarks),$(LOCAL_SRC_FILES))
+
 ifndef INCLUDE_NAN_FEATURE
 LOCAL_SRC_FILES := $(filter-out $(call all-java-files-under, \
           src/com/android/server/wifi/nan),$(LOCAL_SRC_FILES))
@@ -116,7 +141,7 @@ LOCAL_JAVA_LIBRARIES := \
 
 # These must be explicitly included because they are not normally accessible
 # from apps.
-LOCAL_JNI_SHARED_LIBRARIES := \
+wifi_test_jni_shared_libraries := \
 	libwifi-service \
 	libc++ \
 	libLLVM \
@@ -133,10 +158,41 @@ LOCAL_JNI_SHARED_LIBRARIES := \
 	liblzma \
 
 ifdef WPA_SUPPLICANT_VERSION
-LOCAL_JNI_SHARED_LIBRARIES += libwpa_client
+wifi_test_jni_shared_libraries += libwpa_client
 endif
 
+LOCAL_JNI_SHARED_LIBRARIES := $(wifi_test_jni_shared_libraries)
+
 LOCAL_PACKAGE_NAME := FrameworksWifiTests
 LOCAL_JNI_SHARED_LIBRARIES += libwifi-hal-mock
 
 include $(BUILD_PACKAGE)
+
+# Make benchmark APK
+# ============================================================
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := $(call all-java-files-under, benchmarks/src) \
+	src/com/android/server/wifi/FakeSupplicant.java \
+	src/com/android/server/wifi/MockAnswerUtil.java
+
+LOCAL_MANIFEST_FILE := benchmarks/AndroidManifest.xml
+
+LOCAL_STATIC_JAVA_LIBRARIES := \
+	android-support-test \
+	mockito-target \
+	services \
+	wifi-service \
+
+LOCAL_JAVA_LIBRARIES := \
+	android.test.runner \
+	wifi-service \
+	services \
+
+LOCAL_JNI_SHARED_LIBRARIES := $(wifi_test_jni_shared_libraries)
+
+LOCAL_PACKAGE_NAME := FrameworksWifiBenchmarks
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The timing loop shared by the wifi benchmarks. A run is repeated to warm up, then timed over
+ * a number of runs, and the average time per run is logged. Each run returns a checksum of the
+ * work it did, which must not change from run to run; it keeps the work from being optimized
+ * away and lets a benchmark check that the variants it compares did the same work.
+ */
+public class BenchmarkHarness {
+    private static final String TAG = "WifiBenchmark";
+
+    /** One run of the code being measured. */
+    public interface Run {
+        long run() throws Exception;
+    }
+
+    /**
+     * Log the average time of |run| over |measuredRuns| runs, after |warmupRuns| untimed
+     * ones, at least one.
+     * @return the checksum of the runs.
+     */
+    public static long measure(String name, int warmupRuns, int measuredRuns, Run run)
+            throws Exception {
+        long checksum = run.run();
+        for (int n = 1; n < warmupRuns; n++) {
+            assertEquals(name, checksum, run.run());
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int n = 0; n < measuredRuns; n++) {
+            assertEquals(name, checksum, run.run());
+        }
+        long perRunNs = (SystemClock.elapsedRealtimeNanos() - start) / measuredRuns;
+        log(name + ": " + formatNs(perRunNs) + " per run");
+        return checksum;
+    }
+
+    /** Log a result that does not fit measure(), e.g. a worst case. */
+    public static void log(String message) {
+        Log.i(TAG, message);
+    }
+
+    /** Format a duration in the most readable of ns, us and ms. */
+    public static String formatNs(long ns) {
+        if (ns < 10000) {
+            return ns + " ns";
+        } else if (ns < 10000000) {
+            return ns / 1000 + " us";
+        }
+        return ns / 1000000 + " ms";
+    }
+}
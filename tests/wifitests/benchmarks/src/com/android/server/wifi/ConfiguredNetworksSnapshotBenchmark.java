@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+
+import android.net.wifi.WifiConfiguration;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long 32 concurrent binder callers take to get the configured networks, once
+ * with every call serviced by a single state machine thread that is also busy with other
+ * messages, and once from a {@link VersionedSnapshot}.
+ */
+public class ConfiguredNetworksSnapshotBenchmark {
+    private static final String TAG = "ConfiguredNetworksSnapshotBenchmark";
+    private static final int WARMUP_RUNS = 1;
+    private static final int MEASURED_RUNS = 1;
+
+    private static final int NUM_CALLERS = 32;
+    private static final int CALLS_PER_CALLER = 200;
+    private static final int NUM_NETWORKS = 30;
+    /** Time the state machine thread spends on each unrelated message, such as a scan. */
+    private static final long BACKGROUND_WORK_NS = 200000;
+
+    private HandlerThread mStateMachineThread;
+    private Handler mStateMachineHandler;
+    private volatile boolean mBackgroundLoad;
+    private final List<WifiConfiguration> mNetworks = new ArrayList<>();
+    private final Clock mClock = new Clock();
+
+    /** One way of answering getConfiguredNetworks(). */
+    private interface Getter {
+        List<WifiConfiguration> get() throws InterruptedException;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < NUM_NETWORKS; i++) {
+            WifiConfiguration config = new WifiConfiguration();
+            config.networkId = i;
+            config.SSID = "\"network" + i + "\"";
+            config.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
+            mNetworks.add(config);
+        }
+        mStateMachineThread = new HandlerThread(TAG);
+        mStateMachineThread.start();
+        mStateMachineHandler = new Handler(mStateMachineThread.getLooper());
+        mBackgroundLoad = true;
+        mStateMachineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                while (System.nanoTime() - start < BACKGROUND_WORK_NS) {
+                    // Busy, like processing scan results
+                }
+                if (mBackgroundLoad) {
+                    mStateMachineHandler.post(this);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mBackgroundLoad = false;
+        mStateMachineThread.quitSafely();
+        mStateMachineThread.join();
+    }
+
+    private List<WifiConfiguration> copyNetworks(List<WifiConfiguration> networks) {
+        List<WifiConfiguration> copy = new ArrayList<>(networks.size());
+        for (WifiConfiguration network : networks) {
+            copy.add(new WifiConfiguration(network));
+        }
+        return copy;
+    }
+
+    /** The sync getter: a round trip to the state machine thread, which copies the networks. */
+    private final Getter mSyncGetter = new Getter() {
+        @Override
+        public List<WifiConfiguration> get() throws InterruptedException {
+            final CountDownLatch done = new CountDownLatch(1);
+            final List<List<WifiConfiguration>> result = new ArrayList<>(1);
+            mStateMachineHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    result.add(copyNetworks(mNetworks));
+                    done.countDown();
+                }
+            });
+            done.await();
+            return result.get(0);
+        }
+    };
+
+    /**
+     * Have every caller call |getter| CALLS_PER_CALLER times at once.
+     * @return the number of networks seen by all callers.
+     */
+    private long callConcurrently(final Getter getter, final AtomicLong maxCallNs)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(NUM_CALLERS);
+        final AtomicLong networksSeen = new AtomicLong();
+        for (int i = 0; i < NUM_CALLERS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < CALLS_PER_CALLER; n++) {
+                            long callStart = System.nanoTime();
+                            networksSeen.addAndGet(getter.get().size());
+                            long callNs = System.nanoTime() - callStart;
+                            long max = maxCallNs.get();
+                            while (callNs > max && !maxCallNs.compareAndSet(max, callNs)) {
+                                max = maxCallNs.get();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Counted as missing networks below
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        finished.await();
+        return networksSeen.get();
+    }
+
+    private long measure(String name, final Getter getter) throws Exception {
+        final AtomicLong maxCallNs = new AtomicLong();
+        long networksSeen = BenchmarkHarness.measure(name + ", " + NUM_CALLERS + " callers of "
+                + CALLS_PER_CALLER + " calls", WARMUP_RUNS, MEASURED_RUNS,
+                new BenchmarkHarness.Run() {
+                    @Override
+                    public long run() throws Exception {
+                        return callConcurrently(getter, maxCallNs);
+                    }
+                });
+        BenchmarkHarness.log(name + ": " + BenchmarkHarness.formatNs(maxCallNs.get())
+                + " worst call");
+        return networksSeen;
+    }
+
+    /**
+     * Log the per call cost of both getters.
+     */
+    @Test
+    public void measureConcurrentCallers() throws Exception {
+        final VersionedSnapshot<List<WifiConfiguration>> snapshot =
+                new VersionedSnapshot<List<WifiConfiguration>>(mClock, Long.MAX_VALUE);
+        snapshot.publish(0, Collections.unmodifiableList(copyNetworks(mNetworks)));
+        Getter snapshotGetter = new Getter() {
+            @Override
+            public List<WifiConfiguration> get() {
+                return copyNetworks(snapshot.get(0));
+            }
+        };
+
+        long expected = (long) NUM_CALLERS * CALLS_PER_CALLER * NUM_NETWORKS;
+        assertEquals(expected, measure("state machine round trip", mSyncGetter));
+        assertEquals(expected, measure("snapshot", snapshotGetter));
+    }
+}
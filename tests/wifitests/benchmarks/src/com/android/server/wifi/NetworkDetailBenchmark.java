@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertTrue;
+
+import com.android.server.wifi.hotspot2.NetworkDetail;
+import com.android.server.wifi.hotspot2.Utils;
+import com.android.server.wifi.util.InformationElementUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the per scan cost of building {@link NetworkDetail}s and reading them with the
+ * access patterns of the main consumers.
+ */
+public class NetworkDetailBenchmark {
+    private static final int BSS_PER_SCAN = 50;
+    private static final int WARMUP_SCANS = 50;
+    private static final int MEASURED_SCANS = 500;
+
+    /** Typical beacon: SSID, rates, TIM, BSS load, ERP, HT/VHT, Interworking, RC, ext caps,
+     * WMM and HS2.0 vendor elements. */
+    private static final String IE_HEX =
+            "0009476f6f676c654e6574"
+            + "010882848b962430486c"
+            + "050400010000"
+            + "0b05010002ffff"
+            + "2a0100"
+            + "32040c121860"
+            + "3d16060f0400000000000000000000000000000000000000"
+            + "c005019b000000"
+            + "6b0701010203040506"
+            + "6f0701502f9a0150"
+            + "7f080000000000000040"
+            + "dd180050f2020101000003a4000027a4000042435e0062322f00"
+            + "dd07506f9a10140102";
+
+    private final String[] mBssids = new String[BSS_PER_SCAN];
+    private byte[] mIeBytes;
+
+    /** One of the ways NetworkDetail is consumed. */
+    private interface AccessPattern {
+        long read(NetworkDetail networkDetail);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mIeBytes = Utils.hexToBytes(IE_HEX);
+        for (int n = 0; n < BSS_PER_SCAN; n++) {
+            mBssids[n] = String.format("02:00:00:00:%02x:%02x", n >> 8, n & 0xff);
+        }
+    }
+
+    /** Identity only, as used by the scan filters and the network selector. */
+    private static final AccessPattern IDENTITY = new AccessPattern() {
+        @Override
+        public long read(NetworkDetail networkDetail) {
+            return networkDetail.getSSID().length() + networkDetail.getBSSID()
+                    + networkDetail.getHESSID() + (networkDetail.isInterworking() ? 1 : 0);
+        }
+    };
+
+    /** WifiMetrics.countScanResults(). */
+    private static final AccessPattern METRICS = new AccessPattern() {
+        @Override
+        public long read(NetworkDetail networkDetail) {
+            return (networkDetail.isHiddenBeaconFrame() ? 1 : 0)
+                    + (networkDetail.getHSRelease() != null ? 2 : 0);
+        }
+    };
+
+    /** Every attribute, as before decoding became lazy. */
+    private static final AccessPattern FULL = new AccessPattern() {
+        @Override
+        public long read(NetworkDetail networkDetail) {
+            return IDENTITY.read(networkDetail) + METRICS.read(networkDetail)
+                    + networkDetail.getStationCount() + networkDetail.getAnqpDomainID()
+                    + networkDetail.getAnqpOICount() + networkDetail.getWifiMode()
+                    + networkDetail.getDtimInterval() + networkDetail.getChannelWidth()
+                    + (networkDetail.is80211McResponderSupport() ? 1 : 0)
+                    + (networkDetail.getRoamingConsortiums() != null ? 1 : 0);
+        }
+    };
+
+    private long runScan(AccessPattern pattern) {
+        long checksum = 0;
+        for (String bssid : mBssids) {
+            NetworkDetail networkDetail = new NetworkDetail(bssid,
+                    InformationElementUtil.ElementView.parse(mIeBytes), null, 5180);
+            checksum += pattern.read(networkDetail);
+        }
+        return checksum;
+    }
+
+    private long measure(String name, final AccessPattern pattern) throws Exception {
+        return BenchmarkHarness.measure(name + ", " + BSS_PER_SCAN + " BSSs per scan",
+                WARMUP_SCANS, MEASURED_SCANS, new BenchmarkHarness.Run() {
+                    @Override
+                    public long run() {
+                        return runScan(pattern);
+                    }
+                });
+    }
+
+    /**
+     * Log the per scan cost of each access pattern.
+     */
+    @Test
+    public void measureAccessPatterns() throws Exception {
+        long identity = measure("identity", IDENTITY);
+        long metrics = measure("metrics", METRICS);
+        long full = measure("full", FULL);
+        assertTrue(identity > 0);
+        assertTrue(full >= identity + metrics);
+    }
+}
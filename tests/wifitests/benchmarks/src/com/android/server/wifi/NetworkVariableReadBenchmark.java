@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Measures how long it takes to read and process the variables of a set of networks from a
+ * {@link FakeSupplicant}, once with a call per variable and once with a call per network through
+ * {@link WifiNative#getNetworkVariables}. Both send the same commands over the socket; the
+ * batched reads save the cost of each call on top of its commands.
+ */
+public class NetworkVariableReadBenchmark {
+    private static final int WARMUP_RUNS = 1;
+    private static final int MEASURED_RUNS = 3;
+    private static final int NUM_NETWORKS = 30;
+    private static final String[] VARIABLE_NAMES = {
+            "ssid", "bssid", "sim_num", "priority", "scan_ssid", "ieee80211w", "wep_tx_keyidx",
+            "wep_key0", "wep_key1", "wep_key2", "wep_key3", "psk", "proto", "key_mgmt",
+            "auth_alg", "pairwise", "group"
+    };
+    /** Round trip of one command over the supplicant control socket. */
+    private static final long ROUND_TRIP_US = 150;
+    /** Cost of one call into the native layer, including the supplicant lock. */
+    private static final long CALL_OVERHEAD_US = 20;
+    /** Time spent on each value once it arrives, such as parsing it into the configuration. */
+    private static final long PROCESSING_NS = 50000;
+
+    @Mock private WifiNative mWifiNative;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        FakeSupplicant supplicant = new FakeSupplicant(ROUND_TRIP_US, CALL_OVERHEAD_US);
+        for (int netId = 0; netId < NUM_NETWORKS; netId++) {
+            for (String name : VARIABLE_NAMES) {
+                supplicant.setNetworkVariable(netId, name, name + netId);
+            }
+        }
+        supplicant.install(mWifiNative);
+    }
+
+    private static int process(String value) {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < PROCESSING_NS) {
+            // Busy, like parsing the value
+        }
+        return value == null ? 0 : 1;
+    }
+
+    private int readSequentially() {
+        int values = 0;
+        for (int netId = 0; netId < NUM_NETWORKS; netId++) {
+            for (String name : VARIABLE_NAMES) {
+                values += process(mWifiNative.getNetworkVariable(netId, name));
+            }
+        }
+        return values;
+    }
+
+    private int readBatched() {
+        int values = 0;
+        for (int netId = 0; netId < NUM_NETWORKS; netId++) {
+            for (String value : mWifiNative.getNetworkVariables(netId, VARIABLE_NAMES)) {
+                values += process(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Log the cost of reading all the networks both ways.
+     */
+    @Test
+    public void measureNetworkVariableReads() throws Exception {
+        String networks = NUM_NETWORKS + " networks of " + VARIABLE_NAMES.length + " variables";
+        long sequential = BenchmarkHarness.measure("sequential, " + networks, WARMUP_RUNS,
+                MEASURED_RUNS, new BenchmarkHarness.Run() {
+                    @Override
+                    public long run() {
+                        return readSequentially();
+                    }
+                });
+        long batched = BenchmarkHarness.measure("batched, " + networks, WARMUP_RUNS,
+                MEASURED_RUNS, new BenchmarkHarness.Run() {
+                    @Override
+                    public long run() {
+                        return readBatched();
+                    }
+                });
+        assertEquals(NUM_NETWORKS * VARIABLE_NAMES.length, sequential);
+        assertEquals(sequential, batched);
+    }
+}
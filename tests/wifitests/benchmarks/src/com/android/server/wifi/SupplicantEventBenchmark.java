@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the per event cost of {@link SupplicantEvent} against the regular expressions
+ * WifiMonitor used to match the same events with.
+ */
+public class SupplicantEventBenchmark {
+    private static final int WARMUP_EVENTS = 10000;
+    private static final int MEASURED_EVENTS = 100000;
+
+    private static final String CONNECTED =
+            "- Connection to 00:1e:58:ec:d5:6d completed (reauth) [id=1 id_str=]";
+    private static final String DISCONNECTED =
+            "bssid=ac:22:0b:24:70:74 reason=3 locally_generated=1";
+
+    private static final Pattern CONNECTED_PATTERN =
+            Pattern.compile("((?:[0-9a-f]{2}:){5}[0-9a-f]{2}) .* \\[id=([0-9]+) ");
+    private static final Pattern DISCONNECTED_PATTERN =
+            Pattern.compile("((?:[0-9a-f]{2}:){5}[0-9a-f]{2}) +"
+                    + "reason=([0-9]+) +locally_generated=([0-1])");
+
+    /** One way of reading the fields of an event. */
+    private interface Parser {
+        long parse(String data);
+    }
+
+    private static final Parser CONNECTED_REGEX = new Parser() {
+        @Override
+        public long parse(String data) {
+            Matcher match = CONNECTED_PATTERN.matcher(data);
+            match.find();
+            return match.group(1).length() + Integer.parseInt(match.group(2));
+        }
+    };
+
+    private static final Parser CONNECTED_EVENT = new Parser() {
+        @Override
+        public long parse(String data) {
+            SupplicantEvent event = SupplicantEvent.parseConnected(data);
+            return event.bssid.length() + event.networkId;
+        }
+    };
+
+    private static final Parser DISCONNECTED_REGEX = new Parser() {
+        @Override
+        public long parse(String data) {
+            Matcher match = DISCONNECTED_PATTERN.matcher(data);
+            match.find();
+            return match.group(1).length() + Integer.parseInt(match.group(2))
+                    + Integer.parseInt(match.group(3));
+        }
+    };
+
+    private static final Parser DISCONNECTED_EVENT = new Parser() {
+        @Override
+        public long parse(String data) {
+            SupplicantEvent event = SupplicantEvent.parseDisconnected(data);
+            return event.bssid.length() + event.reasonCode + event.locallyGenerated;
+        }
+    };
+
+    private long measure(String name, final Parser parser, final String data)
+            throws Exception {
+        return BenchmarkHarness.measure(name + ", one event per run", WARMUP_EVENTS,
+                MEASURED_EVENTS, new BenchmarkHarness.Run() {
+                    @Override
+                    public long run() {
+                        return parser.parse(data);
+                    }
+                });
+    }
+
+    /**
+     * Log the per event cost of each parser.
+     */
+    @Test
+    public void measureParsers() throws Exception {
+        assertEquals(measure("connected regex", CONNECTED_REGEX, CONNECTED),
+                measure("connected", CONNECTED_EVENT, CONNECTED));
+        assertEquals(measure("disconnected regex", DISCONNECTED_REGEX, DISCONNECTED),
+                measure("disconnected", DISCONNECTED_EVENT, DISCONNECTED));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Times the GBK SSID table against the linked list it replaced, for 10000 distinct SSIDs:
+ * adding them all as a scan would, then looking each up by its UTF-8 form as SET_NETWORK does.
+ *
+ * adb shell /data/nativetest/gbk_ssid_table_benchmark/gbk_ssid_table_benchmark
+ */
+
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
+
+#include <string>
+#include <vector>
+
+#include "gbk_ssid_table.h"
+
+using android::GbkSsidTable;
+
+static const int NUM_SSIDS = 10000;
+
+static long long nowNs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+/* The list the table replaced: linear search on every add and lookup, newest last */
+struct ListItem {
+    std::string gbk;
+    std::string utf8;
+    ListItem *next;
+};
+
+static void listAdd(ListItem **head, ListItem **tail, const std::string &gbk,
+        const std::string &utf8) {
+    for (ListItem *item = *head; item != NULL; item = item->next) {
+        if (item->gbk == gbk) {
+            return;
+        }
+    }
+    ListItem *item = new ListItem();
+    item->gbk = gbk;
+    item->utf8 = utf8;
+    item->next = NULL;
+    if (*head == NULL) {
+        *head = item;
+    } else {
+        (*tail)->next = item;
+    }
+    *tail = item;
+}
+
+static bool listFindGbk(ListItem *head, const std::string &utf8, std::string *gbk) {
+    for (ListItem *item = head; item != NULL; item = item->next) {
+        if (item->utf8 == utf8) {
+            *gbk = item->gbk;
+            return true;
+        }
+    }
+    return false;
+}
+
+/* Distinct SSIDs shaped like real ones: a GBK name of 8 bytes and its 12 byte UTF-8 form */
+static void makeSsids(std::vector<std::string> *gbk, std::vector<std::string> *utf8) {
+    for (int i = 0; i < NUM_SSIDS; i++) {
+        char g[16];
+        char u[32];
+        snprintf(g, sizeof(g), "\xc4\xe3\xba\xc3%04d", i);
+        snprintf(u, sizeof(u), "\xe4\xbd\xa0\xe5\xa5\xbd%04d-u8", i);
+        gbk->push_back(g);
+        utf8->push_back(u);
+    }
+}
+
+int main() {
+    std::vector<std::string> gbk;
+    std::vector<std::string> utf8;
+    makeSsids(&gbk, &utf8);
+    std::string found;
+    int hits = 0;
+
+    long long start = nowNs();
+    ListItem *head = NULL;
+    ListItem *tail = NULL;
+    for (int i = 0; i < NUM_SSIDS; i++) {
+        listAdd(&head, &tail, gbk[i], utf8[i]);
+    }
+    long long listAddNs = nowNs() - start;
+    start = nowNs();
+    for (int i = 0; i < NUM_SSIDS; i++) {
+        hits += listFindGbk(head, utf8[i], &found);
+    }
+    long long listFindNs = nowNs() - start;
+
+    GbkSsidTable table(NUM_SSIDS);
+    start = nowNs();
+    for (int i = 0; i < NUM_SSIDS; i++) {
+        table.put(gbk[i], utf8[i]);
+    }
+    long long tableAddNs = nowNs() - start;
+    start = nowNs();
+    for (int i = 0; i < NUM_SSIDS; i++) {
+        hits += table.findGbk(utf8[i], &found);
+    }
+    long long tableFindNs = nowNs() - start;
+
+    /* a table a tenth of the size, evicting all the way through */
+    GbkSsidTable smallTable(NUM_SSIDS / 10);
+    start = nowNs();
+    for (int i = 0; i < NUM_SSIDS; i++) {
+        smallTable.put(gbk[i], utf8[i]);
+    }
+    long long evictingAddNs = nowNs() - start;
+
+    printf("%d SSIDs, %d found\n", NUM_SSIDS, hits);
+    printf("list:  add %lld us, lookup %lld us\n", listAddNs / 1000, listFindNs / 1000);
+    printf("table: add %lld us, lookup %lld us, add with eviction %lld us (%zu kept)\n",
+            tableAddNs / 1000, tableFindNs / 1000, evictingAddNs / 1000, smallTable.size());
+
+    while (head != NULL) {
+        ListItem *next = head->next;
+        delete head;
+        head = next;
+    }
+    return 0;
+}
@@ -16,15 +16,16 @@
 
 package com.android.server.wifi.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import android.test.suitebuilder.annotation.SmallTest;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 
 /**
  * Unit tests for {@link com.android.server.wifi.util.ByteArrayRingBuffer}.
@@ -45,7 +46,7 @@ public class ByteArrayRingBufferTest {
         final byte[] data = {0};
         assertTrue(rb.appendBuffer(data));
         assertEquals(1, rb.getNumBuffers());
-        assertSame(data, rb.getBuffer(0));
+        assertArrayEquals(data, rb.getBuffer(0));
     }
 
     @Test
@@ -56,8 +57,8 @@ public class ByteArrayRingBufferTest {
         assertTrue(rb.appendBuffer(data1));
         assertTrue(rb.appendBuffer(data2));
         assertEquals(2, rb.getNumBuffers());
-        assertSame(data1, rb.getBuffer(0));
-        assertSame(data2, rb.getBuffer(1));
+        assertArrayEquals(data1, rb.getBuffer(0));
+        assertArrayEquals(data2, rb.getBuffer(1));
     }
 
     @Test
@@ -97,7 +98,7 @@ public class ByteArrayRingBufferTest {
         final byte[] data2 = {11};
         assertTrue(rb.appendBuffer(data2));
         assertEquals(1, rb.getNumBuffers());
-        assertSame(data2, rb.getBuffer(0));
+        assertArrayEquals(data2, rb.getBuffer(0));
     }
 
     @Test
@@ -111,7 +112,7 @@ public class ByteArrayRingBufferTest {
         final byte[] data3 = {11, 12, 13, 14, 15, 16};
         assertTrue(rb.appendBuffer(data3));
         assertEquals(1, rb.getNumBuffers());
-        assertSame(data3, rb.getBuffer(0));
+        assertArrayEquals(data3, rb.getBuffer(0));
     }
 
     @Test
@@ -136,8 +137,8 @@ public class ByteArrayRingBufferTest {
         final byte[] data3 = {11};
         assertTrue(rb.appendBuffer(data3));
         assertEquals(2, rb.getNumBuffers());
-        assertSame(data2, rb.getBuffer(0));
-        assertSame(data3, rb.getBuffer(1));
+        assertArrayEquals(data2, rb.getBuffer(0));
+        assertArrayEquals(data3, rb.getBuffer(1));
     }
 
     @Test
@@ -193,4 +194,74 @@ public class ByteArrayRingBufferTest {
         rb.resize(MAX_BYTES * 2);
     }
 
+    /** Verifies that elements which wrap around the end of the storage are returned intact. */
+    @Test
+    public void canRetrieveElementsThatWrapAround() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES);
+        assertTrue(rb.appendBuffer(new byte[] {1, 2, 3, 4, 5, 6}));
+        assertTrue(rb.appendBuffer(new byte[] {7, 8, 9}));
+
+        final byte[] data = {10, 11, 12, 13};
+        assertTrue(rb.appendBuffer(data));
+        assertEquals(2, rb.getNumBuffers());
+        assertArrayEquals(new byte[] {7, 8, 9}, rb.getBuffer(0));
+        assertArrayEquals(data, rb.getBuffer(1));
+    }
+
+    /** Verifies that the ring copies the data it is given. */
+    @Test
+    public void appendCopiesData() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES);
+        final byte[] data = {1, 2, 3};
+        assertTrue(rb.appendBuffer(data));
+        data[0] = 9;
+        assertArrayEquals(new byte[] {1, 2, 3}, rb.getBuffer(0));
+    }
+
+    /** Verifies that the ring can hold more elements than its initial index capacity. */
+    @Test
+    public void canHoldManySmallElements() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES * 10);
+        for (int i = 0; i < MAX_BYTES * 10; i++) {
+            assertTrue(rb.appendBuffer(new byte[] {(byte) i}));
+        }
+        assertEquals(MAX_BYTES * 10, rb.getNumBuffers());
+        for (int i = 0; i < MAX_BYTES * 10; i++) {
+            assertArrayEquals(new byte[] {(byte) i}, rb.getBuffer(i));
+        }
+    }
+
+    /** Verifies that a snapshot is not changed by later appends. */
+    @Test
+    public void snapshotIsUnaffectedByLaterAppends() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES);
+        assertTrue(rb.appendBuffer(new byte[] {1, 2, 3, 4, 5, 6}));
+        assertTrue(rb.appendBuffer(new byte[] {7, 8}));
+
+        final ByteArrayRingBuffer.Snapshot snapshot = rb.snapshot();
+        assertTrue(rb.appendBuffer(new byte[] {9, 10, 11, 12, 13}));
+
+        assertEquals(2, snapshot.getNumBuffers());
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, snapshot.getBuffer(0));
+        assertArrayEquals(new byte[] {7, 8}, snapshot.getBuffer(1));
+        assertArrayEquals(new byte[] {7, 8}, rb.getBuffer(0));
+        assertArrayEquals(new byte[] {9, 10, 11, 12, 13}, rb.getBuffer(1));
+    }
+
+    /** Verifies that a snapshot's data is the concatenation of its elements, oldest first. */
+    @Test
+    public void snapshotDataIsConcatenationOfElements() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES);
+        assertTrue(rb.appendBuffer(new byte[] {1, 2, 3, 4, 5, 6}));
+        assertTrue(rb.appendBuffer(new byte[] {7, 8}));
+        assertTrue(rb.appendBuffer(new byte[] {9, 10, 11, 12}));
+
+        final ByteArrayRingBuffer.Snapshot snapshot = rb.snapshot();
+        assertEquals(6, snapshot.getNumBytes());
+        final ByteBuffer concatenated = ByteBuffer.allocate(snapshot.getNumBytes());
+        for (ByteBuffer buffer : snapshot.getData()) {
+            concatenated.put(buffer);
+        }
+        assertArrayEquals(new byte[] {7, 8, 9, 10, 11, 12}, concatenated.array());
+    }
 }
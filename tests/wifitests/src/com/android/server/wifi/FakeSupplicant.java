@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+
+import com.android.server.wifi.MockAnswerUtil.AnswerWithArguments;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for the wpa_supplicant control socket in tests and benchmarks.
+ *
+ * Answers GET_NETWORK commands from a table of network variables. Like the real socket, it
+ * handles one command at a time and each command takes a round trip, of a fixed length here.
+ * Each call from WifiNative, with one command or a batch of them, costs a fixed overhead on top,
+ * standing in for the native call and the supplicant lock. The commands are recorded in the
+ * order they arrived.
+ *
+ * This is a stand-in at the level of the WifiNative methods rather than a socket the native
+ * layer could connect to, since libwpa_client only connects to the supplicant's socket paths.
+ */
+public class FakeSupplicant {
+    private final long mRoundTripNanos;
+    private final long mCallOverheadNanos;
+    private final Map<Integer, Map<String, String>> mNetworkVariables = new HashMap<>();
+    private final List<String> mCommands = new ArrayList<>();
+
+    /**
+     * @param roundTripMicros time each command takes to be answered
+     * @param callOverheadMicros time each call takes on top of its commands
+     */
+    public FakeSupplicant(long roundTripMicros, long callOverheadMicros) {
+        mRoundTripNanos = roundTripMicros * 1000;
+        mCallOverheadNanos = callOverheadMicros * 1000;
+    }
+
+    public synchronized void setNetworkVariable(int netId, String name, String value) {
+        Map<String, String> variables = mNetworkVariables.get(netId);
+        if (variables == null) {
+            variables = new HashMap<>();
+            mNetworkVariables.put(netId, variables);
+        }
+        variables.put(name, value);
+    }
+
+    /**
+     * Sends |command| and waits for the reply. Returns null for commands that fail.
+     */
+    public synchronized String doCommand(String command) {
+        LockSupport.parkNanos(mCallOverheadNanos);
+        return answer(command);
+    }
+
+    /**
+     * Sends |commands| back to back in one call and waits for the replies.
+     */
+    public synchronized String[] doCommands(String[] commands) {
+        LockSupport.parkNanos(mCallOverheadNanos);
+        String[] replies = new String[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            replies[i] = answer(commands[i]);
+        }
+        return replies;
+    }
+
+    private String answer(String command) {
+        mCommands.add(command);
+        LockSupport.parkNanos(mRoundTripNanos);
+        String[] tokens = command.split(" ");
+        if (tokens.length != 3 || !tokens[0].equals("GET_NETWORK")) {
+            return null;
+        }
+        Map<String, String> variables = mNetworkVariables.get(Integer.parseInt(tokens[1]));
+        return variables == null ? null : variables.get(tokens[2]);
+    }
+
+    /**
+     * Returns the commands received so far, oldest first.
+     */
+    public synchronized List<String> getCommands() {
+        return new ArrayList<>(mCommands);
+    }
+
+    /**
+     * Makes network variable reads on |wifiNative|, a mock or a spy, go to this supplicant.
+     */
+    public void install(WifiNative wifiNative) {
+        doAnswer(new AnswerWithArguments() {
+            public String answer(int netId, String name) {
+                return doCommand("GET_NETWORK " + netId + " " + name);
+            }
+        }).when(wifiNative).getNetworkVariable(anyInt(), anyString());
+        doAnswer(new AnswerWithArguments() {
+            public String[] answer(int netId, String[] names) {
+                String[] commands = new String[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    commands[i] = "GET_NETWORK " + netId + " " + names[i];
+                }
+                return doCommands(commands);
+            }
+        }).when(wifiNative).getNetworkVariables(anyInt(), any(String[].class));
+        doAnswer(new AnswerWithArguments() {
+            public String[] answer(int[] netIds, String name) {
+                String[] commands = new String[netIds.length];
+                for (int i = 0; i < netIds.length; i++) {
+                    commands[i] = "GET_NETWORK " + netIds[i] + " " + name;
+                }
+                return doCommands(commands);
+            }
+        }).when(wifiNative).getNetworkVariables(any(int[].class), anyString());
+    }
+
+    /**
+     * Makes batched network variable reads on the mock |wifiNative| read each variable through
+     * its getNetworkVariable(), so that tests can stub and verify single variables.
+     */
+    public static void forwardBatchedReads(final WifiNative wifiNative) {
+        doAnswer(new AnswerWithArguments() {
+            public String[] answer(int netId, String[] names) {
+                String[] values = new String[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    values[i] = wifiNative.getNetworkVariable(netId, names[i]);
+                }
+                return values;
+            }
+        }).when(wifiNative).getNetworkVariables(anyInt(), any(String[].class));
+        doAnswer(new AnswerWithArguments() {
+            public String[] answer(int[] netIds, String name) {
+                String[] values = new String[netIds.length];
+                for (int i = 0; i < netIds.length; i++) {
+                    values[i] = wifiNative.getNetworkVariable(netIds[i], name);
+                }
+                return values;
+            }
+        }).when(wifiNative).getNetworkVariables(any(int[].class), anyString());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiScanner;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.HalScanResults}.
+ */
+@SmallTest
+public class HalScanResultsTest {
+    /**
+     * Fills in the arrays the way getScanResultsNative does: two scans, the first with two
+     * results and the second with one whose SSID is empty.
+     */
+    private static HalScanResults createResults() {
+        HalScanResults results = new HalScanResults();
+        results.numScans = 2;
+        results.scanIds = new int[] { 7, 8 };
+        results.scanFlags = new int[] { 0, 1 };
+        results.bucketsScanned = new int[] { 3, 4 };
+        results.firstResults = new int[] { 0, 2, 3 };
+        results.bssids = new long[] { 0x001122334455L, 0xa0b0c0d0e0f0L, 0x010203040506L };
+        results.rssis = new int[] { -40, -50, -60 };
+        results.frequencies = new int[] { 2412, 5180, 5745 };
+        results.timestamps = new long[] { 100, 200, 300 };
+        results.ssids = "firstsecond".getBytes(StandardCharsets.US_ASCII);
+        results.ssidOffsets = new int[] { 0, 5, 11, 11 };
+        return results;
+    }
+
+    /** Verifies that a single result is decoded from the arrays. */
+    @Test
+    public void decodesSingleResult() throws Exception {
+        HalScanResults results = createResults();
+        assertEquals(2, results.getNumScans());
+        assertEquals(3, results.getNumResults());
+
+        ScanResult result = results.getScanResult(1);
+        assertEquals("second", result.SSID);
+        assertEquals("a0:b0:c0:d0:e0:f0", result.BSSID);
+        assertEquals(-50, result.level);
+        assertEquals(5180, result.frequency);
+        assertEquals(200, result.timestamp);
+
+        result = results.getScanResult(2);
+        assertNull(result.SSID);
+        assertNull(result.wifiSsid);
+        assertEquals("01:02:03:04:05:06", result.BSSID);
+    }
+
+    /** Verifies that results are grouped into their scans. */
+    @Test
+    public void groupsResultsIntoScanData() throws Exception {
+        HalScanResults results = createResults();
+        WifiScanner.ScanData[] scanData = results.getScanData();
+        assertEquals(2, scanData.length);
+        assertEquals(7, scanData[0].getId());
+        assertEquals(0, scanData[0].getFlags());
+        assertEquals(3, scanData[0].getBucketsScanned());
+        assertEquals(2, scanData[0].getResults().length);
+        assertEquals("first", scanData[0].getResults()[0].SSID);
+        assertEquals("00:11:22:33:44:55", scanData[0].getResults()[0].BSSID);
+        assertEquals(8, scanData[1].getId());
+        assertEquals(1, scanData[1].getResults().length);
+        assertEquals(-60, scanData[1].getResults()[0].level);
+    }
+
+    /** Verifies that a new object holds no results. */
+    @Test
+    public void emptyResults() throws Exception {
+        HalScanResults results = new HalScanResults();
+        assertEquals(0, results.getNumResults());
+        assertEquals(0, results.getScanData().length);
+    }
+}
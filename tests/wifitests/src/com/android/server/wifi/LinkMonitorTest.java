@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.when;
+
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiLinkLayerStats;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.LinkMonitor}.
+ */
+@SmallTest
+public class LinkMonitorTest {
+    @Mock private WifiNative mWifiNative;
+    @Mock private Clock mClock;
+    private LinkMonitor mLinkMonitor;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mLinkMonitor = new LinkMonitor(mWifiNative, mClock);
+    }
+
+    private int pollWithRssi(int rssi, double packetRate) {
+        LinkSample sample = new LinkSample(0, rssi, 54, 2412, LinkSample.INVALID,
+                LinkSample.INVALID);
+        when(mWifiNative.pollLink(false)).thenReturn(sample);
+        assertSame(sample, mLinkMonitor.poll(false));
+        return mLinkMonitor.updatePollInterval(packetRate, 0);
+    }
+
+    /** Verifies that polls slow down on a strong, steady, idle link, up to the maximum. */
+    @Test
+    public void backsOffOnSteadyIdleLink() throws Exception {
+        for (int i = 0; i < LinkMonitor.MIN_RSSI_SAMPLES - 1; i++) {
+            assertEquals(LinkMonitor.MIN_POLL_INTERVAL_MS, pollWithRssi(-50, 0));
+        }
+        assertEquals(LinkMonitor.MIN_POLL_INTERVAL_MS * 2, pollWithRssi(-51, 0));
+        assertEquals(LinkMonitor.MIN_POLL_INTERVAL_MS * 4, pollWithRssi(-50, 0));
+        assertEquals(LinkMonitor.MAX_POLL_INTERVAL_MS, pollWithRssi(-50, 0));
+        assertEquals(LinkMonitor.MAX_POLL_INTERVAL_MS, pollWithRssi(-50, 0));
+    }
+
+    /** Verifies that traffic, a weak signal or a change of the signal restore fast polls. */
+    @Test
+    public void pollsFastOnTrafficOrUnsteadySignal() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            pollWithRssi(-50, 0);
+        }
+        assertEquals(LinkMonitor.MIN_POLL_INTERVAL_MS, pollWithRssi(-50, 10));
+        pollWithRssi(-50, 0);
+        assertEquals(LinkMonitor.MIN_POLL_INTERVAL_MS, pollWithRssi(-65, 0));
+
+        mLinkMonitor.reset();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(LinkMonitor.MIN_POLL_INTERVAL_MS, pollWithRssi(-80, 0));
+        }
+    }
+
+    /**
+     * Verifies that the packets averaged into a rate are counted per shortest poll interval,
+     * however long it has been since the previous update, and that reset() forgets that time.
+     */
+    @Test
+    public void normalizesPacketRatesToPollInterval() throws Exception {
+        WifiInfo info = new WifiInfo();
+        when(mClock.elapsedRealtime()).thenReturn(1000L);
+        mLinkMonitor.updatePacketRates(info, 100, 100);
+        assertEquals(50, info.txSuccessRate, 1e-9);
+
+        // 40 packets in 4 shortest intervals: 10 per interval
+        when(mClock.elapsedRealtime()).thenReturn(1000L + 4 * LinkMonitor.MIN_POLL_INTERVAL_MS);
+        mLinkMonitor.updatePacketRates(info, 140, 100);
+        assertEquals(0.5 * 50 + 0.5 * 10, info.txSuccessRate, 1e-9);
+        assertEquals(0.5 * 50, info.rxSuccessRate, 1e-9);
+        assertEquals(140, info.txSuccess);
+
+        // Counters going backwards reset the rate
+        when(mClock.elapsedRealtime()).thenReturn(1000L + 5 * LinkMonitor.MIN_POLL_INTERVAL_MS);
+        mLinkMonitor.updatePacketRates(info, 10, 10);
+        assertEquals(0, info.txSuccessRate, 1e-9);
+
+        // After a reset, the first packets are taken as they are
+        mLinkMonitor.reset();
+        info.reset();
+        when(mClock.elapsedRealtime()).thenReturn(1000L + 9 * LinkMonitor.MIN_POLL_INTERVAL_MS);
+        mLinkMonitor.updatePacketRates(info, 40, 0);
+        assertEquals(20, info.txSuccessRate, 1e-9);
+    }
+
+    /** Verifies that the link layer stats counters of all access categories are summed. */
+    @Test
+    public void updatesPacketRatesFromLinkLayerStats() throws Exception {
+        WifiInfo info = new WifiInfo();
+        WifiLinkLayerStats stats = new WifiLinkLayerStats();
+        stats.txmpdu_be = 10;
+        stats.txmpdu_vo = 30;
+        stats.rxmpdu_bk = 8;
+        stats.lostmpdu_vi = 4;
+        stats.retries_be = 2;
+        when(mClock.elapsedRealtime()).thenReturn(1000L);
+        mLinkMonitor.updatePacketRates(info, stats);
+        assertEquals(40, info.txSuccess);
+        assertEquals(20, info.txSuccessRate, 1e-9);
+        assertEquals(4, info.rxSuccessRate, 1e-9);
+        assertEquals(2, info.txBadRate, 1e-9);
+        assertEquals(1, info.txRetriesRate, 1e-9);
+    }
+
+    /** Verifies that a missing sample counts as one with no values. */
+    @Test
+    public void handlesMissingSample() throws Exception {
+        when(mClock.elapsedRealtime()).thenReturn(42L);
+        LinkSample sample = mLinkMonitor.poll(true);
+        assertEquals(42, sample.timeMs);
+        assertEquals(LinkSample.INVALID, sample.rssi);
+        assertEquals(LinkMonitor.MIN_POLL_INTERVAL_MS, mLinkMonitor.updatePollInterval(0, 0));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.LinkSample}.
+ */
+@SmallTest
+public class LinkSampleTest {
+    /** Verifies that the values of both replies are found. */
+    @Test
+    public void parsesSignalAndPacketCountReplies() throws Exception {
+        LinkSample sample = LinkSample.parse("RSSI=-65\nLINKSPEED=48\nNOISE=9999\nFREQUENCY=5180",
+                "TXGOOD=396\nTXBAD=1\n", 1234);
+        assertEquals(1234, sample.timeMs);
+        assertEquals(-65, sample.rssi);
+        assertEquals(48, sample.linkSpeed);
+        assertEquals(5180, sample.frequency);
+        assertEquals(396, sample.txGood);
+        assertEquals(1, sample.txBad);
+    }
+
+    /** Verifies that missing replies and keys leave the values invalid. */
+    @Test
+    public void missingValuesAreInvalid() throws Exception {
+        LinkSample sample = LinkSample.parse("RSSI=-50\nNOISE=9999\n", null, 0);
+        assertEquals(-50, sample.rssi);
+        assertEquals(LinkSample.INVALID, sample.linkSpeed);
+        assertEquals(LinkSample.INVALID, sample.frequency);
+        assertEquals(LinkSample.INVALID, sample.txGood);
+        assertEquals(LinkSample.INVALID, sample.txBad);
+
+        sample = LinkSample.parse(null, "", 0);
+        assertEquals(LinkSample.INVALID, sample.rssi);
+        assertEquals(LinkSample.INVALID, sample.txGood);
+    }
+
+    /** Verifies that values which are not numbers, and keys which only share a prefix, are
+     * ignored. */
+    @Test
+    public void ignoresMalformedLines() throws Exception {
+        LinkSample sample = LinkSample.parse(
+                "RSSI=abc\nLINKSPEED=\nFREQUENCY=99999999999\nRSSI_EXTRA=-40\n=5\nRSSI",
+                "TXGOOD=-\nTXBAD=7=8", 0);
+        assertEquals(LinkSample.INVALID, sample.rssi);
+        assertEquals(LinkSample.INVALID, sample.linkSpeed);
+        assertEquals(LinkSample.INVALID, sample.frequency);
+        assertEquals(LinkSample.INVALID, sample.txGood);
+        assertEquals(7, sample.txBad);
+    }
+
+    /** Verifies that the last of repeated keys is used. */
+    @Test
+    public void usesLastRepeatedKey() throws Exception {
+        LinkSample sample = LinkSample.parse("RSSI=-60\nRSSI=-61", null, 0);
+        assertEquals(-61, sample.rssi);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.LockHoldStats}.
+ */
+@SmallTest
+public class LockHoldStatsTest {
+    private static long millisAgo(long ms) {
+        return System.nanoTime() - ms * 1000000L;
+    }
+
+    private static String dump(LockHoldStats stats) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        stats.dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    /**
+     * Verifies that holds are counted in the right bucket, per command.
+     */
+    @Test
+    public void holdsAreBucketedPerCommand() throws Exception {
+        LockHoldStats stats = new LockHoldStats("Test");
+        stats.recordHold("SCAN", millisAgo(10));
+        stats.recordHold("SCAN", millisAgo(3000));
+        stats.recordHold("STATUS", millisAgo(200));
+
+        String[] lines = dump(stats).split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("Test lock hold times (ms):"));
+        assertTrue(lines[1], lines[1].startsWith("  SCAN: 0 0 1 0 0 0 1 "));
+        assertTrue(lines[2], lines[2].startsWith("  STATUS: 0 0 0 0 1 0 0 "));
+    }
+
+    /**
+     * Verifies that a hold taken while the lock is already held is not recorded on its own.
+     */
+    @Test
+    public void onlyOutermostHoldIsRecorded() throws Exception {
+        LockHoldStats stats = new LockHoldStats("Test");
+        long outer = stats.acquire();
+        long inner = stats.acquire();
+        stats.release("TDLS_DISCOVER", inner);
+        inner = stats.acquire();
+        stats.release("TDLS_SETUP", inner);
+        stats.release("startTdls", outer);
+
+        String[] lines = dump(stats).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[1], lines[1].startsWith("  startTdls: 1 0 0 0 0 0 0 "));
+    }
+
+    /**
+     * Verifies that the number of commands tracked separately is bounded.
+     */
+    @Test
+    public void extraCommandsAreCountedTogether() throws Exception {
+        LockHoldStats stats = new LockHoldStats("Test");
+        for (int i = 0; i < 150; i++) {
+            stats.recordHold("CMD" + i, millisAgo(0));
+        }
+        String dump = dump(stats);
+        assertEquals(102, dump.split("\n").length);
+        assertTrue(dump, dump.contains("  (other): 50 0 0 0 0 0 0 "));
+    }
+}
@@ -17,7 +17,9 @@
 package com.android.server.wifi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
@@ -281,13 +283,45 @@ public class PasspointManagementObjectManagerTest {
         homeSPs = moMgr.loadAllSPs();
         assertEquals(null, moMgr.getHomeSP("wi-fi.org"));
     }
-}
-
-
-
 
+    /** verify that a legacy PPS file is split into per provider records */
+    @Test
+    public void migrateLegacyConfigs() throws Exception {
+        File file = createFileFromResource(R2_CONFIG_FILE);
+        PasspointManagementObjectManager moMgr = new PasspointManagementObjectManager(file, true);
+        List<HomeSP> homeSPs = moMgr.loadAllSPs();
+        assertEquals(2, homeSPs.size());
+        assertFalse(file.exists());
 
+        /* removing one provider must leave the other one intact */
+        moMgr.removeSP("wi-fi.org");
 
+        PasspointManagementObjectManager moMgr2 = new PasspointManagementObjectManager(file, true);
+        homeSPs = moMgr2.loadAllSPs();
+        assertEquals(1, homeSPs.size());
+        assertNull(moMgr2.getHomeSP("wi-fi.org"));
 
+        HomeSP homeSP = moMgr2.getHomeSP("twcwifi.com");
+        assertNotNull(homeSP);
+        assertEquals("TWC-WiFi", homeSP.getFriendlyName());
+        assertEquals("tushar4", homeSP.getCredential().getUserName());
+        assertNotNull(moMgr2.getMOTree("twcwifi.com"));
+    }
 
+    /** verify that a legacy PPS file left behind is not migrated over later updates */
+    @Test
+    public void legacyConfigsAreMigratedOnce() throws Exception {
+        File file = createFileFromResource(R2_CONFIG_FILE);
+        PasspointManagementObjectManager moMgr = new PasspointManagementObjectManager(file, true);
+        assertEquals(2, moMgr.loadAllSPs().size());
+        moMgr.removeSP("wi-fi.org");
 
+        /* a stale copy of the legacy file must not bring the removed provider back */
+        file = createFileFromResource(R2_CONFIG_FILE);
+        PasspointManagementObjectManager moMgr2 = new PasspointManagementObjectManager(file, true);
+        List<HomeSP> homeSPs = moMgr2.loadAllSPs();
+        assertEquals(1, homeSPs.size());
+        assertNull(moMgr2.getHomeSP("wi-fi.org"));
+        assertFalse(file.exists());
+    }
+}
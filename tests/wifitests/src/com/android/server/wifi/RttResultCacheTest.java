@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.net.wifi.RttManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.RttResultCache}.
+ */
+@SmallTest
+public class RttResultCacheTest {
+    private static final String BSSID = "12:34:56:78:9A:BC";
+    private static final long NOW_MS = 100000;
+
+    private RttResultCache mCache;
+    private RttManager.RttParams mParams;
+    private RttManager.RttResult mResult;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache = new RttResultCache();
+        mParams = new RttManager.RttParams();
+        mParams.bssid = BSSID;
+        mParams.frequency = 5180;
+        mResult = new RttManager.RttResult();
+        mResult.bssid = BSSID.toLowerCase();
+        mResult.status = RttManager.RTT_STATUS_SUCCESS;
+    }
+
+    /** Verifies that a result is returned while it is within the accepted age. */
+    @Test
+    public void returnsResultWithinAcceptedAge() {
+        mCache.put(mParams, mResult, NOW_MS);
+        assertSame(mResult, mCache.get(mParams, 500, NOW_MS + 500));
+        assertNull(mCache.get(mParams, 500, NOW_MS + 501));
+        assertNull(mCache.get(mParams, 0, NOW_MS));
+    }
+
+    /** Verifies that the accepted age is capped, and that expired entries are dropped. */
+    @Test
+    public void capsAcceptedAge() {
+        mCache.put(mParams, mResult, NOW_MS);
+        long expired = NOW_MS + RttResultCache.MAX_RESULT_AGE_MS + 1;
+        assertNull(mCache.get(mParams, Long.MAX_VALUE, expired));
+        assertEquals(0, mCache.size());
+    }
+
+    /** Verifies that results are only shared between identical parameters. */
+    @Test
+    public void matchesOnPeerAndParameters() {
+        mCache.put(mParams, mResult, NOW_MS);
+
+        RttManager.RttParams sameLowerCase = new RttManager.RttParams();
+        sameLowerCase.bssid = BSSID.toLowerCase();
+        sameLowerCase.frequency = 5180;
+        assertSame(mResult, mCache.get(sameLowerCase, 500, NOW_MS));
+
+        RttManager.RttParams otherChannel = new RttManager.RttParams();
+        otherChannel.bssid = BSSID;
+        otherChannel.frequency = 5200;
+        assertNull(mCache.get(otherChannel, 500, NOW_MS));
+    }
+
+    /** Verifies that failed measurements are not cached. */
+    @Test
+    public void ignoresFailedResults() {
+        mResult.status = RttManager.RTT_STATUS_FAILURE;
+        mCache.put(mParams, mResult, NOW_MS);
+        assertEquals(0, mCache.size());
+    }
+}
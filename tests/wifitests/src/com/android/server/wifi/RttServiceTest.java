@@ -17,6 +17,7 @@
 package com.android.server.wifi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.atLeastOnce;
@@ -32,6 +33,7 @@ import android.content.Context;
 import android.content.IntentFilter;
 import android.net.wifi.RttManager;
 import android.net.wifi.RttManager.ParcelableRttParams;
+import android.net.wifi.RttManager.ParcelableRttResults;
 import android.net.wifi.RttManager.ResponderConfig;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
@@ -53,8 +55,11 @@ public class RttServiceTest {
 
     // Some constants for running Rtt tests.
     private static final String MAC = "12:34:56:78:9A:BC";
+    private static final String MAC2 = "12:34:56:78:9A:BD";
+    private static final String MAC3 = "12:34:56:78:9A:BE";
     private static final int CLIENT_KEY1 = 1;
     private static final int CLIENT_KEY2 = 2;
+    private static final int FRESH_RESULTS_ONLY = -1;
 
     @Mock
     Context mContext;
@@ -105,11 +110,18 @@ public class RttServiceTest {
         verifyNoMoreInteractions(mWifiNative);
     }
 
-    // Send rtt ranging request message and verify failure.
+    // Send rtt ranging request message the way RttManager.startRanging() does, with arg1 left
+    // at 0.
     private Message sendRangingRequest(BidirectionalAsyncChannel channel, Handler handler,
             int clientKey, ParcelableRttParams params) {
+        return sendRangingRequest(channel, handler, clientKey, params, 0);
+    }
+
+    private Message sendRangingRequest(BidirectionalAsyncChannel channel, Handler handler,
+            int clientKey, ParcelableRttParams params, int maxResultAgeMs) {
         Message message = new Message();
         message.what = RttManager.CMD_OP_START_RANGING;
+        message.arg1 = maxResultAgeMs;
         message.arg2 = clientKey;
         message.obj = params;
         channel.sendMessage(message);
@@ -270,4 +282,188 @@ public class RttServiceTest {
         BidirectionalAsyncChannel channel = connectChannel(handler);
         sendRangingRequestFailed(channel, handler, CLIENT_KEY1, new ParcelableRttParams(null));
     }
+
+    private static ParcelableRttParams createRangingParams(String... bssids) {
+        RttManager.RttParams[] params = new RttManager.RttParams[bssids.length];
+        for (int i = 0; i < bssids.length; i++) {
+            params[i] = new RttManager.RttParams();
+            params[i].bssid = bssids[i];
+        }
+        return new ParcelableRttParams(params);
+    }
+
+    // Results are reported by the HAL with lower case MAC addresses.
+    private static RttManager.RttResult[] createRangingResults(String... bssids) {
+        RttManager.RttResult[] results = new RttManager.RttResult[bssids.length];
+        for (int i = 0; i < bssids.length; i++) {
+            results[i] = new RttManager.RttResult();
+            results[i].bssid = bssids[i].toLowerCase();
+        }
+        return results;
+    }
+
+    // Returns the last ranging result delivered to |handler|.
+    private RttManager.RttResult[] getLastRangingResults(Handler handler) {
+        ArgumentCaptor<Message> messageCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(handler, atLeastOnce()).handleMessage(messageCaptor.capture());
+        Message message = messageCaptor.getValue();
+        assertEquals(RttManager.CMD_OP_SUCCEEDED, message.what);
+        return ((ParcelableRttResults) message.obj).mResults;
+    }
+
+    /**
+     * Verifies that requests queued behind an outstanding one are issued to the HAL together,
+     * and that each client only gets the results for its own peers.
+     */
+    @Test
+    public void testInitiatorBatchesQueuedRequests() throws Exception {
+        startWifi();
+        when(mWifiNative.requestRtt(any(RttManager.RttParams[].class),
+                any(WifiNative.RttEventHandler.class))).thenReturn(true);
+        Handler handler1 = mock(Handler.class);
+        Handler handler2 = mock(Handler.class);
+        Handler handler3 = mock(Handler.class);
+        BidirectionalAsyncChannel channel1 = connectChannel(handler1);
+        BidirectionalAsyncChannel channel2 = connectChannel(handler2);
+        BidirectionalAsyncChannel channel3 = connectChannel(handler3);
+
+        sendRangingRequest(channel1, handler1, CLIENT_KEY1, createRangingParams(MAC));
+        sendRangingRequest(channel2, handler2, CLIENT_KEY1, createRangingParams(MAC2));
+        sendRangingRequest(channel3, handler3, CLIENT_KEY1, createRangingParams(MAC3));
+
+        ArgumentCaptor<RttManager.RttParams[]> paramsCaptor =
+                ArgumentCaptor.forClass(RttManager.RttParams[].class);
+        ArgumentCaptor<WifiNative.RttEventHandler> eventHandlerCaptor =
+                ArgumentCaptor.forClass(WifiNative.RttEventHandler.class);
+        verify(mWifiNative).requestRtt(paramsCaptor.capture(), eventHandlerCaptor.capture());
+        assertEquals(1, paramsCaptor.getValue().length);
+
+        eventHandlerCaptor.getValue().onRttResults(createRangingResults(MAC));
+        mLooper.dispatchAll();
+        assertEquals(1, getLastRangingResults(handler1).length);
+
+        // Both queued requests go to the HAL as one.
+        verify(mWifiNative, times(2)).requestRtt(paramsCaptor.capture(),
+                eventHandlerCaptor.capture());
+        assertEquals(2, paramsCaptor.getValue().length);
+
+        eventHandlerCaptor.getValue().onRttResults(createRangingResults(MAC3, MAC2));
+        mLooper.dispatchAll();
+        RttManager.RttResult[] results2 = getLastRangingResults(handler2);
+        RttManager.RttResult[] results3 = getLastRangingResults(handler3);
+        assertEquals(1, results2.length);
+        assertTrue(MAC2.equalsIgnoreCase(results2[0].bssid));
+        assertEquals(1, results3.length);
+        assertTrue(MAC3.equalsIgnoreCase(results3[0].bssid));
+    }
+
+    /**
+     * Verifies that requests ranging the same peer are not issued in the same batch.
+     */
+    @Test
+    public void testInitiatorDoesNotBatchRequestsForSamePeer() throws Exception {
+        startWifi();
+        when(mWifiNative.requestRtt(any(RttManager.RttParams[].class),
+                any(WifiNative.RttEventHandler.class))).thenReturn(true);
+        Handler handler1 = mock(Handler.class);
+        Handler handler2 = mock(Handler.class);
+        BidirectionalAsyncChannel channel1 = connectChannel(handler1);
+        BidirectionalAsyncChannel channel2 = connectChannel(handler2);
+
+        sendRangingRequest(channel1, handler1, CLIENT_KEY1, createRangingParams(MAC));
+        sendRangingRequest(channel1, handler1, CLIENT_KEY2, createRangingParams(MAC2));
+        sendRangingRequest(channel2, handler2, CLIENT_KEY1, createRangingParams(MAC2),
+                FRESH_RESULTS_ONLY);
+
+        ArgumentCaptor<RttManager.RttParams[]> paramsCaptor =
+                ArgumentCaptor.forClass(RttManager.RttParams[].class);
+        ArgumentCaptor<WifiNative.RttEventHandler> eventHandlerCaptor =
+                ArgumentCaptor.forClass(WifiNative.RttEventHandler.class);
+        verify(mWifiNative).requestRtt(paramsCaptor.capture(), eventHandlerCaptor.capture());
+        eventHandlerCaptor.getValue().onRttResults(createRangingResults(MAC));
+        mLooper.dispatchAll();
+
+        verify(mWifiNative, times(2)).requestRtt(paramsCaptor.capture(),
+                eventHandlerCaptor.capture());
+        assertEquals(1, paramsCaptor.getValue().length);
+        eventHandlerCaptor.getValue().onRttResults(createRangingResults(MAC2));
+        mLooper.dispatchAll();
+
+        verify(mWifiNative, times(3)).requestRtt(paramsCaptor.capture(),
+                eventHandlerCaptor.capture());
+        assertEquals(1, paramsCaptor.getValue().length);
+    }
+
+    /**
+     * Verifies that a request accepting cached results shares the measurement of an identical
+     * request already in flight, and that later such requests are served from the cache.
+     */
+    @Test
+    public void testInitiatorSharesMeasurementsWithRequestsAcceptingCachedResults()
+            throws Exception {
+        startWifi();
+        when(mWifiNative.requestRtt(any(RttManager.RttParams[].class),
+                any(WifiNative.RttEventHandler.class))).thenReturn(true);
+        Handler handler1 = mock(Handler.class);
+        Handler handler2 = mock(Handler.class);
+        Handler handler3 = mock(Handler.class);
+        BidirectionalAsyncChannel channel1 = connectChannel(handler1);
+        BidirectionalAsyncChannel channel2 = connectChannel(handler2);
+        BidirectionalAsyncChannel channel3 = connectChannel(handler3);
+
+        sendRangingRequest(channel1, handler1, CLIENT_KEY1, createRangingParams(MAC));
+        sendRangingRequest(channel2, handler2, CLIENT_KEY1, createRangingParams(MAC), 1000);
+
+        ArgumentCaptor<WifiNative.RttEventHandler> eventHandlerCaptor =
+                ArgumentCaptor.forClass(WifiNative.RttEventHandler.class);
+        verify(mWifiNative).requestRtt(any(RttManager.RttParams[].class),
+                eventHandlerCaptor.capture());
+        eventHandlerCaptor.getValue().onRttResults(createRangingResults(MAC));
+        mLooper.dispatchAll();
+        assertEquals(1, getLastRangingResults(handler1).length);
+        assertEquals(1, getLastRangingResults(handler2).length);
+
+        Message message = sendRangingRequest(channel3, handler3, CLIENT_KEY1,
+                createRangingParams(MAC), 1000);
+        assertEquals(RttManager.CMD_OP_SUCCEEDED, message.what);
+        assertEquals(1, getLastRangingResults(handler3).length);
+
+        verify(mWifiNative, times(1)).requestRtt(any(RttManager.RttParams[].class),
+                any(WifiNative.RttEventHandler.class));
+    }
+
+    /**
+     * Verifies that a request sent the way RttManager sends it is answered from the cache, and
+     * that a request asking for a fresh measurement is not.
+     */
+    @Test
+    public void testInitiatorServesDefaultRequestsFromCache() throws Exception {
+        startWifi();
+        when(mWifiNative.requestRtt(any(RttManager.RttParams[].class),
+                any(WifiNative.RttEventHandler.class))).thenReturn(true);
+        Handler handler1 = mock(Handler.class);
+        Handler handler2 = mock(Handler.class);
+        BidirectionalAsyncChannel channel1 = connectChannel(handler1);
+        BidirectionalAsyncChannel channel2 = connectChannel(handler2);
+
+        sendRangingRequest(channel1, handler1, CLIENT_KEY1, createRangingParams(MAC));
+        ArgumentCaptor<WifiNative.RttEventHandler> eventHandlerCaptor =
+                ArgumentCaptor.forClass(WifiNative.RttEventHandler.class);
+        verify(mWifiNative).requestRtt(any(RttManager.RttParams[].class),
+                eventHandlerCaptor.capture());
+        eventHandlerCaptor.getValue().onRttResults(createRangingResults(MAC));
+        mLooper.dispatchAll();
+
+        Message message = sendRangingRequest(channel2, handler2, CLIENT_KEY1,
+                createRangingParams(MAC));
+        assertEquals(RttManager.CMD_OP_SUCCEEDED, message.what);
+        assertEquals(1, getLastRangingResults(handler2).length);
+        verify(mWifiNative, times(1)).requestRtt(any(RttManager.RttParams[].class),
+                any(WifiNative.RttEventHandler.class));
+
+        sendRangingRequest(channel2, handler2, CLIENT_KEY2, createRangingParams(MAC),
+                FRESH_RESULTS_ONLY);
+        verify(mWifiNative, times(2)).requestRtt(any(RttManager.RttParams[].class),
+                any(WifiNative.RttEventHandler.class));
+    }
 }
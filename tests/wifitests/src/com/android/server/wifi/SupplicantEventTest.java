@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.net.wifi.SupplicantState;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.SupplicantEvent}.
+ */
+@SmallTest
+public class SupplicantEventTest {
+    private static final String BSSID = "00:1e:58:ec:d5:6d";
+    private static final long PACKED_BSSID = 0x001e58ecd56dL;
+
+    /** Verifies that all fields of a STATE-CHANGE event are read. */
+    @Test
+    public void parseStateChange() {
+        SupplicantEvent event = SupplicantEvent.parseStateChange(
+                "id=1 state=9 BSSID=" + BSSID + " SSID=Some SSID");
+        assertEquals(1, event.networkId);
+        assertEquals(SupplicantState.COMPLETED, event.state);
+        assertEquals(PACKED_BSSID, event.packedBssid);
+        assertEquals(BSSID, event.bssid);
+        assertEquals("Some SSID", event.wifiSsid.toString());
+    }
+
+    /** Verifies that unreadable fields of a STATE-CHANGE event are skipped. */
+    @Test
+    public void parseStateChangeSkipsBadFields() {
+        SupplicantEvent event = SupplicantEvent.parseStateChange(
+                "id=x state=3 BSSID=00:1e:58 SSID=");
+        assertEquals(-1, event.networkId);
+        assertEquals(SupplicantState.SCANNING, event.state);
+        assertEquals(SupplicantEvent.NO_BSSID, event.packedBssid);
+        assertNull(event.bssid);
+
+        assertEquals(SupplicantState.INVALID,
+                SupplicantEvent.parseStateChange("state=42").state);
+        assertNull(SupplicantEvent.parseStateChange("id=1 BSSID=" + BSSID));
+    }
+
+    /** Verifies that the BSSID and network id of a CONNECTED event are read. */
+    @Test
+    public void parseConnected() {
+        SupplicantEvent event = SupplicantEvent.parseConnected(
+                "- Connection to " + BSSID + " completed (reauth) [id=12 id_str=]");
+        assertEquals(PACKED_BSSID, event.packedBssid);
+        assertEquals(BSSID, event.bssid);
+        assertEquals(12, event.networkId);
+
+        assertNull(SupplicantEvent.parseConnected("- Connection to " + BSSID + " [id=1 id_str=]"));
+        assertNull(SupplicantEvent.parseConnected("- Connection to 00:1E:58:EC:D5:6D x [id=1 "));
+    }
+
+    /** Verifies that the fields of a DISCONNECTED event are read. */
+    @Test
+    public void parseDisconnected() {
+        SupplicantEvent event = SupplicantEvent.parseDisconnected(
+                "bssid=ac:22:0b:24:70:74 reason=3 locally_generated=1");
+        assertEquals(0xac220b247074L, event.packedBssid);
+        assertEquals(3, event.reasonCode);
+        assertEquals(1, event.locallyGenerated);
+
+        event = SupplicantEvent.parseDisconnected(
+                "bssid=ac:22:0b:24:70:74  reason=99999999999  locally_generated=0");
+        assertEquals(-1, event.reasonCode);
+        assertEquals(0, event.locallyGenerated);
+
+        assertNull(SupplicantEvent.parseDisconnected(
+                "bssid=ac:22:0b:24:70:74 reason=3 locally_generated=2"));
+        assertNull(SupplicantEvent.parseDisconnected("bssid=ac:22:0b:24:70:74 reason=3"));
+    }
+
+    /** Verifies that the BSSID and status code of an ASSOC-REJECT event are read. */
+    @Test
+    public void parseAssocReject() {
+        SupplicantEvent event = SupplicantEvent.parseAssocReject(
+                "bssid=ac:22:0b:24:70:74 status_code=17");
+        assertEquals("ac:22:0b:24:70:74", event.bssid);
+        assertEquals(17, event.reasonCode);
+
+        assertNull(SupplicantEvent.parseAssocReject("status_code=1"));
+        assertNull(SupplicantEvent.parseAssocReject("bssid=ac:22:0b:24:70:74 status_code="));
+    }
+
+    /** Verifies that the address and result of an ANQP-QUERY-DONE event are read. */
+    @Test
+    public void parseAnqpDone() {
+        SupplicantEvent event = SupplicantEvent.parseAnqpDone(
+                "ANQP-QUERY-DONE addr=18:cf:5e:26:a4:88 result=SUCCESS");
+        assertEquals(0x18cf5e26a488L, event.packedBssid);
+        assertNull(event.bssid);
+        assertEquals(1, event.reasonCode);
+
+        event = SupplicantEvent.parseAnqpDone(
+                "ANQP-QUERY-DONE result=FAILURE addr=18:CF:5E:26:A4:88");
+        assertEquals(0x18cf5e26a488L, event.packedBssid);
+        assertEquals(0, event.reasonCode);
+
+        assertEquals(SupplicantEvent.NO_BSSID, SupplicantEvent.parseAnqpDone(
+                "ANQP-QUERY-DONE addr=18:cf:5e result=SUCCESS").packedBssid);
+        assertNull(SupplicantEvent.parseAnqpDone("ANQP-QUERY-DONE addr=18:cf:5e:26:a4:88"));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.TimedLock}.
+ */
+@SmallTest
+public class TimedLockTest {
+    private static String[] dump(LockHoldStats stats) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        stats.dump(pw);
+        pw.flush();
+        return sw.toString().split("\n");
+    }
+
+    /**
+     * Verifies that each hold is recorded under its command, nested holds under the outermost
+     * one only.
+     */
+    @Test
+    public void recordsOutermostHolds() throws Exception {
+        LockHoldStats stats = new LockHoldStats("Test");
+        TimedLock lock = new TimedLock(stats);
+        try (TimedLock.Hold hold = lock.lock("startHal")) {
+            try (TimedLock.Hold inner = lock.lock("queryInterfaceIndex")) {
+                // Nothing to do
+            }
+        }
+        try (TimedLock.Hold hold = lock.lock("stopHal")) {
+            // Nothing to do
+        }
+
+        String[] lines = dump(stats);
+        assertEquals(3, lines.length);
+        assertTrue(lines[1], lines[1].startsWith("  startHal: 1 0 0 0 0 0 0 "));
+        assertTrue(lines[2], lines[2].startsWith("  stopHal: 1 0 0 0 0 0 0 "));
+    }
+
+    /**
+     * Verifies that the lock is released when the guarded code throws.
+     */
+    @Test
+    public void releasesOnException() throws Exception {
+        LockHoldStats stats = new LockHoldStats("Test");
+        final TimedLock lock = new TimedLock(stats);
+        try (TimedLock.Hold hold = lock.lock("getFwMemoryDump")) {
+            throw new IllegalStateException();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try (TimedLock.Hold hold = lock.lock("getDriverStateDump")) {
+                    // Nothing to do
+                }
+            }
+        };
+        other.start();
+        other.join(1000);
+        assertFalse(other.isAlive());
+        assertEquals(3, dump(stats).length);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.when;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.VersionedSnapshot}.
+ */
+@SmallTest
+public class VersionedSnapshotTest {
+    private static final long MAX_AGE_MS = 1000;
+
+    @Mock private Clock mClock;
+    private VersionedSnapshot<String> mSnapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mClock.elapsedRealtime()).thenReturn(10000L);
+        mSnapshot = new VersionedSnapshot<String>(mClock, MAX_AGE_MS);
+    }
+
+    /** Verifies that nothing is returned before a value is published. */
+    @Test
+    public void emptyUntilPublished() throws Exception {
+        assertNull(mSnapshot.get(0));
+        mSnapshot.publish(0, "networks");
+        assertEquals("networks", mSnapshot.get(0));
+    }
+
+    /** Verifies that the value is dropped when the version changes. */
+    @Test
+    public void staleAfterVersionChange() throws Exception {
+        mSnapshot.publish(3, "networks");
+        assertEquals("networks", mSnapshot.get(3));
+        assertNull(mSnapshot.get(4));
+        mSnapshot.publish(4, "more networks");
+        assertEquals("more networks", mSnapshot.get(4));
+    }
+
+    /** Verifies that the value is dropped once it is older than the maximum age. */
+    @Test
+    public void staleAfterMaxAge() throws Exception {
+        mSnapshot.publish(1, "networks");
+        when(mClock.elapsedRealtime()).thenReturn(10000L + MAX_AGE_MS);
+        assertEquals("networks", mSnapshot.get(1));
+        when(mClock.elapsedRealtime()).thenReturn(10000L + MAX_AGE_MS + 1);
+        assertNull(mSnapshot.get(1));
+    }
+
+    /** Verifies that invalidate() drops the value. */
+    @Test
+    public void invalidateDropsValue() throws Exception {
+        mSnapshot.publish(1, "networks");
+        mSnapshot.invalidate();
+        assertNull(mSnapshot.get(1));
+    }
+}
@@ -50,6 +50,7 @@ import com.android.server.wifi.hotspot2.omadm.PasspointManagementObjectManager;
 import com.android.server.wifi.hotspot2.pps.Credential;
 import com.android.server.wifi.hotspot2.pps.HomeSP;
 
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -65,6 +66,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.math.BigInteger;
+import java.net.URLEncoder;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayDeque;
@@ -149,6 +151,7 @@ public class WifiConfigManagerTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        FakeSupplicant.forwardBatchedReads(mWifiNative);
 
         final Context realContext = InstrumentationRegistry.getContext();
         when(mContext.getPackageName()).thenReturn(realContext.getPackageName());
@@ -246,6 +249,13 @@ public class WifiConfigManagerTest {
                 .getBytes("UTF-8")).toString(16);
     }
 
+    /**
+     * Encode |values| the way WifiNative.setNetworkExtra() stores them in wpa_supplicant.
+     */
+    private String encodeNetworkExtra(Map<String, String> values) throws Exception {
+        return "\"" + URLEncoder.encode(new JSONObject(values).toString(), "UTF-8") + "\"";
+    }
+
     /**
      * Verifies that getConfiguredNetworksSize() returns the number of network configurations
      * visible to the current user.
@@ -576,11 +586,9 @@ public class WifiConfigManagerTest {
                 .thenReturn(encodeConfigSSID(CONFIGS.get(i)));
         }
         // Legacy regular network configuration: No "id_str".
-        when(mWifiNative.getNetworkExtra(0, WifiConfigStore.ID_STRING_VAR_NAME))
+        when(mWifiNative.getNetworkVariable(0, WifiConfigStore.ID_STRING_VAR_NAME))
             .thenReturn(null);
         // Legacy Hotspot 2.0 network configuration: Quoted FQDN in "id_str".
-        when(mWifiNative.getNetworkExtra(1, WifiConfigStore.ID_STRING_VAR_NAME))
-            .thenReturn(null);
         when(mWifiNative.getNetworkVariable(1, WifiConfigStore.ID_STRING_VAR_NAME))
             .thenReturn('"' + CONFIGS.get(1).FQDN + '"');
         // Up-to-date Hotspot 2.0 network configuration: Metadata in "id_str".
@@ -589,15 +597,15 @@ public class WifiConfigManagerTest {
         metadata.put(WifiConfigStore.ID_STRING_KEY_CREATOR_UID,
                 Integer.toString(CONFIGS.get(2).creatorUid));
         metadata.put(WifiConfigStore.ID_STRING_KEY_FQDN, CONFIGS.get(2).FQDN);
-        when(mWifiNative.getNetworkExtra(2, WifiConfigStore.ID_STRING_VAR_NAME))
-            .thenReturn(metadata);
+        when(mWifiNative.getNetworkVariable(2, WifiConfigStore.ID_STRING_VAR_NAME))
+            .thenReturn(encodeNetworkExtra(metadata));
         // Up-to-date regular network configuration: Metadata in "id_str".
         metadata = new HashMap<String, String>();
         metadata.put(WifiConfigStore.ID_STRING_KEY_CONFIG_KEY, CONFIGS.get(3).configKey());
         metadata.put(WifiConfigStore.ID_STRING_KEY_CREATOR_UID,
                 Integer.toString(CONFIGS.get(3).creatorUid));
-        when(mWifiNative.getNetworkExtra(3, WifiConfigStore.ID_STRING_VAR_NAME))
-            .thenReturn(metadata);
+        when(mWifiNative.getNetworkVariable(3, WifiConfigStore.ID_STRING_VAR_NAME))
+            .thenReturn(encodeNetworkExtra(metadata));
 
         // Set up networkHistory.txt file.
         final File file = File.createTempFile("networkHistory.txt", null);
@@ -664,8 +672,8 @@ public class WifiConfigManagerTest {
         metadata.put(WifiConfigStore.ID_STRING_KEY_CONFIG_KEY, config.configKey());
         metadata.put(WifiConfigStore.ID_STRING_KEY_CREATOR_UID,
                 Integer.toString(config.creatorUid));
-        when(mWifiNative.getNetworkExtra(anyInt(), eq(WifiConfigStore.ID_STRING_VAR_NAME)))
-            .thenReturn(metadata);
+        when(mWifiNative.getNetworkVariable(anyInt(), eq(WifiConfigStore.ID_STRING_VAR_NAME)))
+            .thenReturn(encodeNetworkExtra(metadata));
 
         // Load network configurations.
         mWifiConfigManager.loadConfiguredNetworks();
@@ -686,6 +694,7 @@ public class WifiConfigManagerTest {
         switchUser(oldUserId);
 
         reset(mWifiNative);
+        FakeSupplicant.forwardBatchedReads(mWifiNative);
         final Field lastSelectedConfigurationField =
                 WifiConfigManager.class.getDeclaredField("mLastSelectedConfiguration");
         lastSelectedConfigurationField.setAccessible(true);
@@ -789,6 +798,7 @@ public class WifiConfigManagerTest {
     private void testSaveLoadSingleEapNetwork(String ssid, EnterpriseConfig eapConfig) {
         final HashMap<String, String> networkVariables = new HashMap<String, String>();
         reset(mWifiNative);
+        FakeSupplicant.forwardBatchedReads(mWifiNative);
         when(mWifiNative.addNetwork()).thenReturn(0);
         when(mWifiNative.setNetworkVariable(anyInt(), anyString(), anyString())).thenAnswer(
                 new AnswerWithArguments() {
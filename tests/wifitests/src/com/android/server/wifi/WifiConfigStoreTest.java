@@ -17,9 +17,15 @@
 package com.android.server.wifi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import android.content.Context;
+import android.net.wifi.WifiConfiguration;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import org.junit.Before;
@@ -218,6 +224,30 @@ public class WifiConfigStoreTest {
         }
     }
 
+    /**
+     * Verifies that readNetworkVariables() reads the variables of a network with one batched
+     * call instead of one call per variable.
+     */
+    @Test
+    public void readNetworkVariablesBatchesReads() throws Exception {
+        FakeSupplicant supplicant = new FakeSupplicant(0, 0);
+        for (String key : new String[] {KEY_SSID, KEY_KEY_MGMT, KEY_PRIORITY}) {
+            supplicant.setNetworkVariable(0, key, NETWORK_0_VARS.get(key));
+        }
+        supplicant.install(mWifiNative);
+
+        WifiConfiguration config = new WifiConfiguration();
+        config.networkId = 0;
+        mWifiConfigStore.readNetworkVariables(config);
+
+        assertEquals(NETWORK_0_VARS.get(KEY_SSID), config.SSID);
+        assertEquals(2, config.priority);
+        assertTrue(config.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.NONE));
+        verify(mWifiNative).getNetworkVariables(eq(0), any(String[].class));
+        verify(mWifiNative, never()).getNetworkVariable(0, KEY_SSID);
+        assertEquals("GET_NETWORK 0 " + KEY_SSID, supplicant.getCommands().get(0));
+    }
+
     /**
      * Inject |TEST_WPA_SUPPLICANT_CONF| via the helper method readNetworkVariablesFromReader().
      */
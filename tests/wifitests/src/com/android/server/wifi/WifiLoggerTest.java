@@ -19,7 +19,6 @@ package com.android.server.wifi;
 import android.content.Context;
 import android.test.suitebuilder.annotation.SmallTest;
 import com.android.internal.R;
-import android.util.LocalLog;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -34,6 +33,8 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.android.server.wifi.MockAnswerUtil.AnswerWithArguments;
+import com.android.server.wifi.util.BinaryLocalLog;
+import com.android.server.wifi.util.ByteArrayRingBuffer;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -62,7 +63,7 @@ public class WifiLoggerTest {
     private static final int SMALL_RING_BUFFER_SIZE_KB = 32;
     private static final int LARGE_RING_BUFFER_SIZE_KB = 1024;
     private static final int BYTES_PER_KBYTE = 1024;
-    private LocalLog mWifiNativeLocalLog;
+    private BinaryLocalLog mWifiNativeLocalLog;
 
     private WifiNative.RingBufferStatus mFakeRbs;
     /**
@@ -71,7 +72,13 @@ public class WifiLoggerTest {
      * dimension is the byte index within that record.
      */
     private final byte[][] getLoggerRingBufferData() throws Exception {
-        return mWifiLogger.getBugReports().get(0).ringBuffers.get(FAKE_RING_BUFFER_NAME);
+        ByteArrayRingBuffer.Snapshot snapshot =
+                mWifiLogger.getBugReports().get(0).ringBuffers.get(FAKE_RING_BUFFER_NAME);
+        byte[][] data = new byte[snapshot.getNumBuffers()][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = snapshot.getBuffer(i);
+        }
+        return data;
     }
 
     /**
@@ -86,7 +93,7 @@ public class WifiLoggerTest {
         WifiNative.RingBufferStatus[] ringBufferStatuses = new WifiNative.RingBufferStatus[] {
                 mFakeRbs
         };
-        mWifiNativeLocalLog = new LocalLog(8192);
+        mWifiNativeLocalLog = new BinaryLocalLog(8192);
 
         when(mWifiNative.getRingBufferStatus()).thenReturn(ringBufferStatuses);
         when(mWifiNative.readKernelLog()).thenReturn("");
@@ -728,7 +735,8 @@ public class WifiLoggerTest {
     @Test
     public void dumpIncludesContentOfWifiNativeLocalLog() {
         final String wifiNativeLogMessage = "This is a message";
-        mWifiNativeLocalLog.log(wifiNativeLogMessage);
+        mWifiNativeLocalLog.log(BinaryLocalLog.registerFormat("WifiNative", "%s"),
+                wifiNativeLogMessage);
 
         mWifiLogger.startLogging(false  /* verbose disabled */);
         StringWriter sw = new StringWriter();
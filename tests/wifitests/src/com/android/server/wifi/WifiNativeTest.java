@@ -19,6 +19,8 @@ package com.android.server.wifi;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
@@ -26,13 +28,16 @@ import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.net.wifi.ScanResult;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -147,6 +152,51 @@ public class WifiNativeTest {
         assertEquals(NETWORK_EXTRAS_VALUES, actualValues);
     }
 
+    /**
+     * Verifies that the FULL scan fetch profile asks for the fields that were always fetched.
+     */
+    @Test
+    public void testScanFetchMasks() {
+        assertEquals(0x29d87, WifiNative.getScanFetchMask(WifiNative.SCAN_FETCH_FULL));
+        assertEquals(0x21d87, WifiNative.getScanFetchMask(WifiNative.SCAN_FETCH_STANDARD));
+    }
+
+    /**
+     * Verifies that records without information elements are dropped, and that the id
+     * following the last record is returned.
+     */
+    @Test
+    public void testParseScanResultsRequiresElements() {
+        String reply = "id=4\nbssid=00:11:22:33:44:55\nfreq=2412\nlevel=-50\ntsf=1000\n"
+                + "flags=[ESS]\nssid=first\n====\n";
+        List<ScanDetail> results = new ArrayList<>();
+        assertEquals(5, WifiNative.parseScanResults(reply, results));
+        assertTrue(results.isEmpty());
+    }
+
+    /**
+     * Verifies that the information elements of a parsed ScanResult are only built when they are
+     * asked for.
+     */
+    @Test
+    public void testParseScanResultsBuildsElementsOnRequest() {
+        String reply = "id=4\nbssid=00:11:22:33:44:55\nfreq=2412\nlevel=-50\ntsf=1000\n"
+                + "ie=00056669727374030101\nflags=[ESS]\nssid=first\n====\n";
+        List<ScanDetail> results = new ArrayList<>();
+        assertEquals(5, WifiNative.parseScanResults(reply, results));
+        assertEquals(1, results.size());
+        assertEquals("first", results.get(0).getNetworkDetail().getSSID());
+        assertNull(results.get(0).getScanResult().informationElements);
+
+        ScanResult.InformationElement[] ies =
+                results.get(0).getScanResultWithElements().informationElements;
+        assertEquals(2, ies.length);
+        assertEquals(ScanResult.InformationElement.EID_SSID, ies[0].id);
+        assertArrayEquals("first".getBytes(), ies[0].bytes);
+        assertEquals(ScanResult.InformationElement.EID_DSSS, ies[1].id);
+        assertSame(ies, results.get(0).getScanResultWithElements().informationElements);
+    }
+
     /**
      * Verifies that TxFateReport's constructor sets all of the TxFateReport fields.
      */
@@ -42,10 +42,10 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiSsid;
 import android.os.SystemClock;
 import android.test.suitebuilder.annotation.SmallTest;
-import android.util.LocalLog;
 
 import com.android.internal.R;
 import com.android.server.wifi.MockAnswerUtil.AnswerWithArguments;
+import com.android.server.wifi.util.BinaryLocalLog;
 
 import org.junit.After;
 import org.junit.Before;
@@ -93,7 +93,7 @@ public class WifiQualifiedNetworkSelectorTest {
     private NetworkScoreManager mScoreManager;
     private WifiNetworkScoreCache mScoreCache;
     private WifiInfo mWifiInfo;
-    private LocalLog mLocalLog;
+    private BinaryLocalLog mLocalLog;
     private Clock mClock = mock(Clock.class);
     private static final String[] DEFAULT_SSIDS = {"\"test1\"", "\"test2\""};
     private static final String[] DEFAULT_BSSIDS = {"6c:f3:7f:ae:8c:f3", "6c:f3:7f:ae:8c:f4"};
@@ -145,8 +145,8 @@ public class WifiQualifiedNetworkSelectorTest {
         return mock(WifiNetworkScoreCache.class);
     }
 
-    LocalLog getLocalLog() {
-        return new LocalLog(0);
+    BinaryLocalLog getLocalLog() {
+        return new BinaryLocalLog(16);
     }
 
     WifiInfo getWifiInfo() {
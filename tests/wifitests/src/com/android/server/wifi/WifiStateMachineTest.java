@@ -18,6 +18,8 @@ package com.android.server.wifi;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
@@ -347,6 +349,7 @@ public class WifiStateMachineTest {
         mLooper = new MockLooper();
 
         MockitoAnnotations.initMocks(this);
+        FakeSupplicant.forwardBatchedReads(mWifiNative);
 
         /** uncomment this to enable logs from WifiStateMachines */
         // enableDebugLogs();
@@ -384,7 +387,7 @@ public class WifiStateMachineTest {
                 new UserInfo(11, "managed profile", 0)));
 
         mWsm = new WifiStateMachine(context, factory, mLooper.getLooper(),
-            mUserManager, mWifiInjector, mBackupManagerProxy, mCountryCode);
+            mUserManager, mWifiInjector, mBackupManagerProxy, mCountryCode, null);
         mWsmThread = getWsmHandlerThread(mWsm);
 
         final AsyncChannel channel = new AsyncChannel();
@@ -880,6 +883,13 @@ public class WifiStateMachineTest {
 
         List<ScanResult> reportedResults = mWsm.syncGetScanResultsList();
         assertEquals(8, reportedResults.size());
+
+        // The snapshot is shared until the next scan; the sync getter hands out copies
+        List<ScanResult> snapshot = mWsm.getScanResultsSnapshot();
+        assertEquals(8, snapshot.size());
+        assertSame(snapshot, mWsm.getScanResultsSnapshot());
+        assertNotSame(snapshot.get(0), reportedResults.get(0));
+        assertEquals(snapshot.get(0).BSSID, reportedResults.get(0).BSSID);
     }
 
     @Test
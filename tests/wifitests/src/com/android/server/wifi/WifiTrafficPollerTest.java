@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.IntentFilter;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Messenger;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.WifiTrafficPoller}.
+ */
+@SmallTest
+public class WifiTrafficPollerTest {
+    private static final String IFACE = "wlan0";
+
+    @Mock private Context mContext;
+    @Mock private FrameworkFacade mFrameworkFacade;
+    private MockLooper mLooper;
+    private WifiTrafficPoller mWifiTrafficPoller;
+    private BroadcastReceiver mBroadcastReceiver;
+    private final List<Integer> mDataActivity = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mLooper = new MockLooper();
+        mWifiTrafficPoller = new WifiTrafficPoller(mContext, mLooper.getLooper(), IFACE,
+                mFrameworkFacade);
+
+        ArgumentCaptor<BroadcastReceiver> broadcastReceiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext)
+                .registerReceiver(broadcastReceiverCaptor.capture(), any(IntentFilter.class));
+        mBroadcastReceiver = broadcastReceiverCaptor.getValue();
+
+        mWifiTrafficPoller.addClient(new Messenger(new Handler(mLooper.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                assertEquals(WifiManager.DATA_ACTIVITY_NOTIFICATION, msg.what);
+                mDataActivity.add(msg.arg1);
+            }
+        }));
+    }
+
+    private void setPacketCounts(long txPkts, long rxPkts) {
+        when(mFrameworkFacade.getTxPackets(IFACE)).thenReturn(txPkts);
+        when(mFrameworkFacade.getRxPackets(IFACE)).thenReturn(rxPkts);
+    }
+
+    private void moveTimeForward(long ms) {
+        mLooper.moveTimeForward(ms);
+        mLooper.dispatchAll();
+    }
+
+    private void verifyPolls(int count) {
+        verify(mFrameworkFacade, times(count)).getTxPackets(anyString());
+    }
+
+    /**
+     * Verifies that the poll interval doubles while idle, returns to the fast interval on
+     * traffic, and that packet counts passed in take the place of the next poll.
+     */
+    @Test
+    public void pollIntervalAdaptsToActivity() throws Exception {
+        setPacketCounts(100, 100);
+        TestUtil.sendNetworkStateChanged(mBroadcastReceiver, mContext,
+                NetworkInfo.DetailedState.CONNECTED);
+        mLooper.dispatchAll();
+        verifyPolls(1);
+
+        // Idle: the next polls come after 2 and 4 seconds
+        moveTimeForward(1000);
+        verifyPolls(1);
+        moveTimeForward(1000);
+        verifyPolls(2);
+        moveTimeForward(3000);
+        verifyPolls(2);
+
+        setPacketCounts(200, 100);
+        moveTimeForward(1000);
+        verifyPolls(3);
+        assertEquals(1, mDataActivity.size());
+        assertEquals(WifiManager.DATA_ACTIVITY_OUT, (int) mDataActivity.get(0));
+
+        // Activity: back to polling after 1 second
+        moveTimeForward(1000);
+        verifyPolls(4);
+        assertEquals(2, mDataActivity.size());
+        assertEquals(WifiManager.DATA_ACTIVITY_NONE, (int) mDataActivity.get(1));
+
+        // Counts of another interface are ignored
+        mWifiTrafficPoller.onPacketCounts("p2p0", 500, 500);
+        mLooper.dispatchAll();
+        assertEquals(2, mDataActivity.size());
+
+        // Counts passed in replace the poll due in 2 seconds
+        moveTimeForward(1000);
+        mWifiTrafficPoller.onPacketCounts(IFACE, 200, 150);
+        mLooper.dispatchAll();
+        assertEquals(3, mDataActivity.size());
+        assertEquals(WifiManager.DATA_ACTIVITY_IN, (int) mDataActivity.get(2));
+        moveTimeForward(1000);
+        verifyPolls(5);
+        moveTimeForward(1000);
+        verifyPolls(5);
+    }
+
+    /**
+     * Verifies that polling stops on disconnect.
+     */
+    @Test
+    public void noPollingWhenDisconnected() throws Exception {
+        setPacketCounts(100, 100);
+        TestUtil.sendNetworkStateChanged(mBroadcastReceiver, mContext,
+                NetworkInfo.DetailedState.CONNECTED);
+        mLooper.dispatchAll();
+        TestUtil.sendNetworkStateChanged(mBroadcastReceiver, mContext,
+                NetworkInfo.DetailedState.DISCONNECTED);
+        mLooper.dispatchAll();
+        moveTimeForward(60000);
+        verifyPolls(1);
+
+        mWifiTrafficPoller.onPacketCounts(IFACE, 200, 200);
+        mLooper.dispatchAll();
+        verifyPolls(1);
+        assertEquals(0, mDataActivity.size());
+    }
+}
@@ -19,12 +19,15 @@ package com.android.server.wifi.nan;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyShort;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 import android.net.wifi.nan.ConfigRequest;
 import android.net.wifi.nan.IWifiNanEventListener;
@@ -76,6 +79,8 @@ public class WifiNanStateManagerTest {
         mDut.start(mMockLooper.getLooper());
 
         installMockWifiNanNative(mMockNative);
+        when(mMockNative.sendMessage(anyShort(), anyInt(), anyInt(), any(byte[].class),
+                any(byte[].class), anyInt())).thenReturn(true);
     }
 
     @Test
@@ -482,7 +487,7 @@ public class WifiNanStateManagerTest {
         final String serviceName = "some-service-name";
         final String ssi = "some much longer and more arbitrary data";
         final int subscribeCount = 7;
-        final int reasonFail = WifiNanSessionListener.FAIL_REASON_NO_RESOURCES;
+        final int reasonFail = WifiNanSessionListener.FAIL_REASON_OTHER;
         final int subscribeId = 15;
         final int requestorId = 22;
         final byte[] peerMac = HexEncoding.decode("060708090A0B".toCharArray(), false);
@@ -1056,6 +1061,270 @@ public class WifiNanStateManagerTest {
         verifyNoMoreInteractions(mockSubscribeSessionListener);
     }
 
+    /**
+     * Summary: send more messages than the in-flight window allows, from two clients. Validate
+     * that messages are held back until earlier ones complete, that clients are served round
+     * robin, and that a message failing for lack of resources is retried after a delay.
+     */
+    @Test
+    public void testMessageQueueFlowControl() throws Exception {
+        final int uid1 = 300;
+        final int uid2 = 301;
+        final int sessionId = 26;
+        final String serviceName = "some-service-name";
+        final int publishId1 = 88;
+        final int publishId2 = 89;
+        final int peerId = 568;
+        final byte[] peerMac = HexEncoding.decode("000102030405".toCharArray(), false);
+        final String msgFromPeer = "hey from 000102...";
+        final String msg1 = "message 1";
+        final String msg2 = "message 2";
+        final String msg3 = "message 3";
+        final String msg4 = "message 4";
+
+        PublishData publishData = new PublishData.Builder().setServiceName(serviceName).build();
+        PublishSettings publishSettings = new PublishSettings.Builder()
+                .setPublishType(PublishSettings.PUBLISH_TYPE_UNSOLICITED).build();
+
+        ArgumentCaptor<Short> transactionId = ArgumentCaptor.forClass(Short.class);
+        IWifiNanSessionListener mockSessionListener1 = mock(IWifiNanSessionListener.class);
+        IWifiNanSessionListener mockSessionListener2 = mock(IWifiNanSessionListener.class);
+        InOrder inOrder = inOrder(mMockNative, mockSessionListener1, mockSessionListener2);
+
+        int events = WifiNanSessionListener.LISTEN_MESSAGE_SEND_SUCCESS
+                | WifiNanSessionListener.LISTEN_MESSAGE_SEND_FAIL;
+
+        mDut.setMaxMessagesInFlight(1);
+        mDut.connect(uid1, null, 0);
+        mDut.createSession(uid1, sessionId, mockSessionListener1, events);
+        mDut.publish(uid1, sessionId, publishData, publishSettings);
+        mDut.connect(uid2, null, 0);
+        mDut.createSession(uid2, sessionId, mockSessionListener2, events);
+        mDut.publish(uid2, sessionId, publishData, publishSettings);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mMockNative).publish(transactionId.capture(), eq(0), eq(publishData),
+                eq(publishSettings));
+        mDut.onPublishSuccess(transactionId.getValue(), publishId1);
+        inOrder.verify(mMockNative).publish(transactionId.capture(), eq(0), eq(publishData),
+                eq(publishSettings));
+        mDut.onPublishSuccess(transactionId.getValue(), publishId2);
+        mDut.onMessageReceived(publishId1, peerId, peerMac, msgFromPeer.getBytes(),
+                msgFromPeer.length());
+        mDut.onMessageReceived(publishId2, peerId, peerMac, msgFromPeer.getBytes(),
+                msgFromPeer.length());
+        mDut.sendMessage(uid1, sessionId, peerId, msg1.getBytes(), msg1.length(), 1);
+        mDut.sendMessage(uid1, sessionId, peerId, msg2.getBytes(), msg2.length(), 2);
+        mDut.sendMessage(uid1, sessionId, peerId, msg3.getBytes(), msg3.length(), 3);
+        mDut.sendMessage(uid2, sessionId, peerId, msg4.getBytes(), msg4.length(), 4);
+        mMockLooper.dispatchAll();
+
+        // window of 1: only the first message is handed to the HAL
+        inOrder.verify(mMockNative).sendMessage(transactionId.capture(), eq(publishId1),
+                eq(peerId), eq(peerMac), eq(msg1.getBytes()), eq(msg1.length()));
+        inOrder.verifyNoMoreInteractions();
+
+        mDut.onMessageSendSuccess(transactionId.getValue());
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mockSessionListener1).onMessageSendSuccess(1);
+        inOrder.verify(mMockNative).sendMessage(transactionId.capture(), eq(publishId1),
+                eq(peerId), eq(peerMac), eq(msg2.getBytes()), eq(msg2.length()));
+
+        mDut.onMessageSendSuccess(transactionId.getValue());
+        mMockLooper.dispatchAll();
+
+        // second client served before the third message of the first client
+        inOrder.verify(mockSessionListener1).onMessageSendSuccess(2);
+        inOrder.verify(mMockNative).sendMessage(transactionId.capture(), eq(publishId2),
+                eq(peerId), eq(peerMac), eq(msg4.getBytes()), eq(msg4.length()));
+
+        // firmware queue full: nothing is sent until the retry delay has passed
+        mDut.onMessageSendFail(transactionId.getValue(),
+                WifiNanSessionListener.FAIL_REASON_NO_RESOURCES);
+        mMockLooper.dispatchAll();
+        inOrder.verifyNoMoreInteractions();
+
+        mMockLooper.moveTimeForward(1000);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mMockNative).sendMessage(transactionId.capture(), eq(publishId1),
+                eq(peerId), eq(peerMac), eq(msg3.getBytes()), eq(msg3.length()));
+        mDut.onMessageSendSuccess(transactionId.getValue());
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mockSessionListener1).onMessageSendSuccess(3);
+        inOrder.verify(mMockNative).sendMessage(transactionId.capture(), eq(publishId2),
+                eq(peerId), eq(peerMac), eq(msg4.getBytes()), eq(msg4.length()));
+        mDut.onMessageSendSuccess(transactionId.getValue());
+        mMockLooper.dispatchAll();
+
+        validateInternalTransactionInfoCleanedUp(transactionId.getValue());
+        inOrder.verify(mockSessionListener2).onMessageSendSuccess(4);
+        verifyNoMoreInteractions(mMockNative, mockSessionListener1, mockSessionListener2);
+    }
+
+    /**
+     * Summary: fill a window of one with a message whose response never comes, then with one
+     * answered by an unknown transaction response, then with one the HAL refuses. Validate
+     * that each message is failed to the listener and releases its slot for the next one.
+     */
+    @Test
+    public void testMessageSlotReleasedWithoutResponse() throws Exception {
+        final int uid = 302;
+        final int sessionId = 27;
+        final String serviceName = "some-service-name";
+        final int publishId = 90;
+        final int peerId = 569;
+        final byte[] peerMac = HexEncoding.decode("000102030405".toCharArray(), false);
+        final String msgFromPeer = "hey from 000102...";
+        final String msg1 = "message 1";
+        final String msg2 = "message 2";
+        final String msg3 = "message 3";
+        final String msg4 = "message 4";
+
+        PublishData publishData = new PublishData.Builder().setServiceName(serviceName).build();
+        PublishSettings publishSettings = new PublishSettings.Builder()
+                .setPublishType(PublishSettings.PUBLISH_TYPE_UNSOLICITED).build();
+
+        ArgumentCaptor<Short> transactionId = ArgumentCaptor.forClass(Short.class);
+        IWifiNanSessionListener mockSessionListener = mock(IWifiNanSessionListener.class);
+        InOrder inOrder = inOrder(mMockNative, mockSessionListener);
+
+        int events = WifiNanSessionListener.LISTEN_MESSAGE_SEND_SUCCESS
+                | WifiNanSessionListener.LISTEN_MESSAGE_SEND_FAIL;
+
+        mDut.setMaxMessagesInFlight(1);
+        mDut.connect(uid, null, 0);
+        mDut.createSession(uid, sessionId, mockSessionListener, events);
+        mDut.publish(uid, sessionId, publishData, publishSettings);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mMockNative).publish(transactionId.capture(), eq(0), eq(publishData),
+                eq(publishSettings));
+        mDut.onPublishSuccess(transactionId.getValue(), publishId);
+        mDut.onMessageReceived(publishId, peerId, peerMac, msgFromPeer.getBytes(),
+                msgFromPeer.length());
+        mDut.sendMessage(uid, sessionId, peerId, msg1.getBytes(), msg1.length(), 1);
+        mDut.sendMessage(uid, sessionId, peerId, msg2.getBytes(), msg2.length(), 2);
+        mDut.sendMessage(uid, sessionId, peerId, msg3.getBytes(), msg3.length(), 3);
+        mDut.sendMessage(uid, sessionId, peerId, msg4.getBytes(), msg4.length(), 4);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mMockNative).sendMessage(transactionId.capture(), eq(publishId),
+                eq(peerId), eq(peerMac), eq(msg1.getBytes()), eq(msg1.length()));
+        inOrder.verifyNoMoreInteractions();
+
+        // no response at all: the message times out
+        mMockLooper.moveTimeForward(10000);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mockSessionListener).onMessageSendFail(1,
+                WifiNanSessionListener.FAIL_REASON_OTHER);
+        inOrder.verify(mMockNative).sendMessage(transactionId.capture(), eq(publishId),
+                eq(peerId), eq(peerMac), eq(msg2.getBytes()), eq(msg2.length()));
+
+        // the next message is refused by the HAL, the one after is sent right away
+        when(mMockNative.sendMessage(anyShort(), anyInt(), anyInt(), any(byte[].class),
+                eq(msg3.getBytes()), anyInt())).thenReturn(false);
+        mDut.onUnknownTransaction(0, transactionId.getValue(), 0);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mockSessionListener).onMessageSendFail(2,
+                WifiNanSessionListener.FAIL_REASON_OTHER);
+        inOrder.verify(mMockNative).sendMessage(anyShort(), eq(publishId), eq(peerId),
+                eq(peerMac), eq(msg3.getBytes()), eq(msg3.length()));
+        inOrder.verify(mockSessionListener).onMessageSendFail(3,
+                WifiNanSessionListener.FAIL_REASON_OTHER);
+        inOrder.verify(mMockNative).sendMessage(transactionId.capture(), eq(publishId),
+                eq(peerId), eq(peerMac), eq(msg4.getBytes()), eq(msg4.length()));
+
+        mDut.onMessageSendSuccess(transactionId.getValue());
+        mMockLooper.moveTimeForward(10000);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mockSessionListener).onMessageSendSuccess(4);
+        validateInternalTransactionInfoCleanedUp(transactionId.getValue());
+        verifyNoMoreInteractions(mMockNative, mockSessionListener);
+    }
+
+    /**
+     * Summary: validate that discovery events are dispatched by publish/subscribe ID only
+     * while the session is live, and that the ID lookup is cleaned-up on termination and
+     * on destruction of the session.
+     */
+    @Test
+    public void testPubSubIdLookupCleanedUp() throws Exception {
+        final int uid = 1005;
+        final int publishSessionId = 20;
+        final int subscribeSessionId = 21;
+        final String serviceName = "some-service-name";
+        final int publishId = 15;
+        final int subscribeId = 16;
+        final int requestorId = 22;
+        final int reason = WifiNanSessionListener.TERMINATE_REASON_DONE;
+        final byte[] peerMac = HexEncoding.decode("060708090A0B".toCharArray(), false);
+        final String peerSsi = "some peer ssi data";
+
+        PublishData publishData = new PublishData.Builder().setServiceName(serviceName).build();
+        PublishSettings publishSettings = new PublishSettings.Builder()
+                .setPublishType(PublishSettings.PUBLISH_TYPE_UNSOLICITED).build();
+        SubscribeData subscribeData = new SubscribeData.Builder().setServiceName(serviceName)
+                .build();
+        SubscribeSettings subscribeSettings = new SubscribeSettings.Builder()
+                .setSubscribeType(SubscribeSettings.SUBSCRIBE_TYPE_PASSIVE).build();
+
+        IWifiNanSessionListener mockPublishListener = mock(IWifiNanSessionListener.class);
+        IWifiNanSessionListener mockSubscribeListener = mock(IWifiNanSessionListener.class);
+        ArgumentCaptor<Short> transactionId = ArgumentCaptor.forClass(Short.class);
+        InOrder inOrder = inOrder(mockPublishListener, mockSubscribeListener, mMockNative);
+
+        int events = WifiNanSessionListener.LISTEN_PUBLISH_TERMINATED
+                | WifiNanSessionListener.LISTEN_MATCH;
+
+        mDut.connect(uid, null, 0);
+        mDut.createSession(uid, publishSessionId, mockPublishListener, events);
+        mDut.createSession(uid, subscribeSessionId, mockSubscribeListener, events);
+        mDut.publish(uid, publishSessionId, publishData, publishSettings);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mMockNative).publish(transactionId.capture(), eq(0), eq(publishData),
+                eq(publishSettings));
+        mDut.onPublishSuccess(transactionId.getValue(), publishId);
+        mDut.subscribe(uid, subscribeSessionId, subscribeData, subscribeSettings);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mMockNative).subscribe(transactionId.capture(), eq(0), eq(subscribeData),
+                eq(subscribeSettings));
+        mDut.onSubscribeSuccess(transactionId.getValue(), subscribeId);
+        mDut.onMatch(publishId, requestorId, peerMac, peerSsi.getBytes(), peerSsi.length(),
+                null, 0);
+        mDut.onMatch(subscribeId, requestorId, peerMac, peerSsi.getBytes(), peerSsi.length(),
+                null, 0);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mockPublishListener).onMatch(requestorId, peerSsi.getBytes(),
+                peerSsi.length(), null, 0);
+        inOrder.verify(mockSubscribeListener).onMatch(requestorId, peerSsi.getBytes(),
+                peerSsi.length(), null, 0);
+        collector.checkThat("live sessions", getInternalSessionsByPubSubId(mDut).size(),
+                equalTo(2));
+
+        mDut.onPublishTerminated(publishId, reason);
+        mDut.onMatch(publishId, requestorId, peerMac, peerSsi.getBytes(), peerSsi.length(),
+                null, 0);
+        mDut.destroySession(uid, subscribeSessionId);
+        mDut.onMatch(subscribeId, requestorId, peerMac, peerSsi.getBytes(), peerSsi.length(),
+                null, 0);
+        mMockLooper.dispatchAll();
+
+        inOrder.verify(mockPublishListener).onPublishTerminated(reason);
+        inOrder.verify(mMockNative).stopSubscribe(anyShort(), eq(subscribeId));
+        verifyNoMoreInteractions(mockPublishListener, mockSubscribeListener, mMockNative);
+        collector.checkThat("live sessions", getInternalSessionsByPubSubId(mDut).size(),
+                equalTo(0));
+    }
+
     @Test
     public void testTransactionIdIncrement() {
         int loopCount = 100;
@@ -1134,6 +1403,14 @@ public class WifiNanStateManagerTest {
         return pendingResponses.get(transactionId);
     }
 
+    private static SparseArray<?> getInternalSessionsByPubSubId(WifiNanStateManager dut)
+            throws Exception {
+        Field field = WifiNanStateManager.class.getDeclaredField("mSessionsByPubSubId");
+        field.setAccessible(true);
+
+        return (SparseArray<?>) field.get(dut);
+    }
+
     private static WifiNanClientState getInternalClientState(WifiNanStateManager dut,
             int uid) throws Exception {
         Field field = WifiNanStateManager.class.getDeclaredField("mClients");
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.p2p;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.aryEq;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pDeviceList;
+import android.net.wifi.p2p.WifiP2pGroup;
+import android.net.wifi.p2p.WifiP2pGroupList;
+import android.net.wifi.p2p.WifiP2pWfdInfo;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.wifi.Clock;
+import com.android.server.wifi.WifiNative;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.p2p.WifiP2pServiceImpl}.
+ */
+@SmallTest
+public class WifiP2pServiceImplTest {
+    private static final String HEADER = "network id / ssid / bssid / flags\n";
+    private static final String THIS_DEVICE_ADDRESS = "02:00:00:00:00:01";
+    private static final String PEER_ADDRESS = "02:00:00:00:00:02";
+
+    @Mock private WifiNative mWifiNative;
+    @Mock private Clock mClock;
+    private WifiP2pDevice mThisDevice;
+    private WifiP2pGroupList mGroups;
+    private WifiP2pServiceImpl.PersistentGroupSync mSync;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mThisDevice = new WifiP2pDevice();
+        mThisDevice.deviceAddress = THIS_DEVICE_ADDRESS;
+        mGroups = new WifiP2pGroupList(null, null);
+        mSync = new WifiP2pServiceImpl.PersistentGroupSync(mWifiNative, mGroups);
+    }
+
+    private static WifiP2pDevice peer(String address, String name) {
+        WifiP2pDevice device = new WifiP2pDevice();
+        device.deviceAddress = address;
+        device.deviceName = name;
+        device.status = WifiP2pDevice.AVAILABLE;
+        return device;
+    }
+
+    private static String network(int netId, String ssid, String bssid) {
+        return netId + "\t" + ssid + "\t" + bssid + "\t[DISABLED][P2P-PERSISTENT]\n";
+    }
+
+    private WifiP2pGroup findGroup(int netId) {
+        for (WifiP2pGroup group : mGroups.getGroupList()) {
+            if (group.getNetworkId() == netId) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Verifies that a full listing reads the mode of a network only the first time the network
+     * is seen, and again once its name changes.
+     */
+    @Test
+    public void reloadKeepsModesOfUnchangedGroups() throws Exception {
+        when(mWifiNative.listNetworks()).thenReturn(HEADER
+                + network(0, "DIRECT-a", THIS_DEVICE_ADDRESS)
+                + network(1, "DIRECT-b", PEER_ADDRESS));
+        when(mWifiNative.getNetworkVariables(aryEq(new int[] {0, 1}), eq("mode")))
+                .thenReturn(new String[] {"3", "0"});
+
+        int result = mSync.sync(true, mThisDevice);
+        assertEquals(WifiP2pServiceImpl.PersistentGroupSync.GROUPS_CHANGED, result);
+        assertTrue(findGroup(0).isGroupOwner());
+        assertFalse(findGroup(1).isGroupOwner());
+
+        mSync.sync(true, mThisDevice);
+        verify(mWifiNative, times(1)).getNetworkVariables(aryEq(new int[] {0, 1}), eq("mode"));
+        assertEquals(2, mGroups.getGroupList().size());
+        assertTrue(findGroup(0).isGroupOwner());
+        assertFalse(findGroup(1).isGroupOwner());
+        assertEquals(2, mSync.getFullSyncCount());
+
+        when(mWifiNative.listNetworks()).thenReturn(HEADER
+                + network(0, "DIRECT-a", THIS_DEVICE_ADDRESS)
+                + network(1, "DIRECT-c", PEER_ADDRESS));
+        when(mWifiNative.getNetworkVariables(aryEq(new int[] {1}), eq("mode")))
+                .thenReturn(new String[] {"3"});
+        mSync.sync(true, mThisDevice);
+        verify(mWifiNative).getNetworkVariables(aryEq(new int[] {1}), eq("mode"));
+        assertTrue(findGroup(1).isGroupOwner());
+    }
+
+    /**
+     * Verifies that an incremental sync reads only the networks above the last synced id, and
+     * the modes of the new ones only.
+     */
+    @Test
+    public void incrementalSyncReadsOnlyNewNetworks() throws Exception {
+        when(mWifiNative.listNetworks()).thenReturn(HEADER
+                + network(0, "DIRECT-a", THIS_DEVICE_ADDRESS));
+        when(mWifiNative.getNetworkVariables(aryEq(new int[] {0}), eq("mode")))
+                .thenReturn(new String[] {"3"});
+        mSync.sync(true, mThisDevice);
+        assertEquals(0, mSync.getLastSyncedNetId());
+
+        when(mWifiNative.listNetworks(0)).thenReturn(HEADER + network(1, "DIRECT-b", PEER_ADDRESS));
+        when(mWifiNative.getNetworkVariables(aryEq(new int[] {1}), eq("mode")))
+                .thenReturn(new String[] {"0"});
+        int result = mSync.sync(false, mThisDevice);
+        assertEquals(WifiP2pServiceImpl.PersistentGroupSync.GROUPS_CHANGED, result);
+        assertEquals(1, mSync.getLastSyncedNetId());
+        assertEquals(2, mGroups.getGroupList().size());
+        assertFalse(findGroup(1).isGroupOwner());
+        verify(mWifiNative, times(1)).getNetworkVariables(aryEq(new int[] {0}), eq("mode"));
+        assertEquals(1, mSync.getFullSyncCount());
+
+        when(mWifiNative.listNetworks(1)).thenReturn(HEADER);
+        assertEquals(0, mSync.sync(false, mThisDevice));
+    }
+
+    /**
+     * Verifies that a removed network is read again, mode included, when its id is reused.
+     */
+    @Test
+    public void removedNetworkIsReadAgain() throws Exception {
+        when(mWifiNative.listNetworks()).thenReturn(HEADER
+                + network(0, "DIRECT-a", THIS_DEVICE_ADDRESS)
+                + network(1, "DIRECT-b", PEER_ADDRESS));
+        when(mWifiNative.getNetworkVariables(aryEq(new int[] {0, 1}), eq("mode")))
+                .thenReturn(new String[] {"3", "0"});
+        mSync.sync(true, mThisDevice);
+
+        // Removed by this service
+        mGroups.remove(1);
+        mSync.forget(1);
+        assertNull(findGroup(1));
+        assertEquals(0, mSync.getLastSyncedNetId());
+
+        when(mWifiNative.listNetworks(0)).thenReturn(HEADER + network(1, "DIRECT-b", PEER_ADDRESS));
+        when(mWifiNative.getNetworkVariables(aryEq(new int[] {1}), eq("mode")))
+                .thenReturn(new String[] {"3"});
+        mSync.sync(false, mThisDevice);
+        verify(mWifiNative).getNetworkVariables(aryEq(new int[] {1}), eq("mode"));
+        assertTrue(findGroup(1).isGroupOwner());
+
+        // Removed behind the service's back, then missing from a full listing
+        when(mWifiNative.listNetworks()).thenReturn(HEADER
+                + network(0, "DIRECT-a", THIS_DEVICE_ADDRESS));
+        mSync.sync(true, mThisDevice);
+        assertNull(findGroup(1));
+        when(mWifiNative.listNetworks()).thenReturn(HEADER
+                + network(0, "DIRECT-a", THIS_DEVICE_ADDRESS)
+                + network(1, "DIRECT-b", PEER_ADDRESS));
+        mSync.sync(true, mThisDevice);
+        verify(mWifiNative, times(2)).getNetworkVariables(aryEq(new int[] {1}), eq("mode"));
+        verify(mWifiNative, times(1)).getNetworkVariables(aryEq(new int[] {0, 1}), eq("mode"));
+    }
+
+    /**
+     * Verifies that a network that is not a P2P persistent group is removed and a config save
+     * is asked for.
+     */
+    @Test
+    public void unusedNetworkIsRemoved() throws Exception {
+        when(mWifiNative.listNetworks()).thenReturn(HEADER + "0\tDIRECT-a\t" + PEER_ADDRESS
+                + "\t[DISABLED]\n");
+        int result = mSync.sync(true, mThisDevice);
+        assertEquals(WifiP2pServiceImpl.PersistentGroupSync.GROUPS_CHANGED
+                | WifiP2pServiceImpl.PersistentGroupSync.SAVE_REQUIRED, result);
+        verify(mWifiNative).removeNetwork(0);
+        assertTrue(mGroups.getGroupList().isEmpty());
+        verify(mWifiNative, never()).getNetworkVariables(aryEq(new int[] {0}), eq("mode"));
+    }
+
+    /**
+     * Verifies that the first change after a broadcast schedules the next one no sooner than
+     * the minimum interval after it, and that later changes join the scheduled broadcast.
+     */
+    @Test
+    public void peersChangesAreCoalesced() throws Exception {
+        WifiP2pServiceImpl.PeersChangedCoalescer coalescer =
+                new WifiP2pServiceImpl.PeersChangedCoalescer(mClock);
+        WifiP2pDeviceList peers = new WifiP2pDeviceList();
+        when(mClock.elapsedRealtime()).thenReturn(10000L);
+
+        peers.update(peer(PEER_ADDRESS, "first"));
+        assertEquals(0, coalescer.onPeersChanged());
+        peers.update(peer(THIS_DEVICE_ADDRESS, "second"));
+        assertEquals(-1, coalescer.onPeersChanged());
+        WifiP2pDeviceList broadcast = coalescer.flush(peers);
+        assertEquals(2, broadcast.getDeviceList().size());
+        assertEquals(1, coalescer.getBroadcastCount());
+
+        when(mClock.elapsedRealtime()).thenReturn(10100L);
+        peers.remove(THIS_DEVICE_ADDRESS);
+        assertEquals(400, coalescer.onPeersChanged());
+        assertEquals(1, coalescer.flush(peers).getDeviceList().size());
+        assertEquals(2, broadcast.getDeviceList().size());
+
+        when(mClock.elapsedRealtime()).thenReturn(20000L);
+        peers.update(peer(THIS_DEVICE_ADDRESS, "second"));
+        assertEquals(0, coalescer.onPeersChanged());
+        assertEquals(3, coalescer.getChangeCount());
+    }
+
+    /**
+     * Verifies that a broadcast is skipped when the peers are the same as in the previous one,
+     * even if they changed and changed back in between.
+     */
+    @Test
+    public void unchangedPeersAreNotBroadcast() throws Exception {
+        WifiP2pServiceImpl.PeersChangedCoalescer coalescer =
+                new WifiP2pServiceImpl.PeersChangedCoalescer(mClock);
+        WifiP2pDeviceList peers = new WifiP2pDeviceList();
+        peers.update(peer(PEER_ADDRESS, "first"));
+        coalescer.onPeersChanged();
+        assertNotNull(coalescer.flush(peers));
+
+        peers.updateStatus(PEER_ADDRESS, WifiP2pDevice.INVITED);
+        coalescer.onPeersChanged();
+        peers.updateStatus(PEER_ADDRESS, WifiP2pDevice.AVAILABLE);
+        coalescer.onPeersChanged();
+        assertNull(coalescer.flush(peers));
+        assertEquals(1, coalescer.getBroadcastCount());
+
+        peers.updateStatus(PEER_ADDRESS, WifiP2pDevice.CONNECTED);
+        coalescer.onPeersChanged();
+        assertEquals(WifiP2pDevice.CONNECTED,
+                coalescer.flush(peers).get(PEER_ADDRESS).status);
+    }
+
+    /**
+     * Verifies that peers are compared field by field, display info included.
+     */
+    @Test
+    public void samePeerComparesFields() throws Exception {
+        WifiP2pDevice a = peer(PEER_ADDRESS, "name");
+        WifiP2pDevice b = peer(PEER_ADDRESS, "name");
+        assertTrue(WifiP2pServiceImpl.PeersChangedCoalescer.samePeer(a, b));
+        assertFalse(WifiP2pServiceImpl.PeersChangedCoalescer.samePeer(a, null));
+
+        b.deviceName = "other";
+        assertFalse(WifiP2pServiceImpl.PeersChangedCoalescer.samePeer(a, b));
+        b.deviceName = "name";
+        b.groupCapability = 1;
+        assertFalse(WifiP2pServiceImpl.PeersChangedCoalescer.samePeer(a, b));
+        b.groupCapability = 0;
+
+        a.wfdInfo = new WifiP2pWfdInfo(0, 7236, 50);
+        b.wfdInfo = new WifiP2pWfdInfo(0, 7236, 50);
+        assertTrue(WifiP2pServiceImpl.PeersChangedCoalescer.samePeer(a, b));
+        b.wfdInfo.setControlPort(7237);
+        assertFalse(WifiP2pServiceImpl.PeersChangedCoalescer.samePeer(a, b));
+    }
+}
@@ -441,7 +441,7 @@ public abstract class BaseWifiScannerImplTest {
 
         order.verify(mWifiNative).scan(eq(expectedScan), any(Set.class));
 
-        when(mWifiNative.getScanResults()).thenReturn(rawResults);
+        when(mWifiNative.getScanResults(WifiNative.SCAN_FETCH_STANDARD)).thenReturn(rawResults);
 
         // Notify scan has finished
         mWifiMonitor.sendMessage(mWifiNative.getInterfaceName(), WifiMonitor.SCAN_RESULTS_EVENT);
@@ -502,7 +502,8 @@ public abstract class BaseWifiScannerImplTest {
             Set<Integer> expectedHiddenNetIds, ScanResults results, boolean expectFullResults) {
         order.verify(mWifiNative).scan(eq(expectedScan), eq(expectedHiddenNetIds));
 
-        when(mWifiNative.getScanResults()).thenReturn(results.getScanDetailArrayList());
+        when(mWifiNative.getScanResults(WifiNative.SCAN_FETCH_STANDARD))
+                .thenReturn(results.getScanDetailArrayList());
 
         // Notify scan has finished
         mWifiMonitor.sendMessage(mWifiNative.getInterfaceName(), WifiMonitor.SCAN_RESULTS_EVENT);
@@ -442,7 +442,8 @@ public class SupplicantPnoScannerTest {
         expectHwDisconnectedPnoScanStart(order, pnoSettings);
 
         // Setup scan results
-        when(mWifiNative.getScanResults()).thenReturn(scanResults.getScanDetailArrayList());
+        when(mWifiNative.getScanResults(WifiNative.SCAN_FETCH_STANDARD))
+                .thenReturn(scanResults.getScanDetailArrayList());
 
         // Notify scan has finished
         mWifiMonitor.sendMessage(mWifiNative.getInterfaceName(), WifiMonitor.SCAN_RESULTS_EVENT);
@@ -463,7 +464,8 @@ public class SupplicantPnoScannerTest {
 
         order.verify(mWifiNative).scan(eq(expectedScanFreqs), eq(expectedHiddenNetIds));
 
-        when(mWifiNative.getScanResults()).thenReturn(scanResults.getScanDetailArrayList());
+        when(mWifiNative.getScanResults(WifiNative.SCAN_FETCH_STANDARD))
+                .thenReturn(scanResults.getScanDetailArrayList());
 
         // Notify scan has finished
         mWifiMonitor.sendMessage(mWifiNative.getInterfaceName(), WifiMonitor.SCAN_RESULTS_EVENT);
@@ -489,7 +491,8 @@ public class SupplicantPnoScannerTest {
         verify(mWifiNative, never()).setPnoScan(anyBoolean());
 
         // Setup scan results
-        when(mWifiNative.getScanResults()).thenReturn(scanResults.getScanDetailArrayList());
+        when(mWifiNative.getScanResults(WifiNative.SCAN_FETCH_STANDARD))
+                .thenReturn(scanResults.getScanDetailArrayList());
 
         // Notify scan has finished
         mWifiMonitor.sendMessage(mWifiNative.getInterfaceName(), WifiMonitor.SCAN_RESULTS_EVENT);
@@ -472,8 +472,9 @@ public class SupplicantWifiScannerTest extends BaseWifiScannerImplTest {
         assertBackgroundPeriodAlarmNotPending();
 
         // Setup scan results
-        when(mWifiNative.getScanResults()).thenReturn(expectedPeriods[0]
-                .getResultsToBeDelivered()[0].getScanDetailArrayList());
+        when(mWifiNative.getScanResults(WifiNative.SCAN_FETCH_STANDARD))
+                .thenReturn(expectedPeriods[0]
+                        .getResultsToBeDelivered()[0].getScanDetailArrayList());
 
         // Notify scan has finished
         mWifiMonitor.sendMessage(mWifiNative.getInterfaceName(), WifiMonitor.SCAN_RESULTS_EVENT);
@@ -626,7 +627,7 @@ public class SupplicantWifiScannerTest extends BaseWifiScannerImplTest {
         order.verify(mWifiNative).scan(eq(scanFreqs), eq(networkIds));
 
         // Setup scan results
-        when(mWifiNative.getScanResults()).thenReturn(nativeResults);
+        when(mWifiNative.getScanResults(WifiNative.SCAN_FETCH_STANDARD)).thenReturn(nativeResults);
 
         // Notify scan has finished
         mWifiMonitor.sendMessage(mWifiNative.getInterfaceName(), WifiMonitor.SCAN_RESULTS_EVENT);
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.util.BinaryLocalLog}.
+ */
+@SmallTest
+public class BinaryLocalLogTest {
+    private static String dump(BinaryLocalLog log, String tag) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        log.dump(pw, tag);
+        pw.flush();
+        return sw.toString();
+    }
+
+    /** Verifies that records are formatted with their arguments when dumped. */
+    @Test
+    public void dumpFormatsRecords() {
+        BinaryLocalLog log = new BinaryLocalLog(16);
+        int command = BinaryLocalLog.registerFormat("WifiNative", "%s: %s%s -> %s");
+        int count = BinaryLocalLog.registerFormat("WifiNative", "%s=%d");
+        log.log(command, "wlan0", "IFNAME=wlan0 ", "PING", "PONG");
+        log.log(command, "wlan0", "IFNAME=wlan0 ", "ADD_NETWORK", 3);
+        log.log(count, "networks", 7);
+
+        String[] lines = dump(log, null).split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].endsWith(" - WifiNative: wlan0: IFNAME=wlan0 PING -> PONG"));
+        assertTrue(lines[1].endsWith(" - WifiNative: wlan0: IFNAME=wlan0 ADD_NETWORK -> 3"));
+        assertTrue(lines[2].endsWith(" - WifiNative: networks=7"));
+    }
+
+    /** Verifies that only the newest records are kept once the log is full. */
+    @Test
+    public void dropsOldestRecords() {
+        BinaryLocalLog log = new BinaryLocalLog(3);
+        int format = BinaryLocalLog.registerFormat("Test", "record %d");
+        for (int i = 0; i < 5; i++) {
+            log.log(format, i);
+        }
+
+        String[] lines = dump(log, null).split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].endsWith("record 2"));
+        assertTrue(lines[1].endsWith("record 3"));
+        assertTrue(lines[2].endsWith("record 4"));
+    }
+
+    /** Verifies that a tagged dump only holds the records of that tag, without the tag. */
+    @Test
+    public void dumpsRecordsOfOneTag() {
+        BinaryLocalLog log = new BinaryLocalLog(16);
+        int first = BinaryLocalLog.registerFormat("First", "%s");
+        int second = BinaryLocalLog.registerFormat("Second", "%s");
+        log.log(first, "one");
+        log.log(second, "two");
+
+        String dump = dump(log, "Second");
+        assertFalse(dump.contains("one"));
+        assertTrue(dump.trim().endsWith(" - two"));
+    }
+
+    /** Verifies that registering a format twice returns the same id. */
+    @Test
+    public void registerFormatIsIdempotent() {
+        BinaryLocalLog log = new BinaryLocalLog(16);
+        int format = BinaryLocalLog.registerFormat("Test", "%s");
+        assertEquals(format, BinaryLocalLog.registerFormat("Test", "%s"));
+        assertTrue(format != BinaryLocalLog.registerFormat("Other", "%s"));
+    }
+
+    /** Verifies that records spanning several segments are all kept, oldest first. */
+    @Test
+    public void keepsRecordsAcrossSegments() {
+        int maxRecords = BinaryLocalLog.SEGMENT_RECORDS + 10;
+        BinaryLocalLog log = new BinaryLocalLog(maxRecords);
+        int format = BinaryLocalLog.registerFormat("Test", "record %d");
+        for (int i = 0; i < maxRecords + 5; i++) {
+            log.log(format, i);
+        }
+
+        String[] lines = dump(log, null).split("\n");
+        assertEquals(maxRecords, lines.length);
+        assertTrue(lines[0].endsWith("record 5"));
+        assertTrue(lines[maxRecords - 1].endsWith("record " + (maxRecords + 4)));
+    }
+
+    /** Verifies that a record that does not fit its format is still dumped. */
+    @Test
+    public void dumpsRecordsThatDoNotFitTheirFormat() {
+        BinaryLocalLog log = new BinaryLocalLog(16);
+        int format = BinaryLocalLog.registerFormat("Test", "%d");
+        log.log(format, "not a number");
+
+        assertTrue(dump(log, null).contains("not a number"));
+    }
+}
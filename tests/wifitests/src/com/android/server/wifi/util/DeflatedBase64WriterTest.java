@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+/**
+ * Unit tests for {@link com.android.server.wifi.util.DeflatedBase64Writer}.
+ */
+@SmallTest
+public class DeflatedBase64WriterTest {
+    private static String write(byte[]... data) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        DeflatedBase64Writer.write(pw, data);
+        pw.flush();
+        return sw.toString();
+    }
+
+    private static byte[] inflate(byte[] input) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        while (!inflater.finished()) {
+            out.write(buf, 0, inflater.inflate(buf));
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+
+    /** Verifies that compressible data is deflated, across several arrays. */
+    @Test
+    public void deflatesCompressibleData() throws Exception {
+        byte[] first = new byte[10000];
+        byte[] second = new byte[20000];
+        Arrays.fill(first, (byte) 'a');
+        Arrays.fill(second, (byte) 'b');
+
+        String output = write(first, second);
+        byte[] inflated = inflate(Base64.decode(output, Base64.DEFAULT));
+        assertEquals(first.length + second.length, inflated.length);
+        assertArrayEquals(first, Arrays.copyOfRange(inflated, 0, first.length));
+        assertArrayEquals(second, Arrays.copyOfRange(inflated, first.length, inflated.length));
+    }
+
+    /** Verifies that data which does not compress is written as is. */
+    @Test
+    public void writesIncompressibleDataUnchanged() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(17).nextBytes(data);
+
+        assertEquals(Base64.encodeToString(data, Base64.DEFAULT), write(data));
+        assertEquals(Base64.encodeToString(data, Base64.DEFAULT),
+                write(Arrays.copyOfRange(data, 0, 1234), Arrays.copyOfRange(data, 1234, 5000)));
+    }
+
+    /** Verifies that empty input produces no output. */
+    @Test
+    public void writesNothingForEmptyData() throws Exception {
+        assertEquals("", write());
+        assertEquals("", write(new byte[0]));
+    }
+
+    /** Verifies that ASCII data is passed through unchanged. */
+    @Test
+    public void writesAsciiUnchanged() throws Exception {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        DeflatedBase64Writer.writeAscii(pw, "driver state\nok".getBytes("US-ASCII"));
+        pw.flush();
+        assertEquals("driver state\nok", sw.toString());
+    }
+}
@@ -26,6 +26,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.BitSet;
 
@@ -437,4 +438,80 @@ public class InformationElementUtilTest {
         trafficIndicationMap.from(ie);
         assertEquals(trafficIndicationMap.isValid(), false);
     }
+
+    /**
+     * Test that an ElementView indexes the elements of a buffer in place, and that element
+     * payloads are read from the original buffer.
+     */
+    @Test
+    public void elementView_indexesElementsInPlace() throws IOException {
+        byte[] bytes = concatenateByteArrays(getTestSsidIEBytes(), TEST_BSS_LOAD_BYTES_IE);
+
+        InformationElementUtil.ElementView view = InformationElementUtil.ElementView.parse(bytes);
+        assertEquals(2, view.size());
+        assertEquals(InformationElement.EID_SSID, view.getId(0));
+        assertEquals(TEST_SSID_BYTES.length, view.getLength(0));
+        assertEquals(1, view.indexOf(InformationElement.EID_BSS_LOAD));
+        assertEquals(-1, view.indexOf(InformationElement.EID_TIM));
+
+        ByteBuffer payload = view.getPayload(1);
+        assertEquals(1, payload.remaining());
+        bytes[TEST_SSID_BYTES_TAG.length + TEST_SSID_BYTES.length + 2] = (byte) 0x09;
+        assertEquals("payload should share the input buffer", (byte) 0x09, payload.get(0));
+    }
+
+    /**
+     * Test that an ElementView built from split up elements yields the same elements back.
+     */
+    @Test
+    public void elementView_ofInformationElements() throws IOException {
+        InformationElement[] ies = InformationElementUtil.parseInformationElements(
+                concatenateByteArrays(getTestSsidIEBytes(), TEST_BSS_LOAD_BYTES_IE));
+
+        InformationElement[] results =
+                InformationElementUtil.ElementView.of(ies).toInformationElements();
+        assertEquals(ies.length, results.length);
+        for (int n = 0; n < ies.length; n++) {
+            assertEquals(ies[n].id, results[n].id);
+            assertArrayEquals(ies[n].bytes, results[n].bytes);
+        }
+    }
+
+    /**
+     * Test that a view over split up elements, and what is retained of it, reference the
+     * payloads of the elements instead of copying them.
+     */
+    @Test
+    public void elementView_ofInformationElementsSharesPayloads() throws IOException {
+        InformationElement[] ies = InformationElementUtil.parseInformationElements(
+                concatenateByteArrays(getTestSsidIEBytes(), TEST_BSS_LOAD_BYTES_IE));
+        InformationElementUtil.ElementView retained = InformationElementUtil.ElementView.of(ies)
+                .retain(InformationElement.EID_BSS_LOAD);
+        assertEquals(1, retained.size());
+        assertEquals(InformationElement.EID_BSS_LOAD, retained.getId(0));
+
+        ies[1].bytes[0] = (byte) 0x09;
+        assertEquals("retained payload should share the element's bytes",
+                (byte) 0x09, retained.getPayload(0).get(0));
+    }
+
+    /**
+     * Test that retaining elements copies just those elements out of the original buffer.
+     */
+    @Test
+    public void elementView_retainCopiesSelectedElements() throws IOException {
+        byte[] bytes = concatenateByteArrays(getTestSsidIEBytes(), TEST_BSS_LOAD_BYTES_IE);
+        InformationElementUtil.ElementView view = InformationElementUtil.ElementView.parse(bytes);
+
+        InformationElementUtil.ElementView retained =
+                view.retain(InformationElement.EID_BSS_LOAD, InformationElement.EID_TIM);
+        assertEquals(1, retained.size());
+        assertEquals(InformationElement.EID_BSS_LOAD, retained.getId(0));
+        assertArrayEquals(view.getBytes(1), retained.getBytes(0));
+
+        bytes[TEST_SSID_BYTES_TAG.length + TEST_SSID_BYTES.length + 2] = (byte) 0x09;
+        assertEquals("retained payload should not share the input buffer",
+                (byte) 0x08, retained.getPayload(0).get(0));
+        assertEquals(0, view.retain(InformationElement.EID_TIM).size());
+    }
 }